@@ -0,0 +1,35 @@
+package com.chatapp.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of {@code benchmarks.jar}: JMH's own command line, except that results
+ * are also written as JSON to {@code jmh-result-<version>.json} in the working
+ * directory unless {@code -rf}/{@code -rff} say otherwise, so every release run
+ * leaves a file to diff against the last one.
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        String format = "json";
+        int at = options.indexOf("-rf");
+        if (at >= 0 && at + 1 < options.size()) {
+            format = options.get(at + 1).toLowerCase();
+        } else {
+            options.add("-rf");
+            options.add(format);
+        }
+        if (!options.contains("-rff")) {
+            String version = BenchmarkMain.class.getPackage().getImplementationVersion();
+            options.add("-rff");
+            options.add("jmh-result-" + (version != null ? version : "dev") + "." + format);
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,100 @@
+package com.chatapp.benchmarks;
+
+import com.chatapp.protocol.BinaryCodec;
+import com.chatapp.protocol.Frame;
+import com.chatapp.protocol.Opcode;
+import com.chatapp.protocol.ProtocolException;
+import com.chatapp.protocol.TextCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Text lines vs binary frames for typical traffic: encode to bytes, and decode from
+ * bytes with every field read. Bytes on the wire per frame are printed at setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    @Param({"MSG", "RECEIVE", "HISTORY_PAGE"})
+    public String kind;
+
+    private Frame frame;
+    private byte[] textBytes;
+    private byte[] binaryBytes;
+
+    @Setup
+    public void setup() {
+        frame = switch (kind) {
+            case "MSG" -> Frame.of(Opcode.MSG, "kabilan", "are we still on for lunch tomorrow?");
+            case "RECEIVE" -> Frame.of(Opcode.RECEIVE, "haritha",
+                    "[12:41:07.123456] haritha: are we still on for lunch tomorrow?");
+            default -> historyPage(30);
+        };
+        textBytes = TextCodec.encodeLine(frame);
+        binaryBytes = BinaryCodec.encode(frame);
+        System.out.println(kind + " bytes on wire: text=" + textBytes.length + " binary=" + binaryBytes.length);
+    }
+
+    @Benchmark
+    public byte[] encodeText() {
+        return TextCodec.encodeLine(frame);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return BinaryCodec.encode(frame);
+    }
+
+    @Benchmark
+    public void decodeText(Blackhole bh) {
+        // The line without its newline, as a reader hands it over
+        String line = new String(textBytes, 0, textBytes.length - 1, StandardCharsets.UTF_8);
+        consume(TextCodec.decode(line), bh);
+    }
+
+    @Benchmark
+    public void decodeBinary(Blackhole bh) throws ProtocolException {
+        consume(BinaryCodec.decode(ByteBuffer.wrap(binaryBytes)), bh);
+    }
+
+    private static void consume(Frame decoded, Blackhole bh) {
+        for (int i = 0; i < decoded.fieldCount(); i++) {
+            bh.consume(decoded.field(i));
+        }
+    }
+
+    private static Frame historyPage(int messages) {
+        List<String> fields = new ArrayList<>();
+        fields.add("kabilan");
+        fields.add("1");
+        for (int i = 0; i < messages; i++) {
+            fields.add(String.valueOf(100_000 + i));
+            fields.add(i % 2 == 0 ? "haritha" : "kabilan");
+            fields.add("message number " + i + " in this conversation");
+            fields.add("4:" + (10 + i) + " pm");
+            fields.add("1");
+        }
+        return Frame.of(Opcode.HISTORY_PAGE, fields);
+    }
+}
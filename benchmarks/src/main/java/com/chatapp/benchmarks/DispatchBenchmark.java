@@ -0,0 +1,130 @@
+package com.chatapp.benchmarks;
+
+import com.chatapp.protocol.BinaryCodec;
+import com.chatapp.protocol.Command;
+import com.chatapp.protocol.Commands;
+import com.chatapp.protocol.Dispatcher;
+import com.chatapp.protocol.Frame;
+import com.chatapp.protocol.ProtocolException;
+import com.chatapp.protocol.TextCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-side command dispatch for a realistic mix of inbound commands: the old
+ * {@code startsWith}/{@code split} chain against the opcode table, from text lines
+ * and from binary frames. Scores are per command.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    // Mostly messages and typing events, as in a busy chat
+    private static final String[] LINES = {
+            "MSG:kabilan:are we still on for lunch tomorrow?",
+            "TYPING:kabilan",
+            "MSG:kabilan:see you at noon",
+            "STOP_TYPING:kabilan",
+            "MARK_READ:haritha",
+            "MSG:aakash:sent the notes: check section 3",
+            "TYPING:aakash",
+            "GET_HISTORY_PAGE:aakash:1200:30",
+            "GET_ALL_UNREAD",
+            "GET_UNREAD_COUNT:kaniska",
+    };
+
+    private byte[][] binaryFrames;
+    private Dispatcher<Blackhole> dispatcher;
+
+    @Setup
+    public void setup() {
+        binaryFrames = new byte[LINES.length][];
+        for (int i = 0; i < LINES.length; i++) {
+            binaryFrames[i] = BinaryCodec.encode(TextCodec.decode(LINES[i]));
+        }
+        Dispatcher.Handler<Blackhole, Command> sink = Blackhole::consume;
+        dispatcher = new Dispatcher<Blackhole>()
+                .on(Commands.GetOnlineStatus.class, sink)
+                .on(Commands.GetAllStatus.class, sink)
+                .on(Commands.Typing.class, sink)
+                .on(Commands.StopTyping.class, sink)
+                .on(Commands.GetHistory.class, sink)
+                .on(Commands.GetHistoryPage.class, sink)
+                .on(Commands.MarkRead.class, sink)
+                .on(Commands.GetUnreadCount.class, sink)
+                .on(Commands.GetAllUnread.class, sink)
+                .on(Commands.SendMessage.class, sink);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10)
+    public void legacyChain(Blackhole bh) {
+        for (String line : LINES) {
+            legacyDispatch(line, bh);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10)
+    public void tableText(Blackhole bh) throws ProtocolException {
+        for (String line : LINES) {
+            dispatcher.dispatch(bh, TextCodec.decode(line));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10)
+    public void tableBinary(Blackhole bh) throws ProtocolException {
+        for (byte[] frame : binaryFrames) {
+            Frame decoded = BinaryCodec.decode(ByteBuffer.wrap(frame));
+            dispatcher.dispatch(bh, decoded);
+        }
+    }
+
+    /** The parsing half of the old ClientHandler.run chain, in its original order. */
+    private static void legacyDispatch(String clientMsg, Blackhole bh) {
+        if (clientMsg.startsWith("GET_ONLINE_STATUS:")) {
+            bh.consume(clientMsg.split(":", 2)[1]);
+        } else if (clientMsg.equals("GET_ALL_STATUS")) {
+            bh.consume(clientMsg);
+        } else if (clientMsg.startsWith("TYPING:")) {
+            bh.consume(clientMsg.split(":", 2)[1]);
+        } else if (clientMsg.startsWith("STOP_TYPING:")) {
+            bh.consume(clientMsg.split(":", 2)[1]);
+        } else if (clientMsg.startsWith("GET_HISTORY:")) {
+            bh.consume(clientMsg.split(":", 2)[1]);
+        } else if (clientMsg.startsWith("GET_HISTORY_PAGE:")) {
+            String[] parts = clientMsg.split(":", 4);
+            bh.consume(parts[1]);
+            bh.consume(Long.parseLong(parts[2]));
+            bh.consume(Integer.parseInt(parts[3]));
+        } else if (clientMsg.startsWith("MARK_READ:")) {
+            bh.consume(clientMsg.split(":", 2)[1]);
+        } else if (clientMsg.startsWith("GET_UNREAD_COUNT:")) {
+            bh.consume(clientMsg.split(":", 2)[1]);
+        } else if (clientMsg.equals("GET_ALL_UNREAD")) {
+            bh.consume(clientMsg);
+        } else if (clientMsg.startsWith("MSG:")) {
+            String[] parts = clientMsg.split(":", 3);
+            bh.consume(parts[1]);
+            bh.consume(parts[2]);
+        }
+    }
+}
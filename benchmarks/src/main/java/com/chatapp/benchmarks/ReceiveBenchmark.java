@@ -0,0 +1,93 @@
+package com.chatapp.benchmarks;
+
+import com.chatapp.protocol.BinaryCodec;
+import com.chatapp.protocol.Command;
+import com.chatapp.protocol.Commands;
+import com.chatapp.protocol.Frame;
+import com.chatapp.protocol.Opcode;
+import com.chatapp.protocol.ProtocolReader;
+import com.chatapp.protocol.TextCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The client's receive loop without the UI: a stream of 100 RECEIVE frames and one
+ * 50-message HISTORY_PAGE read with {@link ProtocolReader} and decoded into typed
+ * commands, in text and in binary. Scored per stream.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReceiveBenchmark {
+
+    private byte[] text;
+    private byte[] binary;
+
+    @Setup
+    public void setup() throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            frames.add(Frame.of(Opcode.RECEIVE, "haritha",
+                    "[12:41:07." + (100_000 + i) + "] haritha: are we still on for lunch tomorrow? " + i));
+        }
+        List<String> fields = new ArrayList<>();
+        fields.add("kabilan");
+        fields.add("1");
+        for (int i = 0; i < 50; i++) {
+            fields.add(String.valueOf(100_000 + i));
+            fields.add(i % 2 == 0 ? "haritha" : "kabilan");
+            fields.add("message number " + i + " in this conversation");
+            fields.add("4:" + (10 + i) + " pm");
+            fields.add("1");
+        }
+        frames.add(Frame.of(Opcode.HISTORY_PAGE, fields));
+
+        ByteArrayOutputStream textOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream binaryOut = new ByteArrayOutputStream();
+        for (Frame frame : frames) {
+            textOut.write(TextCodec.encodeLine(frame));
+            binaryOut.write(BinaryCodec.encode(frame));
+        }
+        text = textOut.toByteArray();
+        binary = binaryOut.toByteArray();
+    }
+
+    @Benchmark
+    public void text(Blackhole bh) throws Exception {
+        read(new ProtocolReader(new ByteArrayInputStream(text)), bh);
+    }
+
+    @Benchmark
+    public void binary(Blackhole bh) throws Exception {
+        ProtocolReader reader = new ProtocolReader(new ByteArrayInputStream(binary));
+        reader.setBinary(true);
+        read(reader, bh);
+    }
+
+    private static void read(ProtocolReader reader, Blackhole bh) throws Exception {
+        Frame frame;
+        while ((frame = reader.readFrame()) != null) {
+            Command command = Commands.decode(frame);
+            bh.consume(command);
+        }
+    }
+}
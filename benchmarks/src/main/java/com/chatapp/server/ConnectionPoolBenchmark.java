@@ -0,0 +1,78 @@
+package com.chatapp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One MSG persisted the way the server did before messages were batched: a
+ * connection, a prepared INSERT and an auto-committed update, on the file database
+ * {@link DatabaseConfig} would open. {@code pool} borrows the connection from
+ * {@link DatabaseConfig#getConnection()}, whose statements are cached;
+ * {@code driver-manager} is the baseline the pool replaced, a new connection from
+ * {@link DriverManager} and a new statement for every message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.file=")
+@State(Scope.Benchmark)
+public class ConnectionPoolBenchmark {
+
+    private static final String INSERT_SQL = "INSERT INTO messages (sender_id, recipient_id, content, timestamp, read) "
+            + "VALUES ((SELECT id FROM users WHERE username = ?), (SELECT id FROM users WHERE username = ?), ?, "
+            + "CURRENT_TIMESTAMP(), FALSE)";
+
+    @Param({"pool", "driver-manager"})
+    public String connections;
+
+    private String url;
+
+    @Setup
+    public void setUp() throws IOException, SQLException {
+        Path dir = Files.createTempDirectory("chat-pool-bench");
+        url = "jdbc:h2:" + dir.resolve("chatdb") + ";DB_CLOSE_DELAY=-1";
+        // Read once, when DatabaseConfig is first loaded
+        System.setProperty("chat.db.url", url);
+        DatabaseConfig.initializeDatabase();
+        try (Connection conn = DatabaseConfig.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "MERGE INTO users (username, password) KEY (username) VALUES (?, 'pass')")) {
+            for (String user : new String[] {"haritha", "aakash"}) {
+                stmt.setString(1, user);
+                stmt.executeUpdate();
+            }
+        }
+    }
+
+    @Benchmark
+    public int persistMessage() throws SQLException {
+        try (Connection conn = "pool".equals(connections)
+                ? DatabaseConfig.getConnection()
+                : DriverManager.getConnection(url, "sa", "");
+             PreparedStatement stmt = conn.prepareStatement(INSERT_SQL)) {
+            stmt.setString(1, "haritha");
+            stmt.setString(2, "aakash");
+            stmt.setString(3, "are we still on for lunch tomorrow?");
+            return stmt.executeUpdate();
+        }
+    }
+}
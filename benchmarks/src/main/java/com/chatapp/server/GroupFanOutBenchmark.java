@@ -0,0 +1,115 @@
+package com.chatapp.server;
+
+import com.chatapp.protocol.Commands.GroupReceive;
+import com.chatapp.protocol.Commands.Receive;
+import com.chatapp.protocol.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One message to a group of {@code members} online users. Compares sending it the way
+ * a direct MSG is sent, a new RECEIVE frame per recipient, with the GROUP_RECEIVE
+ * fan-out, where every member's connection takes the same frame and its cached
+ * encoding. Connections are in-memory stand-ins that encode what they are sent, as a
+ * real connection's writer would, so this measures fan-out work, not sockets.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GroupFanOutBenchmark {
+
+    private static final String TEXT = "Standup moved to 10:30, same room as last week";
+
+    @Param("1000")
+    public int members;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    private EncodingConnection[] connections;
+
+    @Setup
+    public void setup() {
+        connections = new EncodingConnection[members];
+        for (int i = 0; i < members; i++) {
+            connections[i] = new EncodingConnection("user" + i, binary);
+        }
+    }
+
+    @Benchmark
+    public long perRecipient() {
+        for (EncodingConnection connection : connections) {
+            String fullMsg = "[" + java.time.LocalTime.now() + "] alice: " + TEXT;
+            connection.send(new Receive("alice", fullMsg));
+        }
+        return collect();
+    }
+
+    @Benchmark
+    public long encodeOnce() {
+        String fullMsg = "[" + java.time.LocalTime.now() + "] alice: " + TEXT;
+        Frame frame = new GroupReceive("team", "alice", fullMsg).toFrame();
+        for (EncodingConnection connection : connections) {
+            connection.send(frame);
+        }
+        return collect();
+    }
+
+    private long collect() {
+        long bytes = 0;
+        for (EncodingConnection connection : connections) {
+            bytes += connection.bytes;
+            connection.bytes = 0;
+        }
+        return bytes;
+    }
+
+    private static final class EncodingConnection implements ClientConnection {
+        private final String username;
+        private final boolean binary;
+        long bytes;
+
+        EncodingConnection(String username, boolean binary) {
+            this.username = username;
+            this.binary = binary;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void setUsername(String username) {
+        }
+
+        @Override
+        public boolean send(Frame frame) {
+            bytes += frame.encoded(binary).length;
+            return true;
+        }
+
+        @Override
+        public int getOutboundDepth() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
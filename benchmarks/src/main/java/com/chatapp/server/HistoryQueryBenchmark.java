@@ -0,0 +1,170 @@
+package com.chatapp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The H2 reads the schema migrations index for, at {@code rows} messages among
+ * {@code users} users in a file database: the unread counts sent with a login, a
+ * user's whole mailbox for GET_HISTORY, and a HISTORY_PAGE of one conversation.
+ * Rows are generated in SQL with the indexes and foreign keys of {@code messages}
+ * dropped, which are then recreated from the schema's own DDL: H2 builds them far
+ * faster and smaller in one pass than row by row. Every user writes to their next ten
+ * neighbours and a tenth of the messages are unread. The database is kept in the
+ * temp directory and reused by later forks of the same size; 10M rows take about
+ * 10 minutes to load and 2 GB of disk, so run one size at a time with
+ * {@code -p rows=10000000}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.file=")
+@State(Scope.Benchmark)
+public class HistoryQueryBenchmark {
+
+    @Param({"1000000", "10000000"})
+    public int rows;
+
+    @Param("1000")
+    public int users;
+
+    private JdbcMessageStore messages;
+    private Random random;
+
+    @Setup
+    public void setUp() throws IOException, SQLException {
+        Path dir = Path.of(System.getProperty("java.io.tmpdir"), "chat-history-bench-" + rows + "x" + users);
+        Path loaded = dir.resolve("loaded");
+        // Read once, when DatabaseConfig is first loaded
+        System.setProperty("chat.db.url", "jdbc:h2:" + dir.resolve("chatdb") + ";DB_CLOSE_DELAY=-1");
+        if (!Files.exists(loaded)) {
+            deleteDatabase(dir);
+            DatabaseConfig.initializeDatabase();
+            try (Connection conn = DatabaseConfig.getConnection()) {
+                load(conn);
+            }
+            Files.createFile(loaded);
+        }
+        messages = new JdbcMessageStore();
+        random = new Random(42);
+    }
+
+    private void load(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO users (username, password) SELECT 'user' || (X - 1), 'pass' FROM SYSTEM_RANGE(1, ?)")) {
+            stmt.setInt(1, users);
+            stmt.executeUpdate();
+        }
+        List<String> recreate = new ArrayList<>();
+        List<String> drop = new ArrayList<>();
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SCRIPT NODATA")) {
+                while (rs.next()) {
+                    String ddl = rs.getString(1);
+                    if (ddl.contains("\"PUBLIC\".\"MESSAGES\"(") && ddl.startsWith("CREATE INDEX")
+                            || ddl.startsWith("ALTER TABLE \"PUBLIC\".\"MESSAGES\"") && ddl.contains("FOREIGN KEY")) {
+                        recreate.add(ddl);
+                    }
+                }
+            }
+            // Constraints first: they may own some of the indexes
+            try (ResultSet rs = stmt.executeQuery("SELECT CONSTRAINT_NAME FROM INFORMATION_SCHEMA.TABLE_CONSTRAINTS "
+                    + "WHERE TABLE_NAME = 'MESSAGES' AND CONSTRAINT_TYPE = 'FOREIGN KEY'")) {
+                while (rs.next()) {
+                    drop.add("ALTER TABLE messages DROP CONSTRAINT \"" + rs.getString(1) + "\"");
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT INDEX_NAME FROM INFORMATION_SCHEMA.INDEXES "
+                    + "WHERE TABLE_NAME = 'MESSAGES' AND INDEX_TYPE_NAME <> 'PRIMARY KEY'")) {
+                while (rs.next()) {
+                    drop.add("DROP INDEX IF EXISTS \"" + rs.getString(1) + "\"");
+                }
+            }
+            for (String sql : drop) {
+                stmt.execute(sql);
+            }
+        }
+        // Ids follow insertion order, so user N has id N + 1. A million rows per
+        // statement keeps each transaction's undo log small.
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO messages (sender_id, recipient_id, content, timestamp, read) "
+                        + "SELECT MOD(X, ?) + 1, MOD(X + 1 + MOD(X / ?, 10), ?) + 1, "
+                        + "'are we still on for lunch tomorrow? I can book the usual place', "
+                        + "DATEADD(SECOND, X, TIMESTAMP '2024-01-01 00:00:00'), MOD(X, 10) <> 0 "
+                        + "FROM SYSTEM_RANGE(?, ?)")) {
+            for (int from = 1; from <= rows; from += 1_000_000) {
+                stmt.setInt(1, users);
+                stmt.setInt(2, users);
+                stmt.setInt(3, users);
+                stmt.setInt(4, from);
+                stmt.setInt(5, Math.min(rows, from + 999_999));
+                stmt.executeUpdate();
+            }
+        }
+        try (Statement stmt = conn.createStatement()) {
+            for (String sql : recreate) {
+                stmt.execute(sql);
+            }
+        }
+    }
+
+    private static void deleteDatabase(Path dir) throws IOException {
+        if (Files.exists(dir)) {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+        Files.createDirectories(dir);
+    }
+
+    @TearDown
+    public void tearDown() {
+        messages.close();
+    }
+
+    @Benchmark
+    public Map<String, Map<String, Integer>> unreadCounts() throws IOException {
+        return messages.unreadCounts("user" + random.nextInt(users));
+    }
+
+    /** About rows / users messages. */
+    @Benchmark
+    public List<MessageStore.Message> mailbox() throws IOException {
+        return messages.received("user" + random.nextInt(users));
+    }
+
+    /** The newest 50 messages of one conversation. */
+    @Benchmark
+    public List<MessageStore.Message> historyPage() throws IOException {
+        int user = random.nextInt(users);
+        return messages.conversation("user" + user, "user" + ((user + 1) % users), 0, 51);
+    }
+}
@@ -0,0 +1,758 @@
+package com.chatapp.server;
+
+import com.chatapp.protocol.BinaryCodec;
+import com.chatapp.protocol.Commands.GetHistoryPage;
+import com.chatapp.protocol.Commands.Login;
+import com.chatapp.protocol.Commands.SendMessage;
+import com.chatapp.protocol.Commands.Typing;
+import com.chatapp.protocol.Frame;
+import com.chatapp.protocol.Handshake;
+import com.chatapp.protocol.Opcode;
+import com.chatapp.protocol.ProtocolException;
+import com.chatapp.protocol.TextCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end load over real sockets: {@code users} simulated clients log in, and each
+ * one sends messages as a Poisson process at {@code rate} per second, announcing each
+ * with TYPING {@code think-ms} before the MSG. Recipients are drawn from a Zipf
+ * distribution with exponent {@code skew}, so a few conversations are hot; now and
+ * then a sender also pages its conversation with GET_HISTORY_PAGE (the paged form:
+ * GET_HISTORY returns a user's whole inbox, which grows without bound under load).
+ *
+ * <p>Latency is from the moment a message was due to be sent to the recipient's
+ * RECEIVE, so a server that pushes back on senders shows up in it rather than
+ * hiding as a lower send rate. Messages still missing after a short drain count as
+ * lost; errors are failed logins, broken connections and lost messages.
+ *
+ * <p>Against a server it started, the generator also samples the server process
+ * before the users connect and once they all have: heap after a full GC (via
+ * {@code jcmd}), resident set size and thread count (from {@code /proc}, so Linux
+ * only). The differences divided by the number of users are the cost of one idle
+ * connection, and connections per GB is 1 GB over the RSS cost. Replies are read by
+ * a few selector loops rather than a thread per user, so the generator itself stays
+ * small next to the server at thousands of connections.
+ *
+ * <p>By default each run starts its own server JVM on a throwaway H2 file in a temp
+ * directory, once per {@code --modes} entry and {@code --variants} option set, and
+ * prints one report row per run:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.chatapp.server.LoadGenerator \
+ *     --users=500 --rate=2 --modes=thread,nio \
+ *     --variants="|-Dchat.persist.durability=enqueue" --report=load.md
+ * </pre>
+ * The server runs on the generator's JDK unless {@code --server-java} names another
+ * JDK home; {@code virtual} needs 21 or later there, and a mode the server refuses is
+ * reported as not run. {@code --connect=host:port} targets a running server instead;
+ * its database needs the {@code load*} users from {@code DatabaseConfig --load-users=N}.
+ */
+public final class LoadGenerator {
+
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Options options;
+
+    private LoadGenerator(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        LoadGenerator generator = new LoadGenerator(options);
+        List<String> rows = new ArrayList<>();
+        rows.add("| mode | options | users | offered msg/s | delivered msg/s | p50 ms | p90 ms | p99 ms "
+                + "| p99.9 ms | max ms | history p50 ms | history p99 ms | errors "
+                + "| server threads | heap KB/conn | RSS KB/conn | conns/GB |");
+        rows.add("|---|---|---|---|---|---|---|---|---|---|---|---|---|---|---|---|---|");
+        if (options.connect != null) {
+            rows.add(generator.run(options.connect, null, "external", "").row());
+        } else {
+            for (String mode : options.modes) {
+                for (String variant : options.variants) {
+                    try {
+                        rows.add(generator.runAgainstNewServer(mode, variant).row());
+                    } catch (ServerUnavailableException e) {
+                        // Typically virtual mode on a server JDK older than 21
+                        System.out.println(e.getMessage());
+                        rows.add(String.format(Locale.ROOT, "| %s | %s | %d | not run: %s |", mode,
+                                variant.isBlank() ? "defaults" : variant.trim(), options.users, e.getMessage()));
+                    }
+                }
+            }
+        }
+        String report = String.join("\n", rows) + "\n";
+        System.out.println();
+        System.out.print(report);
+        if (options.report != null) {
+            Files.writeString(Paths.get(options.report), report);
+        }
+    }
+
+    /** Starts a server on a fresh database, loads it, and stops it again. */
+    private Result runAgainstNewServer(String mode, String variant) throws Exception {
+        Path dir = Files.createTempDirectory("chat-load-");
+        List<String> properties = new ArrayList<>(List.of(
+                "-Dchat.db.url=jdbc:h2:" + dir.resolve("chatdb").toAbsolutePath() + ";DB_CLOSE_DELAY=-1",
+                "-Dchat.search.file=" + dir.resolve("chatdb.search").toAbsolutePath(),
+                "-Dchat.log.file=" + dir.resolve("chat-server.log").toAbsolutePath(),
+                "-Dchat.log.console=false",
+                "-Dchat.metrics.port=-1"));
+        if (!variant.isBlank()) {
+            properties.addAll(Arrays.asList(variant.trim().split("\\s+")));
+        }
+        Process server = null;
+        try {
+            Process seed = java(dir, properties, "com.chatapp.server.DatabaseConfig",
+                    "--load-users=" + options.users).start();
+            if (seed.waitFor() != 0) {
+                throw new IllegalStateException("Seeding failed, see " + dir.resolve("seed.out"));
+            }
+            int port;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            server = java(dir, properties, "com.chatapp.server.ChatServer", "--port=" + port, "--mode=" + mode)
+                    .redirectOutput(dir.resolve("server.out").toFile())
+                    .start();
+            InetSocketAddress address = new InetSocketAddress("localhost", port);
+            awaitListening(address, server, dir.resolve("server.out"));
+            return run(address, server.toHandle(), mode, variant);
+        } finally {
+            if (server != null) {
+                server.destroy();
+                if (!server.waitFor(15, TimeUnit.SECONDS)) {
+                    server.destroyForcibly();
+                }
+            }
+            if (!options.keep) {
+                try (Stream<Path> files = Files.walk(dir)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+                }
+            }
+        }
+    }
+
+    private ProcessBuilder java(Path dir, List<String> properties, String mainClass, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add(options.serverJava.resolve("bin").resolve("java").toString());
+        command.add("-cp");
+        // Absolute, as the child runs in the temp directory
+        List<String> classPath = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.add(Paths.get(entry).toAbsolutePath().toString());
+        }
+        command.add(String.join(File.pathSeparator, classPath));
+        command.addAll(properties);
+        command.add(mainClass);
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command)
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("seed.out").toFile());
+    }
+
+    private static void awaitListening(InetSocketAddress address, Process server, Path output) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (System.nanoTime() < deadline) {
+            if (!server.isAlive()) {
+                // The first line of the output, without the stack trace, says why
+                String why = Files.readAllLines(output).stream()
+                        .filter(line -> !line.isBlank() && !Character.isWhitespace(line.charAt(0)))
+                        .map(line -> {
+                            int at = line.indexOf("Exception: ");
+                            return at < 0 ? line : line.substring(at + "Exception: ".length());
+                        })
+                        .findFirst().orElse("exit status " + server.exitValue());
+                throw new ServerUnavailableException(why);
+            }
+            Socket probe = new Socket();
+            try {
+                probe.connect(address);
+                return;
+            } catch (IOException notYet) {
+                Thread.sleep(200);
+            } finally {
+                probe.close();
+            }
+        }
+        throw new IllegalStateException("Server not listening on " + address);
+    }
+
+    /** One measured run; {@code server} is null for a server this generator didn't start. */
+    private Result run(InetSocketAddress address, ProcessHandle server, String mode, String variant) throws Exception {
+        System.out.printf("%s %s: %d users at %.2f msg/s each for %ds after %ds warmup%n",
+                mode, variant.isBlank() ? "(defaults)" : variant, options.users, options.rate,
+                options.durationSeconds, options.warmupSeconds);
+        Run run = new Run(address);
+        try {
+            ServerMemory idle = server == null ? null : ServerMemory.sample(server.pid(), options.serverJava);
+            run.connectAll();
+            if (server != null) {
+                // Connected but not yet sending: what the connections alone cost
+                Thread.sleep(2000);
+                run.connected = ServerMemory.sample(server.pid(), options.serverJava).minus(idle, run.users.size());
+            }
+            run.start();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(options.warmupSeconds));
+            run.measureFrom = System.nanoTime();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(options.durationSeconds));
+            run.measureUntil = System.nanoTime();
+            run.stopSending();
+            // Let messages sent just before the end arrive
+            Thread.sleep(TimeUnit.SECONDS.toMillis(options.drainSeconds));
+            return run.result(mode, variant);
+        } finally {
+            run.close();
+        }
+    }
+
+    private final class Run {
+        private final InetSocketAddress address;
+        private final double[] zipf;
+        private final List<SimulatedUser> users = new ArrayList<>();
+        private final ScheduledExecutorService scheduler;
+        private final List<ReaderLoop> readers = new ArrayList<>();
+        private ServerMemory.PerConnection connected;
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram historyLatency = new LatencyHistogram();
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong loginFailures = new AtomicLong();
+        private final AtomicLong brokenConnections = new AtomicLong();
+
+        // Both are written once by the driving thread before they are read
+        private volatile long measureFrom = Long.MAX_VALUE;
+        private volatile long measureUntil = Long.MAX_VALUE;
+        private volatile boolean sending = true;
+
+        Run(InetSocketAddress address) {
+            this.address = address;
+            this.zipf = cumulativeZipf(options.users, options.skew);
+            this.scheduler = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+                    r -> {
+                        Thread t = new Thread(r, "load-sender");
+                        t.setDaemon(true);
+                        return t;
+                    });
+        }
+
+        void connectAll() throws Exception {
+            // Read from each login on: everyone online gets a PRESENCE per login, and a
+            // user that doesn't read them is dropped as a slow consumer before it sends
+            for (int i = 0; i < options.readerThreads; i++) {
+                ReaderLoop reader = new ReaderLoop();
+                readers.add(reader);
+                Thread thread = new Thread(reader, "load-reader-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            ExecutorService connectors = Executors.newFixedThreadPool(16);
+            try {
+                List<Future<SimulatedUser>> logins = new ArrayList<>();
+                for (int i = 0; i < options.users; i++) {
+                    int index = i;
+                    logins.add(connectors.submit(() -> login(index)));
+                }
+                for (Future<SimulatedUser> login : logins) {
+                    SimulatedUser user = login.get();
+                    if (user != null) {
+                        users.add(user);
+                    }
+                }
+            } finally {
+                connectors.shutdown();
+            }
+        }
+
+        private SimulatedUser login(int index) {
+            try {
+                SimulatedUser user = new SimulatedUser(index, SocketChannel.open(address));
+                if (options.binary) {
+                    user.write(Handshake.BINARY_HELLO);
+                    if (!Handshake.requestsBinary(user.awaitFrame())) {
+                        throw new IOException("Binary framing refused");
+                    }
+                    user.binary = true;
+                }
+                user.write(new Login(user.name, "pass").toFrame());
+                Frame reply = user.awaitFrame();
+                if (reply == null || reply.opcode() != Opcode.SUCCESS) {
+                    throw new IOException("Login refused for " + user.name);
+                }
+                user.channel.configureBlocking(false);
+                readers.get(index % readers.size()).add(user);
+                return user;
+            } catch (IOException e) {
+                loginFailures.incrementAndGet();
+                return null;
+            }
+        }
+
+        void start() {
+            for (SimulatedUser user : users) {
+                user.nextDue = System.nanoTime() + nextInterval();
+                schedule(user);
+            }
+        }
+
+        void stopSending() {
+            sending = false;
+            scheduler.shutdownNow();
+        }
+
+        private long nextInterval() {
+            double mean = TimeUnit.SECONDS.toNanos(1) / options.rate;
+            return (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * mean);
+        }
+
+        private void schedule(SimulatedUser user) {
+            if (!sending) {
+                return;
+            }
+            long typingAt = user.nextDue - TimeUnit.MILLISECONDS.toNanos(options.thinkMillis);
+            scheduler.schedule(() -> act(user), Math.max(0, typingAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+
+        /** TYPING now, the MSG when it is due, then the next message. */
+        private void act(SimulatedUser user) {
+            String recipient = recipientFor(user.index);
+            long due = user.nextDue;
+            user.nextDue += nextInterval();
+            try {
+                if (options.thinkMillis > 0) {
+                    user.write(new Typing(recipient).toFrame());
+                }
+                scheduler.schedule(() -> send(user, recipient, due),
+                        Math.max(0, due - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (IOException e) {
+                broken(user);
+                return;
+            }
+            schedule(user);
+        }
+
+        private void send(SimulatedUser user, String recipient, long due) {
+            try {
+                user.write(new SendMessage(recipient, "m " + due + " " + options.filler).toFrame());
+                if (due >= measureFrom && due < measureUntil) {
+                    sent.incrementAndGet();
+                }
+                if (ThreadLocalRandom.current().nextDouble() < options.historyRatio) {
+                    user.historyRequests.add(System.nanoTime());
+                    user.write(new GetHistoryPage(recipient, 0, 50).toFrame());
+                }
+            } catch (IOException e) {
+                broken(user);
+            }
+        }
+
+        private void onFrame(SimulatedUser user, Frame frame, long now) {
+            if (frame.opcode() == Opcode.RECEIVE) {
+                // "[time] sender: m <due> filler"
+                String formatted = frame.field(1);
+                int at = formatted.indexOf(": m ");
+                if (at >= 0) {
+                    int end = formatted.indexOf(' ', at + 4);
+                    long due = Long.parseLong(formatted.substring(at + 4, end < 0 ? formatted.length() : end));
+                    if (due >= measureFrom && due < measureUntil) {
+                        received.incrementAndGet();
+                        latency.record(now - due);
+                    }
+                }
+            } else if (frame.opcode() == Opcode.HISTORY_PAGE) {
+                Long asked = user.historyRequests.poll();
+                if (asked != null && asked >= measureFrom && asked < measureUntil) {
+                    historyLatency.record(now - asked);
+                }
+            }
+        }
+
+        private void broken(SimulatedUser user) {
+            if (!user.broken) {
+                user.broken = true;
+                brokenConnections.incrementAndGet();
+            }
+        }
+
+        /** A Zipf-ranked user other than the sender. */
+        private String recipientFor(int sender) {
+            int found = Arrays.binarySearch(zipf, ThreadLocalRandom.current().nextDouble() * zipf[zipf.length - 1]);
+            int index = found < 0 ? -found - 1 : found;
+            if (index == sender) {
+                index = (index + 1) % options.users;
+            }
+            return "load" + index;
+        }
+
+        Result result(String mode, String variant) {
+            double seconds = (measureUntil - measureFrom) / 1e9;
+            long lost = Math.max(0, sent.get() - received.get());
+            long attempts = sent.get() + options.users;
+            long errors = lost + loginFailures.get() + brokenConnections.get();
+            return new Result(mode, variant, options.users, sent.get() / seconds, received.get() / seconds,
+                    latency.snapshot(), historyLatency.snapshot(), attempts == 0 ? 0 : (double) errors / attempts,
+                    lost, loginFailures.get(), brokenConnections.get(), connected);
+        }
+
+        void close() {
+            sending = false;
+            scheduler.shutdownNow();
+            for (ReaderLoop reader : readers) {
+                reader.close();
+            }
+            for (SimulatedUser user : users) {
+                try {
+                    user.channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /** Reads for its share of the users on one selector, so there is no thread per connection. */
+        private final class ReaderLoop implements Runnable {
+            private final Selector selector;
+            private final Queue<SimulatedUser> added = new ConcurrentLinkedQueue<>();
+            private volatile boolean open = true;
+
+            ReaderLoop() throws IOException {
+                selector = Selector.open();
+            }
+
+            void add(SimulatedUser user) {
+                added.add(user);
+                selector.wakeup();
+            }
+
+            void close() {
+                open = false;
+                selector.wakeup();
+            }
+
+            @Override
+            public void run() {
+                try {
+                    while (open) {
+                        selector.select();
+                        SimulatedUser user;
+                        while ((user = added.poll()) != null) {
+                            // Frames that arrived with the login reply are already buffered
+                            read(user.channel.register(selector, SelectionKey.OP_READ, user), false);
+                        }
+                        for (SelectionKey key : selector.selectedKeys()) {
+                            read(key, true);
+                        }
+                        selector.selectedKeys().clear();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Reader loop failed: " + e);
+                } finally {
+                    try {
+                        selector.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+
+            private void read(SelectionKey key, boolean readable) {
+                SimulatedUser user = (SimulatedUser) key.attachment();
+                try {
+                    boolean more = !readable || user.fill();
+                    long now = System.nanoTime();
+                    Frame frame;
+                    while ((frame = user.nextFrame()) != null) {
+                        onFrame(user, frame, now);
+                    }
+                    if (!more) {
+                        key.cancel();
+                        if (sending) {
+                            broken(user);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    key.cancel();
+                    if (sending) {
+                        broken(user);
+                    }
+                }
+            }
+        }
+    }
+
+    private static double[] cumulativeZipf(int users, double skew) {
+        // Random ranks, so the hot users aren't simply the lowest-numbered ones
+        List<Integer> ranks = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            ranks.add(i + 1);
+        }
+        Collections.shuffle(ranks, new Random(42));
+        double[] cumulative = new double[users];
+        double total = 0;
+        for (int i = 0; i < users; i++) {
+            total += 1 / Math.pow(ranks.get(i), skew);
+            cumulative[i] = total;
+        }
+        return cumulative;
+    }
+
+    private static final class SimulatedUser {
+        final int index;
+        final String name;
+        final SocketChannel channel;
+        // Send times of outstanding GET_HISTORY_PAGE requests; replies come back in order
+        final Queue<Long> historyRequests = new ConcurrentLinkedQueue<>();
+        // Only touched by the login, then by the user's reader loop
+        ByteBuffer inbound = ByteBuffer.allocate(8192).flip();
+        // Set during login, before any other thread sees the user
+        boolean binary;
+        // Only touched by the scheduler, one action per user at a time
+        long nextDue;
+        volatile boolean broken;
+
+        SimulatedUser(int index, SocketChannel channel) throws IOException {
+            this.index = index;
+            this.name = "load" + index;
+            this.channel = channel;
+            channel.socket().setTcpNoDelay(true);
+        }
+
+        /** Writes a whole frame. Once the channel is non-blocking, waits out a full socket buffer. */
+        synchronized void write(Frame frame) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap(frame.encoded(binary));
+            while (bytes.hasRemaining()) {
+                if (channel.write(bytes) == 0) {
+                    LockSupport.parkNanos(100_000);
+                }
+            }
+        }
+
+        /** Blocks for the next frame; only while the channel is still blocking, during login. */
+        Frame awaitFrame() throws IOException {
+            Frame frame;
+            while ((frame = nextFrame()) == null) {
+                if (!fill()) {
+                    return null;
+                }
+            }
+            return frame;
+        }
+
+        /** Reads what the channel has. Returns false at end of stream. */
+        boolean fill() throws IOException {
+            inbound.compact();
+            if (!inbound.hasRemaining()) {
+                inbound = ByteBuffer.allocate(inbound.capacity() * 2).put(inbound.flip());
+            }
+            int n = channel.read(inbound);
+            inbound.flip();
+            return n >= 0;
+        }
+
+        /** The next complete frame already read, or null. Unknown text commands are skipped. */
+        Frame nextFrame() throws ProtocolException {
+            if (binary) {
+                return BinaryCodec.decode(inbound);
+            }
+            while (true) {
+                int start = inbound.position();
+                int newline = -1;
+                for (int i = start; i < inbound.limit(); i++) {
+                    if (inbound.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline < 0) {
+                    return null;
+                }
+                int end = newline > start && inbound.get(newline - 1) == '\r' ? newline - 1 : newline;
+                String line = new String(inbound.array(), start, end - start, StandardCharsets.UTF_8);
+                inbound.position(newline + 1);
+                Frame frame = TextCodec.decode(line);
+                if (frame != null) {
+                    return frame;
+                }
+            }
+        }
+    }
+
+    /** A sample of the server process; -1 for what couldn't be read. */
+    private record ServerMemory(long heapBytes, long rssBytes, int threads) {
+
+        // One line per generation, or one for the whole G1 heap
+        private static final Pattern HEAP_USED = Pattern.compile("total \\d+K, used (\\d+)K");
+
+        /** Heap after a full GC, via the server JDK's jcmd, and RSS and threads from /proc. */
+        static ServerMemory sample(long pid, Path javaHome) throws IOException, InterruptedException {
+            long heap = -1;
+            String jcmd = javaHome.resolve("bin").resolve("jcmd").toString();
+            if (exec(jcmd, String.valueOf(pid), "GC.run") != null) {
+                String info = exec(jcmd, String.valueOf(pid), "GC.heap_info");
+                Matcher used = info == null ? null : HEAP_USED.matcher(info);
+                while (used != null && used.find()) {
+                    heap = Math.max(heap, 0) + Long.parseLong(used.group(1)) * 1024;
+                }
+            }
+            long rss = -1;
+            int threads = -1;
+            Path status = Paths.get("/proc", String.valueOf(pid), "status");
+            if (Files.isReadable(status)) {
+                for (String line : Files.readAllLines(status)) {
+                    String[] parts = line.split("\\s+");
+                    if (line.startsWith("VmRSS:")) {
+                        rss = Long.parseLong(parts[1]) * 1024;
+                    } else if (line.startsWith("Threads:")) {
+                        threads = Integer.parseInt(parts[1]);
+                    }
+                }
+            }
+            return new ServerMemory(heap, rss, threads);
+        }
+
+        PerConnection minus(ServerMemory before, int connections) {
+            return new PerConnection(threads,
+                    heapBytes < 0 || before.heapBytes < 0 ? -1 : (double) (heapBytes - before.heapBytes) / connections,
+                    rssBytes < 0 || before.rssBytes < 0 ? -1 : (double) (rssBytes - before.rssBytes) / connections);
+        }
+
+        private static String exec(String... command) throws IOException, InterruptedException {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            return process.waitFor() == 0 ? output : null;
+        }
+
+        /** What each idle connection added; threads is the server's total with everyone connected. */
+        record PerConnection(int threads, double heapBytes, double rssBytes) {
+        }
+    }
+
+    private record Result(String mode, String variant, int users, double offeredPerSecond, double deliveredPerSecond,
+                          LatencyHistogram.Snapshot latency, LatencyHistogram.Snapshot history, double errorRate,
+                          long lost, long loginFailures, long brokenConnections,
+                          ServerMemory.PerConnection memory) {
+
+        String row() {
+            StringBuilder row = new StringBuilder();
+            row.append(String.format(Locale.ROOT, "| %s | %s | %d | %.0f | %.0f |", mode,
+                    variant.isBlank() ? "defaults" : variant.trim(), users, offeredPerSecond, deliveredPerSecond));
+            for (double p : PERCENTILES) {
+                row.append(String.format(Locale.ROOT, " %.2f |", latency.percentile(p) / 1e6));
+            }
+            row.append(String.format(Locale.ROOT, " %.2f | %.2f | %.2f | %.3f%% (lost %d, logins %d, broken %d) |",
+                    latency.maxNanos() / 1e6, history.percentile(0.5) / 1e6, history.percentile(0.99) / 1e6,
+                    errorRate * 100, lost, loginFailures, brokenConnections));
+            if (memory == null) {
+                row.append(" n/a | n/a | n/a | n/a |");
+            } else {
+                row.append(String.format(Locale.ROOT, " %d | %s | %s | %s |", memory.threads(),
+                        kilobytes(memory.heapBytes()), kilobytes(memory.rssBytes()),
+                        memory.rssBytes() <= 0 ? "n/a" : String.format(Locale.ROOT, "%.0f", (1 << 30) / memory.rssBytes())));
+            }
+            return row.toString();
+        }
+
+        private static String kilobytes(double bytes) {
+            return bytes < 0 ? "n/a" : String.format(Locale.ROOT, "%.1f", bytes / 1024);
+        }
+    }
+
+    /** The server didn't come up, for a reason of its own rather than a fault of the run. */
+    private static final class ServerUnavailableException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        ServerUnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class Options {
+        int users = 200;
+        double rate = 1;
+        long thinkMillis = 300;
+        double skew = 1.0;
+        double historyRatio = 0.02;
+        int warmupSeconds = 5;
+        int durationSeconds = 30;
+        int drainSeconds = 3;
+        boolean binary = true;
+        boolean keep;
+        int readerThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        String filler = "x".repeat(40);
+        List<String> modes = List.of("thread", "virtual", "nio");
+        Path serverJava = Paths.get(System.getProperty("java.home"));
+        List<String> variants = List.of("");
+        InetSocketAddress connect;
+        String report;
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                String name = eq < 0 ? arg : arg.substring(0, eq);
+                String value = eq < 0 ? "" : arg.substring(eq + 1);
+                switch (name) {
+                    case "--users" -> o.users = Integer.parseInt(value);
+                    case "--rate" -> o.rate = Double.parseDouble(value);
+                    case "--think-ms" -> o.thinkMillis = Long.parseLong(value);
+                    case "--skew" -> o.skew = Double.parseDouble(value);
+                    case "--history-ratio" -> o.historyRatio = Double.parseDouble(value);
+                    case "--warmup" -> o.warmupSeconds = Integer.parseInt(value);
+                    case "--duration" -> o.durationSeconds = Integer.parseInt(value);
+                    case "--drain" -> o.drainSeconds = Integer.parseInt(value);
+                    case "--message-bytes" -> o.filler = "x".repeat(Math.max(0, Integer.parseInt(value)));
+                    case "--text" -> o.binary = false;
+                    case "--reader-threads" -> o.readerThreads = Integer.parseInt(value);
+                    case "--keep" -> o.keep = true;
+                    case "--modes" -> o.modes = List.of(value.split(","));
+                    case "--server-java" -> o.serverJava = Paths.get(value);
+                    case "--variants" -> o.variants = List.of(value.split("\\|", -1));
+                    case "--report" -> o.report = value;
+                    case "--connect" -> {
+                        int colon = value.lastIndexOf(':');
+                        o.connect = new InetSocketAddress(value.substring(0, colon),
+                                Integer.parseInt(value.substring(colon + 1)));
+                    }
+                    default -> throw new IllegalArgumentException("Unknown option " + arg
+                            + "; see the LoadGenerator class comment");
+                }
+            }
+            if (o.users < 2 || o.rate <= 0) {
+                throw new IllegalArgumentException("Need at least 2 users and a positive rate");
+            }
+            return o;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.chatapp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One log line from eight handler threads at once: {@link Log}, which hands the
+ * pattern to its writer thread, against the concatenate-and-println it replaced
+ * (into a discarding stream, so only the formatting and the stream's lock are
+ * measured), plus a line below the configured level.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.log.file=", "-Dchat.log.console=false", "-Dchat.log.bufferSize=65536"})
+@Threads(8)
+@State(Scope.Benchmark)
+public class LogBenchmark {
+
+    private final PrintStream console = new PrintStream(new BufferedOutputStream(OutputStream.nullOutputStream(), 8192));
+    private final String sender = "haritha";
+    private final String recipient = "aakash";
+
+    @Benchmark
+    public void asyncLog() {
+        Log.info("History sent from {} to {}", sender, recipient);
+    }
+
+    @Benchmark
+    public void println() {
+        console.println("History sent from " + sender + " to " + recipient);
+    }
+
+    @Benchmark
+    public void belowLevel() {
+        Log.debug("History sent from {} to {}", sender, recipient);
+    }
+}
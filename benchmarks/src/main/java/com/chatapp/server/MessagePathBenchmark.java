@@ -0,0 +1,104 @@
+package com.chatapp.server;
+
+import com.chatapp.protocol.Commands.History;
+import com.chatapp.protocol.Commands.HistoryEntry;
+import com.chatapp.protocol.TextCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server side of a MSG and of a history reply: persisting through
+ * {@link MessageWriter} into an in-memory H2 with the real schema, from one sender
+ * and from four at once (their inserts share batches), formatting a stored
+ * timestamp, and building and encoding a 100-message HISTORY line.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.db.url=jdbc:h2:mem:bench;DB_CLOSE_DELAY=-1", "-Dchat.log.file="})
+@State(Scope.Benchmark)
+public class MessagePathBenchmark {
+
+    private static final String[] USERS = {"haritha", "aakash", "kaniska", "kabilan"};
+
+    private MessageWriter writer;
+    private List<HistoryEntry> history;
+    private String[] timestamps;
+    private int next;
+
+    @Setup
+    public void setUp() throws SQLException {
+        DatabaseConfig.initializeDatabase();
+        try (Connection conn = DatabaseConfig.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "MERGE INTO users (username, password) KEY (username) VALUES (?, 'pass')")) {
+            for (String user : USERS) {
+                stmt.setString(1, user);
+                stmt.executeUpdate();
+            }
+        }
+        writer = new MessageWriter(new JdbcMessageStore(), 10_000, 100, 0, MessageWriter.Durability.ACK_AFTER_COMMIT);
+        writer.start();
+
+        timestamps = new String[1024];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = String.format("2024-05-01 %02d:%02d:%02d.%06d", i % 24, i % 60, (i * 7) % 60, i);
+        }
+        history = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            history.add(new HistoryEntry(0, USERS[i % USERS.length],
+                    "message number " + i + " in this conversation", timestamps[i], false));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        writer.shutdown();
+    }
+
+    /** One MSG under ACK_AFTER_COMMIT: queued, batched, inserted and committed. */
+    @Benchmark
+    public long persistOne() {
+        return writer.submit("haritha", "aakash", "are we still on for lunch tomorrow?").join();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long persistConcurrent() {
+        return writer.submit("kaniska", "kabilan", "are we still on for lunch tomorrow?").join();
+    }
+
+    @Benchmark
+    public String formatTimestamp() {
+        return ChatServer.formatTimestamp(timestamps[next++ & (timestamps.length - 1)]);
+    }
+
+    /** The GET_HISTORY reply: timestamps formatted, then the line encoded. */
+    @Benchmark
+    public byte[] historyLine() {
+        List<HistoryEntry> formatted = new ArrayList<>(history.size());
+        for (HistoryEntry entry : history) {
+            formatted.add(new HistoryEntry(0, entry.sender(), entry.content(),
+                    ChatServer.formatTimestamp(entry.time()), false));
+        }
+        return TextCodec.encodeLine(new History(formatted).toFrame());
+    }
+}
@@ -0,0 +1,130 @@
+package com.chatapp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The two {@link MessageStore}s on disk, in a fresh temporary directory, preloaded
+ * with {@code preload} messages among {@code users} users: appending one writer batch
+ * of {@code batch} messages, and the reads behind HISTORY_PAGE and SYNC. H2 is the
+ * file database {@link DatabaseConfig} would open, with the real schema; the log
+ * forces each append to disk, which H2 does not do per commit by default.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.file=")
+@State(Scope.Benchmark)
+public class MessageStoreBenchmark {
+
+    private static final String TEXT = "are we still on for lunch tomorrow? I can book the usual place";
+
+    @Param({"h2", "log"})
+    public String store;
+
+    @Param("100000")
+    public int preload;
+
+    @Param("100")
+    public int users;
+
+    @Param("100")
+    public int batch;
+
+    private MessageStore messages;
+    private List<MessageStore.Draft> drafts;
+    private Random random;
+
+    @Setup
+    public void setUp() throws IOException, SQLException {
+        Path dir = Files.createTempDirectory("chat-store-bench");
+        if ("log".equals(store)) {
+            messages = new LogMessageStore(dir.resolve("log"), 64 << 20, Long.MAX_VALUE / 2);
+        } else {
+            // Read once, when DatabaseConfig is first loaded
+            System.setProperty("chat.db.url", "jdbc:h2:" + dir.resolve("chatdb") + ";DB_CLOSE_DELAY=-1");
+            DatabaseConfig.initializeDatabase();
+            try (Connection conn = DatabaseConfig.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(
+                         "MERGE INTO users (username, password) KEY (username) VALUES (?, 'pass')")) {
+                for (int i = 0; i < users; i++) {
+                    stmt.setString(1, "user" + i);
+                    stmt.executeUpdate();
+                }
+            }
+            messages = new JdbcMessageStore();
+        }
+        messages.open();
+
+        random = new Random(42);
+        List<MessageStore.Draft> load = new ArrayList<>(1000);
+        for (int i = 0; i < preload; i++) {
+            load.add(draft());
+            if (load.size() == 1000) {
+                messages.append(load);
+                load.clear();
+            }
+        }
+        if (!load.isEmpty()) {
+            messages.append(load);
+        }
+        drafts = new ArrayList<>(batch);
+        for (int i = 0; i < batch; i++) {
+            drafts.add(draft());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        messages.close();
+    }
+
+    /** One MessageWriter batch, stored durably. */
+    @Benchmark
+    public long[] appendBatch() throws IOException {
+        return messages.append(drafts);
+    }
+
+    /** The newest 50 messages of one conversation. */
+    @Benchmark
+    public List<MessageStore.Message> historyPage() throws IOException {
+        int user = random.nextInt(users);
+        return messages.conversation("user" + user, "user" + ((user + 1) % users), 0, 51);
+    }
+
+    /** A SYNC chunk of a user who is 200 messages behind everyone. */
+    @Benchmark
+    public List<MessageStore.Message> syncChunk() throws IOException {
+        long cursor = Math.max(0, messages.lastId() - 200L * users);
+        return messages.since("user" + random.nextInt(users), cursor, 201);
+    }
+
+    // Everyone talks to their next five neighbours
+    private MessageStore.Draft draft() {
+        int sender = random.nextInt(users);
+        int recipient = (sender + 1 + random.nextInt(5)) % users;
+        return new MessageStore.Draft("user" + sender, "user" + recipient, TEXT);
+    }
+}
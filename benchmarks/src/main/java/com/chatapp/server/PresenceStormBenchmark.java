@@ -0,0 +1,171 @@
+package com.chatapp.server;
+
+import com.chatapp.protocol.Commands.UserStatus;
+import com.chatapp.protocol.Frame;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A deploy restart: every client drops and reconnects. Compares the old
+ * broadcast-to-everyone USER_STATUS fan-out with {@link PresenceService}, where each
+ * client subscribes to {@code contacts} users and changes are flushed in
+ * {@code windows} batches over the storm. Connections are in-memory stand-ins that
+ * count frames and bytes, so this measures fan-out work, not sockets.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PresenceStormBenchmark {
+
+    @Param("5000")
+    public int clients;
+
+    @Param("50")
+    public int contacts;
+
+    /** Flush windows the storm is spread over (a 1 s storm with the default 50 ms window). */
+    @Param("20")
+    public int windows;
+
+    private String[] users;
+    private CountingConnection[] connections;
+    private PresenceService presence;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Delivered {
+        public long frames;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            frames = 0;
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        users = new String[clients];
+        connections = new CountingConnection[clients];
+        for (int i = 0; i < clients; i++) {
+            users[i] = "user" + i;
+            connections[i] = new CountingConnection(users[i]);
+        }
+        // Flushed by hand below, one call per window
+        presence = new PresenceService(user -> true, TimeUnit.HOURS.toMillis(1), Integer.MAX_VALUE, false);
+        Random random = new Random(42);
+        for (CountingConnection connection : connections) {
+            List<String> subscribed = new ArrayList<>(contacts);
+            for (int c = 0; c < contacts; c++) {
+                subscribed.add(users[random.nextInt(clients)]);
+            }
+            presence.connected(connection);
+            presence.subscribe(connection, subscribed);
+            connection.reset();
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        presence.shutdown();
+    }
+
+    /** The old broadcastUserStatus: every change goes to every connection. */
+    @Benchmark
+    public void broadcastToAll(Delivered delivered) {
+        for (boolean online : new boolean[]{false, true}) {
+            for (String user : users) {
+                Frame frame = new UserStatus(user, online).toFrame();
+                for (CountingConnection connection : connections) {
+                    connection.send(frame);
+                }
+            }
+        }
+        collect(delivered);
+    }
+
+    @Benchmark
+    public void coalescedPresence(Delivered delivered) {
+        int perWindow = Math.max(1, (2 * clients) / windows);
+        int inWindow = 0;
+        for (boolean online : new boolean[]{false, true}) {
+            for (String user : users) {
+                presence.statusChanged(user, online);
+                if (++inWindow == perWindow) {
+                    presence.flush();
+                    inWindow = 0;
+                }
+            }
+        }
+        presence.flush();
+        collect(delivered);
+    }
+
+    private void collect(Delivered delivered) {
+        for (CountingConnection connection : connections) {
+            delivered.frames += connection.frames;
+            delivered.bytes += connection.bytes;
+        }
+    }
+
+    private static final class CountingConnection implements ClientConnection {
+        private final String username;
+        long frames;
+        long bytes;
+
+        CountingConnection(String username) {
+            this.username = username;
+        }
+
+        void reset() {
+            frames = 0;
+            bytes = 0;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void setUsername(String username) {
+        }
+
+        @Override
+        public boolean send(Frame frame) {
+            frames++;
+            bytes += frame.encoded(true).length;
+            return true;
+        }
+
+        @Override
+        public int getOutboundDepth() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
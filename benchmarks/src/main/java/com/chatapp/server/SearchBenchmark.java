@@ -0,0 +1,107 @@
+package com.chatapp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SearchIndex} over a generated corpus of {@code messages} messages between
+ * {@code users} users, each talking to {@code contacts} others. Words follow a Zipf
+ * distribution over a 50k-word vocabulary, so the common queries hit a large share of
+ * all messages. Sampled per query for percentiles. The full-size run needs a larger
+ * heap: {@code -p messages=10000000 -jvmArgs -Xmx4g}.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+    private static final int VOCABULARY = 50_000;
+    private static final int PAGE_SIZE = 20;
+
+    @Param("1000000")
+    public int messages;
+
+    @Param("10000")
+    public int users;
+
+    @Param("20")
+    public int contacts;
+
+    private SearchIndex index;
+    private String[] words;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        words = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            words[i] = "w" + Integer.toString(i, 36);
+        }
+        double[] cumulative = new double[VOCABULARY];
+        double total = 0;
+        for (int i = 0; i < VOCABULARY; i++) {
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+
+        index = new SearchIndex(Paths.get("unused"), Long.MAX_VALUE);
+        StringBuilder content = new StringBuilder();
+        for (int id = 1; id <= messages; id++) {
+            int sender = random.nextInt(users);
+            int recipient = (sender + 1 + random.nextInt(contacts)) % users;
+            content.setLength(0);
+            int length = 3 + random.nextInt(18);
+            for (int w = 0; w < length; w++) {
+                int found = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+                content.append(words[found < 0 ? -found - 1 : found]).append(' ');
+            }
+            index.add(id, "user" + sender, "user" + recipient, content.toString());
+        }
+        System.out.println("\n" + index.getStats());
+    }
+
+    private String nextUser() {
+        return "user" + (next++ * 7919 % users);
+    }
+
+    /** Rank 5: in about one message in six. */
+    @Benchmark
+    public SearchIndex.Page commonWord() {
+        return index.search(nextUser(), words[4], 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public SearchIndex.Page rareWord() {
+        return index.search(nextUser(), words[20_000 + next % 1000], 0, PAGE_SIZE);
+    }
+
+    /** Ranked merge of a common, a mid and a rare word. */
+    @Benchmark
+    public SearchIndex.Page threeWords() {
+        return index.search(nextUser(), words[1] + " " + words[300] + " " + words[20_000], 0, PAGE_SIZE);
+    }
+
+    /** Deep page of the most common word. */
+    @Benchmark
+    public SearchIndex.Page commonWordDeepPage() {
+        return index.search(nextUser(), words[0], 1000, PAGE_SIZE);
+    }
+}
@@ -0,0 +1,95 @@
+package com.chatapp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One keystroke in the search box against {@code users} registered users: the
+ * {@link UserDirectory} binary search, against filtering every name the way the
+ * client's hardcoded list was filtered, plus a membership check.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserDirectoryBenchmark {
+
+    private static final int PAGE_SIZE = 50;
+
+    @Param("100000")
+    public int users;
+
+    private UserDirectory directory;
+    private String[] names;
+    private String[] prefixes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        List<String> generated = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            generated.add(randomName(random) + i);
+        }
+        directory = new UserDirectory();
+        directory.replace(generated);
+        names = generated.toArray(new String[0]);
+
+        prefixes = new String[1024];
+        for (int i = 0; i < prefixes.length; i++) {
+            String name = names[random.nextInt(names.length)];
+            prefixes[i] = name.substring(0, 1 + random.nextInt(3));
+        }
+    }
+
+    private static String randomName(Random random) {
+        char[] chars = new char[4 + random.nextInt(6)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    private String nextPrefix() {
+        return prefixes[next++ & (prefixes.length - 1)];
+    }
+
+    @Benchmark
+    public List<String> directorySearch() {
+        return directory.search(nextPrefix(), "", PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<String> scanAll() {
+        String prefix = nextPrefix();
+        List<String> matches = new ArrayList<>();
+        for (String name : names) {
+            if (name.startsWith(prefix)) {
+                matches.add(name);
+            }
+        }
+        matches.sort(null);
+        return matches.subList(0, Math.min(PAGE_SIZE, matches.size()));
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return directory.contains(names[next++ % names.length]);
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * Benchmarks and the load generator for the server. They live in the server's
+ * package to reach its package-private classes, such as {@code MessageStore} and
+ * {@code ClientConnection}; the server keeps those package-private on purpose.
+ */
+package com.chatapp.server;
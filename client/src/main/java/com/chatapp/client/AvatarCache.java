@@ -0,0 +1,201 @@
+package com.chatapp.client;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Decoded profile pictures by user and the size they are shown at, shared by every
+ * view of the client. Pictures are decoded on a background thread straight to that
+ * size rather than at full resolution, and the least recently used are dropped once
+ * more than {@code capacity} are held. A picture comes from the images bundled with
+ * the client, else from the disk cache if it is less than a day old, else from the
+ * server, whose answer is written to the disk cache.
+ *
+ * <p>FX thread only, apart from the loading.
+ */
+class AvatarCache {
+
+    private static final Duration DISK_MAX_AGE = Duration.ofDays(1);
+
+    private record Key(String user, int size) {
+    }
+
+    private final int capacity;
+    private final Path diskDir;
+    private final Predicate<String> fetch;
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "chat-avatar-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<Key, Image> images = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Image> eldest) {
+            return size() > capacity;
+        }
+    };
+    // Callers waiting for a picture that is being loaded
+    private final Map<Key, List<Consumer<Image>>> loading = new HashMap<>();
+    // Sizes waiting for the server's AVATAR, by user
+    private final Map<String, List<Key>> fetching = new HashMap<>();
+    // Users without a picture, or with one that doesn't decode
+    private final Set<String> missing = new HashSet<>();
+
+    /**
+     * @param fetch sends GET_AVATAR for a user; returns false if there is no connection
+     *              to send it on
+     */
+    AvatarCache(int capacity, Path diskDir, Predicate<String> fetch) {
+        this.capacity = capacity;
+        this.diskDir = diskDir;
+        this.fetch = fetch;
+    }
+
+    /**
+     * The user's picture at {@code size} pixels, or null if it isn't loaded. Then it
+     * starts loading, and {@code onReady} gets it once it is; callers show initials
+     * meanwhile, and for good if the user has no picture.
+     */
+    Image get(String user, int size, Consumer<Image> onReady) {
+        Key key = new Key(user, size);
+        Image image = images.get(key);
+        if (image != null || missing.contains(user)) {
+            return image;
+        }
+        List<Consumer<Image>> waiting = loading.get(key);
+        if (waiting == null) {
+            waiting = new ArrayList<>();
+            loading.put(key, waiting);
+            loader.execute(() -> load(key));
+        }
+        waiting.add(onReady);
+        return null;
+    }
+
+    /** The server's answer to GET_AVATAR: a PNG, or nothing if the user has no picture. */
+    void received(String user, byte[] png) {
+        List<Key> sizes = fetching.remove(user);
+        if (png.length == 0) {
+            missing.add(user);
+            if (sizes != null) {
+                sizes.forEach(loading::remove);
+            }
+            return;
+        }
+        loader.execute(() -> {
+            save(user, png);
+            if (sizes != null) {
+                for (Key key : sizes) {
+                    Image image = decode(new ByteArrayInputStream(png), key.size());
+                    Platform.runLater(() -> loaded(key, image));
+                }
+            }
+        });
+    }
+
+    /** Drops requests a closed connection won't answer, so they are retried on the next one. */
+    void disconnected() {
+        fetching.values().forEach(keys -> keys.forEach(loading::remove));
+        fetching.clear();
+    }
+
+    // Loader thread
+    private void load(Key key) {
+        Image image = null;
+        boolean found = false;
+        try (InputStream bundled = AvatarCache.class.getResourceAsStream("/images/" + key.user().toLowerCase() + ".png")) {
+            if (bundled != null) {
+                found = true;
+                image = decode(bundled, key.size());
+            } else {
+                Path file = diskFile(key.user());
+                if (Files.isRegularFile(file)
+                        && Files.getLastModifiedTime(file).toInstant().isAfter(Instant.now().minus(DISK_MAX_AGE))) {
+                    found = true;
+                    try (InputStream cached = Files.newInputStream(file)) {
+                        image = decode(cached, key.size());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[AVATAR] Could not read picture of " + key.user() + ": " + e.getMessage());
+        }
+        Image result = image;
+        if (found) {
+            Platform.runLater(() -> loaded(key, result));
+        } else {
+            Platform.runLater(() -> fetch(key));
+        }
+    }
+
+    private void fetch(Key key) {
+        List<Key> sizes = fetching.get(key.user());
+        if (sizes == null) {
+            if (!fetch.test(key.user())) {
+                // Not connected: try again the next time it is shown
+                loading.remove(key);
+                return;
+            }
+            sizes = new ArrayList<>();
+            fetching.put(key.user(), sizes);
+        }
+        sizes.add(key);
+    }
+
+    private void loaded(Key key, Image image) {
+        List<Consumer<Image>> waiting = loading.remove(key);
+        if (image == null) {
+            missing.add(key.user());
+            return;
+        }
+        images.put(key, image);
+        if (waiting != null) {
+            waiting.forEach(callback -> callback.accept(image));
+        }
+    }
+
+    // Loader thread
+    private void save(String user, byte[] png) {
+        try {
+            Files.createDirectories(diskDir);
+            Path temp = Files.createTempFile(diskDir, "avatar", ".tmp");
+            Files.write(temp, png);
+            Files.move(temp, diskFile(user), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[AVATAR] Could not cache picture of " + user + ": " + e.getMessage());
+        }
+    }
+
+    private Path diskFile(String user) {
+        return diskDir.resolve(URLEncoder.encode(user, StandardCharsets.UTF_8) + ".png");
+    }
+
+    /** Decodes at most {@code size} pixels on each side, smoothly downscaled; null if it isn't an image. */
+    private static Image decode(InputStream in, int size) {
+        Image image = new Image(in, size, size, true, true);
+        return image.isError() ? null : image;
+    }
+}
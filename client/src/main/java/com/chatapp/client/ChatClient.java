@@ -5,8 +5,7 @@ import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
-import javafx.geometry.Insets;
-import javafx.geometry.Pos;
+import javafx.css.PseudoClass;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
@@ -17,19 +16,85 @@ import javafx.scene.shape.Circle;
 import javafx.scene.text.Font;
 import javafx.stage.Stage;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import com.chatapp.protocol.Command;
+import com.chatapp.protocol.Commands;
+import com.chatapp.protocol.Commands.AllStatus;
+import com.chatapp.protocol.Commands.AllUnread;
+import com.chatapp.protocol.Commands.Avatar;
+import com.chatapp.protocol.Commands.GetAvatar;
+import com.chatapp.protocol.Commands.HistoryEntry;
+import com.chatapp.protocol.Commands.HistoryPage;
+import com.chatapp.protocol.Commands.Receipt;
+import com.chatapp.protocol.Commands.Receipts;
+import com.chatapp.protocol.Commands.Receive;
+import com.chatapp.protocol.Commands.SearchHit;
+import com.chatapp.protocol.Commands.SearchResults;
+import com.chatapp.protocol.Commands.TypingStarted;
+import com.chatapp.protocol.Commands.TypingStopped;
+import com.chatapp.protocol.Commands.UnreadCount;
+import com.chatapp.protocol.Commands.UserStatus;
+import com.chatapp.protocol.Commands.Users;
+import com.chatapp.protocol.Dispatcher;
+import com.chatapp.protocol.Frame;
+import com.chatapp.protocol.Handshake;
+import com.chatapp.protocol.ProtocolException;
+import com.chatapp.protocol.ProtocolReader;
+import com.chatapp.protocol.ProtocolWriter;
+import com.chatapp.protocol.TextCodec;
+
+import java.io.IOException;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class ChatClient extends Application {
 
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private static final int HISTORY_PAGE_SIZE = 30;
+    private static final int USER_PAGE_SIZE = 50;
+    private static final int SEARCH_PAGE_SIZE = 20;
+    private static final long TYPING_IDLE_MILLIS = 3000;
+    private static final int AVATAR_CACHE_SIZE = 256;
+    private static final long RECONNECT_MIN_MILLIS = 1000;
+    private static final long RECONNECT_MAX_MILLIS = 30_000;
+    private static final Path AVATAR_DIR = Paths.get(System.getProperty("user.home"), ".chathub", "avatars");
+
+    /** The client's delayed work, on one daemon thread instead of a Timer per typing burst. */
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "chat-client-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Server frames the receiver thread acts on; anything else is ignored. */
+    private static final Dispatcher<ChatClient> SERVER_EVENTS = new Dispatcher<ChatClient>()
+            .on(UserStatus.class, ChatClient::onUserStatus)
+            .on(Commands.Presence.class, ChatClient::onPresence)
+            .on(AllStatus.class, ChatClient::onAllStatus)
+            .on(TypingStarted.class, ChatClient::onTypingStarted)
+            .on(TypingStopped.class, ChatClient::onTypingStopped)
+            .on(HistoryPage.class, ChatClient::onHistoryPage)
+            .on(AllUnread.class, ChatClient::onAllUnread)
+            .on(UnreadCount.class, ChatClient::onUnreadCount)
+            .on(Receive.class, ChatClient::onReceive)
+            .on(Receipts.class, ChatClient::onReceipts)
+            .on(Users.class, ChatClient::onUsers)
+            .on(SearchResults.class, ChatClient::onSearchResults)
+            .on(Avatar.class, ChatClient::onAvatar)
+            .on(Commands.SyncBatch.class, ChatClient::onSyncBatch);
+
+    // Replaced by the receiver thread when it reconnects
+    private volatile Socket socket;
+    private ProtocolReader in;
+    private volatile ProtocolWriter out;
     private String currentUsername;
+    // Kept to log in again after the connection drops
+    private String password;
     private String currentChatContact;
     private Stage primaryStage;
     private ListView<ChatPreview> chatListView;
@@ -39,12 +104,41 @@ public class ChatClient extends Application {
     private Circle statusIndicator; // Green/Red dot
     private Map<String, Boolean> typingStatus = new HashMap<>();
     private Map<String, Boolean> onlineStatus = new HashMap<>(); // Track online status
-    private Timer typingTimer;
+    // FX thread only: the pending STOP_TYPING, and whether a TYPING is outstanding
+    private ScheduledFuture<?> typingStop;
+    private boolean typingSent = false;
     private ObservableList<ChatPreview> chats = FXCollections.observableArrayList();
     private Map<String, ObservableList<MessageItem>> conversationHistory = new HashMap<>();
     private Map<String, Integer> unreadCounts = new HashMap<>();
+    // Paged history per conversation: smallest message id loaded so far, and whether the server has older ones
+    private Map<String, Long> oldestLoadedId = new HashMap<>();
+    private Map<String, Boolean> hasMoreHistory = new HashMap<>();
+    private Set<String> historyRequestsPending = new HashSet<>();
+    // The chat list pages through the server's user directory: users starting with the search text, by name
+    private String userSearchPrefix = "";
+    private List<String> listedUsers = new ArrayList<>();
+    private boolean hasMoreUsers = false;
+    private boolean userRequestPending = false;
+    // Message search, run with Enter in the search box; while set, the chat list shows its hits
+    private String messageQuery;
+    private List<SearchHit> messageHits = new ArrayList<>();
+    private boolean hasMoreHits = false;
+    private boolean hitRequestPending = false;
+    // FX thread only: sent messages still waiting for their STORED receipt, by client id
+    private Map<String, PendingSend> pendingSends = new HashMap<>();
+    // Client ids are this session's start time plus a counter, unique across restarts
+    private final String sendIdPrefix = Long.toString(System.currentTimeMillis(), 36) + "-";
+    private long nextSendId = 0;
     private Thread messageReceiver;
-    private boolean isConnected = false;
+    private volatile boolean isConnected = false;
+    private final AvatarCache avatars = new AvatarCache(AVATAR_CACHE_SIZE, AVATAR_DIR, this::requestAvatar);
+
+    /** The cells' look; they only switch its pseudo-classes when reused. */
+    static final String STYLESHEET = ChatClient.class.getResource("/whatsapp-style.css").toExternalForm();
+    private static final PseudoClass UNREAD = PseudoClass.getPseudoClass("unread");
+    private static final PseudoClass ONLINE = PseudoClass.getPseudoClass("online");
+    private static final PseudoClass SENT = PseudoClass.getPseudoClass("sent");
+    private static final PseudoClass READ = PseudoClass.getPseudoClass("read");
 
     public static final Map<String, String> PROFILE_COLORS = new HashMap<>();
     static {
@@ -101,6 +195,7 @@ public class ChatClient extends Application {
         loginBox.getChildren().addAll(titleLabel, usernameField, passwordField, loginButton, credentialsLabel);
 
         Scene loginScene = new Scene(loginBox, 400, 350);
+        loginScene.getStylesheets().add(STYLESHEET);
         primaryStage.setScene(loginScene);
     }
 
@@ -112,19 +207,20 @@ public class ChatClient extends Application {
         }
 
         try {
-            socket = new Socket("localhost", 8080);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            openConnection();
 
-            out.println("LOGIN:" + currentUsername + ":" + password);
-            String response = in.readLine();
+            out.write(new Commands.Login(currentUsername, password).toFrame());
+            Frame response = in.readFrame();
 
-            if ("SUCCESS".equals(response)) {
+            if (response != null && Commands.decode(response) instanceof Commands.LoginSucceeded) {
+                this.password = password;
                 isConnected = true;
                 startMessageReceiver();
-                out.println("GET_HISTORY:" + currentUsername);
-                out.println("GET_ALL_STATUS"); // Get status of all users
+                // First page of contacts; their presence and history are requested when it arrives
+                searchUsers("");
                 loadAllUnreadCounts();
+                // Moves the server's sync cursor up to now, so a reconnect only fetches what it missed
+                send(new Commands.Sync(Commands.Sync.RESUME));
                 showChatListScreen();
             } else {
                 showAlert("Login Failed", "Invalid credentials");
@@ -135,6 +231,45 @@ public class ChatClient extends Application {
         }
     }
 
+    /**
+     * Connects and negotiates binary frames, unless -Dchat.protocol=text. A server that
+     * predates binary framing drops the connection on the HELLO, so reconnect in text.
+     */
+    private void openConnection() throws IOException {
+        connectSocket();
+        if ("text".equalsIgnoreCase(System.getProperty("chat.protocol"))) {
+            return;
+        }
+        out.write(Handshake.BINARY_HELLO);
+        String reply;
+        try {
+            reply = in.readLine();
+        } catch (IOException e) {
+            reply = null;
+        }
+        if (reply != null && Handshake.requestsBinary(TextCodec.decode(reply))) {
+            in.setBinary(true);
+            out.setBinary(true);
+        } else {
+            socket.close();
+            connectSocket();
+        }
+    }
+
+    private void connectSocket() throws IOException {
+        socket = new Socket("localhost", 8080);
+        in = new ProtocolReader(socket.getInputStream());
+        out = new ProtocolWriter(socket.getOutputStream());
+    }
+
+    private void send(Command command) {
+        try {
+            out.write(command.toFrame());
+        } catch (IOException e) {
+            System.err.println("[SEND ERROR] " + command + ": " + e.getMessage());
+        }
+    }
+
     private void showChatListScreen() {
         primaryStage.setWidth(450);
         primaryStage.setHeight(700);
@@ -163,6 +298,7 @@ public class ChatClient extends Application {
         mainLayout.getChildren().addAll(topBar, new Separator(), chatListView);
 
         Scene chatListScene = new Scene(mainLayout, 450, 700);
+        chatListScene.getStylesheets().add(STYLESHEET);
         primaryStage.setScene(chatListScene);
     }
 
@@ -171,10 +307,11 @@ public class ChatClient extends Application {
         titleLabel.setStyle("-fx-font-size: 20px; -fx-font-weight: bold; -fx-text-fill: #25D366;");
 
         TextField searchField = new TextField();
-        searchField.setPromptText("Search contacts...");
+        searchField.setPromptText("Search contacts, Enter for messages...");
         searchField.setStyle("-fx-font-size: 12px; -fx-padding: 8px; -fx-background-color: #1F2C33; -fx-text-fill: #E9EDEF; -fx-prompt-text-fill: #8696A0;");
         searchField.setPrefWidth(150);
         searchField.textProperty().addListener((obs, oldVal, newVal) -> filterChats(newVal));
+        searchField.setOnAction(e -> searchMessages(searchField.getText()));
 
         Button logoutButton = new Button("Logout");
         logoutButton.setStyle("-fx-font-size: 12px; -fx-background-color: #25D366; -fx-text-fill: white; -fx-padding: 6px 12px;");
@@ -191,47 +328,104 @@ public class ChatClient extends Application {
     }
 
     private void filterChats(String searchText) {
-        if (searchText == null || searchText.isEmpty()) {
-            loadChats();
+        messageQuery = null;
+        searchUsers(searchText == null ? "" : searchText.trim().toLowerCase());
+    }
+
+    /** Replaces the chat list with the first page of users starting with {@code prefix}. */
+    private void searchUsers(String prefix) {
+        userSearchPrefix = prefix;
+        listedUsers.clear();
+        hasMoreUsers = false;
+        userRequestPending = true;
+        send(new Commands.SearchUsers(prefix, "", USER_PAGE_SIZE));
+    }
+
+    /** Replaces the chat list with the best message hits for {@code query}. */
+    private void searchMessages(String query) {
+        if (query == null || query.isBlank()) {
             return;
         }
+        messageQuery = query.trim();
+        messageHits.clear();
+        hasMoreHits = false;
+        hitRequestPending = true;
+        send(new Commands.Search(0, SEARCH_PAGE_SIZE, messageQuery));
+        loadChats();
+    }
 
-        chats.clear();
-        String[] defaultUsers = {"haritha", "aakash", "kaniska", "kabilan", "srivinay"};
-        String searchLower = searchText.toLowerCase();
-
-        for (String user : defaultUsers) {
-            if (!user.equals(currentUsername) && user.toLowerCase().contains(searchLower)) {
-                ObservableList<MessageItem> messages = conversationHistory.getOrDefault(user, FXCollections.observableArrayList());
-                String lastMessage = "Click to open chat...";
-                String lastTimestamp = "0:00 am";
-                if (!messages.isEmpty()) {
-                    MessageItem lastMsg = messages.get(messages.size() - 1);
-                    lastMessage = lastMsg.getContent();
-                    lastTimestamp = lastMsg.getTimestamp();
-                }
+    private void applySearchResults(SearchResults page) {
+        if (messageQuery == null || !hitRequestPending || page.offset() != messageHits.size()) {
+            // Answer to a search the user has since replaced
+            return;
+        }
+        hitRequestPending = false;
+        hasMoreHits = page.hasMore();
+        messageHits.addAll(page.hits());
+        loadChats();
+    }
 
-                ChatPreview chat = new ChatPreview(user, lastMessage, lastTimestamp);
-                int unread = unreadCounts.getOrDefault(user, 0);
-                chat.setUnread(unread > 0);
-                chat.setUnreadCount(unread);
-                boolean isOnline = onlineStatus.getOrDefault(user, false);
-                chat.setOnline(isOnline);
-                chats.add(chat);
+    /** Asks for the next page of whatever the chat list shows, unless one is already on its way. */
+    private void requestNextPage() {
+        if (messageQuery != null) {
+            if (hasMoreHits && !hitRequestPending) {
+                hitRequestPending = true;
+                send(new Commands.Search(messageHits.size(), SEARCH_PAGE_SIZE, messageQuery));
+            }
+            return;
+        }
+        if (hasMoreUsers && !userRequestPending && !listedUsers.isEmpty()) {
+            userRequestPending = true;
+            send(new Commands.SearchUsers(userSearchPrefix, listedUsers.get(listedUsers.size() - 1), USER_PAGE_SIZE));
+        }
+    }
 
-                if (!conversationHistory.containsKey(user)) {
-                    conversationHistory.put(user, messages);
+    private void applyUsers(Users page) {
+        if (!userRequestPending || !page.prefix().equals(userSearchPrefix)) {
+            // Answer to a search the user has since changed
+            return;
+        }
+        userRequestPending = false;
+        hasMoreUsers = page.hasMore();
+        onlineStatus.putAll(page.online());
+        listedUsers.addAll(page.online().keySet());
+
+        if (userSearchPrefix.isEmpty()) {
+            // Listed contacts: current status now and only their changes after, plus their latest messages
+            send(new Commands.SubscribePresence(new ArrayList<>(listedUsers)));
+            for (String user : page.online().keySet()) {
+                if (!oldestLoadedId.containsKey(user) && !historyRequestsPending.contains(user)) {
+                    requestHistoryPage(user, 0);
                 }
             }
         }
+        loadChats();
     }
 
     private void loadChats() {
         chats.clear();
-        String[] defaultUsers = {"haritha", "aakash", "kaniska", "kabilan", "srivinay"};
+        if (messageQuery != null) {
+            // One row per hit, in rank order; opening it opens the conversation
+            for (SearchHit hit : messageHits) {
+                String contact = hit.sender().equals(currentUsername) ? hit.recipient() : hit.sender();
+                ChatPreview chat = new ChatPreview(contact, hit.content(), hit.time());
+                chat.setOnline(onlineStatus.getOrDefault(contact, false));
+                chats.add(chat);
+            }
+            return;
+        }
+        Set<String> users = new LinkedHashSet<>(listedUsers);
+        if (userSearchPrefix.isEmpty()) {
+            // Conversations with users past the loaded pages, e.g. someone who just messaged us
+            conversationHistory.forEach((user, messages) -> {
+                if (!messages.isEmpty()) {
+                    users.add(user);
+                }
+            });
+        }
         List<ChatPreview> chatList = new ArrayList<>();
 
-        for (String user : defaultUsers) {
+        for (String user : users) {
             if (!user.equals(currentUsername)) {
                 ObservableList<MessageItem> messages = conversationHistory.getOrDefault(user, FXCollections.observableArrayList());
                 String lastMessage = "Click to open chat...";
@@ -278,12 +472,53 @@ public class ChatClient extends Application {
         chats.addAll(chatList);
     }
 
+    private void requestHistoryPage(String contactName, long beforeId) {
+        historyRequestsPending.add(contactName);
+        send(new Commands.GetHistoryPage(contactName, beforeId, HISTORY_PAGE_SIZE));
+    }
+
+    /** Asks for the page before the oldest loaded message, unless one is already on its way. */
+    private void requestOlderHistory(String contactName) {
+        Long oldest = oldestLoadedId.get(contactName);
+        if (oldest != null && hasMoreHistory.getOrDefault(contactName, false)
+                && !historyRequestsPending.contains(contactName)) {
+            requestHistoryPage(contactName, oldest);
+        }
+    }
+
+    private void applyHistoryPage(String contactName, boolean hasMore, List<MessageItem> page) {
+        historyRequestsPending.remove(contactName);
+        hasMoreHistory.put(contactName, hasMore);
+        if (page.isEmpty()) {
+            return;
+        }
+
+        boolean firstPage = !oldestLoadedId.containsKey(contactName);
+        oldestLoadedId.put(contactName, page.get(0).getId());
+        ObservableList<MessageItem> msgs = conversationHistory.get(contactName);
+        if (msgs == null) {
+            msgs = FXCollections.observableArrayList();
+            conversationHistory.put(contactName, msgs);
+        }
+        // A SYNC_BATCH may have brought some of the page's messages already
+        Set<Long> loaded = new HashSet<>();
+        for (MessageItem item : msgs) {
+            loaded.add(item.getId());
+        }
+        page.removeIf(item -> loaded.contains(item.getId()));
+        msgs.addAll(0, page);
+
+        if (firstPage) {
+            loadChats();
+        }
+    }
+
     private void loadAllUnreadCounts() {
-        out.println("GET_ALL_UNREAD");
+        send(new Commands.GetAllUnread());
     }
 
     private void markMessagesAsRead(String contactName) {
-        out.println("MARK_READ:" + contactName);
+        send(new Commands.MarkRead(contactName));
         unreadCounts.put(contactName, 0);
         
         Platform.runLater(() -> {
@@ -318,6 +553,13 @@ public class ChatClient extends Application {
         VBox.setVgrow(messagesListView, Priority.ALWAYS);
 
         messages.addListener((ListChangeListener<MessageItem>) c -> {
+            while (c.next()) {
+                if (c.wasAdded() && c.getFrom() == 0 && c.getTo() < c.getList().size()) {
+                    // An older page was prepended: keep the user's place instead of jumping to the bottom
+                    messagesListView.scrollTo(c.getAddedSize());
+                    return;
+                }
+            }
             if (!messagesListView.getItems().isEmpty()) {
                 messagesListView.scrollTo(messagesListView.getItems().size() - 1);
             }
@@ -333,6 +575,7 @@ public class ChatClient extends Application {
         chatLayout.getChildren().addAll(chatTopBar, new Separator(), messagesListView, typingLabel, inputBox);
 
         Scene chatScene = new Scene(chatLayout, 500, 700);
+        chatScene.getStylesheets().add(STYLESHEET);
         primaryStage.setScene(chatScene);
     }
 
@@ -359,9 +602,7 @@ public class ChatClient extends Application {
         backButton.setStyle("-fx-font-size: 12px; -fx-background-color: transparent; -fx-text-fill: #25D366;");
         backButton.setOnAction(e -> {
             currentChatContact = null;
-            if (typingTimer != null) {
-                typingTimer.cancel();
-            }
+            stopTyping(contactName, true);
             showChatListScreen();
         });
 
@@ -382,19 +623,10 @@ public class ChatClient extends Application {
         inputField.setOnAction(e -> sendMessage(inputField, contactName, messages));
         
         inputField.textProperty().addListener((obs, oldVal, newVal) -> {
-            if (!newVal.isEmpty() && oldVal.isEmpty()) {
-                out.println("TYPING:" + contactName);
-                
-                if (typingTimer != null) {
-                    typingTimer.cancel();
-                }
-                typingTimer = new Timer();
-                typingTimer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        out.println("STOP_TYPING:" + contactName);
-                    }
-                }, 3000);
+            if (newVal.isEmpty()) {
+                stopTyping(contactName, true);
+            } else {
+                startTyping(contactName);
             }
         });
         
@@ -402,13 +634,7 @@ public class ChatClient extends Application {
 
         Button sendButton = new Button("Send");
         sendButton.setStyle("-fx-background-color: #25D366; -fx-text-fill: white; -fx-padding: 8px 16px;");
-        sendButton.setOnAction(e -> {
-            sendMessage(inputField, contactName, messages);
-            if (typingTimer != null) {
-                typingTimer.cancel();
-            }
-            out.println("STOP_TYPING:" + contactName);
-        });
+        sendButton.setOnAction(e -> sendMessage(inputField, contactName, messages));
 
         HBox inputBox = new HBox(8);
         inputBox.setStyle("-fx-background-color: #111B21; -fx-padding: 10;");
@@ -417,19 +643,43 @@ public class ChatClient extends Application {
         return inputBox;
     }
 
+    /** Sends TYPING once per burst, and STOP_TYPING after a pause of {@value #TYPING_IDLE_MILLIS} ms. */
+    private void startTyping(String contactName) {
+        if (!typingSent) {
+            send(new Commands.Typing(contactName));
+            typingSent = true;
+        }
+        if (typingStop != null) {
+            typingStop.cancel(false);
+        }
+        typingStop = SCHEDULER.schedule(() -> Platform.runLater(() -> stopTyping(contactName, true)),
+                TYPING_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopTyping(String contactName, boolean notify) {
+        if (typingStop != null) {
+            typingStop.cancel(false);
+            typingStop = null;
+        }
+        if (typingSent && notify) {
+            send(new Commands.StopTyping(contactName));
+        }
+        typingSent = false;
+    }
+
     private void sendMessage(TextField inputField, String contactName, ObservableList<MessageItem> messages) {
         String msgText = inputField.getText().trim();
         if (!msgText.isEmpty() && currentChatContact != null && currentChatContact.equals(contactName)) {
             MessageItem sentMessage = new MessageItem(msgText, "You", true, getCurrentTime(), false);
             messages.add(sentMessage);
-            out.println("MSG:" + contactName + ":" + msgText);
+            String clientId = sendIdPrefix + Long.toString(nextSendId++, 36);
+            Commands.Send command = new Commands.Send(contactName, clientId, msgText);
+            pendingSends.put(clientId, new PendingSend(command, sentMessage));
+            send(command);
+            // The server clears the typing indicator when it delivers the message
+            stopTyping(contactName, false);
             updateChatPreview(contactName, msgText);
             inputField.clear();
-
-            Platform.runLater(() -> {
-                sentMessage.setDelivered(true);
-                messagesListView.refresh();
-            });
         }
     }
 
@@ -446,229 +696,393 @@ public class ChatClient extends Application {
 
     private void startMessageReceiver() {
         messageReceiver = new Thread(() -> {
+            while (receive() && reconnect()) {
+                Platform.runLater(this::resumeSession);
+            }
+        });
+        messageReceiver.setDaemon(true);
+        messageReceiver.start();
+    }
+
+    /** Dispatches frames until the connection ends; true if it dropped rather than being closed. */
+    private boolean receive() {
+        try {
+            Frame frame;
+            while (isConnected && (frame = in.readFrame()) != null) {
+                try {
+                    SERVER_EVENTS.dispatch(this, frame);
+                } catch (ProtocolException e) {
+                    System.out.println("Ignoring invalid " + frame.opcode() + ": " + e.getMessage());
+                }
+            }
+        } catch (Exception e) {
+            if (isConnected) {
+                System.err.println("[RECEIVER ERROR] " + e.getMessage());
+            }
+        }
+        return isConnected;
+    }
+
+    /**
+     * Connects and logs in again, waiting twice as long after each failure up to
+     * {@link #RECONNECT_MAX_MILLIS}. False if the user logs out meanwhile or the
+     * login is refused.
+     */
+    private boolean reconnect() {
+        Platform.runLater(() -> primaryStage.setTitle("ChatHub - reconnecting..."));
+        long delay = RECONNECT_MIN_MILLIS;
+        while (isConnected) {
             try {
-                String message;
-                while (isConnected && (message = in.readLine()) != null) {
-                    
-                    // Handle user status update (real-time)
-                    if (message.startsWith("USER_STATUS:")) {
-                        String[] parts = message.split(":");
-                        if (parts.length == 3) {
-                            String user = parts[1];
-                            String status = parts[2];
-                            boolean isOnline = "ONLINE".equals(status);
-                            onlineStatus.put(user, isOnline);
-                            
-                            Platform.runLater(() -> {
-                                if (currentChatContact != null && currentChatContact.equals(user)) {
-                                    // Update the status label in chat window
-                                    if (statusIndicator != null && statusLabel != null) {
-                                        statusIndicator.setFill(isOnline ? Color.web("#31A24C") : Color.web("#808080"));
-                                        statusLabel.setText(isOnline ? "Online" : "Offline");
-                                        statusLabel.setStyle("-fx-font-size: 12px; -fx-text-fill: " + (isOnline ? "#31A24C" : "#8696A0") + ";");
-                                    }
-                                }
-                                loadChats(); // Refresh chat list
-                            });
-                        }
-                    }
-                    
-                    // Handle all status response
-                    else if (message.startsWith("ALL_STATUS:")) {
-                        String data = message.substring(11);
-                        Platform.runLater(() -> {
-                            for (String item : data.split(";")) {
-                                if (!item.isEmpty()) {
-                                    String[] parts = item.split(":");
-                                    if (parts.length == 2) {
-                                        String user = parts[0];
-                                        boolean isOnline = "ONLINE".equals(parts[1]);
-                                        onlineStatus.put(user, isOnline);
-                                    }
-                                }
-                            }
-                            loadChats();
-                        });
-                    }
-                    
-                    // Handle typing start
-                    else if (message.startsWith("TYPING_START:")) {
-                        String[] parts = message.split(":", 2);
-                        String sender = parts[1];
-                        Platform.runLater(() -> {
-                            if (currentChatContact != null && currentChatContact.equals(sender)) {
-                                typingLabel.setText(sender + " is typing...");
-                                typingStatus.put(sender, true);
-                            }
-                        });
-                    }
-                    
-                    // Handle typing stop
-                    else if (message.startsWith("TYPING_STOP:")) {
-                        String[] parts = message.split(":", 2);
-                        String sender = parts[1];
-                        Platform.runLater(() -> {
-                            if (currentChatContact != null && currentChatContact.equals(sender)) {
-                                typingLabel.setText("");
-                                typingStatus.put(sender, false);
-                            }
-                        });
+                Thread.sleep(delay);
+                openConnection();
+                out.write(new Commands.Login(currentUsername, password).toFrame());
+                Frame response = in.readFrame();
+                if (response != null && Commands.decode(response) instanceof Commands.LoginSucceeded) {
+                    if (!isConnected) {
+                        // Logged out while this login was on its way
+                        socket.close();
                     }
-                    
-                    // Handle history response
-                    else if (message.startsWith("HISTORY:")) {
-                        String data = message.substring(8);
-                        if (!data.isEmpty()) {
-                            Platform.runLater(() -> {
-                                for (String msgData : data.split("\\|")) {
-                                    if (!msgData.isEmpty()) {
-                                        String[] parts = msgData.split("###");
-                                        if (parts.length == 4) {
-                                            String sender = parts[0];
-                                            String content = parts[1];
-                                            String time = parts[2];
-                                            
-                                            ObservableList<MessageItem> msgs = conversationHistory.get(sender);
-                                            if (msgs == null) {
-                                                msgs = FXCollections.observableArrayList();
-                                                conversationHistory.put(sender, msgs);
-                                            }
-                                            
-                                            MessageItem historyMsg = new MessageItem(content, sender, false, time, true);
-                                            msgs.add(historyMsg);
-                                            
-                                            ChatPreview existingChat = null;
-                                            for (ChatPreview chat : chats) {
-                                                if (chat.getContactName().equals(sender)) {
-                                                    existingChat = chat;
-                                                    chat.setLastMessage(content);
-                                                    chat.setTimestamp(time);
-                                                    break;
-                                                }
-                                            }
-                                            
-                                            if (existingChat == null) {
-                                                ChatPreview newChat = new ChatPreview(sender, content, time);
-                                                chats.add(newChat);
-                                            }
-                                        }
-                                    }
-                                }
-                                loadChats();
-                            });
+                    return isConnected;
+                }
+                socket.close();
+                Platform.runLater(() -> {
+                    closeConnection();
+                    showLoginScreen();
+                    showAlert("Login Failed", "The server no longer accepts this login");
+                });
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (Exception e) {
+                System.err.println("[RECONNECT] " + e.getMessage());
+                try {
+                    if (socket != null) socket.close();
+                } catch (IOException closeFailed) {
+                    // Nothing more to release
+                }
+                delay = Math.min(delay * 2, RECONNECT_MAX_MILLIS);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * On the FX thread after a reconnect. The new connection starts with no presence
+     * subscription and none of the old one's requests, so the chat list is fetched
+     * again; unacknowledged sends go again under their client id, which the server
+     * uses to drop any it already stored; and SYNC catches up on the messages the
+     * old connection missed.
+     */
+    private void resumeSession() {
+        primaryStage.setTitle("ChatHub");
+        typingSent = false;
+        if (messageQuery != null) {
+            searchMessages(messageQuery);
+        } else {
+            searchUsers(userSearchPrefix);
+        }
+        for (String contact : new ArrayList<>(historyRequestsPending)) {
+            requestHistoryPage(contact, oldestLoadedId.getOrDefault(contact, 0L));
+        }
+        loadAllUnreadCounts();
+        for (PendingSend pending : pendingSends.values()) {
+            send(pending.command());
+        }
+        send(new Commands.Sync(Commands.Sync.RESUME));
+    }
+
+    // Server events, on the receiver thread; UI updates go through Platform.runLater
+
+    /** Real-time status of one user, from servers without presence subscriptions. */
+    private void onUserStatus(UserStatus event) {
+        applyPresence(Map.of(event.username(), event.online()));
+    }
+
+    /** Status of subscribed contacts: a snapshot after subscribing, then batched changes. */
+    private void onPresence(Commands.Presence event) {
+        applyPresence(event.online());
+    }
+
+    private void applyPresence(Map<String, Boolean> changed) {
+        Platform.runLater(() -> {
+            onlineStatus.putAll(changed);
+            Boolean isOnline = currentChatContact == null ? null : changed.get(currentChatContact);
+            if (isOnline != null) {
+                // Update the status label in chat window
+                if (statusIndicator != null && statusLabel != null) {
+                    statusIndicator.setFill(isOnline ? Color.web("#31A24C") : Color.web("#808080"));
+                    statusLabel.setText(isOnline ? "Online" : "Offline");
+                    statusLabel.setStyle("-fx-font-size: 12px; -fx-text-fill: " + (isOnline ? "#31A24C" : "#8696A0") + ";");
+                }
+            }
+            loadChats(); // Refresh chat list
+        });
+    }
+
+    private void onAllStatus(AllStatus event) {
+        Platform.runLater(() -> {
+            onlineStatus.putAll(event.online());
+            loadChats();
+        });
+    }
+
+    private void onTypingStarted(TypingStarted event) {
+        String sender = event.sender();
+        Platform.runLater(() -> {
+            if (currentChatContact != null && currentChatContact.equals(sender)) {
+                typingLabel.setText(sender + " is typing...");
+                typingStatus.put(sender, true);
+            }
+        });
+    }
+
+    private void onTypingStopped(TypingStopped event) {
+        String sender = event.sender();
+        Platform.runLater(() -> {
+            if (currentChatContact != null && currentChatContact.equals(sender)) {
+                typingLabel.setText("");
+                typingStatus.put(sender, false);
+            }
+        });
+    }
+
+    /** One page of a conversation's history, converted here rather than on the FX thread. */
+    private void onHistoryPage(HistoryPage event) {
+        List<MessageItem> page = new ArrayList<>(event.messages().size());
+        for (HistoryEntry entry : event.messages()) {
+            boolean isSent = entry.sender().equals(currentUsername);
+            MessageItem item = new MessageItem(entry.id(), entry.content(), isSent ? "You" : entry.sender(), isSent, entry.time(), true);
+            item.setRead(isSent && entry.read());
+            page.add(item);
+        }
+        Platform.runLater(() -> applyHistoryPage(event.contact(), event.hasMore(), page));
+    }
+
+    /**
+     * Messages since the sync cursor, oldest first. Each non-empty batch is acknowledged
+     * with its cursor, which saves it on the server and asks for the next batch; the
+     * empty one that follows ends the catch-up.
+     */
+    private void onSyncBatch(Commands.SyncBatch event) {
+        if (event.messages().isEmpty()) {
+            return;
+        }
+        Map<String, List<MessageItem>> byContact = new LinkedHashMap<>();
+        for (Commands.SyncMessage message : event.messages()) {
+            boolean isSent = message.sender().equals(currentUsername);
+            String contact = isSent ? message.recipient() : message.sender();
+            MessageItem item = new MessageItem(message.id(), message.content(), isSent ? "You" : message.sender(),
+                    isSent, message.time(), true);
+            item.setRead(isSent && message.read());
+            byContact.computeIfAbsent(contact, c -> new ArrayList<>()).add(item);
+        }
+        Platform.runLater(() -> applySync(byContact));
+        send(new Commands.Sync(event.cursor()));
+    }
+
+    /**
+     * Merges synced messages into the conversations already loaded. One shown without
+     * an id, received live or sent but not yet STORED, is matched by its text and takes
+     * the id. A conversation not loaded yet gets its first history page instead.
+     */
+    private void applySync(Map<String, List<MessageItem>> byContact) {
+        boolean changed = false;
+        for (Map.Entry<String, List<MessageItem>> entry : byContact.entrySet()) {
+            String contact = entry.getKey();
+            ObservableList<MessageItem> msgs = conversationHistory.get(contact);
+            if (!oldestLoadedId.containsKey(contact) && !historyRequestsPending.contains(contact)
+                    && (msgs == null || msgs.isEmpty())) {
+                requestHistoryPage(contact, 0);
+                continue;
+            }
+            if (msgs == null) {
+                msgs = FXCollections.observableArrayList();
+                conversationHistory.put(contact, msgs);
+            }
+            for (MessageItem item : entry.getValue()) {
+                changed |= merge(msgs, item);
+            }
+        }
+        if (changed) {
+            loadChats();
+            if (messagesListView != null) {
+                messagesListView.refresh();
+            }
+        }
+    }
+
+    /** Adds a synced message unless it is already shown; false if it was. */
+    private static boolean merge(ObservableList<MessageItem> msgs, MessageItem item) {
+        int at = msgs.size();
+        for (int i = msgs.size() - 1; i >= 0; i--) {
+            MessageItem shown = msgs.get(i);
+            if (shown.getId() == item.getId()) {
+                return false;
+            }
+            if (shown.getId() == 0 && shown.isSent() == item.isSent() && shown.getContent().equals(item.getContent())) {
+                shown.setId(item.getId());
+                return false;
+            }
+            if (shown.getId() > item.getId()) {
+                at = i;
+            }
+        }
+        msgs.add(at, item);
+        return true;
+    }
+
+    /** Acknowledgements for this user's messages: stored, delivered, read up to an id, or refused. */
+    private void onReceipts(Receipts event) {
+        Platform.runLater(() -> {
+            for (Receipt receipt : event.receipts()) {
+                switch (receipt.kind()) {
+                    case Receipt.STORED -> {
+                        // Last for a message: the server queues DELIVERED, if the recipient is
+                        // online, before it stores. One relayed by another node may come
+                        // later and is dropped; the READ receipt still ticks the message.
+                        PendingSend pending = pendingSends.remove(receipt.ref());
+                        if (pending != null) {
+                            pending.item().setId(receipt.messageId());
                         }
                     }
-                    
-                    // Handle unread counts
-                    else if (message.startsWith("ALL_UNREAD:")) {
-                        String data = message.substring(11);
-                        Platform.runLater(() -> {
-                            unreadCounts.clear();
-                            if (!data.isEmpty()) {
-                                for (String item : data.split(";")) {
-                                    if (!item.isEmpty()) {
-                                        String[] parts = item.split(":");
-                                        if (parts.length == 2) {
-                                            String sender = parts[0];
-                                            try {
-                                                int count = Integer.parseInt(parts[1]);
-                                                unreadCounts.put(sender, count);
-                                            } catch (NumberFormatException e) {
-                                                System.out.println("Invalid unread count: " + parts[1]);
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                            loadChats();
-                        });
+                    case Receipt.DELIVERED -> {
+                        PendingSend pending = pendingSends.get(receipt.ref());
+                        if (pending != null) {
+                            pending.item().setDelivered(true);
+                        }
                     }
-                    
-                    else if (message.startsWith("UNREAD_COUNT:")) {
-                        String[] parts = message.split(":", 3);
-                        if (parts.length == 3) {
-                            String sender = parts[1];
-                            try {
-                                int count = Integer.parseInt(parts[2]);
-                                Platform.runLater(() -> {
-                                    unreadCounts.put(sender, count);
-                                    loadChats();
-                                });
-                            } catch (NumberFormatException e) {
-                                System.out.println("Invalid count format: " + parts[2]);
-                            }
+                    case Receipt.FAILED -> {
+                        // No such user; nothing was stored, so stop resending it
+                        PendingSend pending = pendingSends.remove(receipt.ref());
+                        if (pending != null) {
+                            showAlert("Message Not Sent", "There is no user named " + pending.command().recipient());
                         }
                     }
-                    
-                    // Handle incoming messages
-                    else if (message.startsWith("RECEIVE:")) {
-                        String[] parts = message.split(":", 3);
-                        if (parts.length == 3) {
-                            String sender = parts[1];
-                            String fullMsg = parts[2];
-
-                            int firstCloseBracket = fullMsg.indexOf("]");
-                            if (firstCloseBracket > -1) {
-                                String timeAndMessage = fullMsg.substring(firstCloseBracket + 2);
-                                int colonIndex = timeAndMessage.indexOf(": ");
-
-                                if (colonIndex > -1) {
-                                    String content = timeAndMessage.substring(colonIndex + 2);
-                                    String time = fullMsg.substring(1, firstCloseBracket);
-
-                                    Platform.runLater(() -> {
-                                        ObservableList<MessageItem> msgs = conversationHistory.get(sender);
-                                        if (msgs == null) {
-                                            msgs = FXCollections.observableArrayList();
-                                            conversationHistory.put(sender, msgs);
-                                        }
-
-                                        MessageItem receivedMessage = new MessageItem(content, sender, false, time, true);
-                                        msgs.add(receivedMessage);
-
-                                        ChatPreview existingChat = null;
-                                        for (ChatPreview chat : chats) {
-                                            if (chat.getContactName().equals(sender)) {
-                                                existingChat = chat;
-                                                chat.setLastMessage(content);
-                                                chat.setTimestamp(time);
-                                                break;
-                                            }
-                                        }
-
-                                        if (existingChat == null) {
-                                            ChatPreview newChat = new ChatPreview(sender, content, time);
-                                            newChat.setUnread(true);
-                                            newChat.setUnreadCount(1);
-                                            unreadCounts.put(sender, 1);
-                                            chats.add(newChat);
-                                        }
-
-                                        if (currentChatContact == null || !currentChatContact.equals(sender)) {
-                                            out.println("GET_UNREAD_COUNT:" + sender);
-                                        } else {
-                                            markMessagesAsRead(sender);
-                                        }
-
-                                        if (currentChatContact != null && currentChatContact.equals(sender) && messagesListView != null) {
-                                            messagesListView.refresh();
-                                        }
-
-                                        chatListView.refresh();
-                                    });
+                    case Receipt.READ -> {
+                        ObservableList<MessageItem> msgs = conversationHistory.get(receipt.ref());
+                        if (msgs != null) {
+                            for (MessageItem item : msgs) {
+                                if (item.isSent() && item.getId() != 0 && item.getId() <= receipt.messageId()) {
+                                    item.setDelivered(true);
+                                    item.setRead(true);
                                 }
                             }
                         }
                     }
+                    default -> {
+                    }
                 }
-            } catch (Exception e) {
-                if (isConnected) {
-                    System.err.println("[RECEIVER ERROR] " + e.getMessage());
+            }
+            if (messagesListView != null) {
+                messagesListView.refresh();
+            }
+        });
+    }
+
+    private void onAllUnread(AllUnread event) {
+        Platform.runLater(() -> {
+            unreadCounts.clear();
+            unreadCounts.putAll(event.counts());
+            loadChats();
+        });
+    }
+
+    private void onUnreadCount(UnreadCount event) {
+        String sender = event.sender();
+        Platform.runLater(() -> {
+            if (currentChatContact != null && currentChatContact.equals(sender)) {
+                // The open chat is being read; its MARK_READ is already on the way
+                return;
+            }
+            unreadCounts.put(sender, event.count());
+            loadChats();
+        });
+    }
+
+    /** One page of a user search, applied on the FX thread that owns the chat list. */
+    private void onUsers(Users event) {
+        Platform.runLater(() -> applyUsers(event));
+    }
+
+    private void onSearchResults(SearchResults event) {
+        Platform.runLater(() -> applySearchResults(event));
+    }
+
+    private void onAvatar(Avatar event) {
+        Platform.runLater(() -> avatars.received(event.username(), event.png()));
+    }
+
+    /** Asks the server for a picture the avatar cache has nowhere else; false when logged out. */
+    private boolean requestAvatar(String username) {
+        if (!isConnected) {
+            return false;
+        }
+        send(new GetAvatar(username));
+        return true;
+    }
+
+    /** Incoming message, formatted by the server as {@code [time] sender: text}. */
+    private void onReceive(Receive event) {
+        String sender = event.sender();
+        String fullMsg = event.formatted();
+
+        int firstCloseBracket = fullMsg.indexOf("]");
+        if (firstCloseBracket < 0) {
+            return;
+        }
+        String timeAndMessage = fullMsg.substring(firstCloseBracket + 2);
+        int colonIndex = timeAndMessage.indexOf(": ");
+        if (colonIndex < 0) {
+            return;
+        }
+        String content = timeAndMessage.substring(colonIndex + 2);
+        String time = fullMsg.substring(1, firstCloseBracket);
+
+        Platform.runLater(() -> {
+            if (sender.equals(currentChatContact) && typingLabel != null) {
+                // A message ends the sender's typing even if its TYPING_STOP was dropped
+                typingLabel.setText("");
+                typingStatus.put(sender, false);
+            }
+            ObservableList<MessageItem> msgs = conversationHistory.get(sender);
+            if (msgs == null) {
+                msgs = FXCollections.observableArrayList();
+                conversationHistory.put(sender, msgs);
+            }
+
+            MessageItem receivedMessage = new MessageItem(content, sender, false, time, true);
+            msgs.add(receivedMessage);
+
+            ChatPreview existingChat = null;
+            for (ChatPreview chat : chats) {
+                if (chat.getContactName().equals(sender)) {
+                    existingChat = chat;
+                    chat.setLastMessage(content);
+                    chat.setTimestamp(time);
+                    break;
                 }
             }
+
+            if (existingChat == null) {
+                ChatPreview newChat = new ChatPreview(sender, content, time);
+                newChat.setUnread(true);
+                newChat.setUnreadCount(1);
+                unreadCounts.put(sender, 1);
+                chats.add(newChat);
+            }
+
+            // The server pushes UNREAD_COUNT after each message; only the open chat needs handling
+            if (currentChatContact != null && currentChatContact.equals(sender)) {
+                markMessagesAsRead(sender);
+            }
+
+            if (currentChatContact != null && currentChatContact.equals(sender) && messagesListView != null) {
+                messagesListView.refresh();
+            }
+
+            chatListView.refresh();
         });
-        messageReceiver.setDaemon(true);
-        messageReceiver.start();
     }
 
     private String getCurrentTime() {
@@ -692,12 +1106,13 @@ public class ChatClient extends Application {
     private void closeConnection() {
         if (isConnected) {
             isConnected = false;
-            if (typingTimer != null) {
-                typingTimer.cancel();
+            if (typingStop != null) {
+                typingStop.cancel(false);
+                typingStop = null;
             }
+            typingSent = false;
+            avatars.disconnected();
             try {
-                if (out != null) out.close();
-                if (in != null) in.close();
                 if (socket != null && !socket.isClosed()) socket.close();
             } catch (Exception e) {
                 e.printStackTrace();
@@ -706,57 +1121,9 @@ public class ChatClient extends Application {
     }
 
     private StackPane createProfilePicture(String name, int size) {
-        try {
-            Image image = new Image(getClass().getResourceAsStream("/images/" + name.toLowerCase() + ".png"));
-            ImageView imageView = new ImageView(image);
-            imageView.setFitWidth(size);
-            imageView.setFitHeight(size);
-            imageView.setPreserveRatio(true);
-            Circle clip = new Circle(size / 2.0);
-            clip.setCenterX(size / 2.0);
-            clip.setCenterY(size / 2.0);
-            imageView.setClip(clip);
-            StackPane stack = new StackPane(imageView);
-            stack.setPrefSize(size, size);
-            return stack;
-        } catch (Exception e) {
-            Circle circle = new Circle(size / 2.0);
-            String color = PROFILE_COLORS.getOrDefault(name.toLowerCase(), "#999999");
-            circle.setFill(Color.web(color));
-            Label initials = new Label(name.substring(0, 1).toUpperCase());
-            initials.setFont(new Font(size / 2.0));
-            initials.setTextFill(Color.WHITE);
-            StackPane stack = new StackPane(circle, initials);
-            stack.setPrefSize(size, size);
-            return stack;
-        }
-    }
-
-    public static StackPane createProfilePictureStatic(String name, int size) {
-        try {
-            Image image = new Image(ChatClient.class.getResourceAsStream("/images/" + name.toLowerCase() + ".png"));
-            ImageView imageView = new ImageView(image);
-            imageView.setFitWidth(size);
-            imageView.setFitHeight(size);
-            imageView.setPreserveRatio(true);
-            Circle clip = new Circle(size / 2.0);
-            clip.setCenterX(size / 2.0);
-            clip.setCenterY(size / 2.0);
-            imageView.setClip(clip);
-            StackPane stack = new StackPane(imageView);
-            stack.setPrefSize(size, size);
-            return stack;
-        } catch (Exception e) {
-            Circle circle = new Circle(size / 2.0);
-            String color = PROFILE_COLORS.getOrDefault(name.toLowerCase(), "#999999");
-            circle.setFill(Color.web(color));
-            Label initials = new Label(name.substring(0, 1).toUpperCase());
-            initials.setFont(new Font(size / 2.0));
-            initials.setTextFill(Color.WHITE);
-            StackPane stack = new StackPane(circle, initials);
-            stack.setPrefSize(size, size);
-            return stack;
-        }
+        AvatarView avatar = new AvatarView(size);
+        avatar.show(name);
+        return avatar;
     }
 
     @Override
@@ -764,41 +1131,75 @@ public class ChatClient extends Application {
         closeConnection();
     }
 
-    class ChatPreviewCell extends ListCell<ChatPreview> {
-        private HBox container;
-        private Label nameLabel;
-        private Label messageLabel;
-        private Label timeLabel;
-        private Label unreadBadge;
-        private Circle onlineIndicator;
-
-        public ChatPreviewCell() {
-            nameLabel = new Label();
-            nameLabel.setStyle("-fx-font-size: 14px; -fx-font-weight: bold; -fx-text-fill: #E9EDEF;");
+    /** A round profile picture; the user's initials until the picture is loaded, or if there is none. */
+    class AvatarView extends StackPane {
+        private final int size;
+        private final Circle initialsCircle;
+        private final Label initialsLabel = new Label();
+        private final ImageView imageView = new ImageView();
+        private String user;
+
+        AvatarView(int size) {
+            this.size = size;
+            initialsCircle = new Circle(size / 2.0);
+            initialsLabel.setFont(new Font(size / 2.0));
+            initialsLabel.getStyleClass().add("avatar-initials");
+            imageView.setFitWidth(size);
+            imageView.setFitHeight(size);
+            imageView.setPreserveRatio(true);
+            imageView.setClip(new Circle(size / 2.0, size / 2.0, size / 2.0));
+            getChildren().addAll(initialsCircle, initialsLabel, imageView);
+            setPrefSize(size, size);
+        }
 
-            messageLabel = new Label();
-            messageLabel.setStyle("-fx-font-size: 12px; -fx-text-fill: #8696A0;");
+        void show(String name) {
+            if (name.equals(user)) {
+                return;
+            }
+            user = name;
+            initialsCircle.setFill(Color.web(PROFILE_COLORS.getOrDefault(name.toLowerCase(), "#999999")));
+            initialsLabel.setText(name.substring(0, 1).toUpperCase());
+            showImage(avatars.get(name, size, image -> {
+                // Unless this view has moved on to someone else meanwhile
+                if (name.equals(user)) {
+                    showImage(image);
+                }
+            }));
+        }
 
-            timeLabel = new Label();
-            timeLabel.setStyle("-fx-font-size: 11px; -fx-text-fill: #8696A0;");
+        private void showImage(Image image) {
+            imageView.setImage(image);
+            boolean initials = image == null;
+            initialsCircle.setVisible(initials);
+            initialsLabel.setVisible(initials);
+        }
+    }
 
-            unreadBadge = new Label();
-            unreadBadge.setStyle("-fx-background-color: #25D366; -fx-text-fill: white; -fx-padding: 2px 6px; -fx-font-size: 10px;");
+    /** A chat list row. Its nodes are built once; reuse only changes text, pseudo-classes and the picture. */
+    class ChatPreviewCell extends ListCell<ChatPreview> {
+        private static final int AVATAR_SIZE = 45;
 
-            onlineIndicator = new Circle(5);
+        private final HBox container = new HBox();
+        private final AvatarView avatar = new AvatarView(AVATAR_SIZE);
+        private final Label nameLabel = new Label();
+        private final Label messageLabel = new Label();
+        private final Label timeLabel = new Label();
+        private final Label unreadBadge = new Label();
+        private final Circle onlineIndicator = new Circle(5);
 
-            VBox leftBox = new VBox(3);
-            leftBox.getChildren().addAll(nameLabel, messageLabel);
+        public ChatPreviewCell() {
+            nameLabel.getStyleClass().add("contact-name");
+            messageLabel.getStyleClass().add("last-message");
+            timeLabel.getStyleClass().add("timestamp");
+            unreadBadge.getStyleClass().add("unread-badge");
+            onlineIndicator.getStyleClass().add("online-indicator");
 
+            VBox textBox = new VBox(3, nameLabel, messageLabel);
             Region spacer = new Region();
             HBox.setHgrow(spacer, Priority.ALWAYS);
 
-            container = new HBox(10);
-            container.setPadding(new Insets(10));
-            container.setStyle("-fx-background-color: #111B21; -fx-border-color: #1F2C33; -fx-border-width: 0 0 1 0;");
-
-            setOnMouseEntered(e -> container.setStyle("-fx-background-color: #202C33; -fx-border-color: #1F2C33; -fx-border-width: 0 0 1 0;"));
-            setOnMouseExited(e -> container.setStyle("-fx-background-color: #111B21; -fx-border-color: #1F2C33; -fx-border-width: 0 0 1 0;"));
+            container.getStyleClass().add("chat-item");
+            container.getChildren().addAll(avatar, textBox, spacer, onlineIndicator, unreadBadge, timeLabel);
         }
 
         @Override
@@ -807,34 +1208,22 @@ public class ChatClient extends Application {
             if (empty || item == null) {
                 setGraphic(null);
             } else {
+                if (getIndex() == getListView().getItems().size() - 1) {
+                    // Scrolled to the end of the list: fetch the next page of users or hits
+                    requestNextPage();
+                }
+
                 nameLabel.setText(item.getContactName());
                 messageLabel.setText(item.getLastMessage());
                 timeLabel.setText(item.getTimestamp());
+                avatar.show(item.getContactName());
 
-                StackPane profilePic = ChatClient.createProfilePictureStatic(item.getContactName(), 45);
-
-                // Online indicator
-                onlineIndicator.setFill(item.isOnline() ? Color.web("#31A24C") : Color.web("#808080")); // Green or Gray
-
-                VBox textBox = new VBox(3);
-                textBox.getChildren().addAll(nameLabel, messageLabel);
-
-                Region spacer = new Region();
-                HBox.setHgrow(spacer, Priority.ALWAYS);
-
-                container.getChildren().clear();
-                container.getChildren().addAll(profilePic, textBox, spacer, onlineIndicator, timeLabel);
-
-                if (item.hasUnread() && item.getUnreadCount() > 0) {
-                    nameLabel.setStyle("-fx-font-size: 14px; -fx-font-weight: bold; -fx-text-fill: #25D366;");
-                    messageLabel.setStyle("-fx-font-size: 12px; -fx-text-fill: #25D366; -fx-font-weight: bold;");
-
-                    unreadBadge.setText(String.valueOf(item.getUnreadCount()));
-                    container.getChildren().add(container.getChildren().size() - 1, unreadBadge);
-                } else {
-                    nameLabel.setStyle("-fx-font-size: 14px; -fx-font-weight: bold; -fx-text-fill: #E9EDEF;");
-                    messageLabel.setStyle("-fx-font-size: 12px; -fx-text-fill: #8696A0;");
-                }
+                boolean unread = item.hasUnread() && item.getUnreadCount() > 0;
+                unreadBadge.setText(unread ? String.valueOf(item.getUnreadCount()) : "");
+                unreadBadge.setVisible(unread);
+                unreadBadge.setManaged(unread);
+                container.pseudoClassStateChanged(UNREAD, unread);
+                container.pseudoClassStateChanged(ONLINE, item.isOnline());
 
                 setGraphic(container);
             }
@@ -869,14 +1258,25 @@ public class ChatClient extends Application {
         public void setOnline(boolean online) { this.isOnline = online; }
     }
 
+    /** A sent message and the command to send it again after a reconnect. */
+    private record PendingSend(Commands.Send command, MessageItem item) {
+    }
+
     class MessageItem {
+        private long id;
         private String content;
         private String sender;
         private boolean isSent;
         private String timestamp;
         private boolean isDelivered;
+        private boolean isRead;
 
         public MessageItem(String content, String sender, boolean isSent, String timestamp, boolean isDelivered) {
+            this(0, content, sender, isSent, timestamp, isDelivered);
+        }
+
+        public MessageItem(long id, String content, String sender, boolean isSent, String timestamp, boolean isDelivered) {
+            this.id = id;
             this.content = content;
             this.sender = sender;
             this.isSent = isSent;
@@ -884,17 +1284,38 @@ public class ChatClient extends Application {
             this.isDelivered = isDelivered;
         }
 
+        public long getId() { return id; }
         public String getContent() { return content; }
         public String getSender() { return sender; }
         public boolean isSent() { return isSent; }
         public String getTimestamp() { return timestamp; }
         public boolean isDelivered() { return isDelivered; }
 
+        public boolean isStored() { return id != 0; }
+        public boolean isRead() { return isRead; }
+
+        public void setId(long id) { this.id = id; }
         public void setDelivered(boolean delivered) { this.isDelivered = delivered; }
+        public void setRead(boolean read) { this.isRead = read; }
     }
 
+    /** A message row, built once like {@link ChatPreviewCell}; sent and read are pseudo-classes. */
     class MessageCell extends ListCell<MessageItem> {
-        private HBox container;
+        private final HBox container = new HBox();
+        private final Label contentLabel = new Label();
+        private final Label timeLabel = new Label();
+
+        MessageCell() {
+            contentLabel.getStyleClass().add("message-text");
+            contentLabel.setWrapText(true);
+            contentLabel.setMaxWidth(300);
+            timeLabel.getStyleClass().add("message-timestamp");
+
+            VBox bubble = new VBox(2, contentLabel, timeLabel);
+            bubble.getStyleClass().add("message-bubble");
+            container.getStyleClass().add("message-row");
+            container.getChildren().add(bubble);
+        }
 
         @Override
         protected void updateItem(MessageItem item, boolean empty) {
@@ -902,46 +1323,26 @@ public class ChatClient extends Application {
             if (empty || item == null) {
                 setGraphic(null);
             } else {
-                VBox messageBox = new VBox(2);
-                HBox contentBox = new HBox(5);
-                contentBox.setAlignment(Pos.CENTER_LEFT);
-
-                Label contentLabel = new Label(item.getContent());
-                contentLabel.setWrapText(true);
-                contentLabel.setMaxWidth(300);
-                contentBox.getChildren().add(contentLabel);
-
-                Label timeLabel = new Label(item.getTimestamp());
-                timeLabel.setStyle("-fx-font-size: 9px;");
-
-                messageBox.getChildren().addAll(contentBox, timeLabel);
-
-                if (item.isSent()) {
-                    contentLabel.setStyle("-fx-text-fill: white; -fx-padding: 8px 12px;");
-                    timeLabel.setStyle("-fx-font-size: 9px; -fx-text-fill: #CCCCCC;");
-                    messageBox.setStyle("-fx-background-color: #005C4B; -fx-background-radius: 10; -fx-padding: 0;");
-
-                    container = new HBox();
-                    container.setPadding(new Insets(5));
-                    Region spacer = new Region();
-                    HBox.setHgrow(spacer, Priority.ALWAYS);
-                    container.getChildren().addAll(spacer, messageBox);
-                    container.setStyle("-fx-background-color: #0B141A;");
-                } else {
-                    contentLabel.setStyle("-fx-text-fill: #E9EDEF; -fx-padding: 8px 12px;");
-                    timeLabel.setStyle("-fx-font-size: 9px; -fx-text-fill: #8696A0;");
-                    messageBox.setStyle("-fx-background-color: #1F2C33; -fx-background-radius: 10; -fx-padding: 0;");
-
-                    container = new HBox();
-                    container.setPadding(new Insets(5));
-                    Region spacer = new Region();
-                    HBox.setHgrow(spacer, Priority.ALWAYS);
-                    container.getChildren().addAll(messageBox, spacer);
-                    container.setStyle("-fx-background-color: #0B141A;");
+                if (getIndex() == 0 && currentChatContact != null) {
+                    // Scrolled to the top of what is loaded: fetch the previous page
+                    requestOlderHistory(currentChatContact);
                 }
 
+                contentLabel.setText(item.getContent());
+                timeLabel.setText(item.isSent() ? item.getTimestamp() + ticks(item) : item.getTimestamp());
+                container.pseudoClassStateChanged(SENT, item.isSent());
+                container.pseudoClassStateChanged(READ, item.isRead());
+
                 setGraphic(container);
             }
         }
+
+        /** One tick once the server has stored it, two once the recipient has it; blue when read. */
+        private String ticks(MessageItem item) {
+            if (item.isDelivered() || item.isRead()) {
+                return " \u2713\u2713";
+            }
+            return item.isStored() ? " \u2713" : "";
+        }
     }
 }
\ No newline at end of file
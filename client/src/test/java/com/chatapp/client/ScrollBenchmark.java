@@ -0,0 +1,149 @@
+package com.chatapp.client;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.scene.Scene;
+import javafx.scene.control.ListView;
+import javafx.stage.Stage;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Frame times while a list scrolls through {@code --items} rows (50000 by default),
+ * {@code --step} rows per frame, using the client's own cells and stylesheet:
+ * {@code --list=messages} is a conversation, {@code --list=chats} the chat list.
+ * Prints the interval between frames and the time each pulse spends in CSS and
+ * layout, which is where cell updates run. The first 600 frames warm up the JIT
+ * and are not counted.
+ *
+ * <p>A test class, so it stays out of the client jar. It runs without a display on
+ * Monocle's headless platform, a test dependency, with software rendering; after
+ * {@code mvn -pl protocol,client install -DskipTests}, with {@code $FX} the
+ * javafx-base, -graphics and -controls jars for the platform:
+ * <pre>
+ * java --module-path $FX --add-modules javafx.controls \
+ *      --patch-module javafx.graphics=openjfx-monocle-17.0.10.jar \
+ *      -Dglass.platform=Monocle -Dmonocle.platform=Headless -Dprism.order=sw \
+ *      -cp client/target/classes:client/target/test-classes:protocol/target/classes \
+ *      com.chatapp.client.ScrollBenchmark --list=chats --frames=1200
+ * </pre>
+ * Without the three properties and the patch it opens a window instead. Results
+ * are in {@code benchmarks/results/scroll.md}.
+ */
+public class ScrollBenchmark extends Application {
+
+    private static final int WARMUP_FRAMES = 600;
+    private static final String[] TEXTS = {
+            "ok",
+            "are we still on for lunch tomorrow?",
+            "I can book the usual place, the one near the station, unless you would rather try somewhere new this time",
+            "sounds good",
+    };
+
+    public static void main(String[] args) {
+        launch(args);
+    }
+
+    @Override
+    public void start(Stage stage) {
+        Map<String, String> options = getParameters().getNamed();
+        int items = Integer.parseInt(options.getOrDefault("items", "50000"));
+        int step = Integer.parseInt(options.getOrDefault("step", "3"));
+        int frames = Integer.parseInt(options.getOrDefault("frames", "600"));
+        boolean chats = "chats".equals(options.getOrDefault("list", "messages"));
+
+        // The cells are inner classes; a client that never connects is their outer instance
+        ChatClient client = new ChatClient();
+        ListView<?> list = chats ? chatList(client, items) : messageList(client, items);
+
+        Scene scene = new Scene(list, 500, 700);
+        scene.getStylesheets().add(ChatClient.STYLESHEET);
+
+        long[] intervals = new long[frames];
+        long[] layouts = new long[frames];
+        long[] layoutStart = new long[1];
+        int[] frame = {-WARMUP_FRAMES};
+        scene.addPreLayoutPulseListener(() -> layoutStart[0] = System.nanoTime());
+        scene.addPostLayoutPulseListener(() -> {
+            if (frame[0] >= 0 && frame[0] < frames) {
+                layouts[frame[0]] = System.nanoTime() - layoutStart[0];
+            }
+        });
+
+        new AnimationTimer() {
+            private long last;
+            private int index;
+
+            @Override
+            public void handle(long now) {
+                if (last != 0 && frame[0] >= 0) {
+                    intervals[frame[0]] = now - last;
+                }
+                last = now;
+                if (++frame[0] >= frames) {
+                    stop();
+                    report(chats ? "chats" : "messages", items, step, intervals, layouts);
+                    Platform.exit();
+                    return;
+                }
+                index = (index + step) % items;
+                list.scrollTo(index);
+            }
+        }.start();
+
+        stage.setTitle("ChatHub scroll benchmark");
+        stage.setScene(scene);
+        stage.show();
+    }
+
+    private static ListView<ChatClient.MessageItem> messageList(ChatClient client, int items) {
+        ObservableList<ChatClient.MessageItem> messages = FXCollections.observableArrayList();
+        for (int i = 0; i < items; i++) {
+            boolean sent = i % 3 != 0;
+            ChatClient.MessageItem item = client.new MessageItem(i + 1, TEXTS[i % TEXTS.length],
+                    sent ? "haritha" : "aakash", sent, String.format("%02d:%02d", i / 60 % 24, i % 60), i % 2 == 0);
+            item.setRead(i % 4 == 0);
+            messages.add(item);
+        }
+        ListView<ChatClient.MessageItem> list = new ListView<>(messages);
+        list.setCellFactory(param -> client.new MessageCell());
+        return list;
+    }
+
+    private static ListView<ChatClient.ChatPreview> chatList(ChatClient client, int items) {
+        List<String> names = List.copyOf(ChatClient.PROFILE_COLORS.keySet());
+        ObservableList<ChatClient.ChatPreview> previews = FXCollections.observableArrayList();
+        for (int i = 0; i < items; i++) {
+            // Users with a picture among many without
+            String name = i % 10 < names.size() ? names.get(i % 10) : "user" + i;
+            ChatClient.ChatPreview preview = client.new ChatPreview(name, TEXTS[i % TEXTS.length],
+                    String.format("%02d:%02d", i / 60 % 24, i % 60));
+            preview.setUnread(i % 7 == 0);
+            preview.setUnreadCount(i % 7 == 0 ? 1 + i % 5 : 0);
+            preview.setOnline(i % 2 == 0);
+            previews.add(preview);
+        }
+        ListView<ChatClient.ChatPreview> list = new ListView<>(previews);
+        list.setCellFactory(param -> client.new ChatPreviewCell());
+        return list;
+    }
+
+    private static void report(String list, int items, int step, long[] intervals, long[] layouts) {
+        System.out.printf("%s: %d items, %d rows per frame, %d frames%n", list, items, step, intervals.length);
+        System.out.println("  frame interval  " + percentiles(intervals));
+        System.out.println("  css + layout    " + percentiles(layouts));
+    }
+
+    private static String percentiles(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format("p50 %.2f ms  p99 %.2f ms  max %.2f ms",
+                sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6,
+                sorted[sorted.length - 1] / 1e6);
+    }
+}
@@ -0,0 +1,198 @@
+package com.chatapp.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary frames:
+ * <pre>
+ *   varint  length of the rest of the frame
+ *   u8      opcode ({@link Opcode#code()})
+ *   varint  field count
+ *   field*  varint byte length, then that many UTF-8 bytes
+ * </pre>
+ * Fields are opaque bytes, so any content (colons, newlines, {@code ###}) survives.
+ */
+public final class BinaryCodec {
+
+    /** Largest frame body accepted from a peer. */
+    public static final int MAX_FRAME_LENGTH = 4 * 1024 * 1024;
+
+    private BinaryCodec() {
+    }
+
+    /** Encodes a frame, length prefix included. */
+    public static byte[] encode(Frame frame) {
+        if (frame instanceof BinaryFrame binary) {
+            return binary.encoded();
+        }
+        int count = frame.fieldCount();
+        byte[][] fields = new byte[count][];
+        int bodyLength = 1 + varintSize(count);
+        for (int i = 0; i < count; i++) {
+            fields[i] = frame.field(i).getBytes(StandardCharsets.UTF_8);
+            bodyLength += varintSize(fields[i].length) + fields[i].length;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(varintSize(bodyLength) + bodyLength);
+        writeVarint(out, bodyLength);
+        out.put((byte) frame.opcode().code());
+        writeVarint(out, count);
+        for (byte[] field : fields) {
+            writeVarint(out, field.length);
+            out.put(field);
+        }
+        return out.array();
+    }
+
+    /**
+     * Decodes the next frame from {@code in} (in read mode). Returns null and leaves the
+     * buffer untouched if the frame is not complete yet.
+     */
+    public static Frame decode(ByteBuffer in) throws ProtocolException {
+        int start = in.position();
+        int lengthPos = start;
+        int bodyLength = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (lengthPos >= in.limit()) {
+                return null;
+            }
+            if (shift > 28) {
+                throw new ProtocolException("Malformed frame length");
+            }
+            byte b = in.get(lengthPos++);
+            bodyLength |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (bodyLength < 2 || bodyLength > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Bad frame length " + bodyLength);
+        }
+        if (in.limit() - lengthPos < bodyLength) {
+            return null;
+        }
+
+        byte[] encoded = new byte[lengthPos - start + bodyLength];
+        in.get(encoded);
+        return parse(encoded, lengthPos - start);
+    }
+
+    private static Frame parse(byte[] encoded, int bodyStart) throws ProtocolException {
+        Opcode opcode = Opcode.fromCode(encoded[bodyStart] & 0xFF);
+        if (opcode == null) {
+            throw new ProtocolException("Unknown opcode " + (encoded[bodyStart] & 0xFF));
+        }
+        int pos = bodyStart + 1;
+        int count = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (pos >= encoded.length || shift > 28) {
+                throw new ProtocolException("Malformed field count");
+            }
+            byte b = encoded[pos++];
+            count |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (count < 0 || count > encoded.length) {
+            throw new ProtocolException("Bad field count " + count);
+        }
+
+        // Start/end pairs of each field's bytes
+        int[] spans = new int[count * 2];
+        for (int i = 0; i < count; i++) {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (pos >= encoded.length || shift > 28) {
+                    throw new ProtocolException("Malformed length of field " + i);
+                }
+                byte b = encoded[pos++];
+                length |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            if (length < 0 || length > encoded.length - pos) {
+                throw new ProtocolException("Field " + i + " overruns the frame");
+            }
+            spans[i * 2] = pos;
+            pos += length;
+            spans[i * 2 + 1] = pos;
+        }
+        return new BinaryFrame(opcode, encoded, spans);
+    }
+
+    static void writeVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    /** A decoded frame that keeps its bytes; fields become Strings only when asked for. */
+    private static final class BinaryFrame extends Frame {
+        private final byte[] encoded;
+        private final int[] spans;
+
+        BinaryFrame(Opcode opcode, byte[] encoded, int[] spans) {
+            super(opcode);
+            this.encoded = encoded;
+            this.spans = spans;
+        }
+
+        byte[] encoded() {
+            return encoded;
+        }
+
+        @Override
+        public int fieldCount() {
+            return spans.length / 2;
+        }
+
+        @Override
+        public String field(int index) {
+            int start = spans[index * 2];
+            return new String(encoded, start, spans[index * 2 + 1] - start, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public long longField(int index) {
+            int pos = spans[index * 2];
+            int end = spans[index * 2 + 1];
+            boolean negative = pos < end && encoded[pos] == '-';
+            if (negative) {
+                pos++;
+            }
+            if (pos == end) {
+                throw new NumberFormatException("Empty numeric field " + index);
+            }
+            // Accumulated negatively, like Long.parseLong, so Long.MIN_VALUE fits too
+            long value = 0;
+            for (; pos < end; pos++) {
+                int digit = encoded[pos] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new NumberFormatException("Not a number: " + field(index));
+                }
+                if (value < (Long.MIN_VALUE + digit) / 10) {
+                    throw new NumberFormatException("Out of range: " + field(index));
+                }
+                value = value * 10 - digit;
+            }
+            if (!negative && value == Long.MIN_VALUE) {
+                throw new NumberFormatException("Out of range: " + field(index));
+            }
+            return negative ? value : -value;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.chatapp.protocol;
+
+/** A typed protocol command; see {@link Commands} for the concrete records. */
+public interface Command {
+
+    /** The command as a frame, ready for either wire format. */
+    Frame toFrame();
+}
@@ -0,0 +1,695 @@
+package com.chatapp.protocol;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Typed records for every command, and the opcode-indexed table that turns a
+ * decoded {@link Frame} into one of them.
+ */
+public final class Commands {
+
+    private static final String ONLINE = "ONLINE";
+    private static final String OFFLINE = "OFFLINE";
+
+    // Client to server
+
+    public record Login(String username, String password) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.LOGIN, username, password);
+        }
+    }
+
+    public record GetOnlineStatus(String username) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.GET_ONLINE_STATUS, username);
+        }
+    }
+
+    public record GetAllStatus() implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.GET_ALL_STATUS);
+        }
+    }
+
+    public record Typing(String recipient) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.TYPING, recipient);
+        }
+    }
+
+    public record StopTyping(String recipient) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.STOP_TYPING, recipient);
+        }
+    }
+
+    /** Legacy: every message ever sent to {@code recipient}. */
+    public record GetHistory(String recipient) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.GET_HISTORY, recipient);
+        }
+    }
+
+    /** One page of a conversation; {@code beforeId} 0 asks for the latest page. */
+    public record GetHistoryPage(String contact, long beforeId, int limit) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.GET_HISTORY_PAGE, contact, String.valueOf(beforeId), String.valueOf(limit));
+        }
+    }
+
+    public record MarkRead(String sender) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.MARK_READ, sender);
+        }
+    }
+
+    public record GetUnreadCount(String sender) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.GET_UNREAD_COUNT, sender);
+        }
+    }
+
+    public record GetAllUnread() implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.GET_ALL_UNREAD);
+        }
+    }
+
+    public record SendMessage(String recipient, String text) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.MSG, recipient, text);
+        }
+    }
+
+    /** Replaces the set of users whose presence changes this client is sent. */
+    public record SubscribePresence(List<String> users) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.SUBSCRIBE_PRESENCE, users);
+        }
+    }
+
+    /** Up to {@code limit} registered users whose names start with {@code prefix} and sort after {@code after}. */
+    public record SearchUsers(String prefix, String after, int limit) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.SEARCH_USERS, prefix, after, String.valueOf(limit));
+        }
+    }
+
+    /** Ranked hits {@code offset} to {@code offset + limit} for words of {@code query}; the query is last so it may contain ':'. */
+    public record Search(int offset, int limit, String query) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.SEARCH, String.valueOf(offset), String.valueOf(limit), query);
+        }
+    }
+
+    // Server to client
+
+    public record LoginSucceeded() implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.SUCCESS);
+        }
+    }
+
+    /** A refused login, or a MSG or SEND to a user who doesn't exist. */
+    public record LoginFailed() implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.FAIL);
+        }
+    }
+
+    public record OnlineStatus(String username, boolean online) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.ONLINE_STATUS, username, online ? ONLINE : OFFLINE);
+        }
+    }
+
+    /** Online state per user, in server order. */
+    public record AllStatus(Map<String, Boolean> online) implements Command {
+        public Frame toFrame() {
+            List<String> fields = new ArrayList<>(online.size() * 2);
+            online.forEach((user, isOnline) -> {
+                fields.add(user);
+                fields.add(isOnline ? ONLINE : OFFLINE);
+            });
+            return Frame.of(Opcode.ALL_STATUS, fields);
+        }
+    }
+
+    public record TypingStarted(String sender) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.TYPING_START, sender);
+        }
+    }
+
+    public record TypingStopped(String sender) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.TYPING_STOP, sender);
+        }
+    }
+
+    /** One stored message. Legacy HISTORY replies carry no id, so it decodes as 0 there. */
+    public record HistoryEntry(long id, String sender, String content, String time, boolean read) {
+    }
+
+    public record History(List<HistoryEntry> messages) implements Command {
+        public Frame toFrame() {
+            List<String> fields = new ArrayList<>(messages.size() * 4);
+            for (HistoryEntry entry : messages) {
+                fields.add(entry.sender());
+                fields.add(entry.content());
+                fields.add(entry.time());
+                fields.add(entry.read() ? "1" : "0");
+            }
+            return Frame.of(Opcode.HISTORY, fields);
+        }
+    }
+
+    /** Messages oldest first; {@code hasMore} says whether older ones exist. */
+    public record HistoryPage(String contact, boolean hasMore, List<HistoryEntry> messages) implements Command {
+        public Frame toFrame() {
+            List<String> fields = new ArrayList<>(2 + messages.size() * 5);
+            fields.add(contact);
+            fields.add(hasMore ? "1" : "0");
+            for (HistoryEntry entry : messages) {
+                fields.add(String.valueOf(entry.id()));
+                fields.add(entry.sender());
+                fields.add(entry.content());
+                fields.add(entry.time());
+                fields.add(entry.read() ? "1" : "0");
+            }
+            return Frame.of(Opcode.HISTORY_PAGE, fields);
+        }
+    }
+
+    public record UnreadCount(String sender, int count) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.UNREAD_COUNT, sender, String.valueOf(count));
+        }
+    }
+
+    /** Non-zero unread counts by sender. */
+    public record AllUnread(Map<String, Integer> counts) implements Command {
+        public Frame toFrame() {
+            List<String> fields = new ArrayList<>(counts.size() * 2);
+            counts.forEach((sender, count) -> {
+                fields.add(sender);
+                fields.add(String.valueOf(count));
+            });
+            return Frame.of(Opcode.ALL_UNREAD, fields);
+        }
+    }
+
+    /** A delivered message; {@code formatted} is {@code [time] sender: text}. */
+    public record Receive(String sender, String formatted) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.RECEIVE, sender, formatted);
+        }
+    }
+
+    public record UserStatus(String username, boolean online) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.USER_STATUS, username, online ? ONLINE : OFFLINE);
+        }
+    }
+
+    /** Current presence of some subscribed users: a snapshot after subscribing, then batched changes. */
+    public record Presence(Map<String, Boolean> online) implements Command {
+        public Frame toFrame() {
+            List<String> fields = new ArrayList<>(online.size() * 2);
+            online.forEach((user, isOnline) -> {
+                fields.add(user);
+                fields.add(isOnline ? ONLINE : OFFLINE);
+            });
+            return Frame.of(Opcode.PRESENCE, fields);
+        }
+    }
+
+    /** One page of a user search, in name order with each user's presence; {@code hasMore} says whether more match. */
+    public record Users(String prefix, boolean hasMore, Map<String, Boolean> online) implements Command {
+        public Frame toFrame() {
+            List<String> fields = new ArrayList<>(2 + online.size() * 2);
+            fields.add(prefix);
+            fields.add(hasMore ? "1" : "0");
+            online.forEach((user, isOnline) -> {
+                fields.add(user);
+                fields.add(isOnline ? ONLINE : OFFLINE);
+            });
+            return Frame.of(Opcode.USERS, fields);
+        }
+    }
+
+    /** A message found by {@link Search}; {@code time} is formatted like history entries. */
+    public record SearchHit(long id, String sender, String recipient, String content, String time) {
+    }
+
+    /** One page of search hits, best first, starting at {@code offset}. */
+    public record SearchResults(int offset, boolean hasMore, List<SearchHit> hits) implements Command {
+        public Frame toFrame() {
+            List<String> fields = new ArrayList<>(2 + hits.size() * 5);
+            fields.add(String.valueOf(offset));
+            fields.add(hasMore ? "1" : "0");
+            for (SearchHit hit : hits) {
+                fields.add(String.valueOf(hit.id()));
+                fields.add(hit.sender());
+                fields.add(hit.recipient());
+                fields.add(hit.content());
+                fields.add(hit.time());
+            }
+            return Frame.of(Opcode.SEARCH_RESULTS, fields);
+        }
+    }
+
+    /**
+     * A message with an id chosen by the sender, unique among its recent sends and free
+     * of {@code :} and {@code ;}. The server answers with receipts for that id and
+     * drops a repeat of it, so pending sends can be retried after a reconnect.
+     */
+    public record Send(String recipient, String clientId, String text) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.SEND, recipient, clientId, text);
+        }
+    }
+
+    /**
+     * One acknowledgement. {@link #STORED}: the SEND {@code ref} was committed as
+     * message {@code messageId}. {@link #DELIVERED}: the recipient's connection took
+     * SEND {@code ref}. {@link #READ}: user {@code ref} has read the caller's messages
+     * up to {@code messageId}. {@link #FAILED}: SEND {@code ref} was refused and not
+     * stored, because its recipient doesn't exist; don't resend it.
+     */
+    public record Receipt(String kind, String ref, long messageId) {
+        public static final String STORED = "S";
+        public static final String DELIVERED = "D";
+        public static final String READ = "R";
+        public static final String FAILED = "F";
+
+        public static Receipt stored(String clientId, long messageId) {
+            return new Receipt(STORED, clientId, messageId);
+        }
+
+        public static Receipt delivered(String clientId) {
+            return new Receipt(DELIVERED, clientId, 0);
+        }
+
+        public static Receipt read(String reader, long upToMessageId) {
+            return new Receipt(READ, reader, upToMessageId);
+        }
+
+        public static Receipt failed(String clientId) {
+            return new Receipt(FAILED, clientId, 0);
+        }
+    }
+
+    public record Receipts(List<Receipt> receipts) implements Command {
+        public Frame toFrame() {
+            List<String> fields = new ArrayList<>(receipts.size() * 3);
+            for (Receipt receipt : receipts) {
+                fields.add(receipt.kind());
+                fields.add(receipt.ref());
+                fields.add(String.valueOf(receipt.messageId()));
+            }
+            return Frame.of(Opcode.RECEIPTS, fields);
+        }
+    }
+
+    /**
+     * Asks for the caller's messages, sent and received, with id above {@code cursor},
+     * and saves {@code cursor} on the server as seen. {@link #RESUME} starts from the
+     * cursor saved last time instead.
+     */
+    public record Sync(long cursor) implements Command {
+        public static final long RESUME = -1;
+
+        public Frame toFrame() {
+            return Frame.of(Opcode.SYNC, String.valueOf(cursor));
+        }
+    }
+
+    public record SyncMessage(long id, String sender, String recipient, String content, String time, boolean read) {
+    }
+
+    /**
+     * One chunk of a sync, oldest first. {@code cursor} is the id of the last message in
+     * it, to send back in the next SYNC; {@code hasMore} says whether that will return more.
+     */
+    public record SyncBatch(long cursor, boolean hasMore, List<SyncMessage> messages) implements Command {
+        public Frame toFrame() {
+            List<String> fields = new ArrayList<>(2 + messages.size() * 6);
+            fields.add(String.valueOf(cursor));
+            fields.add(hasMore ? "1" : "0");
+            for (SyncMessage message : messages) {
+                fields.add(String.valueOf(message.id()));
+                fields.add(message.sender());
+                fields.add(message.recipient());
+                fields.add(message.content());
+                fields.add(message.time());
+                fields.add(message.read() ? "1" : "0");
+            }
+            return Frame.of(Opcode.SYNC_BATCH, fields);
+        }
+    }
+
+    /** Creates a group of the caller and {@code members}, or adds them to a group the caller is in. */
+    public record CreateGroup(String group, List<String> members) implements Command {
+        public Frame toFrame() {
+            List<String> fields = new ArrayList<>(1 + members.size());
+            fields.add(group);
+            fields.addAll(members);
+            return Frame.of(Opcode.CREATE_GROUP, fields);
+        }
+    }
+
+    public record GroupMessage(String group, String text) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.GROUP_MSG, group, text);
+        }
+    }
+
+    public record GroupMarkRead(String group) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.GROUP_MARK_READ, group);
+        }
+    }
+
+    public record GetGroups() implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.GET_GROUPS);
+        }
+    }
+
+    /** A group message, the same frame for every member. */
+    public record GroupReceive(String group, String sender, String content) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.GROUP_RECEIVE, group, sender, content);
+        }
+    }
+
+    /** The caller's groups with how many messages each has that the caller hasn't read. */
+    public record Groups(Map<String, Integer> unread) implements Command {
+        public Frame toFrame() {
+            List<String> fields = new ArrayList<>(unread.size() * 2);
+            unread.forEach((group, count) -> {
+                fields.add(group);
+                fields.add(String.valueOf(count));
+            });
+            return Frame.of(Opcode.GROUPS, fields);
+        }
+    }
+
+    public record GetAvatar(String username) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.GET_AVATAR, username);
+        }
+    }
+
+    /** A user's profile picture as PNG bytes, empty if they have none. */
+    public record Avatar(String username, byte[] png) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.AVATAR, username, Base64.getEncoder().encodeToString(png));
+        }
+    }
+
+    /**
+     * Opens a cluster link: the sending node's id, the secret every node of the cluster
+     * is configured with, and the users connected to the node.
+     */
+    public record NodeHello(String node, String secret, List<String> users) implements Command {
+        public Frame toFrame() {
+            List<String> fields = new ArrayList<>(2 + users.size());
+            fields.add(node);
+            fields.add(secret);
+            fields.addAll(users);
+            return Frame.of(Opcode.NODE_HELLO, fields);
+        }
+    }
+
+    /** Users that logged in to ({@code true}) or left the sending node since its last NODE_ROUTES. */
+    public record NodeRoutes(Map<String, Boolean> online) implements Command {
+        public Frame toFrame() {
+            List<String> fields = new ArrayList<>(online.size() * 2);
+            online.forEach((user, isOnline) -> {
+                fields.add(user);
+                fields.add(isOnline ? ONLINE : OFFLINE);
+            });
+            return Frame.of(Opcode.NODE_ROUTES, fields);
+        }
+    }
+
+    /**
+     * A message from a user on the sending node to one on the receiving node, which
+     * delivers and counts it; the sending node stores it. {@code clientId} is that of
+     * a SEND, or empty for MSG.
+     */
+    public record NodeMessage(String sender, String recipient, String clientId, String text) implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.NODE_MSG, sender, recipient, clientId, text);
+        }
+    }
+
+    /** Any server-to-client frame, for a user connected to the receiving node. */
+    public record NodeForward(String user, Frame frame) implements Command {
+        public Frame toFrame() {
+            List<String> fields = new ArrayList<>(2 + frame.fieldCount());
+            fields.add(user);
+            fields.add(String.valueOf(frame.opcode().code()));
+            for (int i = 0; i < frame.fieldCount(); i++) {
+                fields.add(frame.field(i));
+            }
+            return Frame.of(Opcode.NODE_FORWARD, fields);
+        }
+    }
+
+    /** Asks for the server's metrics; only accepted from operator accounts. */
+    public record GetStats() implements Command {
+        public Frame toFrame() {
+            return Frame.of(Opcode.STATS);
+        }
+    }
+
+    /** Server metrics by name, in a stable order. */
+    public record StatsReport(Map<String, String> values) implements Command {
+        public Frame toFrame() {
+            List<String> fields = new ArrayList<>(values.size() * 2);
+            values.forEach((name, value) -> {
+                fields.add(name);
+                fields.add(value);
+            });
+            return Frame.of(Opcode.STATS_REPORT, fields);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Decoder {
+        Command decode(Frame frame) throws ProtocolException;
+    }
+
+    private static final Decoder[] DECODERS = new Decoder[Opcode.values().length];
+    private static final Map<Class<? extends Command>, Opcode> OPCODES = new HashMap<>();
+
+    static {
+        register(Opcode.LOGIN, Login.class, f -> new Login(f.field(0), f.field(1)));
+        register(Opcode.GET_ONLINE_STATUS, GetOnlineStatus.class, f -> new GetOnlineStatus(f.field(0)));
+        register(Opcode.GET_ALL_STATUS, GetAllStatus.class, f -> new GetAllStatus());
+        register(Opcode.TYPING, Typing.class, f -> new Typing(f.field(0)));
+        register(Opcode.STOP_TYPING, StopTyping.class, f -> new StopTyping(f.field(0)));
+        register(Opcode.GET_HISTORY, GetHistory.class, f -> new GetHistory(f.field(0)));
+        register(Opcode.GET_HISTORY_PAGE, GetHistoryPage.class,
+                f -> new GetHistoryPage(f.field(0), f.longField(1), (int) f.longField(2)));
+        register(Opcode.MARK_READ, MarkRead.class, f -> new MarkRead(f.field(0)));
+        register(Opcode.GET_UNREAD_COUNT, GetUnreadCount.class, f -> new GetUnreadCount(f.field(0)));
+        register(Opcode.GET_ALL_UNREAD, GetAllUnread.class, f -> new GetAllUnread());
+        register(Opcode.MSG, SendMessage.class, f -> new SendMessage(f.field(0), singleLine(f, 1)));
+        register(Opcode.SUBSCRIBE_PRESENCE, SubscribePresence.class, f -> {
+            List<String> users = new ArrayList<>(f.recordCount());
+            for (int i = 0; i < f.recordCount(); i++) {
+                users.add(f.recordField(i, 0));
+            }
+            return new SubscribePresence(users);
+        });
+        register(Opcode.SEARCH_USERS, SearchUsers.class,
+                f -> new SearchUsers(f.field(0), f.field(1), (int) f.longField(2)));
+        register(Opcode.SEARCH, Search.class, f -> new Search((int) f.longField(0), (int) f.longField(1), f.field(2)));
+        register(Opcode.STATS, GetStats.class, f -> new GetStats());
+        register(Opcode.SEND, Send.class, f -> new Send(f.field(0), singleLine(f, 1), singleLine(f, 2)));
+        register(Opcode.SYNC, Sync.class, f -> new Sync(f.longField(0)));
+        register(Opcode.CREATE_GROUP, CreateGroup.class, f -> {
+            List<String> members = new ArrayList<>(f.recordCount());
+            for (int i = 0; i < f.recordCount(); i++) {
+                members.add(singleLine(f, f.opcode().headFields() + i));
+            }
+            return new CreateGroup(singleLine(f, 0), members);
+        });
+        register(Opcode.GROUP_MSG, GroupMessage.class, f -> new GroupMessage(singleLine(f, 0), singleLine(f, 1)));
+        register(Opcode.GROUP_MARK_READ, GroupMarkRead.class, f -> new GroupMarkRead(f.field(0)));
+        register(Opcode.GET_GROUPS, GetGroups.class, f -> new GetGroups());
+        register(Opcode.GET_AVATAR, GetAvatar.class, f -> new GetAvatar(f.field(0)));
+
+        register(Opcode.SUCCESS, LoginSucceeded.class, f -> new LoginSucceeded());
+        register(Opcode.FAIL, LoginFailed.class, f -> new LoginFailed());
+        register(Opcode.ONLINE_STATUS, OnlineStatus.class, f -> new OnlineStatus(f.field(0), ONLINE.equals(f.field(1))));
+        register(Opcode.ALL_STATUS, AllStatus.class, f -> new AllStatus(statusRecords(f)));
+        register(Opcode.TYPING_START, TypingStarted.class, f -> new TypingStarted(f.field(0)));
+        register(Opcode.TYPING_STOP, TypingStopped.class, f -> new TypingStopped(f.field(0)));
+        register(Opcode.HISTORY, History.class, f -> {
+            List<HistoryEntry> messages = new ArrayList<>(f.recordCount());
+            for (int i = 0; i < f.recordCount(); i++) {
+                messages.add(new HistoryEntry(0, f.recordField(i, 0), f.recordField(i, 1), f.recordField(i, 2),
+                        "1".equals(f.recordField(i, 3))));
+            }
+            return new History(messages);
+        });
+        register(Opcode.HISTORY_PAGE, HistoryPage.class, f -> {
+            List<HistoryEntry> messages = new ArrayList<>(f.recordCount());
+            int first = Opcode.HISTORY_PAGE.headFields();
+            for (int i = 0; i < f.recordCount(); i++) {
+                messages.add(new HistoryEntry(f.longField(first + i * 5), f.recordField(i, 1), f.recordField(i, 2),
+                        f.recordField(i, 3), "1".equals(f.recordField(i, 4))));
+            }
+            return new HistoryPage(f.field(0), "1".equals(f.field(1)), messages);
+        });
+        register(Opcode.UNREAD_COUNT, UnreadCount.class, f -> new UnreadCount(f.field(0), (int) f.longField(1)));
+        register(Opcode.ALL_UNREAD, AllUnread.class, f -> {
+            Map<String, Integer> counts = new LinkedHashMap<>();
+            for (int i = 0; i < f.recordCount(); i++) {
+                counts.put(f.recordField(i, 0), Integer.parseInt(f.recordField(i, 1)));
+            }
+            return new AllUnread(counts);
+        });
+        register(Opcode.RECEIVE, Receive.class, f -> new Receive(f.field(0), f.field(1)));
+        register(Opcode.USER_STATUS, UserStatus.class, f -> new UserStatus(f.field(0), ONLINE.equals(f.field(1))));
+        register(Opcode.PRESENCE, Presence.class, f -> new Presence(statusRecords(f)));
+        register(Opcode.USERS, Users.class, f -> new Users(f.field(0), "1".equals(f.field(1)), statusRecords(f)));
+        register(Opcode.SEARCH_RESULTS, SearchResults.class, f -> {
+            List<SearchHit> hits = new ArrayList<>(f.recordCount());
+            int first = Opcode.SEARCH_RESULTS.headFields();
+            for (int i = 0; i < f.recordCount(); i++) {
+                hits.add(new SearchHit(f.longField(first + i * 5), f.recordField(i, 1), f.recordField(i, 2),
+                        f.recordField(i, 3), f.recordField(i, 4)));
+            }
+            return new SearchResults((int) f.longField(0), "1".equals(f.field(1)), hits);
+        });
+        register(Opcode.STATS_REPORT, StatsReport.class, f -> {
+            Map<String, String> values = new LinkedHashMap<>();
+            for (int i = 0; i < f.recordCount(); i++) {
+                values.put(f.recordField(i, 0), f.recordField(i, 1));
+            }
+            return new StatsReport(values);
+        });
+        register(Opcode.RECEIPTS, Receipts.class, f -> {
+            List<Receipt> receipts = new ArrayList<>(f.recordCount());
+            for (int i = 0; i < f.recordCount(); i++) {
+                receipts.add(new Receipt(f.recordField(i, 0), f.recordField(i, 1),
+                        Long.parseLong(f.recordField(i, 2))));
+            }
+            return new Receipts(receipts);
+        });
+        register(Opcode.SYNC_BATCH, SyncBatch.class, f -> {
+            List<SyncMessage> messages = new ArrayList<>(f.recordCount());
+            int first = Opcode.SYNC_BATCH.headFields();
+            for (int i = 0; i < f.recordCount(); i++) {
+                messages.add(new SyncMessage(f.longField(first + i * 6), f.recordField(i, 1), f.recordField(i, 2),
+                        f.recordField(i, 3), f.recordField(i, 4), "1".equals(f.recordField(i, 5))));
+            }
+            return new SyncBatch(f.longField(0), "1".equals(f.field(1)), messages);
+        });
+
+        register(Opcode.GROUP_RECEIVE, GroupReceive.class, f -> new GroupReceive(f.field(0), f.field(1), f.field(2)));
+        register(Opcode.GROUPS, Groups.class, f -> {
+            Map<String, Integer> unread = new LinkedHashMap<>();
+            for (int i = 0; i < f.recordCount(); i++) {
+                unread.put(f.recordField(i, 0), Integer.parseInt(f.recordField(i, 1)));
+            }
+            return new Groups(unread);
+        });
+        register(Opcode.AVATAR, Avatar.class, f -> {
+            try {
+                return new Avatar(f.field(0), Base64.getDecoder().decode(f.field(1)));
+            } catch (IllegalArgumentException e) {
+                throw new ProtocolException("Bad picture in AVATAR: " + e.getMessage());
+            }
+        });
+
+        register(Opcode.NODE_HELLO, NodeHello.class, f -> {
+            List<String> users = new ArrayList<>(f.recordCount());
+            for (int i = 0; i < f.recordCount(); i++) {
+                users.add(f.recordField(i, 0));
+            }
+            return new NodeHello(f.field(0), f.field(1), users);
+        });
+        register(Opcode.NODE_ROUTES, NodeRoutes.class, f -> new NodeRoutes(statusRecords(f)));
+        register(Opcode.NODE_MSG, NodeMessage.class, f -> new NodeMessage(f.field(0), f.field(1), f.field(2), f.field(3)));
+        register(Opcode.NODE_FORWARD, NodeForward.class, f -> {
+            Opcode opcode = Opcode.fromCode((int) f.longField(1));
+            if (opcode == null) {
+                throw new ProtocolException("Unknown forwarded opcode " + f.field(1));
+            }
+            String[] fields = new String[f.fieldCount() - 2];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = f.field(i + 2);
+            }
+            return new NodeForward(f.field(0), Frame.of(opcode, fields));
+        });
+    }
+
+    private Commands() {
+    }
+
+    /**
+     * A field a client writes that the server passes on to other clients. Binary
+     * frames can carry line breaks, but a text client's reader would take them as
+     * the end of the line and the rest as a command of its own.
+     */
+    private static String singleLine(Frame f, int index) throws ProtocolException {
+        String value = f.field(index);
+        if (value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+            throw new ProtocolException("Line break in field " + index + " of " + f.opcode());
+        }
+        return value;
+    }
+
+    private static Map<String, Boolean> statusRecords(Frame f) {
+        Map<String, Boolean> online = new LinkedHashMap<>();
+        for (int i = 0; i < f.recordCount(); i++) {
+            online.put(f.recordField(i, 0), ONLINE.equals(f.recordField(i, 1)));
+        }
+        return online;
+    }
+
+    private static void register(Opcode opcode, Class<? extends Command> type, Decoder decoder) {
+        DECODERS[opcode.ordinal()] = decoder;
+        OPCODES.put(type, opcode);
+    }
+
+    /**
+     * Decodes a frame into its typed command, or returns null for opcodes that have none
+     * (the HELLO handshake). Throws if a field is missing or not a number.
+     */
+    public static Command decode(Frame frame) throws ProtocolException {
+        Decoder decoder = DECODERS[frame.opcode().ordinal()];
+        if (decoder == null) {
+            return null;
+        }
+        if (frame.fieldCount() < frame.opcode().headFields()) {
+            throw new ProtocolException("Incomplete " + frame.opcode() + ": " + frame.fieldCount() + " fields");
+        }
+        try {
+            return decoder.decode(frame);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Bad number in " + frame.opcode() + ": " + e.getMessage());
+        }
+    }
+
+    /** The opcode a command record is sent as. */
+    public static Opcode opcodeOf(Class<? extends Command> type) {
+        Opcode opcode = OPCODES.get(type);
+        if (opcode == null) {
+            throw new IllegalArgumentException("Not a protocol command: " + type.getName());
+        }
+        return opcode;
+    }
+}
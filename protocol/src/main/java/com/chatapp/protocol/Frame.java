@@ -0,0 +1,103 @@
+package com.chatapp.protocol;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One protocol command: an opcode and its fields, independent of whether it came
+ * from (or is going to) a text line or a binary frame.
+ */
+public abstract class Frame {
+
+    private final Opcode opcode;
+    // Encodings cached on first use, so a frame sent to many connections is encoded once per format
+    private volatile byte[] textBytes;
+    private volatile byte[] binaryBytes;
+
+    Frame(Opcode opcode) {
+        this.opcode = opcode;
+    }
+
+    public static Frame of(Opcode opcode, String... fields) {
+        return new StringFrame(opcode, fields);
+    }
+
+    public static Frame of(Opcode opcode, List<String> fields) {
+        return new StringFrame(opcode, fields.toArray(new String[0]));
+    }
+
+    public final Opcode opcode() {
+        return opcode;
+    }
+
+    public abstract int fieldCount();
+
+    /** Returns field {@code index}; callers check {@link #fieldCount()} first. */
+    public abstract String field(int index);
+
+    /** Parses a decimal field, e.g. a message id or a page size. */
+    public long longField(int index) {
+        return Long.parseLong(field(index));
+    }
+
+    /** Number of complete records after the head fields (see {@link Opcode#recordFields()}). */
+    public int recordCount() {
+        int perRecord = opcode.recordFields();
+        return perRecord == 0 ? 0 : Math.max(0, fieldCount() - opcode.headFields()) / perRecord;
+    }
+
+    /** Field {@code column} of record {@code record}. */
+    public String recordField(int record, int column) {
+        return field(opcode.headFields() + record * opcode.recordFields() + column);
+    }
+
+    /** The frame as sent on the wire: a binary frame, or a text line with its newline. */
+    public byte[] encoded(boolean binary) {
+        if (binary) {
+            byte[] bytes = binaryBytes;
+            if (bytes == null) {
+                binaryBytes = bytes = BinaryCodec.encode(this);
+            }
+            return bytes;
+        }
+        byte[] bytes = textBytes;
+        if (bytes == null) {
+            textBytes = bytes = TextCodec.encodeLine(this);
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return TextCodec.encode(this);
+    }
+
+    private static final class StringFrame extends Frame {
+        private final String[] fields;
+
+        StringFrame(Opcode opcode, String[] fields) {
+            super(opcode);
+            this.fields = fields;
+        }
+
+        @Override
+        public int fieldCount() {
+            return fields.length;
+        }
+
+        @Override
+        public String field(int index) {
+            return fields[index];
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StringFrame other && other.opcode() == opcode() && Arrays.equals(other.fields, fields);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * opcode().hashCode() + Arrays.hashCode(fields);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.chatapp.protocol;
+
+/**
+ * Wire format negotiation. A client that speaks binary sends {@code HELLO:binary} as
+ * its first line; a server that does too answers with the same line and both sides
+ * switch to {@link BinaryCodec} frames. Old servers drop the connection on an unknown
+ * first line, so the client reconnects in text mode.
+ */
+public final class Handshake {
+
+    public static final String BINARY = "binary";
+    public static final Frame BINARY_HELLO = Frame.of(Opcode.HELLO, BINARY);
+
+    private Handshake() {
+    }
+
+    public static boolean requestsBinary(Frame frame) {
+        return frame != null && frame.opcode() == Opcode.HELLO && frame.fieldCount() == 1
+                && BINARY.equals(frame.field(0));
+    }
+}
@@ -0,0 +1,179 @@
+package com.chatapp.protocol;
+
+import java.util.Arrays;
+
+/**
+ * Every command of the chat protocol. The text form of a command is its name, so
+ * {@code MSG:bob:hi} is {@link #MSG} with fields {@code bob} and {@code hi}.
+ *
+ * <p>Some replies carry a list of records after their fixed fields. In binary frames
+ * records are simply more fields; in text they keep their legacy layout, e.g.
+ * {@code ALL_STATUS:alice:ONLINE;bob:OFFLINE;} for {@link #ALL_STATUS}.
+ */
+public enum Opcode {
+
+    // Handshake, text only, before LOGIN: HELLO:binary switches the connection to binary frames
+    HELLO(0x01, 1),
+
+    // Client to server
+    LOGIN(0x10, 2),
+    GET_ONLINE_STATUS(0x11, 1),
+    GET_ALL_STATUS(0x12, 0),
+    TYPING(0x13, 1),
+    STOP_TYPING(0x14, 1),
+    GET_HISTORY(0x15, 1),
+    GET_HISTORY_PAGE(0x16, 3),
+    MARK_READ(0x17, 1),
+    GET_UNREAD_COUNT(0x18, 1),
+    GET_ALL_UNREAD(0x19, 0),
+    MSG(0x1A, 2),
+    // SUBSCRIBE_PRESENCE:alice;bob; replaces the users whose presence the client is sent
+    SUBSCRIBE_PRESENCE(0x1B, 0, 1, ":", ";"),
+    // SEARCH_USERS:prefix:after:limit, registered users by name; "after" is the last name of the previous page
+    SEARCH_USERS(0x1C, 3),
+    // SEARCH:offset:limit:query, messages of the caller's conversations by content
+    SEARCH(0x1D, 3),
+    // Server metrics for operators, answered with STATS_REPORT
+    STATS(0x1E, 0),
+    // SEND:recipient:clientId:text, MSG with a sender-chosen id; answered with RECEIPTS, re-sends are not stored twice
+    SEND(0x1F, 3),
+    // SYNC:cursor, the caller's messages in both directions with id above cursor; -1 resumes from the saved cursor
+    SYNC(0x20, 1),
+    // CREATE_GROUP:name:alice;bob; a group of the caller and these users, or adds them to the caller's group
+    CREATE_GROUP(0x21, 1, 1, ":", ";"),
+    // GROUP_MSG:group:text, to every member; stored once
+    GROUP_MSG(0x22, 2),
+    // GROUP_MARK_READ:group, everything in the group so far read by the caller
+    GROUP_MARK_READ(0x23, 1),
+    // The caller's groups, answered with GROUPS
+    GET_GROUPS(0x24, 0),
+    // GET_AVATAR:user, that user's profile picture, answered with AVATAR
+    GET_AVATAR(0x25, 1),
+
+    // Server to client
+    SUCCESS(0x40, 0),
+    // A refused login, or a MSG or SEND to an unknown user
+    FAIL(0x41, 0),
+    ONLINE_STATUS(0x42, 2),
+    ALL_STATUS(0x43, 0, 2, ":", ";"),
+    TYPING_START(0x44, 1),
+    TYPING_STOP(0x45, 1),
+    HISTORY(0x46, 0, 4, "###", "|"),
+    HISTORY_PAGE(0x47, 2, 5, "###", "|"),
+    UNREAD_COUNT(0x48, 2),
+    ALL_UNREAD(0x49, 0, 2, ":", ";"),
+    RECEIVE(0x4A, 2),
+    USER_STATUS(0x4B, 2),
+    // Batched presence changes for subscribers: PRESENCE:alice:ONLINE;bob:OFFLINE;
+    PRESENCE(0x4C, 0, 2, ":", ";"),
+    // USERS:prefix:hasMore:alice:ONLINE;bob:OFFLINE;
+    USERS(0x4D, 2, 2, ":", ";"),
+    // SEARCH_RESULTS:offset:hasMore:id###sender###recipient###content###time|...
+    SEARCH_RESULTS(0x4E, 2, 5, "###", "|"),
+    // STATS_REPORT:commands.MSG.count=12;db.pool.active=1;
+    STATS_REPORT(0x4F, 0, 2, "=", ";"),
+    // Batched acks for SEND and read receipts: RECEIPTS:S:k3f:1042;D:k3f:0;R:bob:1042;F:k4a:0;
+    RECEIPTS(0x50, 0, 3, ":", ";"),
+    // SYNC_BATCH:cursor:hasMore:id###sender###recipient###content###time###read|...
+    SYNC_BATCH(0x51, 2, 6, "###", "|"),
+    // GROUP_RECEIVE:group:sender:text
+    GROUP_RECEIVE(0x52, 3),
+    // GROUPS:family:3;work:0; the caller's groups and their unread counts
+    GROUPS(0x53, 0, 2, ":", ";"),
+    // AVATAR:user:png, the picture as base64; empty if the user has none
+    AVATAR(0x54, 2),
+
+    // Node to node, on cluster links only; binary frames, text is for logs
+    // NODE_HELLO:node:secret:alice;bob; opens a link: the sending node, the cluster's
+    // shared secret and everyone connected to the node
+    NODE_HELLO(0x60, 2, 1, ":", ";"),
+    // NODE_ROUTES:alice:ONLINE;bob:OFFLINE; users that logged in to or left the sending node
+    NODE_ROUTES(0x61, 0, 2, ":", ";"),
+    // NODE_MSG:sender:recipient:clientId:text, a new message for a user on the receiving node
+    NODE_MSG(0x62, 4),
+    // NODE_FORWARD:user:opcode:field;field; a frame for a user on the receiving node
+    NODE_FORWARD(0x63, 2, 1, ":", ";");
+
+    private static final Opcode[] BY_CODE = new Opcode[256];
+    private static final int LONGEST_NAME;
+    /** Opcodes grouped by name length, so a lookup compares against one or two names. */
+    private static final Opcode[][] BY_NAME_LENGTH;
+
+    static {
+        int longest = 0;
+        for (Opcode opcode : values()) {
+            BY_CODE[opcode.code] = opcode;
+            longest = Math.max(longest, opcode.name().length());
+        }
+        LONGEST_NAME = longest;
+        BY_NAME_LENGTH = new Opcode[longest + 1][];
+        for (int length = 0; length <= longest; length++) {
+            final int len = length;
+            BY_NAME_LENGTH[length] = Arrays.stream(values())
+                    .filter(opcode -> opcode.name().length() == len)
+                    .toArray(Opcode[]::new);
+        }
+    }
+
+    private final int code;
+    private final int headFields;
+    private final int recordFields;
+    private final String recordFieldSeparator;
+    private final String recordTerminator;
+
+    Opcode(int code, int headFields) {
+        this(code, headFields, 0, null, null);
+    }
+
+    Opcode(int code, int headFields, int recordFields, String recordFieldSeparator, String recordTerminator) {
+        this.code = code;
+        this.headFields = headFields;
+        this.recordFields = recordFields;
+        this.recordFieldSeparator = recordFieldSeparator;
+        this.recordTerminator = recordTerminator;
+    }
+
+    /** The opcode byte of binary frames. */
+    public int code() {
+        return code;
+    }
+
+    /** Fixed fields before any records. In text, the last one takes the rest of the line unless records follow. */
+    public int headFields() {
+        return headFields;
+    }
+
+    /** Fields per record, or 0 if the command has no record list. */
+    public int recordFields() {
+        return recordFields;
+    }
+
+    /** Text separator between the fields of a record, e.g. {@code ###}. */
+    public String recordFieldSeparator() {
+        return recordFieldSeparator;
+    }
+
+    /** Text terminator after each record, e.g. {@code |}. */
+    public String recordTerminator() {
+        return recordTerminator;
+    }
+
+    /** Returns the opcode named by {@code text[start, end)}, or null if unknown. Does not allocate. */
+    public static Opcode forName(String text, int start, int end) {
+        int length = end - start;
+        if (length <= 0 || length > LONGEST_NAME) {
+            return null;
+        }
+        for (Opcode opcode : BY_NAME_LENGTH[length]) {
+            if (text.regionMatches(start, opcode.name(), 0, length)) {
+                return opcode;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the opcode for a binary opcode byte, or null if unknown. */
+    public static Opcode fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
@@ -0,0 +1,13 @@
+package com.chatapp.protocol;
+
+import java.io.IOException;
+
+/** The peer sent something that is not a valid frame; the connection should be dropped. */
+public class ProtocolException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ProtocolException(String message) {
+        super(message);
+    }
+}
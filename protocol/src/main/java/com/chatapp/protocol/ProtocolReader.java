@@ -0,0 +1,90 @@
+package com.chatapp.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads frames from a blocking stream in either wire format. Connections start in
+ * text mode and switch with {@link #setBinary(boolean)} after the HELLO handshake;
+ * the switch is exact because this reader owns all buffering.
+ */
+public final class ProtocolReader {
+
+    private final InputStream in;
+    private ByteBuffer buffer = ByteBuffer.allocate(8192).flip();
+    private boolean binary;
+
+    public ProtocolReader(InputStream in) {
+        this.in = in;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /** Reads the next frame, skipping unknown text commands. Returns null at end of stream. */
+    public Frame readFrame() throws IOException {
+        if (binary) {
+            while (true) {
+                Frame frame = BinaryCodec.decode(buffer);
+                if (frame != null) {
+                    return frame;
+                }
+                if (!fill()) {
+                    return null;
+                }
+            }
+        }
+        String line;
+        while ((line = readLine()) != null) {
+            Frame frame = TextCodec.decode(line);
+            if (frame != null) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /** Reads one UTF-8 line without its terminator. Returns null at end of stream. */
+    public String readLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            int start = buffer.position();
+            for (int i = start + scanned; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    int end = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                    String line = new String(buffer.array(), start, end - start, StandardCharsets.UTF_8);
+                    buffer.position(i + 1);
+                    return line;
+                }
+            }
+            scanned = buffer.remaining();
+            if (!fill()) {
+                return null;
+            }
+        }
+    }
+
+    /** Reads more bytes, growing the buffer when it is full of one unfinished frame or line. */
+    private boolean fill() throws IOException {
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            if (buffer.capacity() > BinaryCodec.MAX_FRAME_LENGTH) {
+                throw new ProtocolException("Frame or line too long");
+            }
+            buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+        }
+        int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+        if (n > 0) {
+            buffer.position(buffer.position() + n);
+        }
+        buffer.flip();
+        return n > 0;
+    }
+}
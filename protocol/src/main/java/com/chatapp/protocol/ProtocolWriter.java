@@ -0,0 +1,38 @@
+package com.chatapp.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Writes frames to a blocking stream in the connection's current wire format. Thread-safe. */
+public final class ProtocolWriter {
+
+    private final OutputStream out;
+    private volatile boolean binary;
+
+    public ProtocolWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out);
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /** Writes and flushes one frame. */
+    public synchronized void write(Frame frame) throws IOException {
+        out.write(frame.encoded(binary));
+        out.flush();
+    }
+
+    /** Writes several frames with a single flush. */
+    public synchronized void write(Iterable<Frame> frames) throws IOException {
+        for (Frame frame : frames) {
+            out.write(frame.encoded(binary));
+        }
+        out.flush();
+    }
+}
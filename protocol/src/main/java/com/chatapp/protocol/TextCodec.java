@@ -0,0 +1,166 @@
+package com.chatapp.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The original line protocol: {@code NAME:field:field}, where the last fixed field
+ * takes the rest of the line and record lists keep their legacy separators. Fields
+ * containing the separators cannot round-trip; use {@link BinaryCodec} for those.
+ */
+public final class TextCodec {
+
+    private TextCodec() {
+    }
+
+    /** Encodes a frame as one line, without the trailing newline. */
+    public static String encode(Frame frame) {
+        Opcode opcode = frame.opcode();
+        StringBuilder line = new StringBuilder(64).append(opcode.name());
+        int head = Math.min(opcode.headFields(), frame.fieldCount());
+        if (opcode.recordFields() == 0) {
+            for (int i = 0; i < frame.fieldCount(); i++) {
+                line.append(':').append(frame.field(i));
+            }
+            return line.toString();
+        }
+        for (int i = 0; i < head; i++) {
+            line.append(':').append(frame.field(i));
+        }
+        line.append(':');
+        for (int r = 0; r < frame.recordCount(); r++) {
+            for (int c = 0; c < opcode.recordFields(); c++) {
+                if (c > 0) {
+                    line.append(opcode.recordFieldSeparator());
+                }
+                line.append(frame.recordField(r, c));
+            }
+            line.append(opcode.recordTerminator());
+        }
+        return line.toString();
+    }
+
+    /** Encodes a frame as UTF-8 bytes, newline included. */
+    public static byte[] encodeLine(Frame frame) {
+        return (encode(frame) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes one line, or returns null if it is not a known command. Fields are
+     * located by scanning the line once; they become Strings only when read.
+     */
+    public static Frame decode(String line) {
+        int colon = line.indexOf(':');
+        int nameEnd = colon < 0 ? line.length() : colon;
+        Opcode opcode = Opcode.forName(line, 0, nameEnd);
+        if (opcode == null) {
+            return null;
+        }
+        if (colon < 0) {
+            return new TextFrame(opcode, line, NO_SPANS, 0);
+        }
+
+        Spans spans = new Spans(opcode.headFields() + 8 * opcode.recordFields());
+        int pos = colon + 1;
+        int end = line.length();
+        if (opcode.recordFields() == 0) {
+            // Fixed fields; the last one takes the rest of the line
+            for (int i = 0; i < opcode.headFields(); i++) {
+                int next = i == opcode.headFields() - 1 ? -1 : line.indexOf(':', pos);
+                if (next < 0) {
+                    spans.add(pos, end);
+                    break;
+                }
+                spans.add(pos, next);
+                pos = next + 1;
+            }
+            return new TextFrame(opcode, line, spans.values, spans.count);
+        }
+
+        for (int i = 0; i < opcode.headFields(); i++) {
+            int next = line.indexOf(':', pos);
+            if (next < 0) {
+                return new TextFrame(opcode, line, spans.values, spans.count);
+            }
+            spans.add(pos, next);
+            pos = next + 1;
+        }
+        String separator = opcode.recordFieldSeparator();
+        String terminator = opcode.recordTerminator();
+        while (pos < end) {
+            int recordEnd = line.indexOf(terminator, pos);
+            if (recordEnd < 0) {
+                recordEnd = end;
+            }
+            // A record needs exactly recordFields columns; the last one runs to the terminator
+            int mark = spans.count;
+            int columnStart = pos;
+            for (int c = 0; c < opcode.recordFields(); c++) {
+                int columnEnd = c == opcode.recordFields() - 1 ? recordEnd : line.indexOf(separator, columnStart);
+                if (columnEnd < 0 || columnEnd > recordEnd) {
+                    spans.count = mark;
+                    break;
+                }
+                spans.add(columnStart, columnEnd);
+                columnStart = columnEnd + separator.length();
+            }
+            pos = recordEnd + terminator.length();
+        }
+        return new TextFrame(opcode, line, spans.values, spans.count);
+    }
+
+    private static final int[] NO_SPANS = new int[0];
+
+    /** Start/end pairs of fields within the line. */
+    private static final class Spans {
+        int[] values;
+        int count;
+
+        Spans(int expectedFields) {
+            values = new int[Math.max(2, expectedFields * 2)];
+        }
+
+        void add(int start, int end) {
+            if (count * 2 == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[count * 2] = start;
+            values[count * 2 + 1] = end;
+            count++;
+        }
+    }
+
+    private static final class TextFrame extends Frame {
+        private final String line;
+        private final int[] spans;
+        private final int fieldCount;
+
+        TextFrame(Opcode opcode, String line, int[] spans, int fieldCount) {
+            super(opcode);
+            this.line = line;
+            this.spans = spans;
+            this.fieldCount = fieldCount;
+        }
+
+        @Override
+        public int fieldCount() {
+            return fieldCount;
+        }
+
+        @Override
+        public String field(int index) {
+            if (index >= fieldCount) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return line.substring(spans[index * 2], spans[index * 2 + 1]);
+        }
+
+        @Override
+        public long longField(int index) {
+            if (index >= fieldCount) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return Long.parseLong(line, spans[index * 2], spans[index * 2 + 1], 10);
+        }
+    }
+}
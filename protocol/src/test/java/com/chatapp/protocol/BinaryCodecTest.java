@@ -0,0 +1,131 @@
+package com.chatapp.protocol;
+
+import com.chatapp.protocol.Commands.GetHistoryPage;
+import com.chatapp.protocol.Commands.History;
+import com.chatapp.protocol.Commands.HistoryEntry;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BinaryCodecTest {
+
+    private static Frame roundTrip(Frame frame) throws ProtocolException {
+        ByteBuffer in = ByteBuffer.wrap(BinaryCodec.encode(frame));
+        Frame decoded = BinaryCodec.decode(in);
+        assertEquals(0, in.remaining());
+        return decoded;
+    }
+
+    private static Frame decode(int... bytes) throws ProtocolException {
+        byte[] raw = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            raw[i] = (byte) bytes[i];
+        }
+        return BinaryCodec.decode(ByteBuffer.wrap(raw));
+    }
+
+    @Test
+    void fieldsRoundTripByteForByte() throws ProtocolException {
+        String[] fields = {"", "colons: and ### and | and ;", "line\nbreaks\r\n", "\u00FCn\u00EFc\u00F6d\u00E9 \u2713 \uD83D\uDE00",
+                "x".repeat(300)};
+        Frame decoded = roundTrip(Frame.of(Opcode.RECEIVE, fields));
+        assertEquals(Opcode.RECEIVE, decoded.opcode());
+        assertEquals(fields.length, decoded.fieldCount());
+        for (int i = 0; i < fields.length; i++) {
+            assertEquals(fields[i], decoded.field(i));
+        }
+    }
+
+    @Test
+    void commandsRoundTrip() throws ProtocolException {
+        Command page = new GetHistoryPage("aakash", 9_007_199_254_740_993L, 50);
+        assertEquals(page, Commands.decode(roundTrip(page.toFrame())));
+        Command history = new History(List.of(
+                new HistoryEntry(0, "haritha", "hi ### there | you", "10:00", true),
+                new HistoryEntry(0, "aakash", "", "10:01", false)));
+        assertEquals(history, Commands.decode(roundTrip(history.toFrame())));
+    }
+
+    @Test
+    void decodedFrameReencodesToTheSameBytes() throws ProtocolException {
+        byte[] encoded = BinaryCodec.encode(Frame.of(Opcode.MSG, "aakash", "hello"));
+        Frame decoded = BinaryCodec.decode(ByteBuffer.wrap(encoded));
+        assertArrayEquals(encoded, BinaryCodec.encode(decoded));
+    }
+
+    @Test
+    void incompleteFrameLeavesTheBufferUntouched() throws ProtocolException {
+        byte[] encoded = BinaryCodec.encode(Frame.of(Opcode.MSG, "aakash", "x".repeat(200)));
+        for (int cut = 0; cut < encoded.length; cut++) {
+            ByteBuffer in = ByteBuffer.wrap(Arrays.copyOf(encoded, cut));
+            assertNull(BinaryCodec.decode(in), "cut at " + cut);
+            assertEquals(0, in.position());
+        }
+    }
+
+    @Test
+    void consecutiveFramesDecodeInOrder() throws ProtocolException {
+        byte[] first = BinaryCodec.encode(Frame.of(Opcode.TYPING, "aakash"));
+        byte[] second = BinaryCodec.encode(Frame.of(Opcode.STOP_TYPING, "aakash"));
+        ByteBuffer in = ByteBuffer.allocate(first.length + second.length + 1).put(first).put(second).put((byte) 5);
+        in.flip();
+        assertEquals(Opcode.TYPING, BinaryCodec.decode(in).opcode());
+        assertEquals(Opcode.STOP_TYPING, BinaryCodec.decode(in).opcode());
+        // The start of a third
+        assertNull(BinaryCodec.decode(in));
+        assertEquals(1, in.remaining());
+    }
+
+    @Test
+    void malformedFramesAreRejected() {
+        // A length varint longer than five bytes
+        assertThrows(ProtocolException.class, () -> decode(0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01));
+        // Shorter than an opcode and a field count
+        assertThrows(ProtocolException.class, () -> decode(1, 0x1A));
+        // Over MAX_FRAME_LENGTH
+        assertThrows(ProtocolException.class, () -> decode(0x81, 0x80, 0x80, 0x02));
+        // An opcode nobody defined
+        assertThrows(ProtocolException.class, () -> decode(2, 0xEE, 0));
+        // More fields than the frame has bytes
+        assertThrows(ProtocolException.class, () -> decode(3, 0x1A, 0x7F, 0));
+        // A field running past the end of the frame
+        assertThrows(ProtocolException.class, () -> decode(4, 0x1A, 1, 5, 'a'));
+        // A field length varint cut off by the end of the frame
+        assertThrows(ProtocolException.class, () -> decode(3, 0x1A, 1, 0x80));
+    }
+
+    @Test
+    void longFieldsParseLikeLongParseLong() throws ProtocolException {
+        String[] values = {"0", "7", "-7", "1234567890123", String.valueOf(Long.MAX_VALUE),
+                String.valueOf(Long.MIN_VALUE)};
+        Frame decoded = roundTrip(Frame.of(Opcode.RECEIVE, values));
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(Long.parseLong(values[i]), decoded.longField(i));
+        }
+    }
+
+    @Test
+    void longFieldOverflowIsRejected() throws ProtocolException {
+        Frame decoded = roundTrip(Frame.of(Opcode.RECEIVE, "9223372036854775808", "-9223372036854775809",
+                "99999999999999999999", "", "-", "12a", " 1"));
+        for (int i = 0; i < decoded.fieldCount(); i++) {
+            int field = i;
+            assertThrows(NumberFormatException.class, () -> decoded.longField(field), decoded.field(i));
+        }
+    }
+
+    @Test
+    void badNumberInACommandIsAProtocolError() throws ProtocolException {
+        Frame overflow = roundTrip(Frame.of(Opcode.GET_HISTORY_PAGE, "aakash", "9223372036854775808", "50"));
+        assertThrows(ProtocolException.class, () -> Commands.decode(overflow));
+        Frame missing = roundTrip(Frame.of(Opcode.GET_HISTORY_PAGE, "aakash"));
+        assertThrows(ProtocolException.class, () -> Commands.decode(missing));
+    }
+}
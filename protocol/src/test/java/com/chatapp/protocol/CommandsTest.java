@@ -0,0 +1,59 @@
+package com.chatapp.protocol;
+
+import com.chatapp.protocol.Commands.CreateGroup;
+import com.chatapp.protocol.Commands.GroupMessage;
+import com.chatapp.protocol.Commands.Receive;
+import com.chatapp.protocol.Commands.Send;
+import com.chatapp.protocol.Commands.SendMessage;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CommandsTest {
+
+    /** What the server decodes from a binary client, which can put any bytes in a field. */
+    private static Command fromBinaryClient(Command command) throws ProtocolException {
+        return Commands.decode(BinaryCodec.decode(ByteBuffer.wrap(BinaryCodec.encode(command.toFrame()))));
+    }
+
+    @Test
+    void clientTextWithALineBreakIsRejected() {
+        assertThrows(ProtocolException.class,
+                () -> fromBinaryClient(new SendMessage("aakash", "hi\nUSER_STATUS:admin:ONLINE")));
+        assertThrows(ProtocolException.class,
+                () -> fromBinaryClient(new SendMessage("aakash", "hi\rthere")));
+        assertThrows(ProtocolException.class,
+                () -> fromBinaryClient(new Send("aakash", "id\n1", "hi")));
+        assertThrows(ProtocolException.class,
+                () -> fromBinaryClient(new Send("aakash", "id-1", "hi\n")));
+        assertThrows(ProtocolException.class,
+                () -> fromBinaryClient(new GroupMessage("team\nFAIL", "hi")));
+        assertThrows(ProtocolException.class,
+                () -> fromBinaryClient(new GroupMessage("team", "hi\r\nFAIL")));
+        assertThrows(ProtocolException.class,
+                () -> fromBinaryClient(new CreateGroup("team\n", List.of("aakash"))));
+        assertThrows(ProtocolException.class,
+                () -> fromBinaryClient(new CreateGroup("team", List.of("aakash", "kabilan\nFAIL"))));
+    }
+
+    @Test
+    void clientTextWithoutLineBreaksDecodes() throws ProtocolException {
+        Command message = new SendMessage("aakash", "colons: and ### and | survive in binary");
+        assertEquals(message, fromBinaryClient(message));
+        Command send = new Send("aakash", "id-1", "tabs\tare fine");
+        assertEquals(send, fromBinaryClient(send));
+        Command group = new CreateGroup("team", List.of("aakash", "kabilan"));
+        assertEquals(group, fromBinaryClient(group));
+    }
+
+    @Test
+    void serverFramesAreNotChecked() throws ProtocolException {
+        // Stored before the check existed; clients still decode them
+        Command receive = new Receive("haritha", "[10:00] haritha: two\nlines");
+        assertEquals(receive, fromBinaryClient(receive));
+    }
+}
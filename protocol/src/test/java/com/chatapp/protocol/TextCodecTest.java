@@ -0,0 +1,104 @@
+package com.chatapp.protocol;
+
+import com.chatapp.protocol.Commands.AllStatus;
+import com.chatapp.protocol.Commands.GetHistoryPage;
+import com.chatapp.protocol.Commands.History;
+import com.chatapp.protocol.Commands.HistoryEntry;
+import com.chatapp.protocol.Commands.SendMessage;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TextCodecTest {
+
+    private static Command roundTrip(Command command) throws ProtocolException {
+        return Commands.decode(TextCodec.decode(TextCodec.encode(command.toFrame())));
+    }
+
+    @Test
+    void lastFixedFieldTakesTheRestOfTheLine() throws ProtocolException {
+        Command message = new SendMessage("aakash", "see you at 10:30: ok?");
+        assertEquals("MSG:aakash:see you at 10:30: ok?", TextCodec.encode(message.toFrame()));
+        assertEquals(message, roundTrip(message));
+    }
+
+    @Test
+    void commandsRoundTrip() throws ProtocolException {
+        Command page = new GetHistoryPage("aakash", Long.MAX_VALUE, 50);
+        assertEquals(page, roundTrip(page));
+
+        Map<String, Boolean> online = new LinkedHashMap<>();
+        online.put("haritha", true);
+        online.put("aakash", false);
+        Command status = new AllStatus(online);
+        assertEquals("ALL_STATUS:haritha:ONLINE;aakash:OFFLINE;", TextCodec.encode(status.toFrame()));
+        assertEquals(status, roundTrip(status));
+
+        Command history = new History(List.of(
+                new HistoryEntry(0, "haritha", "colons: are fine here", "10:00", true),
+                new HistoryEntry(0, "aakash", "\u00FCn\u00EFc\u00F6d\u00E9 \u2713", "10:01", false)));
+        assertEquals(history, roundTrip(history));
+    }
+
+    @Test
+    void encodeLineEndsWithOneNewline() {
+        byte[] line = TextCodec.encodeLine(Frame.of(Opcode.TYPING, "aakash"));
+        assertEquals("TYPING:aakash\n", new String(line, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void unknownCommandsDecodeToNull() {
+        assertNull(TextCodec.decode(""));
+        assertNull(TextCodec.decode("HELLO_WORLD:x"));
+        assertNull(TextCodec.decode(":aakash"));
+        assertNull(TextCodec.decode("msg:aakash:lower case"));
+    }
+
+    @Test
+    void commandWithoutFields() {
+        Frame frame = TextCodec.decode("GET_ALL_STATUS");
+        assertEquals(Opcode.GET_ALL_STATUS, frame.opcode());
+        assertEquals(0, frame.fieldCount());
+    }
+
+    @Test
+    void missingFieldsAreAProtocolError() {
+        Frame frame = TextCodec.decode("GET_HISTORY_PAGE:aakash:10");
+        assertEquals(2, frame.fieldCount());
+        assertThrows(IndexOutOfBoundsException.class, () -> frame.field(2));
+        assertThrows(ProtocolException.class, () -> Commands.decode(frame));
+        assertThrows(ProtocolException.class, () -> Commands.decode(TextCodec.decode("MSG")));
+    }
+
+    @Test
+    void incompleteRecordsAreDropped() {
+        // The second record has no status column; the last one needs no terminator
+        Frame frame = TextCodec.decode("ALL_STATUS:haritha:ONLINE;aakash;kabilan:OFFLINE");
+        assertEquals(2, frame.recordCount());
+        assertEquals("haritha", frame.recordField(0, 0));
+        assertEquals("kabilan", frame.recordField(1, 0));
+        assertEquals("OFFLINE", frame.recordField(1, 1));
+    }
+
+    @Test
+    void longFieldsParseAndRejectOverflow() {
+        Frame frame = TextCodec.decode("GET_HISTORY_PAGE:aakash:" + Long.MIN_VALUE + ":50");
+        assertEquals(Long.MIN_VALUE, frame.longField(1));
+        assertEquals(50, frame.longField(2));
+
+        Frame overflow = TextCodec.decode("GET_HISTORY_PAGE:aakash:9223372036854775808:50");
+        assertThrows(NumberFormatException.class, () -> overflow.longField(1));
+        assertThrows(ProtocolException.class, () -> Commands.decode(overflow));
+        Frame empty = TextCodec.decode("GET_HISTORY_PAGE:aakash::50");
+        assertThrows(NumberFormatException.class, () -> empty.longField(1));
+        Frame letters = TextCodec.decode("GET_HISTORY_PAGE:aakash:ten:50");
+        assertThrows(ProtocolException.class, () -> Commands.decode(letters));
+    }
+}
@@ -0,0 +1,42 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Profile pictures for GET_AVATAR: one PNG per user, named after them, in a directory
+ * operators fill. Files are read on request; clients keep what they get on disk, so
+ * each picture is asked for about once per client rather than once per screen.
+ */
+class AvatarStore {
+
+    private final Path dir;
+    private final long maxBytes;
+
+    AvatarStore(Path dir, long maxBytes) {
+        this.dir = dir.toAbsolutePath().normalize();
+        this.maxBytes = maxBytes;
+    }
+
+    /** Pictures from chat.avatar.dir (default ./avatars), up to chat.avatar.maxBytes (default 512 KB). */
+    static AvatarStore fromSystemProperties() {
+        return new AvatarStore(Paths.get(System.getProperty("chat.avatar.dir", "avatars")),
+                Long.getLong("chat.avatar.maxBytes", 512 * 1024));
+    }
+
+    /** The user's picture, or an empty array if they have none or it is too big to send. */
+    byte[] load(String username) throws IOException {
+        Path file = dir.resolve(username.toLowerCase() + ".png").normalize();
+        if (!dir.equals(file.getParent()) || !Files.isRegularFile(file)) {
+            return new byte[0];
+        }
+        long size = Files.size(file);
+        if (size > maxBytes) {
+            Log.warn("Not sending {}, {} bytes is over chat.avatar.maxBytes", file, size);
+            return new byte[0];
+        }
+        return Files.readAllBytes(file);
+    }
+}
@@ -1,331 +1,1091 @@
 package com.chatapp.server;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import com.chatapp.protocol.Command;
+import com.chatapp.protocol.Commands;
+import com.chatapp.protocol.Commands.AllStatus;
+import com.chatapp.protocol.Commands.AllUnread;
+import com.chatapp.protocol.Commands.Avatar;
+import com.chatapp.protocol.Commands.CreateGroup;
+import com.chatapp.protocol.Commands.GetAllStatus;
+import com.chatapp.protocol.Commands.GetAllUnread;
+import com.chatapp.protocol.Commands.GetAvatar;
+import com.chatapp.protocol.Commands.GetGroups;
+import com.chatapp.protocol.Commands.GetStats;
+import com.chatapp.protocol.Commands.GetHistory;
+import com.chatapp.protocol.Commands.GetHistoryPage;
+import com.chatapp.protocol.Commands.GetOnlineStatus;
+import com.chatapp.protocol.Commands.GetUnreadCount;
+import com.chatapp.protocol.Commands.GroupMarkRead;
+import com.chatapp.protocol.Commands.GroupMessage;
+import com.chatapp.protocol.Commands.GroupReceive;
+import com.chatapp.protocol.Commands.Groups;
+import com.chatapp.protocol.Commands.History;
+import com.chatapp.protocol.Commands.HistoryEntry;
+import com.chatapp.protocol.Commands.HistoryPage;
+import com.chatapp.protocol.Commands.Login;
+import com.chatapp.protocol.Commands.LoginFailed;
+import com.chatapp.protocol.Commands.LoginSucceeded;
+import com.chatapp.protocol.Commands.MarkRead;
+import com.chatapp.protocol.Commands.NodeMessage;
+import com.chatapp.protocol.Commands.OnlineStatus;
+import com.chatapp.protocol.Commands.Receipt;
+import com.chatapp.protocol.Commands.Receive;
+import com.chatapp.protocol.Commands.Search;
+import com.chatapp.protocol.Commands.SearchHit;
+import com.chatapp.protocol.Commands.SearchResults;
+import com.chatapp.protocol.Commands.SearchUsers;
+import com.chatapp.protocol.Commands.Send;
+import com.chatapp.protocol.Commands.SendMessage;
+import com.chatapp.protocol.Commands.StatsReport;
+import com.chatapp.protocol.Commands.StopTyping;
+import com.chatapp.protocol.Commands.Sync;
+import com.chatapp.protocol.Commands.SyncBatch;
+import com.chatapp.protocol.Commands.SyncMessage;
+import com.chatapp.protocol.Commands.SubscribePresence;
+import com.chatapp.protocol.Commands.Typing;
+import com.chatapp.protocol.Commands.UnreadCount;
+import com.chatapp.protocol.Commands.Users;
+import com.chatapp.protocol.Dispatcher;
+import com.chatapp.protocol.Frame;
+import com.chatapp.protocol.Handshake;
+import com.chatapp.protocol.Opcode;
+import com.chatapp.protocol.ProtocolException;
+import com.chatapp.protocol.ProtocolReader;
+import com.chatapp.protocol.ProtocolWriter;
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 public class ChatServer {
 
+    private static final int MAX_HISTORY_PAGE_SIZE = 200;
+    private static final int MAX_USER_SEARCH_SIZE = 200;
+    private static final int MAX_SEARCH_PAGE_SIZE = 50;
+    private static final int MAX_SEARCH_OFFSET = 1000;
+    private static final int MAX_FRAMES_PER_FLUSH = 256;
+    // Queued behind the last frame a ClientHandler writes before closing; compared by identity
+    private static final Frame END_OF_OUTPUT = Frame.of(Opcode.SUCCESS);
+    private static final int SYNC_CHUNK_SIZE = 200;
+    private static final int MAX_GROUP_NAME_LENGTH = 50;
+
+    // A misbehaving or overwhelmed client can trigger these on every frame
+    static final Log.Sampler SLOW_CONSUMERS = Log.sampled(Log.Level.WARN, 100);
+    static final Log.Sampler UNEXPECTED_COMMANDS = Log.sampled(Log.Level.WARN, 100);
+    static final Log.Sampler INVALID_COMMANDS = Log.sampled(Log.Level.WARN, 100);
+
+    private static final LatencyHistogram LOGIN_QUERY = DatabaseConfig.queryTimer("login");
+    private static final LatencyHistogram RECIPIENT_QUERY = DatabaseConfig.queryTimer("recipient");
+    private static final LatencyHistogram HISTORY_QUERY = DatabaseConfig.queryTimer("history");
+    private static final LatencyHistogram HISTORY_PAGE_QUERY = DatabaseConfig.queryTimer("history_page");
+    private static final LatencyHistogram SEARCH_HITS_QUERY = DatabaseConfig.queryTimer("search_hits");
+    private static final LatencyHistogram MARK_READ_QUERY = DatabaseConfig.queryTimer("mark_read");
+    private static final LatencyHistogram SYNC_QUERY = DatabaseConfig.queryTimer("sync");
+    private static final LatencyHistogram GROUP_READ_QUERY = DatabaseConfig.queryTimer("group_read");
+    private static final LatencyHistogram GROUPS_QUERY = DatabaseConfig.queryTimer("groups");
+
     private ServerSocket serverSocket;
-    private final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    private final Map<String, ClientConnection> clients = new ConcurrentHashMap<>();
+    private final MessageStore messageStore = MessageStore.fromSystemProperties();
+    private final MessageWriter messageWriter = MessageWriter.fromSystemProperties(messageStore);
+    private final UnreadCounters unreadCounters = new UnreadCounters(messageStore);
+    private final UserDirectory userDirectory = new UserDirectory();
+    private final GroupDirectory groupDirectory = new GroupDirectory();
+    private final AvatarStore avatarStore = AvatarStore.fromSystemProperties();
+    private final SearchIndex searchIndex = SearchIndex.fromSystemProperties();
+    private final Dispatcher<ClientConnection> commands = createDispatcher();
+    private final SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.fromSystemProperties();
+    private final PresenceService presence = PresenceService.fromSystemProperties(this::isOnline, slowConsumerPolicy);
+    private final TypingThrottle typingThrottle = TypingThrottle.fromSystemProperties(this::connectionFor);
+    private final ReceiptBatcher receipts = ReceiptBatcher.fromSystemProperties(this::connectionFor);
+    private final RecentSends recentSends = RecentSends.fromSystemProperties();
+    private final Cluster cluster = Cluster.fromSystemProperties(this);
+    private final Metrics metrics = new Metrics(this);
+    // Accounts allowed to send STATS, from the comma-separated chat.admin.users
+    private final Set<String> admins = Arrays.stream(System.getProperty("chat.admin.users", "").split(","))
+            .map(String::trim)
+            .filter(name -> !name.isEmpty())
+            .collect(Collectors.toUnmodifiableSet());
+
+    public ChatServer() {
+        DatabaseConfig.initializeDatabase();
+        try {
+            messageStore.open();
+        } catch (IOException e) {
+            Log.error("Error opening message store: {}", e.getMessage());
+        }
+        try {
+            unreadCounters.rebuild();
+        } catch (IOException e) {
+            Log.error("Error loading unread counts: {}", e.getMessage());
+        }
+        try {
+            userDirectory.load();
+            Log.info("Loaded {} users.", userDirectory.size());
+        } catch (SQLException e) {
+            Log.error("Error loading users: {}", e.getMessage());
+        }
+        try {
+            groupDirectory.load();
+            Log.info("Loaded {} groups.", groupDirectory.size());
+        } catch (SQLException e) {
+            Log.error("Error loading groups: {}", e.getMessage());
+        }
+        try {
+            searchIndex.open(messageStore);
+        } catch (IOException e) {
+            Log.error("Error indexing messages: {}", e.getMessage());
+        }
+        messageWriter.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            messageWriter.shutdown();
+            searchIndex.shutdown();
+            messageStore.close();
+        }, "chat-shutdown"));
+    }
 
     public void start(int port) throws Exception {
+        start(port, Thread::new);
+    }
+
+    /**
+     * Same blocking handler as {@link #start(int)}, but each connection runs on a
+     * virtual thread so blocked socket reads and JDBC calls don't hold a platform
+     * thread. Requires a JDK 21+ runtime.
+     */
+    public void startVirtual(int port) throws Exception {
+        start(port, virtualThreadFactory());
+    }
+
+    private void start(int port, ThreadFactory threadFactory) throws Exception {
         serverSocket = new ServerSocket(port);
-        System.out.println("Server started on port " + port);
+        Log.info("Server started on port {}", port);
         while (true) {
             Socket clientSocket = serverSocket.accept();
-            ClientHandler handler = new ClientHandler(clientSocket);
-            handler.start();
+            ClientHandler handler = new ClientHandler(clientSocket, threadFactory);
+            threadFactory.newThread(handler).start();
+        }
+    }
+
+    /**
+     * Looked up reflectively so the module still compiles for release 17;
+     * equivalent to {@code Thread.ofVirtual().name("chat-client-", 0).factory()}.
+     */
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "chat-client-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual thread mode needs a JDK 21+ runtime, running on "
+                    + System.getProperty("java.version"), e);
+        }
+    }
+
+    /**
+     * Non-blocking mode: connections are multiplexed over {@code ioThreads} selector
+     * loops instead of costing one blocked thread each.
+     */
+    public void startNio(int port, int ioThreads) throws Exception {
+        new NioChatServer(this, ioThreads).start(port);
+    }
+
+    /**
+     * Handles the first command of a connection. Returns true once the client is
+     * logged in and registered; on false the caller should close the connection.
+     */
+    boolean handleLogin(ClientConnection client, Frame first) {
+        Command command;
+        try {
+            command = first == null ? null : Commands.decode(first);
+        } catch (ProtocolException e) {
+            command = null;
+        }
+        if (!(command instanceof Login login)) {
+            if (first != null && first.opcode() == Opcode.LOGIN) {
+                client.send(new LoginFailed());
+            }
+            return false;
+        }
+        if (!isValidUser(login.username(), login.password())) {
+            client.send(new LoginFailed());
+            return false;
+        }
+
+        String username = login.username();
+        client.setUsername(username);
+        // Registered since startup, e.g. by DatabaseConfig.main
+        userDirectory.add(username);
+        clients.put(username, client);
+        if (cluster.isEnabled()) {
+            // Messages sent while the user was away were counted on whichever node took them
+            try {
+                unreadCounters.reload(username);
+            } catch (IOException e) {
+                Log.error("Error loading unread counts: {}", e.getMessage());
+            }
+        }
+        client.send(new LoginSucceeded());
+        Log.info("{} logged in.", username);
+        cluster.localStatusChanged(username, true);
+
+        // Subscribers hear about it at the end of the presence window
+        presence.connected(client);
+        presence.statusChanged(username, true);
+        return true;
+    }
+
+    /** Handles one command from a logged-in client. */
+    void handleCommand(ClientConnection client, Frame frame) {
+        long start = System.nanoTime();
+        try {
+            if (!commands.dispatch(client, frame)) {
+                UNEXPECTED_COMMANDS.log("Ignoring unexpected {} from {}", frame.opcode(), client.getUsername());
+            }
+        } catch (ProtocolException e) {
+            INVALID_COMMANDS.log("Invalid command from {}: {}", client.getUsername(), e.getMessage());
+        } finally {
+            metrics.recordCommand(frame.opcode(), start);
+        }
+    }
+
+    private Dispatcher<ClientConnection> createDispatcher() {
+        return new Dispatcher<ClientConnection>()
+                .on(GetOnlineStatus.class, this::onGetOnlineStatus)
+                .on(GetAllStatus.class, this::onGetAllStatus)
+                .on(Typing.class, this::onTyping)
+                .on(StopTyping.class, this::onStopTyping)
+                .on(GetHistory.class, this::onGetHistory)
+                .on(GetHistoryPage.class, this::onGetHistoryPage)
+                .on(Sync.class, this::onSync)
+                .on(MarkRead.class, this::onMarkRead)
+                .on(GetUnreadCount.class, this::onGetUnreadCount)
+                .on(GetAllUnread.class, this::onGetAllUnread)
+                .on(SendMessage.class, this::onSendMessage)
+                .on(Send.class, this::onSend)
+                .on(CreateGroup.class, this::onCreateGroup)
+                .on(GroupMessage.class, this::onGroupMessage)
+                .on(GroupMarkRead.class, this::onGroupMarkRead)
+                .on(GetGroups.class, this::onGetGroups)
+                .on(GetAvatar.class, this::onGetAvatar)
+                .on(SubscribePresence.class, this::onSubscribePresence)
+                .on(SearchUsers.class, this::onSearchUsers)
+                .on(Search.class, this::onSearch)
+                .on(GetStats.class, this::onGetStats);
+    }
+
+    private void onGetOnlineStatus(ClientConnection client, GetOnlineStatus command) {
+        String targetUser = command.username();
+        client.send(new OnlineStatus(targetUser, isOnline(targetUser)));
+    }
+
+    /**
+     * Everyone online except the caller. Users not listed are offline; clients page
+     * through the rest of the directory with SEARCH_USERS.
+     */
+    private void onGetAllStatus(ClientConnection client, GetAllStatus command) {
+        Map<String, Boolean> statusData = new LinkedHashMap<>();
+        for (String user : clients.keySet()) {
+            if (!user.equals(client.getUsername())) {
+                statusData.put(user, true);
+            }
+        }
+        for (String user : cluster.remoteUsers()) {
+            if (!user.equals(client.getUsername())) {
+                statusData.put(user, true);
+            }
+        }
+        client.send(new AllStatus(statusData));
+    }
+
+    private void onTyping(ClientConnection client, Typing command) {
+        typingThrottle.typing(client.getUsername(), command.recipient(), true);
+    }
+
+    private void onStopTyping(ClientConnection client, StopTyping command) {
+        typingThrottle.typing(client.getUsername(), command.recipient(), false);
+    }
+
+    /** Legacy full history of offline messages. */
+    private void onGetHistory(ClientConnection client, GetHistory command) {
+        String recipient = command.recipient();
+        client.send(new History(getMessageHistory(recipient)));
+        Log.debug("Sent message history to {}", recipient);
+    }
+
+    /** One conversation, newest first, keyset on message id. */
+    private void onGetHistoryPage(ClientConnection client, GetHistoryPage command) {
+        int limit = Math.min(Math.max(command.limit(), 1), MAX_HISTORY_PAGE_SIZE);
+        client.send(getHistoryPage(client.getUsername(), command.contact(), command.beforeId(), limit));
+    }
+
+    /** Catch-up after a reconnect: one chunk of everything since the client's cursor. */
+    private void onSync(ClientConnection client, Sync command) {
+        client.send(getSyncBatch(client.getUsername(), command.cursor()));
+    }
+
+    private void onMarkRead(ClientConnection client, MarkRead command) {
+        String username = client.getUsername();
+        markMessagesAsRead(username, command.sender());
+        Log.debug("Marked messages from {} to {} as read.", command.sender(), username);
+    }
+
+    private void onGetUnreadCount(ClientConnection client, GetUnreadCount command) {
+        String sender = command.sender();
+        client.send(new UnreadCount(sender, unreadCounters.get(client.getUsername(), sender)));
+    }
+
+    /** Unread counts for the chat list. */
+    private void onGetAllUnread(ClientConnection client, GetAllUnread command) {
+        client.send(new AllUnread(unreadCounters.snapshot(client.getUsername())));
+    }
+
+    /** Replaces the users whose presence this client is sent, and sends their current status. */
+    private void onSubscribePresence(ClientConnection client, SubscribePresence command) {
+        presence.subscribe(client, command.users());
+    }
+
+    /** One page of the user directory by name prefix, with presence; the caller is left out. */
+    private void onSearchUsers(ClientConnection client, SearchUsers command) {
+        int limit = Math.min(Math.max(command.limit(), 1), MAX_USER_SEARCH_SIZE);
+        // Room for the caller, who is dropped, and for one more to tell whether another page exists
+        List<String> matches = userDirectory.search(command.prefix(), command.after(), limit + 2);
+        matches.remove(client.getUsername());
+        Map<String, Boolean> page = new LinkedHashMap<>();
+        for (int i = 0; i < Math.min(matches.size(), limit); i++) {
+            page.put(matches.get(i), isOnline(matches.get(i)));
+        }
+        client.send(new Users(command.prefix(), matches.size() > limit, page));
+    }
+
+    /** Messages the caller sent or received, ranked by the index and then read back from the database. */
+    private void onSearch(ClientConnection client, Search command) {
+        int limit = Math.min(Math.max(command.limit(), 1), MAX_SEARCH_PAGE_SIZE);
+        int offset = Math.min(Math.max(command.offset(), 0), MAX_SEARCH_OFFSET);
+        SearchIndex.Page page = searchIndex.search(client.getUsername(), command.query(), offset, limit);
+        client.send(new SearchResults(offset, page.hasMore(), getSearchHits(page.ids())));
+    }
+
+    /** Server metrics, for the accounts listed in chat.admin.users; others are ignored. */
+    private void onGetStats(ClientConnection client, GetStats command) {
+        if (!admins.contains(client.getUsername())) {
+            UNEXPECTED_COMMANDS.log("Ignoring STATS from {}, not an admin", client.getUsername());
+            return;
+        }
+        client.send(new StatsReport(metrics.report()));
+    }
+
+    private void onSendMessage(ClientConnection client, SendMessage command) {
+        if (!isKnownUser(command.recipient())) {
+            refuseUnknownRecipient(client, command.recipient());
+            return;
+        }
+        awaitIfDurable(deliver(client.getUsername(), command.recipient(), command.text(), null));
+    }
+
+    /**
+     * MSG with a sender-chosen id: acknowledged with STORED and DELIVERED receipts, and
+     * stored once however often the client retries it.
+     */
+    private void onSend(ClientConnection client, Send command) {
+        String username = client.getUsername();
+        String clientId = command.clientId();
+        if (!isKnownUser(command.recipient())) {
+            refuseUnknownRecipient(client, command.recipient());
+            // Tells the client which message, so it stops resending it
+            receipts.add(username, Receipt.failed(clientId));
+            return;
+        }
+        CompletableFuture<Long> id = new CompletableFuture<>();
+        CompletableFuture<Long> earlier = recentSends.claim(username, clientId, id);
+        if (earlier != null) {
+            // A retry after a lost ack: confirm the original instead of storing it again
+            earlier.thenAccept(messageId -> receipts.add(username, Receipt.stored(clientId, messageId)));
+            return;
+        }
+        CompletableFuture<Long> saved = deliver(username, command.recipient(), command.text(), clientId);
+        saved.whenComplete((messageId, e) -> {
+            if (e != null) {
+                // Not stored, so no receipt; let a retry try again
+                recentSends.release(username, clientId, id);
+                id.completeExceptionally(e);
+            } else {
+                receipts.add(username, Receipt.stored(clientId, messageId));
+                id.complete(messageId);
+            }
+        });
+        awaitIfDurable(saved);
+    }
+
+    /** Creates a group or adds members to one the caller is in, then sends the caller its groups. */
+    private void onCreateGroup(ClientConnection client, CreateGroup command) {
+        String username = client.getUsername();
+        String group = command.group();
+        if (group.isBlank() || group.length() > MAX_GROUP_NAME_LENGTH
+                || group.indexOf(':') >= 0 || group.indexOf(';') >= 0) {
+            INVALID_COMMANDS.log("Invalid group name from {}: {}", username, group);
+            return;
+        }
+        try {
+            if (groupDirectory.addMembers(group, username, command.members()) == null) {
+                UNEXPECTED_COMMANDS.log("Ignoring CREATE_GROUP from {}, not a member of {}", username, group);
+                return;
+            }
+        } catch (SQLException e) {
+            Log.error("Error creating group: {}", e.getMessage());
+            return;
+        }
+        client.send(getGroups(username));
+    }
+
+    /**
+     * A message to every member of a group. It is stored once, and the frame is built
+     * once: each member's connection queues the same frame, so it is encoded once per
+     * wire format however many members are online.
+     */
+    private void onGroupMessage(ClientConnection client, GroupMessage command) {
+        String username = client.getUsername();
+        String group = command.group();
+        Set<String> members = groupDirectory.members(group);
+        if (members == null || !members.contains(username)) {
+            // Possibly created or changed on another node since we loaded it
+            try {
+                members = groupDirectory.reload(group);
+            } catch (SQLException e) {
+                Log.error("Error loading group: {}", e.getMessage());
+                return;
+            }
+            if (members == null || !members.contains(username)) {
+                UNEXPECTED_COMMANDS.log("Ignoring GROUP_MSG from {}, not a member of {}", username, group);
+                return;
+            }
+        }
+        CompletableFuture<Long> saved = messageWriter.submitGroup(username, group, command.text());
+
+        String fullMsg = "[" + getCurrentTime() + "] " + username + ": " + command.text();
+        Frame frame = new GroupReceive(group, username, fullMsg).toFrame();
+        for (String member : members) {
+            if (!member.equals(username)) {
+                ClientConnection connection = connectionFor(member);
+                if (connection != null) {
+                    connection.send(frame);
+                }
+            }
+        }
+        awaitIfDurable(saved);
+    }
+
+    /** Moves the caller's read cursor in the group to its newest message. */
+    private void onGroupMarkRead(ClientConnection client, GroupMarkRead command) {
+        messageWriter.awaitFlushed();
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            String sql = "UPDATE group_members gm SET last_read_id = " +
+                    "(SELECT COALESCE(MAX(id), 0) FROM group_messages WHERE group_id = gm.group_id) " +
+                    "WHERE group_id = (SELECT id FROM chat_groups WHERE name = ?) " +
+                    "AND user_id = (SELECT id FROM users WHERE username = ?)";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, command.group());
+                stmt.setString(2, client.getUsername());
+                stmt.executeUpdate();
+            }
+        } catch (Exception e) {
+            Log.error("Error marking group messages as read: {}", e.getMessage());
+        } finally {
+            GROUP_READ_QUERY.recordSince(start);
+        }
+    }
+
+    private void onGetGroups(ClientConnection client, GetGroups command) {
+        client.send(getGroups(client.getUsername()));
+    }
+
+    /** A registered user's profile picture; empty for anyone else. */
+    private void onGetAvatar(ClientConnection client, GetAvatar command) {
+        String username = command.username();
+        byte[] png = new byte[0];
+        if (userDirectory.contains(username)) {
+            try {
+                png = avatarStore.load(username);
+            } catch (IOException e) {
+                Log.error("Error reading avatar of {}: {}", username, e.getMessage());
+            }
+        }
+        client.send(new Avatar(username, png));
+    }
+
+    /**
+     * Whether {@code user} is registered: in the directory, online on another node, or
+     * added to {@code users} since the directory was loaded.
+     */
+    private boolean isKnownUser(String user) {
+        if (userDirectory.contains(user) || cluster.isRemoteOnline(user)) {
+            return true;
+        }
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConfig.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM users WHERE username = ?")) {
+            stmt.setString(1, user);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    userDirectory.add(user);
+                    return true;
+                }
+            }
+        } catch (SQLException e) {
+            Log.error("Error looking up user {}: {}", user, e.getMessage());
+        } finally {
+            RECIPIENT_QUERY.recordSince(start);
+        }
+        return false;
+    }
+
+    /** Answers a message to a user who doesn't exist with FAIL; nothing is stored or counted. */
+    private void refuseUnknownRecipient(ClientConnection client, String recipient) {
+        UNEXPECTED_COMMANDS.log("Refusing message from {} to unknown user {}", client.getUsername(), recipient);
+        client.send(new LoginFailed());
+    }
+
+    /**
+     * Queues the message for the database and hands it to the recipient if online, here
+     * or on another node. With a {@code clientId}, the sender gets a DELIVERED receipt
+     * once the recipient's connection has taken the frame.
+     */
+    private CompletableFuture<Long> deliver(String username, String recipient, String msgText, String clientId) {
+        // Queue for the database; live delivery doesn't wait for the commit
+        CompletableFuture<Long> saved = saveMessageToDatabase(username, recipient, msgText);
+
+        ClientConnection recipientHandler = clients.get(recipient);
+        if (recipientHandler != null) {
+            deliverLocally(recipientHandler, username, recipient, msgText, clientId);
+            // Stop typing indicator when message is sent, if one is showing
+            typingThrottle.messageSent(username, recipient);
+        } else if (cluster.deliver(username, recipient, clientId, msgText)) {
+            // That node counts it and sends any receipt; the indicator is ours to clear
+            typingThrottle.messageSent(username, recipient);
+        }
+        return saved;
+    }
+
+    /** A message another node stored for a user connected here. */
+    void deliverFromNode(NodeMessage message) {
+        ClientConnection recipientHandler = clients.get(message.recipient());
+        if (recipientHandler == null) {
+            // Gone since the sender's node looked; it's in the database for their next SYNC
+            return;
+        }
+        unreadCounters.increment(message.recipient(), message.sender());
+        deliverLocally(recipientHandler, message.sender(), message.recipient(), message.text(),
+                message.clientId().isEmpty() ? null : message.clientId());
+    }
+
+    private void deliverLocally(ClientConnection recipientHandler, String sender, String recipient, String msgText,
+                                String clientId) {
+        String fullMsg = "[" + getCurrentTime() + "] " + sender + ": " + msgText;
+        boolean accepted = recipientHandler.send(new Receive(sender, fullMsg));
+        // Push the new count so the client doesn't have to ask for it
+        recipientHandler.send(new UnreadCount(sender, unreadCounters.get(recipient, sender)));
+        if (accepted && clientId != null) {
+            receipts.add(sender, Receipt.delivered(clientId));
+        }
+    }
+
+    private void awaitIfDurable(CompletableFuture<Long> saved) {
+        if (messageWriter.getDurability() == MessageWriter.Durability.ACK_AFTER_COMMIT) {
+            // Don't take the sender's next command until this one is durable
+            saved.exceptionally(e -> null).join();
+        }
+    }
+
+    /** Joins the cluster configured by the chat.cluster.* properties, if any. */
+    public void startCluster() throws IOException {
+        if (cluster.isEnabled() && messageStore instanceof LogMessageStore) {
+            Log.warn("The message log is local to each node; cluster nodes should share the h2 store");
+        }
+        cluster.start();
+    }
+
+    /** Whether the user is connected here or to another node. */
+    boolean isOnline(String user) {
+        return clients.containsKey(user) || cluster.isRemoteOnline(user);
+    }
+
+    /** The user's connection here, a stand-in that forwards to their node, or null if offline. */
+    ClientConnection connectionFor(String user) {
+        ClientConnection local = clients.get(user);
+        return local != null ? local : cluster.remote(user);
+    }
+
+    /** The user's connection to this node only. */
+    ClientConnection localConnection(String user) {
+        return clients.get(user);
+    }
+
+    Collection<String> localUsers() {
+        return clients.keySet();
+    }
+
+    /** A user connected to or left another node; subscribers here hear about it. */
+    void remoteStatusChanged(String user) {
+        if (!clients.containsKey(user)) {
+            presence.statusChanged(user, cluster.isRemoteOnline(user));
+        }
+    }
+
+    /** Starts the Prometheus endpoint configured by the chat.metrics.* properties. */
+    public void startMetricsEndpoint() {
+        metrics.startHttpFromSystemProperties();
+    }
+
+    int getConnectedCount() {
+        return clients.size();
+    }
+
+    MessageWriter getMessageWriter() {
+        return messageWriter;
+    }
+
+    SearchIndex.Stats getSearchStats() {
+        return searchIndex.getStats();
+    }
+
+    LatencyHistogram getPresenceFanOutTimes() {
+        return presence.getFanOutTimes();
+    }
+
+    Cluster.Stats getClusterStats() {
+        return cluster.getStats();
+    }
+
+    ReceiptBatcher.Stats getReceiptStats() {
+        return receipts.getStats();
+    }
+
+    TypingThrottle.Stats getTypingStats() {
+        return typingThrottle.getStats();
+    }
+
+    PresenceService.Stats getPresenceStats() {
+        return presence.getStats();
+    }
+
+    SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /** Frames queued across all logged-in connections. */
+    long getOutboundDepth() {
+        long depth = 0;
+        for (ClientConnection client : clients.values()) {
+            depth += client.getOutboundDepth();
+        }
+        return depth;
+    }
+
+    /** Unregisters a closed connection and tells everyone the user went offline. */
+    void handleDisconnect(ClientConnection client) {
+        String username = client.getUsername();
+        presence.disconnected(client);
+        if (username != null && clients.remove(username, client)) {
+            typingThrottle.disconnected(username);
+            cluster.localStatusChanged(username, false);
+            // Still online if the user is also connected to another node
+            presence.statusChanged(username, isOnline(username));
         }
     }
 
-    private class ClientHandler extends Thread {
+    private class ClientHandler implements Runnable, ClientConnection {
         private Socket socket;
-        private BufferedReader in;
-        private PrintWriter out;
-        private String username;
+        private ProtocolReader in;
+        private ProtocolWriter out;
+        private volatile String username;
+        // Written by this connection's own writer thread, so senders never block on our socket
+        private final BlockingQueue<Frame> outbound = new LinkedBlockingQueue<>();
+        private final AtomicInteger outboundDepth = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final Thread writer;
 
-        public ClientHandler(Socket socket) {
+        public ClientHandler(Socket socket, ThreadFactory threadFactory) {
             this.socket = socket;
+            this.writer = threadFactory.newThread(this::writeLoop);
         }
 
-        public void sendMessage(String msg) {
-            out.println(msg);
+        public boolean send(Frame frame) {
+            if (closed.get()) {
+                return false;
+            }
+            switch (slowConsumerPolicy.admit(outboundDepth.get(), frame)) {
+                case QUEUE -> {
+                    outboundDepth.incrementAndGet();
+                    outbound.add(frame);
+                    return true;
+                }
+                case DROP -> {
+                    return false;
+                }
+                default -> {
+                    SLOW_CONSUMERS.log("Disconnecting slow consumer {} ({} frames queued)", username, outboundDepth.get());
+                    close();
+                    return false;
+                }
+            }
+        }
+
+        public int getOutboundDepth() {
+            return outboundDepth.get();
         }
 
         public String getUsername() {
             return username;
         }
 
-        public void run() {
+        public void setUsername(String username) {
+            this.username = username;
+        }
+
+        /** Closes at once, dropping whatever is still queued: for slow consumers and broken sockets. */
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            writer.interrupt();
+            try {
+                socket.close();
+            } catch (Exception ignored) {}
+        }
+
+        /** Lets the writer send everything queued so far, such as a LOGIN_FAILED, then closes. */
+        private void closeAfterFlush() {
+            if (writer.getState() == Thread.State.NEW) {
+                close();
+            } else {
+                outbound.add(END_OF_OUTPUT);
+            }
+        }
+
+        /** Writes everything queued since the last flush with a single flush. */
+        private void writeLoop() {
+            List<Frame> batch = new ArrayList<>();
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-
-                // Read login
-                String loginMsg = in.readLine();
-                if (loginMsg != null && loginMsg.startsWith("LOGIN:")) {
-                    String[] parts = loginMsg.split(":");
-                    username = parts[1];
-                    String password = parts[2];
-
-                    if (isValidUser(username, password)) {
-                        clients.put(username, this);
-                        out.println("SUCCESS");
-                        System.out.println(username + " logged in.");
-                        
-                        // Broadcast online status to all other users
-                        broadcastUserStatus(username, "ONLINE");
-
-                        // Listen for messages
-                        String clientMsg;
-                        while ((clientMsg = in.readLine()) != null) {
-                            
-                            // Handle GET_ONLINE_STATUS command
-                            if (clientMsg.startsWith("GET_ONLINE_STATUS:")) {
-                                String[] parts2 = clientMsg.split(":", 2);
-                                String targetUser = parts2[1];
-                                boolean isOnline = clients.containsKey(targetUser);
-                                out.println("ONLINE_STATUS:" + targetUser + ":" + (isOnline ? "ONLINE" : "OFFLINE"));
-                            }
-                            
-                            // Handle GET_ALL_STATUS command (get status of all users)
-                            else if (clientMsg.equals("GET_ALL_STATUS")) {
-                                String[] allUsers = {"haritha", "aakash", "kaniska", "kabilan", "srivinay"};
-                                StringBuilder statusData = new StringBuilder();
-                                for (String user : allUsers) {
-                                    if (!user.equals(username)) {
-                                        boolean isOnline = clients.containsKey(user);
-                                        statusData.append(user).append(":").append(isOnline ? "ONLINE" : "OFFLINE").append(";");
-                                    }
-                                }
-                                out.println("ALL_STATUS:" + statusData.toString());
-                            }
-                            
-                            // Handle TYPING indicator
-                            else if (clientMsg.startsWith("TYPING:")) {
-                                String[] parts2 = clientMsg.split(":", 2);
-                                String recipient = parts2[1];
-                                ClientHandler recipientHandler = clients.get(recipient);
-                                if (recipientHandler != null) {
-                                    recipientHandler.sendMessage("TYPING_START:" + username);
-                                    System.out.println(username + " is typing to " + recipient);
-                                }
-                            }
-                            
-                            // Handle STOP_TYPING indicator
-                            else if (clientMsg.startsWith("STOP_TYPING:")) {
-                                String[] parts2 = clientMsg.split(":", 2);
-                                String recipient = parts2[1];
-                                ClientHandler recipientHandler = clients.get(recipient);
-                                if (recipientHandler != null) {
-                                    recipientHandler.sendMessage("TYPING_STOP:" + username);
-                                }
-                            }
-                            
-                            // Handle GET_HISTORY command (fetch offline messages)
-                            else if (clientMsg.startsWith("GET_HISTORY:")) {
-                                String[] parts2 = clientMsg.split(":", 2);
-                                String recipient = parts2[1];
-                                String history = getMessageHistory(recipient);
-                                out.println("HISTORY:" + history);
-                                System.out.println("Sent message history to " + recipient);
-                            }
-                            
-                            // Handle MARK_READ command
-                            else if (clientMsg.startsWith("MARK_READ:")) {
-                                String[] parts2 = clientMsg.split(":", 2);
-                                String sender = parts2[1];
-                                markMessagesAsRead(username, sender);
-                                System.out.println("Marked messages from " + sender + " to " + username + " as read.");
-                            }
-                            
-                            // Handle GET_UNREAD_COUNT command
-                            else if (clientMsg.startsWith("GET_UNREAD_COUNT:")) {
-                                String[] parts2 = clientMsg.split(":", 2);
-                                String sender = parts2[1];
-                                int unreadCount = getUnreadCount(username, sender);
-                                out.println("UNREAD_COUNT:" + sender + ":" + unreadCount);
-                            }
-                            
-                            // Handle GET_ALL_UNREAD command (for chat list)
-                            else if (clientMsg.equals("GET_ALL_UNREAD")) {
-                                String unreadData = getAllUnreadCounts(username);
-                                out.println("ALL_UNREAD:" + unreadData);
-                            }
-                            
-                            // Handle MSG command
-                            else if (clientMsg.startsWith("MSG:")) {
-                                // Format: MSG:recipient:message_text
-                                String[] msgParts = clientMsg.split(":", 3);
-                                if (msgParts.length == 3) {
-                                    String recipient = msgParts[1];
-                                    String msgText = msgParts[2];
-
-                                    // Save to database
-                                    saveMessageToDatabase(username, recipient, msgText);
-
-                                    // Stop typing indicator when message is sent
-                                    ClientHandler recipientHandler = clients.get(recipient);
-                                    if (recipientHandler != null) {
-                                        String fullMsg = "[" + getCurrentTime() + "] " + username + ": " + msgText;
-                                        recipientHandler.sendMessage("RECEIVE:" + username + ":" + fullMsg);
-                                        recipientHandler.sendMessage("TYPING_STOP:" + username);
-                                    }
-                                }
-                            }
+                boolean finished = false;
+                while (!finished && !closed.get()) {
+                    batch.add(outbound.take());
+                    outbound.drainTo(batch, MAX_FRAMES_PER_FLUSH - 1);
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (batch.get(i) == END_OF_OUTPUT) {
+                            batch.subList(i, batch.size()).clear();
+                            finished = true;
+                            break;
                         }
-                    } else {
-                        out.println("FAIL");
-                        socket.close();
+                    }
+                    out.write(batch);
+                    outboundDepth.addAndGet(-batch.size());
+                    batch.clear();
+                }
+            } catch (InterruptedException | IOException e) {
+                // Closed, or the socket broke; the reading side handles the disconnect
+            }
+            close();
+        }
+
+        public void run() {
+            boolean failed = false;
+            try {
+                in = new ProtocolReader(socket.getInputStream());
+                out = new ProtocolWriter(socket.getOutputStream());
+
+                // Read login, after switching to binary frames if the client asks first
+                Frame first = in.readFrame();
+                if (Handshake.requestsBinary(first)) {
+                    out.write(Handshake.BINARY_HELLO);
+                    in.setBinary(true);
+                    out.setBinary(true);
+                    first = in.readFrame();
+                }
+                writer.start();
+                if (handleLogin(this, first)) {
+                    // Listen for messages
+                    Frame frame;
+                    while ((frame = in.readFrame()) != null) {
+                        handleCommand(this, frame);
                     }
                 }
 
             } catch (Exception e) {
-                System.out.println("Client " + username + " disconnected.");
+                failed = true;
+                Log.info("Client {} disconnected.", username);
             } finally {
-                if (username != null) {
-                    clients.remove(username);
-                    // Broadcast offline status
-                    broadcastUserStatus(username, "OFFLINE");
+                handleDisconnect(this);
+                if (failed) {
+                    close();
+                } else {
+                    closeAfterFlush();
                 }
-                try {
-                    socket.close();
-                } catch (Exception ignored) {}
             }
         }
+    }
 
-        private void broadcastUserStatus(String user, String status) {
-            String message = "USER_STATUS:" + user + ":" + status;
-            for (ClientHandler client : clients.values()) {
-                client.sendMessage(message);
+    private List<HistoryEntry> getMessageHistory(String recipient) {
+        messageWriter.awaitFlushed();
+        List<HistoryEntry> history = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            for (MessageStore.Message message : messageStore.received(recipient)) {
+                history.add(new HistoryEntry(0, message.sender(), message.content(),
+                        formatTimestamp(message.timestamp()), false));
             }
+        } catch (Exception e) {
+            Log.error("Error getting message history: {}", e.getMessage());
+        } finally {
+            HISTORY_QUERY.recordSince(start);
+        }
+        return history;
+    }
+
+    /**
+     * One page of the conversation between {@code username} and {@code contact}: up to
+     * {@code limit} messages with id below {@code beforeId}, oldest first. The client
+     * passes the smallest id it has as the next {@code beforeId}.
+     */
+    private HistoryPage getHistoryPage(String username, String contact, long beforeId, int limit) {
+        messageWriter.awaitFlushed();
+        List<MessageStore.Message> rows = List.of();
+        long start = System.nanoTime();
+        try {
+            rows = messageStore.conversation(username, contact, beforeId, limit + 1);
+        } catch (Exception e) {
+            Log.error("Error getting history page: {}", e.getMessage());
+        } finally {
+            HISTORY_PAGE_QUERY.recordSince(start);
+        }
+
+        boolean hasMore = rows.size() > limit;
+        List<HistoryEntry> page = new ArrayList<>(Math.min(rows.size(), limit));
+        for (int i = Math.min(rows.size(), limit) - 1; i >= 0; i--) {
+            MessageStore.Message message = rows.get(i);
+            page.add(new HistoryEntry(message.id(), message.sender(), message.content(),
+                    formatTimestamp(message.timestamp()), message.read()));
         }
+        return new HistoryPage(contact, hasMore, page);
+    }
 
-        private String getMessageHistory(String recipient) {
-            StringBuilder history = new StringBuilder();
+    /**
+     * Up to {@link #SYNC_CHUNK_SIZE} of the user's messages, sent and received, with id
+     * above {@code cursor}, oldest first. {@link Sync#RESUME} is replaced by the cursor
+     * saved for the user; any other cursor is saved, as the client has everything up to it.
+     * The messages come from the {@link MessageStore}; the cursor is a column of
+     * {@code users}, so it stays in H2 with chat.store=log too.
+     */
+    private SyncBatch getSyncBatch(String username, long cursor) {
+        messageWriter.awaitFlushed();
+        List<SyncMessage> rows = new ArrayList<>(SYNC_CHUNK_SIZE + 1);
+        long from = Math.max(cursor, 0);
+        long start = System.nanoTime();
+        try {
             try (Connection conn = DatabaseConfig.getConnection()) {
-                String sql = "SELECT sender_name, content, timestamp FROM messages WHERE recipient = ? ORDER BY timestamp ASC";
-                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                    stmt.setString(1, recipient);
-                    try (ResultSet rs = stmt.executeQuery()) {
-                        while (rs.next()) {
-                            String sender = rs.getString("sender_name");
-                            String content = rs.getString("content");
-                            String timestamp = rs.getString("timestamp");
-                            
-                            history.append(sender).append("###")
-                                   .append(content).append("###")
-                                   .append(formatTimestamp(timestamp)).append("###")
-                                   .append("0|");
+                if (cursor == Sync.RESUME) {
+                    try (PreparedStatement stmt = conn.prepareStatement(
+                            "SELECT sync_cursor FROM users WHERE username = ?")) {
+                        stmt.setString(1, username);
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            from = rs.next() ? rs.getLong(1) : 0;
                         }
                     }
+                } else {
+                    // Only forward: another of the user's devices may be further behind
+                    try (PreparedStatement stmt = conn.prepareStatement(
+                            "UPDATE users SET sync_cursor = ? WHERE username = ? AND sync_cursor < ?")) {
+                        stmt.setLong(1, from);
+                        stmt.setString(2, username);
+                        stmt.setLong(3, from);
+                        stmt.executeUpdate();
+                    }
                 }
-            } catch (Exception e) {
-                System.out.println("Error getting message history: " + e.getMessage());
             }
-            return history.toString();
+            for (MessageStore.Message message : messageStore.since(username, from, SYNC_CHUNK_SIZE + 1)) {
+                rows.add(new SyncMessage(message.id(), message.sender(), message.recipient(), message.content(),
+                        formatTimestamp(message.timestamp()), message.read()));
+            }
+        } catch (Exception e) {
+            Log.error("Error syncing messages: {}", e.getMessage());
+        } finally {
+            SYNC_QUERY.recordSince(start);
         }
 
-        private String formatTimestamp(String dbTimestamp) {
-            try {
-                if (dbTimestamp != null && dbTimestamp.length() >= 19) {
-                    String time = dbTimestamp.substring(11, 19);
-                    String[] parts = time.split(":");
-                    int hour = Integer.parseInt(parts[0]);
-                    int min = Integer.parseInt(parts[1]);
-                    
-                    String ampm = hour >= 12 ? "pm" : "am";
-                    if (hour > 12) hour -= 12;
-                    if (hour == 0) hour = 12;
-                    
-                    return String.format("%d:%02d %s", hour, min, ampm);
-                }
-            } catch (Exception e) {
-                System.out.println("Error formatting timestamp: " + e.getMessage());
+        boolean hasMore = rows.size() > SYNC_CHUNK_SIZE;
+        List<SyncMessage> chunk = hasMore ? rows.subList(0, SYNC_CHUNK_SIZE) : rows;
+        long next = chunk.isEmpty() ? from : chunk.get(chunk.size() - 1).id();
+        return new SyncBatch(next, hasMore, chunk);
+    }
+
+    /** The messages with these ids, in the given order. */
+    private List<SearchHit> getSearchHits(int[] ids) {
+        List<SearchHit> hits = new ArrayList<>(ids.length);
+        if (ids.length == 0) {
+            return hits;
+        }
+        Map<Long, SearchHit> byId = new HashMap<>();
+        long start = System.nanoTime();
+        try {
+            for (MessageStore.Message message : messageStore.byIds(ids)) {
+                byId.put(message.id(), new SearchHit(message.id(), message.sender(), message.recipient(),
+                        message.content(), formatTimestamp(message.timestamp())));
             }
-            return "0:00 am";
+        } catch (Exception e) {
+            Log.error("Error reading search hits: {}", e.getMessage());
+        } finally {
+            SEARCH_HITS_QUERY.recordSince(start);
         }
-
-        private void saveMessageToDatabase(String sender, String recipient, String content) {
-            try (Connection conn = DatabaseConfig.getConnection()) {
-                String sql = "INSERT INTO messages (sender_id, sender_name, recipient, content, timestamp, read) " +
-                        "VALUES ((SELECT id FROM users WHERE username = ?), ?, ?, ?, CURRENT_TIMESTAMP(), FALSE)";
-                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                    stmt.setString(1, sender);
-                    stmt.setString(2, sender);
-                    stmt.setString(3, recipient);
-                    stmt.setString(4, content);
-                    stmt.executeUpdate();
-                }
-            } catch (Exception e) {
-                System.out.println("Error saving message: " + e.getMessage());
+        for (int id : ids) {
+            SearchHit hit = byId.get((long) id);
+            if (hit != null) {
+                hits.add(hit);
             }
         }
+        return hits;
+    }
 
-        private void markMessagesAsRead(String recipient, String sender) {
-            try (Connection conn = DatabaseConfig.getConnection()) {
-                String sql = "UPDATE messages SET read = TRUE " +
-                        "WHERE recipient = ? AND sender_name = ? AND read = FALSE";
-                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                    stmt.setString(1, recipient);
-                    stmt.setString(2, sender);
-                    stmt.executeUpdate();
-                }
-            } catch (Exception e) {
-                System.out.println("Error marking messages as read: " + e.getMessage());
+    /** {@code 2024-05-01 14:03:27.5} as {@code 2:03 pm}. */
+    static String formatTimestamp(String dbTimestamp) {
+        try {
+            if (dbTimestamp != null && dbTimestamp.length() >= 19) {
+                String time = dbTimestamp.substring(11, 19);
+                String[] parts = time.split(":");
+                int hour = Integer.parseInt(parts[0]);
+                int min = Integer.parseInt(parts[1]);
+                
+                String ampm = hour >= 12 ? "pm" : "am";
+                if (hour > 12) hour -= 12;
+                if (hour == 0) hour = 12;
+                
+                return String.format("%d:%02d %s", hour, min, ampm);
             }
+        } catch (Exception e) {
+            Log.warn("Error formatting timestamp: {}", e.getMessage());
         }
+        return "0:00 am";
+    }
 
-        private int getUnreadCount(String recipient, String sender) {
-            try (Connection conn = DatabaseConfig.getConnection()) {
-                String sql = "SELECT COUNT(*) FROM messages WHERE recipient = ? AND sender_name = ? AND read = FALSE";
-                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                    stmt.setString(1, recipient);
-                    stmt.setString(2, sender);
-                    try (ResultSet rs = stmt.executeQuery()) {
-                        if (rs.next()) {
-                            return rs.getInt(1);
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                System.out.println("Error getting unread count: " + e.getMessage());
+    /**
+     * Hands the message to the write-behind queue. The returned future completes with
+     * the new message id once its batch commits.
+     */
+    private CompletableFuture<Long> saveMessageToDatabase(String sender, String recipient, String content) {
+        // Count it before it can be committed, so a concurrent mark-read never undercounts it
+        unreadCounters.increment(recipient, sender);
+        CompletableFuture<Long> saved = messageWriter.submit(sender, recipient, content);
+        saved.thenAccept(id -> searchIndex.submit(id, sender, recipient, content));
+        saved.exceptionally(e -> {
+            unreadCounters.subtract(recipient, sender, 1);
+            return null;
+        });
+        return saved;
+    }
+
+    private void markMessagesAsRead(String recipient, String sender) {
+        messageWriter.awaitFlushed();
+        long start = System.nanoTime();
+        try {
+            MessageStore.ReadResult result = messageStore.markRead(recipient, sender);
+            unreadCounters.subtract(recipient, sender, result.count());
+            if (result.count() > 0) {
+                receipts.add(sender, Receipt.read(recipient, result.lastId()));
             }
-            return 0;
+        } catch (Exception e) {
+            Log.error("Error marking messages as read: {}", e.getMessage());
+        } finally {
+            MARK_READ_QUERY.recordSince(start);
         }
+    }
 
-        private String getAllUnreadCounts(String recipient) {
-            StringBuilder result = new StringBuilder();
-            try (Connection conn = DatabaseConfig.getConnection()) {
-                String sql = "SELECT sender_name, COUNT(*) as count FROM messages " +
-                        "WHERE recipient = ? AND read = FALSE GROUP BY sender_name";
-                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                    stmt.setString(1, recipient);
-                    try (ResultSet rs = stmt.executeQuery()) {
-                        while (rs.next()) {
-                            String sender = rs.getString("sender_name");
-                            int count = rs.getInt("count");
-                            result.append(sender).append(":").append(count).append(";");
-                        }
+    /** The user's groups by name, each with its messages newer than the user's read cursor. */
+    private Groups getGroups(String username) {
+        Map<String, Integer> unread = new LinkedHashMap<>();
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            String sql = "SELECT g.name, (SELECT COUNT(*) FROM group_messages m " +
+                    "WHERE m.group_id = gm.group_id AND m.id > gm.last_read_id) " +
+                    "FROM group_members gm JOIN chat_groups g ON g.id = gm.group_id " +
+                    "WHERE gm.user_id = (SELECT id FROM users WHERE username = ?) ORDER BY g.name";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, username);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        unread.put(rs.getString(1), rs.getInt(2));
                     }
                 }
-            } catch (Exception e) {
-                System.out.println("Error getting all unread counts: " + e.getMessage());
             }
-            return result.toString();
+        } catch (Exception e) {
+            Log.error("Error loading groups: {}", e.getMessage());
+        } finally {
+            GROUPS_QUERY.recordSince(start);
         }
+        return new Groups(unread);
+    }
 
-        private boolean isValidUser(String username, String password) {
-            try (Connection conn = DatabaseConfig.getConnection()) {
-                String sql = "SELECT * FROM users WHERE username = ? AND password = ?";
-                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                    stmt.setString(1, username);
-                    stmt.setString(2, password);
-                    try (ResultSet rs = stmt.executeQuery()) {
-                        return rs.next();
-                    }
+    private boolean isValidUser(String username, String password) {
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            String sql = "SELECT * FROM users WHERE username = ? AND password = ?";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, username);
+                stmt.setString(2, password);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next();
                 }
-            } catch (Exception e) {
-                System.out.println("Error validating user: " + e.getMessage());
             }
-            return false;
+        } catch (Exception e) {
+            Log.error("Error validating user: {}", e.getMessage());
+        } finally {
+            LOGIN_QUERY.recordSince(start);
         }
+        return false;
+    }
 
-        private String getCurrentTime() {
-            return java.time.LocalTime.now().toString();
-        }
+    private String getCurrentTime() {
+        return java.time.LocalTime.now().toString();
     }
 
     public static void main(String[] args) throws Exception {
+        int port = 8080;
+        String mode = "thread";
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring(7));
+            } else if (arg.startsWith("--mode=")) {
+                mode = arg.substring(7);
+            }
+        }
+
         ChatServer server = new ChatServer();
-        server.start(8080);
+        server.startMetricsEndpoint();
+        server.startCluster();
+        if ("nio".equals(mode)) {
+            server.startNio(port, Runtime.getRuntime().availableProcessors());
+        } else if ("virtual".equals(mode)) {
+            server.startVirtual(port);
+        } else {
+            server.start(port);
+        }
     }
-}
\ No newline at end of file
+}
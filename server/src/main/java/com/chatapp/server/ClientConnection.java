@@ -0,0 +1,35 @@
+package com.chatapp.server;
+
+import com.chatapp.protocol.Command;
+import com.chatapp.protocol.Frame;
+
+/**
+ * One connected chat client, independent of how its socket is serviced
+ * (a blocking {@code ClientHandler} thread or a selector-driven {@link NioConnection})
+ * and of the wire format it negotiated.
+ */
+interface ClientConnection {
+
+    String getUsername();
+
+    void setUsername(String username);
+
+    /**
+     * Queues one frame for the client in its wire format and returns without waiting
+     * for the socket. What happens when the client is not keeping up is decided by
+     * the server's {@link SlowConsumerPolicy}. Safe to call from any thread.
+     *
+     * @return whether the frame was queued; false if the connection is closed or the
+     *         policy dropped the frame or the client
+     */
+    boolean send(Frame frame);
+
+    default boolean send(Command command) {
+        return send(command.toFrame());
+    }
+
+    /** Frames queued for the client but not yet written. */
+    int getOutboundDepth();
+
+    void close();
+}
@@ -0,0 +1,439 @@
+package com.chatapp.server;
+
+import com.chatapp.protocol.Command;
+import com.chatapp.protocol.Commands;
+import com.chatapp.protocol.Commands.NodeForward;
+import com.chatapp.protocol.Commands.NodeHello;
+import com.chatapp.protocol.Commands.NodeMessage;
+import com.chatapp.protocol.Commands.NodeRoutes;
+import com.chatapp.protocol.Dispatcher;
+import com.chatapp.protocol.Frame;
+import com.chatapp.protocol.ProtocolException;
+import com.chatapp.protocol.ProtocolReader;
+import com.chatapp.protocol.ProtocolWriter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cluster mode: several chat servers on one shared database, each knowing which node
+ * every other user is connected to. A message, typing indicator or receipt for a user
+ * on another node goes to that node over a peer link instead of being dropped.
+ *
+ * <p>Every node opens one link to each peer and only writes to it; it only reads from
+ * the links its peers opened. Links carry binary frames, written in batches with one
+ * flush and never waiting for a reply. A node's routes belong to the link it opened:
+ * NODE_HELLO replaces them when the link (re)connects, NODE_ROUTES updates them, and
+ * when the link closes they are dropped and those users go offline here. Frames queued
+ * for a peer that goes away are lost; the messages among them are already stored, and
+ * the recipient gets them with SYNC.
+ *
+ * <p>Configured by chat.cluster.node, this node's id (cluster mode is off without it),
+ * chat.cluster.peers, a comma-separated {@code id@host:port} list, and
+ * chat.cluster.secret, shared by every node. The entry with this node's id, if any,
+ * gives the address peers connect to, which is the only one listened on;
+ * chat.cluster.host and chat.cluster.port override it, and the host defaults to
+ * loopback. So every node on localhost can share one peer list:
+ * <pre>
+ *   -Dchat.cluster.node=a -Dchat.cluster.secret=... -Dchat.cluster.peers=a@127.0.0.1:9301,b@127.0.0.1:9302
+ * </pre>
+ * A link is accepted only from a node in the peer list that sends the secret in its
+ * NODE_HELLO. The secret is not encrypted on the wire, so links between machines
+ * belong on a private network.
+ * <p>All nodes use the same chat.db.url; on one machine an H2 file opened with
+ * {@code AUTO_SERVER=TRUE} will do, with the first node started before the others so
+ * that only it runs the migrations.
+ */
+class Cluster {
+
+    private static final int MAX_FRAMES_PER_FLUSH = 256;
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final Log.Sampler DROPPED = Log.sampled(Log.Level.WARN, 100);
+
+    private final ChatServer server;
+    private final String node;
+    private final byte[] secret;
+    private final InetSocketAddress listenAddress;
+    private final Map<String, Peer> peers;
+    private final int maxQueued;
+    private final Dispatcher<String> events = new Dispatcher<String>()
+            .on(NodeHello.class, this::onHello)
+            .on(NodeRoutes.class, this::onRoutes)
+            .on(NodeMessage.class, this::onMessage)
+            .on(NodeForward.class, this::onForward);
+
+    // user -> id of the node they are connected to, for users on other nodes
+    private final Map<String, String> routes = new ConcurrentHashMap<>();
+    // node id -> the link that node opened to us, which owns its routes
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+
+    Cluster(ChatServer server, String node, String secret, InetSocketAddress listenAddress,
+            Map<String, InetSocketAddress> peerAddresses, int maxQueued) {
+        this.server = server;
+        this.node = node;
+        this.secret = secret == null ? null : secret.getBytes(StandardCharsets.UTF_8);
+        this.listenAddress = listenAddress;
+        this.maxQueued = maxQueued;
+        this.peers = new LinkedHashMap<>();
+        peerAddresses.forEach((id, address) -> peers.put(id, new Peer(id, address)));
+    }
+
+    /** From the chat.cluster.* properties; a cluster of one when chat.cluster.node is unset. */
+    static Cluster fromSystemProperties(ChatServer server) {
+        String node = System.getProperty("chat.cluster.node");
+        String secret = System.getProperty("chat.cluster.secret");
+        Map<String, InetSocketAddress> peers = new LinkedHashMap<>();
+        String host = "127.0.0.1";
+        int port = -1;
+        InetSocketAddress listenAddress = null;
+        if (node != null) {
+            if (secret == null || secret.isEmpty()) {
+                throw new IllegalArgumentException("Cluster node " + node + " needs chat.cluster.secret");
+            }
+            for (String entry : System.getProperty("chat.cluster.peers", "").split("\\s*,\\s*")) {
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                int at = entry.indexOf('@');
+                int colon = entry.lastIndexOf(':');
+                if (at <= 0 || colon < at) {
+                    throw new IllegalArgumentException("Bad chat.cluster.peers entry, expected id@host:port: " + entry);
+                }
+                String id = entry.substring(0, at);
+                InetSocketAddress address = new InetSocketAddress(entry.substring(at + 1, colon),
+                        Integer.parseInt(entry.substring(colon + 1)));
+                if (id.equals(node)) {
+                    host = address.getHostString();
+                    port = address.getPort();
+                } else {
+                    peers.put(id, address);
+                }
+            }
+            port = Integer.getInteger("chat.cluster.port", port);
+            if (port < 0) {
+                throw new IllegalArgumentException("Cluster node " + node + " needs chat.cluster.port");
+            }
+            listenAddress = new InetSocketAddress(System.getProperty("chat.cluster.host", host), port);
+        }
+        return new Cluster(server, node, secret, listenAddress, peers,
+                Integer.getInteger("chat.cluster.maxQueued", 65536));
+    }
+
+    boolean isEnabled() {
+        return node != null;
+    }
+
+    /** Starts accepting peer links and connecting to peers. Does nothing outside cluster mode. */
+    void start() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        ServerSocket listener = new ServerSocket();
+        listener.bind(listenAddress);
+        daemon("chat-cluster-accept", () -> {
+            while (true) {
+                try {
+                    Socket socket = listener.accept();
+                    daemon("chat-cluster-in", () -> readLink(socket)).start();
+                } catch (IOException e) {
+                    Log.error("Cluster listener stopped: {}", e.getMessage());
+                    return;
+                }
+            }
+        }).start();
+        for (Peer peer : peers.values()) {
+            daemon("chat-cluster-" + peer.id, peer::run).start();
+        }
+        Log.info("Cluster node {} on {}, peers {}", node, listenAddress, peers.keySet());
+    }
+
+    /**
+     * A stand-in connection for {@code user} if they are on another node that is
+     * reachable, or null. Frames sent to it are forwarded to that node.
+     */
+    ClientConnection remote(String user) {
+        Peer peer = peerOf(user);
+        return peer == null ? null : new RemoteUser(user, peer);
+    }
+
+    /**
+     * Hands a new message to the node its recipient is connected to, which delivers
+     * it, counts it as unread and sends any DELIVERED receipt. Returns false if the
+     * recipient is not on a reachable node.
+     */
+    boolean deliver(String sender, String recipient, String clientId, String text) {
+        Peer peer = peerOf(recipient);
+        return peer != null && peer.send(new NodeMessage(sender, recipient, clientId == null ? "" : clientId, text));
+    }
+
+    /** Tells every peer that a user logged in here or left. */
+    void localStatusChanged(String user, boolean online) {
+        if (!isEnabled()) {
+            return;
+        }
+        Frame frame = new NodeRoutes(Map.of(user, online)).toFrame();
+        for (Peer peer : peers.values()) {
+            peer.send(frame);
+        }
+    }
+
+    boolean isRemoteOnline(String user) {
+        return routes.containsKey(user);
+    }
+
+    /** Users connected to other nodes. */
+    Set<String> remoteUsers() {
+        return routes.keySet();
+    }
+
+    Stats getStats() {
+        int linksUp = 0;
+        for (Peer peer : peers.values()) {
+            if (peer.connected) {
+                linksUp++;
+            }
+        }
+        return new Stats(routes.size(), linksUp, inbound.size(), framesSent.get(), framesReceived.get(),
+                framesDropped.get());
+    }
+
+    private Peer peerOf(String user) {
+        String id = routes.get(user);
+        Peer peer = id == null ? null : peers.get(id);
+        return peer != null && peer.connected ? peer : null;
+    }
+
+    /** Reads one link a peer opened to us until it closes, then drops that peer's routes. */
+    private void readLink(Socket socket) {
+        String peer = null;
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            ProtocolReader in = new ProtocolReader(socket.getInputStream());
+            in.setBinary(true);
+            Frame first = in.readFrame();
+            if (first == null || !(Commands.decode(first) instanceof NodeHello hello)) {
+                Log.warn("Closing cluster link from {}: no NODE_HELLO", socket.getRemoteSocketAddress());
+                return;
+            }
+            if (!peers.containsKey(hello.node())
+                    || !MessageDigest.isEqual(secret, hello.secret().getBytes(StandardCharsets.UTF_8))) {
+                Log.warn("Closing cluster link from {}: unknown node {} or wrong secret",
+                        socket.getRemoteSocketAddress(), hello.node());
+                return;
+            }
+            peer = hello.node();
+            Socket previous = inbound.put(peer, socket);
+            if (previous != null) {
+                // The peer reconnected before we noticed the old link was gone
+                previous.close();
+            }
+            Log.info("Cluster link from node {} up", peer);
+            Frame frame = first;
+            do {
+                framesReceived.incrementAndGet();
+                if (!events.dispatch(peer, frame)) {
+                    Log.warn("Ignoring {} on the cluster link from {}", frame.opcode(), peer);
+                }
+            } while ((frame = in.readFrame()) != null);
+        } catch (ProtocolException e) {
+            Log.warn("Closing cluster link from {}: {}", socket.getRemoteSocketAddress(), e.getMessage());
+        } catch (IOException e) {
+            Log.info("Cluster link from node {} closed: {}", peer, e.getMessage());
+        } finally {
+            if (peer != null && inbound.remove(peer, socket)) {
+                Log.info("Cluster node {} left", peer);
+                replaceRoutes(peer, List.of());
+            }
+        }
+    }
+
+    private void onHello(String peer, NodeHello hello) {
+        replaceRoutes(peer, hello.users());
+    }
+
+    private void onRoutes(String peer, NodeRoutes update) {
+        update.online().forEach((user, online) -> {
+            if (online) {
+                if (!peer.equals(routes.put(user, peer))) {
+                    server.remoteStatusChanged(user);
+                }
+            } else if (routes.remove(user, peer)) {
+                server.remoteStatusChanged(user);
+            }
+        });
+    }
+
+    private void onMessage(String peer, NodeMessage message) {
+        server.deliverFromNode(message);
+    }
+
+    private void onForward(String peer, NodeForward forward) {
+        ClientConnection client = server.localConnection(forward.user());
+        if (client != null) {
+            client.send(forward.frame());
+        }
+    }
+
+    /** Makes {@code users} the peer's routes, adding and dropping the difference. */
+    private void replaceRoutes(String peer, Collection<String> users) {
+        Set<String> current = new HashSet<>(users);
+        for (Map.Entry<String, String> route : routes.entrySet()) {
+            if (route.getValue().equals(peer) && !current.contains(route.getKey())
+                    && routes.remove(route.getKey(), peer)) {
+                server.remoteStatusChanged(route.getKey());
+            }
+        }
+        for (String user : current) {
+            if (!peer.equals(routes.put(user, peer))) {
+                server.remoteStatusChanged(user);
+            }
+        }
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /** The link this node opened to one peer: a bounded queue and the thread that writes it. */
+    private final class Peer {
+        final String id;
+        final InetSocketAddress address;
+        final BlockingQueue<Frame> queue = new LinkedBlockingQueue<>();
+        final AtomicInteger depth = new AtomicInteger();
+        volatile boolean connected;
+
+        Peer(String id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+
+        boolean send(Command command) {
+            return send(command.toFrame());
+        }
+
+        /** Queues a frame; false if the link is down or too far behind. */
+        boolean send(Frame frame) {
+            if (!connected) {
+                return false;
+            }
+            if (depth.get() >= maxQueued) {
+                framesDropped.incrementAndGet();
+                DROPPED.log("Dropping frames for cluster node {} ({} queued)", id, depth.get());
+                return false;
+            }
+            depth.incrementAndGet();
+            queue.add(frame);
+            return true;
+        }
+
+        /** Connects, sends NODE_HELLO and then everything queued; reconnects when the link breaks. */
+        void run() {
+            List<Frame> batch = new ArrayList<>();
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(address, (int) RECONNECT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    ProtocolWriter out = new ProtocolWriter(socket.getOutputStream());
+                    out.setBinary(true);
+                    queue.clear();
+                    depth.set(0);
+                    // Route changes queued from here on are sent after the snapshot, so the peer ends up current
+                    connected = true;
+                    out.write(new NodeHello(node, new String(secret, StandardCharsets.UTF_8),
+                            new ArrayList<>(server.localUsers())).toFrame());
+                    framesSent.incrementAndGet();
+                    Log.info("Cluster link to node {} up", id);
+                    while (true) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, MAX_FRAMES_PER_FLUSH - 1);
+                        out.write(batch);
+                        depth.addAndGet(-batch.size());
+                        framesSent.addAndGet(batch.size());
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    if (connected) {
+                        Log.warn("Cluster link to node {} lost: {}", id, e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                    batch.clear();
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /** A user on another node, as seen by the components that look connections up by name. */
+    private static final class RemoteUser implements ClientConnection {
+        private final String user;
+        private final Peer peer;
+
+        RemoteUser(String user, Peer peer) {
+            this.user = user;
+            this.peer = peer;
+        }
+
+        @Override
+        public String getUsername() {
+            return user;
+        }
+
+        /** Does nothing: the name is fixed, and only local connections log in. */
+        @Override
+        public void setUsername(String username) {
+        }
+
+        @Override
+        public boolean send(Frame frame) {
+            return peer.send(new NodeForward(user, frame));
+        }
+
+        @Override
+        public int getOutboundDepth() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Users routed to other nodes, links open in each direction, and frames over them. */
+    record Stats(int routes, int linksOut, int linksIn, long framesSent, long framesReceived, long framesDropped) {
+
+        @Override
+        public String toString() {
+            return String.format("routes=%d links=%d/%d sent=%d received=%d dropped=%d",
+                    routes, linksOut, linksIn, framesSent, framesReceived, framesDropped);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.chatapp.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of JDBC connections. Callers keep the plain
+ * {@code try (Connection conn = ...)} pattern: the handed-out connection is a proxy
+ * whose {@code close()} returns it to the pool, and whose {@code prepareStatement(sql)}
+ * reuses a statement cached on the physical connection.
+ */
+class ConnectionPool {
+
+    private static final long VALIDATE_AFTER_IDLE_MILLIS = 30_000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final int statementCacheSize;
+    private final long acquireTimeoutMillis;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong acquireCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    ConnectionPool(String url, String user, String password, int maxSize, int statementCacheSize, long acquireTimeoutMillis) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.statementCacheSize = statementCacheSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out after " + acquireTimeoutMillis + " ms waiting for a database connection ("
+                        + maxSize + " in use)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        recordWait(System.nanoTime() - start);
+
+        try {
+            PooledConnection pooled = takeValidIdle();
+            if (pooled == null) {
+                pooled = new PooledConnection(DriverManager.getConnection(url, user, password));
+                open.incrementAndGet();
+            }
+            active.incrementAndGet();
+            return pooled.lease();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    Stats getStats() {
+        long acquires = acquireCount.get();
+        return new Stats(active.get(), idle.size(), open.get(), maxSize, acquires,
+                acquires == 0 ? 0 : totalWaitNanos.get() / acquires, maxWaitNanos.get(),
+                statementCacheHits.get(), statementCacheMisses.get(), discarded.get());
+    }
+
+    private PooledConnection takeValidIdle() {
+        PooledConnection pooled;
+        // Most recently returned first: it is the least likely to have gone stale
+        while ((pooled = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - pooled.returnedAt < VALIDATE_AFTER_IDLE_MILLIS || pooled.isValid()) {
+                return pooled;
+            }
+            pooled.closePhysical();
+        }
+        return null;
+    }
+
+    private void recordWait(long nanos) {
+        acquireCount.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private void release(PooledConnection pooled, boolean broken) {
+        active.decrementAndGet();
+        if (broken || !pooled.reset()) {
+            pooled.closePhysical();
+        } else {
+            pooled.returnedAt = System.currentTimeMillis();
+            idle.addFirst(pooled);
+        }
+        permits.release();
+    }
+
+    /** Point-in-time pool metrics. Wait times are in nanoseconds. */
+    record Stats(int active, int idle, int open, int maxSize, long acquires, long avgWaitNanos, long maxWaitNanos,
+                 long statementCacheHits, long statementCacheMisses, long discarded) {
+
+        @Override
+        public String toString() {
+            return String.format("active=%d idle=%d open=%d max=%d acquires=%d avgWait=%.3fms maxWait=%.3fms "
+                            + "stmtCacheHits=%d stmtCacheMisses=%d discarded=%d",
+                    active, idle, open, maxSize, acquires, avgWaitNanos / 1e6, maxWaitNanos / 1e6,
+                    statementCacheHits, statementCacheMisses, discarded);
+        }
+    }
+
+    private class PooledConnection {
+        private final Connection physical;
+        private final Map<String, PreparedStatement> statements;
+        private volatile long returnedAt = System.currentTimeMillis();
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() > statementCacheSize) {
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        Connection lease() {
+            return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new LeaseHandler(this));
+        }
+
+        PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            String key = autoGeneratedKeys == Statement.NO_GENERATED_KEYS ? sql : autoGeneratedKeys + "#" + sql;
+            PreparedStatement stmt = statements.get(key);
+            if (stmt != null && !stmt.isClosed()) {
+                statementCacheHits.incrementAndGet();
+            } else {
+                statementCacheMisses.incrementAndGet();
+                stmt = physical.prepareStatement(sql, autoGeneratedKeys);
+                statements.put(key, stmt);
+            }
+            return cachedStatement(stmt);
+        }
+
+        boolean isValid() {
+            try {
+                return physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        /** Puts the connection back into a clean state. Returns false if it should be discarded. */
+        boolean reset() {
+            try {
+                if (physical.isClosed()) {
+                    return false;
+                }
+                if (!physical.getAutoCommit()) {
+                    physical.rollback();
+                    physical.setAutoCommit(true);
+                }
+                return true;
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        void closePhysical() {
+            discarded.incrementAndGet();
+            open.decrementAndGet();
+            for (PreparedStatement stmt : statements.values()) {
+                closeQuietly(stmt);
+            }
+            statements.clear();
+            try {
+                physical.close();
+            } catch (SQLException ignored) {}
+        }
+    }
+
+    /** A cached statement's {@code close()} only clears its parameters. */
+    private static PreparedStatement cachedStatement(PreparedStatement target) {
+        return (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                    if ("close".equals(method.getName()) && method.getParameterCount() == 0) {
+                        target.clearParameters();
+                        target.clearBatch();
+                        return null;
+                    }
+                    return invoke(target, method, args);
+                });
+    }
+
+    private class LeaseHandler implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean closed;
+        private boolean broken;
+
+        LeaseHandler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (!closed) {
+                    closed = true;
+                    release(pooled, broken);
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return closed || pooled.physical.isClosed();
+            }
+            if (closed) {
+                throw new SQLException("Connection has been returned to the pool");
+            }
+            if ("prepareStatement".equals(name) && args != null) {
+                if (args.length == 1) {
+                    return pooled.prepare((String) args[0], Statement.NO_GENERATED_KEYS);
+                }
+                if (args.length == 2 && args[1] instanceof Integer) {
+                    return pooled.prepare((String) args[0], (Integer) args[1]);
+                }
+            }
+            try {
+                return ConnectionPool.invoke(pooled.physical, method, args);
+            } catch (SQLException e) {
+                // Anything that fails at the connection level may have left it unusable
+                broken = !pooled.isValid();
+                throw e;
+            }
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException ignored) {}
+    }
+}
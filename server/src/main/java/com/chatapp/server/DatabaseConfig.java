@@ -1,57 +1,81 @@
 package com.chatapp.server;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 public class DatabaseConfig {
 
-    private static final String URL = "jdbc:h2:./chatdb;DB_CLOSE_DELAY=-1";
+    // Overridable with -Dchat.db.url=..., e.g. jdbc:h2:mem:chat;DB_CLOSE_DELAY=-1 for benchmarks
+    private static final String URL = System.getProperty("chat.db.url", "jdbc:h2:./chatdb;DB_CLOSE_DELAY=-1");
     private static final String USER = "sa";
     private static final String PASS = "";
 
+    // Pool sizing, overridable with -Dchat.db.poolSize=... etc.
+    private static final int POOL_SIZE = Integer.getInteger("chat.db.poolSize", 16);
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("chat.db.statementCacheSize", 32);
+    private static final long ACQUIRE_TIMEOUT_MILLIS = Long.getLong("chat.db.acquireTimeoutMillis", 5000);
+
+    private static final ConnectionPool POOL =
+            new ConnectionPool(URL, USER, PASS, POOL_SIZE, STATEMENT_CACHE_SIZE, ACQUIRE_TIMEOUT_MILLIS);
+
+    /**
+     * Borrows a pooled connection. Closing it returns it to the pool, and statements
+     * prepared on it are cached per physical connection, so callers should keep
+     * using fixed SQL strings with bind parameters.
+     */
     public static Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(URL, USER, PASS);
+        return POOL.getConnection();
+    }
+
+    // Query name -> time from borrowing the connection to reading the last row
+    private static final Map<String, LatencyHistogram> QUERY_TIMES = new ConcurrentSkipListMap<>();
+
+    static ConnectionPool.Stats getPoolStats() {
+        return POOL.getStats();
     }
 
+    /**
+     * The histogram for one named query; callers keep it in a constant and record
+     * each execution, including the wait for a pooled connection.
+     */
+    static LatencyHistogram queryTimer(String query) {
+        return QUERY_TIMES.computeIfAbsent(query, q -> new LatencyHistogram());
+    }
+
+    /** Every query timer by name. */
+    static Map<String, LatencyHistogram> getQueryTimes() {
+        return QUERY_TIMES;
+    }
+
+    /** Creates the schema on first run and brings an existing database up to the latest version. */
     public static void initializeDatabase() {
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement()) {
-            
-            // Create users table
-            stmt.execute("CREATE TABLE IF NOT EXISTS users (" +
-                    "id INT AUTO_INCREMENT PRIMARY KEY, " +
-                    "username VARCHAR(50) UNIQUE, " +
-                    "password VARCHAR(256))");
-            
-            // Create messages table with recipient and read status
-            stmt.execute("CREATE TABLE IF NOT EXISTS messages (" +
-                    "id INT AUTO_INCREMENT PRIMARY KEY, " +
-                    "sender_id INT, " +
-                    "sender_name VARCHAR(50), " +
-                    "recipient VARCHAR(50), " +
-                    "content TEXT, " +
-                    "timestamp TIMESTAMP, " +
-                    "read BOOLEAN DEFAULT FALSE, " +
-                    "FOREIGN KEY (sender_id) REFERENCES users(id))");
-            
-            System.out.println("Database initialized successfully!");
-            
+        try (Connection conn = getConnection()) {
+            SchemaMigrations.migrate(conn);
+            Log.info("Database initialized successfully!");
         } catch (SQLException e) {
-            e.printStackTrace();
+            Log.error("Error initializing database", e);
         }
     }
 
+    /**
+     * Seeds the demo users. {@code --load-users=N} also adds {@code load0} to
+     * {@code load<N-1>} (password {@code pass}) for the load generator.
+     */
     public static void main(String[] args) {
+        int loadUsers = 0;
+        for (String arg : args) {
+            if (arg.startsWith("--load-users=")) {
+                loadUsers = Integer.parseInt(arg.substring("--load-users=".length()));
+            }
+        }
         initializeDatabase();
         Connection conn = null;
         try {
             conn = getConnection();
-            var clearStmt = conn.createStatement();
-            clearStmt.execute("DELETE FROM users");
-            System.out.println("Old users cleared!");
-            
-            var stmt = conn.prepareStatement("INSERT INTO users (username, password) VALUES (?, ?)");
+            // Upsert rather than delete and re-insert: messages reference users by id
+            var stmt = conn.prepareStatement("MERGE INTO users (username, password) KEY (username) VALUES (?, ?)");
             String[][] users = {
                 {"haritha", "pass"},
                 {"aakash", "pass"},
@@ -66,6 +90,16 @@ public class DatabaseConfig {
                 stmt.executeUpdate();
                 System.out.println(user[0] + " inserted!");
             }
+
+            if (loadUsers > 0) {
+                for (int i = 0; i < loadUsers; i++) {
+                    stmt.setString(1, "load" + i);
+                    stmt.setString(2, "pass");
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                System.out.println(loadUsers + " load users inserted!");
+            }
             
         } catch (SQLException e) {
             System.out.println("Error: " + e.getMessage());
@@ -0,0 +1,115 @@
+package com.chatapp.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who is in each group, kept in memory so a group message costs no query to find its
+ * recipients. Each group's members are an immutable set, replaced whole when members
+ * are added, so fan-out iterates without locking. The read state of each member stays
+ * in {@code group_members}; it is only needed when someone asks for it.
+ */
+class GroupDirectory {
+
+    private static final String MEMBERS_SQL = "SELECT g.name, u.username FROM group_members gm " +
+            "JOIN chat_groups g ON g.id = gm.group_id JOIN users u ON u.id = gm.user_id";
+
+    private final Map<String, Set<String>> members = new ConcurrentHashMap<>();
+
+    /** Replaces every group with the memberships in the database. */
+    void load() throws SQLException {
+        Map<String, Set<String>> loaded = new HashMap<>();
+        try (Connection conn = DatabaseConfig.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(MEMBERS_SQL);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                loaded.computeIfAbsent(rs.getString(1), g -> new HashSet<>()).add(rs.getString(2));
+            }
+        }
+        members.clear();
+        loaded.forEach((group, users) -> members.put(group, Set.copyOf(users)));
+    }
+
+    /** Rereads one group, e.g. one created or changed by another cluster node since {@link #load()}. */
+    Set<String> reload(String group) throws SQLException {
+        Set<String> users = new HashSet<>();
+        try (Connection conn = DatabaseConfig.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(MEMBERS_SQL + " WHERE g.name = ?")) {
+            stmt.setString(1, group);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    users.add(rs.getString(2));
+                }
+            }
+        }
+        if (users.isEmpty()) {
+            members.remove(group);
+            return null;
+        }
+        Set<String> result = Set.copyOf(users);
+        members.put(group, result);
+        return result;
+    }
+
+    /** The group's members, or null if there is no such group. */
+    Set<String> members(String group) {
+        return members.get(group);
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    /**
+     * Creates {@code group} with {@code owner} and {@code users} as members, or adds
+     * {@code users} to it if it exists and {@code owner} is a member. Names that are
+     * not registered users are skipped. Returns the members afterwards, or null if the
+     * group belongs to others.
+     */
+    synchronized Set<String> addMembers(String group, String owner, Collection<String> users) throws SQLException {
+        Set<String> current = members.get(group);
+        if (current == null) {
+            current = reload(group);
+        }
+        if (current != null && !current.contains(owner)) {
+            return null;
+        }
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                if (current == null) {
+                    try (PreparedStatement stmt = conn.prepareStatement(
+                            "INSERT INTO chat_groups (name, created_at) VALUES (?, CURRENT_TIMESTAMP())")) {
+                        stmt.setString(1, group);
+                        stmt.executeUpdate();
+                    }
+                }
+                try (PreparedStatement stmt = conn.prepareStatement(
+                        "MERGE INTO group_members (group_id, user_id) KEY (group_id, user_id) " +
+                                "SELECT g.id, u.id FROM chat_groups g, users u WHERE g.name = ? AND u.username = ?")) {
+                    Set<String> added = new HashSet<>(users);
+                    added.add(owner);
+                    for (String user : added) {
+                        stmt.setString(1, group);
+                        stmt.setString(2, user);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+        return reload(group);
+    }
+}
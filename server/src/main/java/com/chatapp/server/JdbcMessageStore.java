@@ -0,0 +1,272 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link MessageStore} over the {@code messages} table of {@link DatabaseConfig}'s
+ * database. SQL errors are rethrown as IOExceptions carrying the same message.
+ */
+class JdbcMessageStore implements MessageStore {
+
+    private static final String INSERT_SQL = "INSERT INTO messages (sender_id, recipient_id, content, timestamp, read) " +
+            "VALUES ((SELECT id FROM users WHERE username = ?), (SELECT id FROM users WHERE username = ?), ?, " +
+            "CURRENT_TIMESTAMP(), FALSE)";
+
+    @Override
+    public void open() {
+        // The schema is migrated by DatabaseConfig.initializeDatabase()
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public long[] append(List<Draft> drafts) throws IOException {
+        long[] ids = new long[drafts.size()];
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(INSERT_SQL, Statement.RETURN_GENERATED_KEYS)) {
+                for (Draft draft : drafts) {
+                    stmt.setString(1, draft.sender());
+                    stmt.setString(2, draft.recipient());
+                    stmt.setString(3, draft.content());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                try (ResultSet keys = stmt.getGeneratedKeys()) {
+                    for (int i = 0; i < ids.length && keys.next(); i++) {
+                        ids[i] = keys.getLong(1);
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw failure(e);
+        }
+        return ids;
+    }
+
+    @Override
+    public List<Message> received(String recipient) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            String sql = "SELECT m.id, s.username AS sender_name, m.content, m.timestamp, m.read FROM messages m " +
+                    "JOIN users s ON s.id = m.sender_id " +
+                    "WHERE m.recipient_id = (SELECT id FROM users WHERE username = ?) ORDER BY m.timestamp ASC";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, recipient);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        messages.add(new Message(rs.getLong("id"), rs.getString("sender_name"), recipient,
+                                rs.getString("content"), rs.getString("timestamp"), rs.getBoolean("read")));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw failure(e);
+        }
+        return messages;
+    }
+
+    @Override
+    public List<Message> conversation(String user, String contact, long beforeId, int limit) throws IOException {
+        List<Message> messages = new ArrayList<>(limit);
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            // One range scan per direction, merged; avoids an OR the planner can't index
+            String sql = "SELECT id, sender_name, content, timestamp, read FROM (" +
+                    "(SELECT m.id, m.sender_id, m.content, m.timestamp, m.read FROM messages m " +
+                    "WHERE m.recipient_id = (SELECT id FROM users WHERE username = ?) " +
+                    "AND m.sender_id = (SELECT id FROM users WHERE username = ?) AND m.id < ? " +
+                    "ORDER BY m.id DESC FETCH FIRST ? ROWS ONLY) " +
+                    "UNION ALL " +
+                    "(SELECT m.id, m.sender_id, m.content, m.timestamp, m.read FROM messages m " +
+                    "WHERE m.recipient_id = (SELECT id FROM users WHERE username = ?) " +
+                    "AND m.sender_id = (SELECT id FROM users WHERE username = ?) AND m.id < ? " +
+                    "ORDER BY m.id DESC FETCH FIRST ? ROWS ONLY)" +
+                    ") page JOIN (SELECT id AS user_id, username AS sender_name FROM users) s ON s.user_id = page.sender_id " +
+                    "ORDER BY id DESC FETCH FIRST ? ROWS ONLY";
+            long before = beforeId > 0 ? beforeId : Long.MAX_VALUE;
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, user);
+                stmt.setString(2, contact);
+                stmt.setLong(3, before);
+                stmt.setInt(4, limit);
+                stmt.setString(5, contact);
+                stmt.setString(6, user);
+                stmt.setLong(7, before);
+                stmt.setInt(8, limit);
+                stmt.setInt(9, limit);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        String sender = rs.getString("sender_name");
+                        messages.add(new Message(rs.getLong("id"), sender, sender.equals(user) ? contact : user,
+                                rs.getString("content"), rs.getString("timestamp"), rs.getBoolean("read")));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw failure(e);
+        }
+        return messages;
+    }
+
+    @Override
+    public List<Message> since(String user, long afterId, int limit) throws IOException {
+        List<Message> messages = new ArrayList<>(limit);
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            // One range scan per direction, merged, as for conversations
+            String sql = "SELECT batch.id, s.username AS sender_name, r.username AS recipient_name, " +
+                    "batch.content, batch.timestamp, batch.read FROM (" +
+                    "(SELECT m.id, m.sender_id, m.recipient_id, m.content, m.timestamp, m.read FROM messages m " +
+                    "WHERE m.recipient_id = (SELECT id FROM users WHERE username = ?) AND m.id > ? " +
+                    "ORDER BY m.id FETCH FIRST ? ROWS ONLY) " +
+                    "UNION ALL " +
+                    "(SELECT m.id, m.sender_id, m.recipient_id, m.content, m.timestamp, m.read FROM messages m " +
+                    "WHERE m.sender_id = (SELECT id FROM users WHERE username = ?) AND m.id > ? " +
+                    "AND m.recipient_id <> m.sender_id " +
+                    "ORDER BY m.id FETCH FIRST ? ROWS ONLY)" +
+                    ") batch JOIN users s ON s.id = batch.sender_id JOIN users r ON r.id = batch.recipient_id " +
+                    "ORDER BY batch.id FETCH FIRST ? ROWS ONLY";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, user);
+                stmt.setLong(2, afterId);
+                stmt.setInt(3, limit);
+                stmt.setString(4, user);
+                stmt.setLong(5, afterId);
+                stmt.setInt(6, limit);
+                stmt.setInt(7, limit);
+                readMessages(stmt, messages);
+            }
+        } catch (SQLException e) {
+            throw failure(e);
+        }
+        return messages;
+    }
+
+    @Override
+    public List<Message> all(long afterId, int limit) throws IOException {
+        List<Message> messages = new ArrayList<>(limit);
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            String sql = "SELECT m.id, s.username AS sender_name, r.username AS recipient_name, m.content, " +
+                    "m.timestamp, m.read " +
+                    "FROM messages m JOIN users s ON s.id = m.sender_id JOIN users r ON r.id = m.recipient_id " +
+                    "WHERE m.id > ? ORDER BY m.id FETCH FIRST ? ROWS ONLY";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setLong(1, afterId);
+                stmt.setInt(2, limit);
+                readMessages(stmt, messages);
+            }
+        } catch (SQLException e) {
+            throw failure(e);
+        }
+        return messages;
+    }
+
+    @Override
+    public List<Message> byIds(int[] ids) throws IOException {
+        List<Message> messages = new ArrayList<>(ids.length);
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            String sql = "SELECT m.id, s.username AS sender_name, r.username AS recipient_name, m.content, " +
+                    "m.timestamp, m.read " +
+                    "FROM messages m JOIN users s ON s.id = m.sender_id JOIN users r ON r.id = m.recipient_id " +
+                    "WHERE m.id = ANY(?)";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                Integer[] boxed = new Integer[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    boxed[i] = ids[i];
+                }
+                stmt.setObject(1, boxed);
+                readMessages(stmt, messages);
+            }
+        } catch (SQLException e) {
+            throw failure(e);
+        }
+        return messages;
+    }
+
+    @Override
+    public long lastId() throws IOException {
+        try (Connection conn = DatabaseConfig.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT COALESCE(MAX(id), 0) FROM messages");
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return rs.getLong(1);
+        } catch (SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public ReadResult markRead(String recipient, String sender) throws IOException {
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            // The rows changed and the newest of them, for the sender's read receipt
+            String sql = "SELECT COUNT(*), MAX(id) FROM FINAL TABLE (UPDATE messages SET read = TRUE " +
+                    "WHERE recipient_id = (SELECT id FROM users WHERE username = ?) " +
+                    "AND read = FALSE AND sender_id = (SELECT id FROM users WHERE username = ?))";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, recipient);
+                stmt.setString(2, sender);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    return new ReadResult(rs.getInt(1), rs.getLong(2));
+                }
+            }
+        } catch (SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public Map<String, Map<String, Integer>> unreadCounts(String recipient) throws IOException {
+        Map<String, Map<String, Integer>> counts = new HashMap<>();
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            String sql = "SELECT r.username AS recipient, s.username AS sender_name, COUNT(*) AS count FROM messages m " +
+                    "JOIN users r ON r.id = m.recipient_id " +
+                    "JOIN users s ON s.id = m.sender_id " +
+                    "WHERE m.read = FALSE " +
+                    (recipient != null ? "AND m.recipient_id = (SELECT id FROM users WHERE username = ?) " : "") +
+                    "GROUP BY r.username, s.username";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                if (recipient != null) {
+                    stmt.setString(1, recipient);
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        counts.computeIfAbsent(rs.getString("recipient"), r -> new HashMap<>())
+                                .put(rs.getString("sender_name"), rs.getInt("count"));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw failure(e);
+        }
+        return counts;
+    }
+
+    private static void readMessages(PreparedStatement stmt, List<Message> messages) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                messages.add(new Message(rs.getLong("id"), rs.getString("sender_name"),
+                        rs.getString("recipient_name"), rs.getString("content"), rs.getString("timestamp"),
+                        rs.getBoolean("read")));
+            }
+        }
+    }
+
+    private static IOException failure(SQLException e) {
+        return new IOException(e.getMessage(), e);
+    }
+}
@@ -0,0 +1,408 @@
+package com.chatapp.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server log. A call claims a slot in a lock-free ring buffer, stores the pattern
+ * and its arguments, and returns; one background thread fills in the {@code {}}
+ * placeholders and writes the lines to a rolling file and the console. So a disabled
+ * level costs one comparison, an enabled one no string building on the caller, and
+ * handler threads never wait on each other or on I/O. When the ring is full the entry
+ * is dropped and counted instead.
+ *
+ * <p>Arguments are formatted later, so pass values that won't change (strings,
+ * numbers). A trailing {@link Throwable} argument without a placeholder is printed
+ * with its stack trace.
+ *
+ * <p>Configured by chat.log.level (INFO), chat.log.file ({@code logs/chat-server.log},
+ * empty for none), chat.log.console (true), chat.log.maxBytes (10 MB per file),
+ * chat.log.maxFiles (5 rolled files kept) and chat.log.bufferSize (8192 entries).
+ */
+final class Log {
+
+    enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("chat.log.level", "INFO").toUpperCase());
+    private static final Ring RING = new Ring(Integer.getInteger("chat.log.bufferSize", 8192));
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final Flusher FLUSHER = new Flusher(
+            System.getProperty("chat.log.file", "logs/chat-server.log"),
+            Boolean.parseBoolean(System.getProperty("chat.log.console", "true")),
+            Long.getLong("chat.log.maxBytes", 10L << 20),
+            Integer.getInteger("chat.log.maxFiles", 5));
+
+    static {
+        FLUSHER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(FLUSHER::shutdown, "chat-log-shutdown"));
+    }
+
+    private Log() {
+    }
+
+    static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    static void debug(String pattern, Object a) {
+        log(Level.DEBUG, 1, pattern, a, null, null);
+    }
+
+    static void debug(String pattern, Object a, Object b) {
+        log(Level.DEBUG, 1, pattern, a, b, null);
+    }
+
+    static void info(String pattern) {
+        log(Level.INFO, 1, pattern, null, null, null);
+    }
+
+    static void info(String pattern, Object a) {
+        log(Level.INFO, 1, pattern, a, null, null);
+    }
+
+    static void info(String pattern, Object a, Object b) {
+        log(Level.INFO, 1, pattern, a, b, null);
+    }
+
+    static void info(String pattern, Object a, Object b, Object c) {
+        log(Level.INFO, 1, pattern, a, b, c);
+    }
+
+    static void warn(String pattern) {
+        log(Level.WARN, 1, pattern, null, null, null);
+    }
+
+    static void warn(String pattern, Object a) {
+        log(Level.WARN, 1, pattern, a, null, null);
+    }
+
+    static void warn(String pattern, Object a, Object b) {
+        log(Level.WARN, 1, pattern, a, b, null);
+    }
+
+    static void error(String pattern, Object a) {
+        log(Level.ERROR, 1, pattern, a, null, null);
+    }
+
+    static void error(String pattern, Object a, Object b) {
+        log(Level.ERROR, 1, pattern, a, b, null);
+    }
+
+    /** Logs only one call in {@code every}, for events that can come in floods. */
+    static Sampler sampled(Level level, int every) {
+        return new Sampler(level, every);
+    }
+
+    /** Entries lost because the ring was full, since startup. */
+    static long getDropped() {
+        return DROPPED.get();
+    }
+
+    private static void log(Level level, int sampleEvery, String pattern, Object a, Object b, Object c) {
+        if (level.compareTo(LEVEL) < 0) {
+            return;
+        }
+        if (!RING.offer(level, sampleEvery, pattern, a, b, c)) {
+            DROPPED.incrementAndGet();
+        }
+        FLUSHER.wake();
+    }
+
+    static final class Sampler {
+        private final Level level;
+        private final int every;
+        private final AtomicLong calls = new AtomicLong();
+
+        private Sampler(Level level, int every) {
+            this.level = level;
+            this.every = every;
+        }
+
+        void log(String pattern, Object a) {
+            log(pattern, a, null);
+        }
+
+        /** Logs the first call and every {@code every}-th after it, noting the rate. */
+        void log(String pattern, Object a, Object b) {
+            if (isEnabled(level) && calls.getAndIncrement() % every == 0) {
+                Log.log(level, every, pattern, a, b, null);
+            }
+        }
+    }
+
+    private static final class Entry {
+        // Vyukov sequence: index when free for that lap, index + 1 once published
+        volatile long sequence;
+        long millis;
+        String thread;
+        Level level;
+        int sampleEvery;
+        String pattern;
+        Object a;
+        Object b;
+        Object c;
+    }
+
+    /** Bounded multi-producer, single-consumer ring; producers only CAS the head. */
+    private static final class Ring {
+        private final Entry[] slots;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private long tail;
+
+        Ring(int requested) {
+            int capacity = Integer.highestOneBit(Math.max(2, requested - 1)) << 1;
+            slots = new Entry[capacity];
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = new Entry();
+                slots[i].sequence = i;
+            }
+        }
+
+        boolean offer(Level level, int sampleEvery, String pattern, Object a, Object b, Object c) {
+            long position = head.get();
+            Entry entry;
+            while (true) {
+                entry = slots[(int) position & mask];
+                long lag = entry.sequence - position;
+                if (lag == 0) {
+                    if (head.compareAndSet(position, position + 1)) {
+                        break;
+                    }
+                    position = head.get();
+                } else if (lag < 0) {
+                    return false;
+                } else {
+                    position = head.get();
+                }
+            }
+            entry.millis = System.currentTimeMillis();
+            entry.thread = Thread.currentThread().getName();
+            entry.level = level;
+            entry.sampleEvery = sampleEvery;
+            entry.pattern = pattern;
+            entry.a = a;
+            entry.b = b;
+            entry.c = c;
+            entry.sequence = position + 1;
+            return true;
+        }
+
+        /** The oldest published entry, or null; the consumer must {@link #release} it. */
+        Entry peek() {
+            Entry entry = slots[(int) tail & mask];
+            return entry.sequence == tail + 1 ? entry : null;
+        }
+
+        void release(Entry entry) {
+            entry.thread = null;
+            entry.pattern = null;
+            entry.a = null;
+            entry.b = null;
+            entry.c = null;
+            entry.sequence = tail + slots.length;
+            tail++;
+        }
+    }
+
+    private static final class Flusher extends Thread {
+        private static final DateTimeFormatter TIME =
+                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+        private final Path file;
+        private final Writer console;
+        private final long maxBytes;
+        private final int maxFiles;
+        private final StringBuilder line = new StringBuilder(256);
+        private Writer out;
+        private long written;
+        private long reportedDropped;
+        private volatile boolean running = true;
+        // Set while the ring is empty and the flusher is about to park or parked
+        private volatile boolean idle;
+
+        Flusher(String file, boolean console, long maxBytes, int maxFiles) {
+            super("chat-log");
+            setDaemon(true);
+            this.file = file.isEmpty() ? null : Paths.get(file);
+            this.console = console
+                    ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 14)
+                    : null;
+            this.maxBytes = maxBytes;
+            this.maxFiles = maxFiles;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                if (drain() == 0) {
+                    idle = true;
+                    // Check again after announcing it: an entry published before the
+                    // producer saw idle would otherwise wait for the next one
+                    if (RING.peek() == null && running) {
+                        LockSupport.park(this);
+                    }
+                    idle = false;
+                }
+            }
+            drain();
+            closeFile();
+        }
+
+        /** Called after every publish; only the first entry into an empty ring pays for an unpark. */
+        void wake() {
+            if (idle) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            LockSupport.unpark(this);
+            try {
+                join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /** Writes everything published so far and flushes once. */
+        private int drain() {
+            int count = 0;
+            Entry entry;
+            while ((entry = RING.peek()) != null) {
+                format(entry);
+                RING.release(entry);
+                write(line);
+                count++;
+            }
+            long total = DROPPED.get();
+            long dropped = total - reportedDropped;
+            reportedDropped = total;
+            if (dropped > 0) {
+                line.setLength(0);
+                line.append(TIME.format(Instant.now())).append(" WARN  [chat-log] ")
+                        .append(dropped).append(" log entries dropped, buffer full\n");
+                write(line);
+            }
+            if (count > 0 || dropped > 0) {
+                flush();
+            }
+            return count;
+        }
+
+        private void format(Entry entry) {
+            line.setLength(0);
+            line.append(TIME.format(Instant.ofEpochMilli(entry.millis))).append(' ');
+            String level = entry.level.name();
+            line.append(level);
+            for (int i = level.length(); i < 6; i++) {
+                line.append(' ');
+            }
+            line.append('[').append(entry.thread).append("] ");
+
+            Object[] args = {entry.a, entry.b, entry.c};
+            int used = 0;
+            String pattern = entry.pattern;
+            int from = 0;
+            int at;
+            while ((at = pattern.indexOf("{}", from)) >= 0 && used < args.length) {
+                line.append(pattern, from, at).append(args[used++]);
+                from = at + 2;
+            }
+            line.append(pattern, from, pattern.length());
+            if (entry.sampleEvery > 1) {
+                line.append(" [sampled 1 in ").append(entry.sampleEvery).append(']');
+            }
+            line.append('\n');
+            for (int i = used; i < args.length; i++) {
+                if (args[i] instanceof Throwable) {
+                    StringWriter trace = new StringWriter();
+                    ((Throwable) args[i]).printStackTrace(new PrintWriter(trace));
+                    line.append(trace);
+                }
+            }
+        }
+
+        private void write(CharSequence text) {
+            try {
+                if (console != null) {
+                    console.append(text);
+                }
+                if (file != null) {
+                    if (out == null || written >= maxBytes) {
+                        roll();
+                    }
+                    out.append(text);
+                    written += text.length();
+                }
+            } catch (IOException e) {
+                // Nowhere left to report it; keep the console going
+                closeFile();
+            }
+        }
+
+        private void flush() {
+            try {
+                if (console != null) {
+                    console.flush();
+                }
+                if (out != null) {
+                    out.flush();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        /** Opens the file, first shifting chat-server.log to .1, .1 to .2 and so on if it is full. */
+        private void roll() throws IOException {
+            closeFile();
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            if (Files.exists(file) && Files.size(file) >= maxBytes) {
+                for (int i = maxFiles - 1; i >= 1; i--) {
+                    Path older = file.resolveSibling(file.getFileName() + "." + i);
+                    if (Files.exists(older)) {
+                        Files.move(older, file.resolveSibling(file.getFileName() + "." + (i + 1)),
+                                StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            written = Files.exists(file) ? Files.size(file) : 0;
+            out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), 1 << 16);
+        }
+
+        private void closeFile() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+                out = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,685 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+/**
+ * {@link MessageStore} as an append-only log of memory-mapped segment files in one
+ * directory, {@code 0.seg}, {@code 1.seg} and so on. Messages are appended in id order
+ * and never rewritten; marking a conversation read appends a small read marker
+ * instead of updating rows, and a message is read if a marker for its sender and
+ * recipient covers its id.
+ *
+ * <p>Each record is its body length, a CRC32C of the body, then the body: type, id,
+ * time, sender, recipient and content. The index is rebuilt in memory on
+ * {@link #open()} by scanning every segment: the position of each id, and the ids of
+ * each conversation and of each user, so a history page is a binary search and a
+ * few reads from the mapping. A torn record at the end of the last segment, left by
+ * a crash mid-append, fails its checksum and is cut off there.
+ *
+ * <p>Full segments are sealed. Read markers superseded by newer ones for the same pair
+ * are the only garbage; the {@code chat-store-compactor} thread rewrites a sealed
+ * segment without them once they take a quarter of it, and moves the rewrite over the
+ * original atomically.
+ *
+ * <p>The log belongs to one server. Cluster nodes need the shared database.
+ */
+class LogMessageStore implements MessageStore {
+
+    private static final byte MESSAGE = 1;
+    private static final byte READ = 2;
+    // Body length and checksum
+    private static final int HEADER_BYTES = 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long compactIntervalSeconds;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<Segment> segments = new ArrayList<>();
+    // Indexed by id - 1: segment number << 32 | offset, or -1 if the id isn't stored
+    private long[] positions = new long[1024];
+    // The highest id handed out, stored or not
+    private long lastId;
+    private final Map<String, Ids> conversations = new HashMap<>();
+    private final Map<String, Ids> byUser = new HashMap<>();
+    // recipient \0 sender -> the newest read marker for messages between them
+    private final Map<String, Marker> markers = new HashMap<>();
+    private ScheduledExecutorService compactor;
+
+    /** One decoded record; for a read marker, {@code id} is the newest id it covers. */
+    private record Entry(byte type, long id, long millis, String sender, String recipient, String content) {
+    }
+
+    private record Marker(long upTo, int segment, int offset, int bytes) {
+    }
+
+    LogMessageStore(Path dir, int segmentBytes, long compactIntervalSeconds) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.compactIntervalSeconds = compactIntervalSeconds;
+        Arrays.fill(positions, -1);
+    }
+
+    /** Maps every segment, rebuilds the index from it and starts the compactor. */
+    @Override
+    public void open() throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(dir);
+        List<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(COMPACT_SUFFIX)) {
+                    // A compaction that didn't finish; the segment it was rewriting is intact
+                    Files.delete(file);
+                } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                    numbers.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+        }
+        Collections.sort(numbers);
+
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < numbers.size(); i++) {
+                if (numbers.get(i) != i) {
+                    throw new IOException("Segment " + i + " is missing from " + dir);
+                }
+                int size = (int) Files.size(path(i));
+                boolean last = i == numbers.size() - 1;
+                // Only the last segment is appended to; sealed ones are mapped as they are
+                Segment segment = Segment.open(path(i), i, last ? Math.max(size, segmentBytes) : size);
+                segments.add(segment);
+                recover(segment, last);
+            }
+            if (segments.isEmpty()) {
+                segments.add(Segment.open(path(0), 0, segmentBytes));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Log.info("Message log ready: {} messages in {} segments in {} ms", lastId, segments.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-store-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactQuietly, compactIntervalSeconds, compactIntervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments) {
+                segment.force();
+                segment.close();
+            }
+        } catch (IOException e) {
+            Log.error("Error closing message log: {}", e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends the batch and forces it to disk before indexing it, so readers only see
+     * durable messages. If the append fails, its ids are not reused; records of it that
+     * did reach the disk are found by the next {@link #open()}.
+     */
+    @Override
+    public long[] append(List<Draft> drafts) throws IOException {
+        long[] ids = new long[drafts.size()];
+        long[] written = new long[drafts.size()];
+        long millis = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            Segment first = active();
+            int firstEnd = first.end;
+            try {
+                for (int i = 0; i < ids.length; i++) {
+                    Draft draft = drafts.get(i);
+                    ids[i] = ++lastId;
+                    written[i] = write(encode(MESSAGE, ids[i], millis, draft.sender(), draft.recipient(),
+                            draft.content()));
+                }
+                active().force();
+            } catch (IOException e) {
+                if (active() == first) {
+                    // Still in one segment: wipe the batch so a restart doesn't find it either
+                    first.zero(firstEnd, first.end);
+                    first.end = firstEnd;
+                }
+                throw e;
+            }
+            for (int i = 0; i < ids.length; i++) {
+                index(ids[i], written[i], drafts.get(i).sender(), drafts.get(i).recipient());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return ids;
+    }
+
+    @Override
+    public List<Message> received(String recipient) {
+        List<Message> messages = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Ids ids = byUser.get(recipient);
+            for (int i = 0; ids != null && i < ids.size; i++) {
+                Entry entry = read(position(ids.values[i]));
+                if (entry.recipient().equals(recipient)) {
+                    messages.add(toMessage(entry));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return messages;
+    }
+
+    @Override
+    public List<Message> conversation(String user, String contact, long beforeId, int limit) {
+        List<Message> messages = new ArrayList<>(limit);
+        lock.readLock().lock();
+        try {
+            Ids ids = conversations.get(conversationKey(user, contact));
+            if (ids != null) {
+                int end = beforeId > 0 ? ids.firstAbove(beforeId - 1) : ids.size;
+                for (int i = end - 1; i >= 0 && messages.size() < limit; i--) {
+                    messages.add(toMessage(read(position(ids.values[i]))));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return messages;
+    }
+
+    @Override
+    public List<Message> since(String user, long afterId, int limit) {
+        List<Message> messages = new ArrayList<>(limit);
+        lock.readLock().lock();
+        try {
+            Ids ids = byUser.get(user);
+            if (ids != null) {
+                for (int i = ids.firstAbove(afterId); i < ids.size && messages.size() < limit; i++) {
+                    messages.add(toMessage(read(position(ids.values[i]))));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return messages;
+    }
+
+    @Override
+    public List<Message> all(long afterId, int limit) {
+        List<Message> messages = new ArrayList<>(limit);
+        lock.readLock().lock();
+        try {
+            for (long id = Math.max(afterId, 0) + 1; id <= lastId && messages.size() < limit; id++) {
+                long position = position(id);
+                if (position >= 0) {
+                    messages.add(toMessage(read(position)));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return messages;
+    }
+
+    @Override
+    public List<Message> byIds(int[] ids) {
+        List<Message> messages = new ArrayList<>(ids.length);
+        lock.readLock().lock();
+        try {
+            for (int id : ids) {
+                long position = position(id);
+                if (position >= 0) {
+                    messages.add(toMessage(read(position)));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return messages;
+    }
+
+    @Override
+    public long lastId() {
+        lock.readLock().lock();
+        try {
+            return lastId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ReadResult markRead(String recipient, String sender) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Ids ids = conversations.get(conversationKey(recipient, sender));
+            Marker marker = markers.get(markerKey(recipient, sender));
+            long readUpTo = marker == null ? 0 : marker.upTo();
+            int count = 0;
+            long newest = 0;
+            // Newest first, down to what the last marker already covers
+            for (int i = ids == null ? -1 : ids.size - 1; i >= 0 && ids.values[i] > readUpTo; i--) {
+                Entry entry = read(position(ids.values[i]));
+                if (entry.sender().equals(sender) && entry.recipient().equals(recipient)) {
+                    count++;
+                    newest = Math.max(newest, entry.id());
+                }
+            }
+            if (count > 0) {
+                byte[] record = encode(READ, newest, System.currentTimeMillis(), sender, recipient, "");
+                long position = write(record);
+                active().force();
+                mark(recipient, sender, newest, (int) (position >>> 32), (int) position, record.length);
+            }
+            return new ReadResult(count, newest);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Map<String, Integer>> unreadCounts(String recipient) {
+        Map<String, Map<String, Integer>> counts = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            if (recipient == null) {
+                for (long id = 1; id <= lastId; id++) {
+                    long position = position(id);
+                    if (position >= 0) {
+                        countUnread(read(position), counts);
+                    }
+                }
+            } else {
+                Ids ids = byUser.get(recipient);
+                for (int i = 0; ids != null && i < ids.size; i++) {
+                    Entry entry = read(position(ids.values[i]));
+                    if (entry.recipient().equals(recipient)) {
+                        countUnread(entry, counts);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return counts;
+    }
+
+    /** Rewrites the sealed segments where superseded read markers take a quarter or more of the space. */
+    void compact() throws IOException {
+        List<Segment> candidates = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < segments.size() - 1; i++) {
+                Segment segment = segments.get(i);
+                if (segment.garbage > 0 && segment.garbage >= segment.end / 4) {
+                    candidates.add(segment);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (Segment segment : candidates) {
+            compact(segment);
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException e) {
+            Log.error("Error compacting message log: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Copies the live records of a sealed segment to a new file under the read lock,
+     * then swaps it in and moves the index over to it under the write lock.
+     */
+    private void compact(Segment segment) throws IOException {
+        Path temp = dir.resolve(segment.number + SEGMENT_SUFFIX + COMPACT_SUFFIX);
+        List<Entry> kept = new ArrayList<>();
+        List<int[]> moves = new ArrayList<>();
+        int size = 0;
+        lock.readLock().lock();
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int offset = 0; offset < segment.end; ) {
+                int length = HEADER_BYTES + segment.buffer.getInt(offset);
+                Entry entry = decode(segment.buffer, offset);
+                long here = position(segment.number, offset);
+                boolean live = entry.type() == MESSAGE
+                        ? position(entry.id()) == here
+                        : isCurrent(markers.get(markerKey(entry.recipient(), entry.sender())), segment.number, offset);
+                if (live) {
+                    ByteBuffer record = segment.buffer.slice(offset, length);
+                    while (record.hasRemaining()) {
+                        out.write(record);
+                    }
+                    kept.add(entry);
+                    moves.add(new int[]{offset, size, length});
+                    size += length;
+                }
+                offset += length;
+            }
+            out.force(true);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        int before = segment.end;
+        lock.writeLock().lock();
+        try {
+            Files.move(temp, segment.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Segment compacted = Segment.open(segment.path, segment.number, size);
+            compacted.end = size;
+            for (int i = 0; i < kept.size(); i++) {
+                Entry entry = kept.get(i);
+                int[] move = moves.get(i);
+                if (entry.type() == MESSAGE) {
+                    positions[(int) (entry.id() - 1)] = position(segment.number, move[1]);
+                } else {
+                    String key = markerKey(entry.recipient(), entry.sender());
+                    Marker marker = markers.get(key);
+                    if (isCurrent(marker, segment.number, move[0])) {
+                        markers.put(key, new Marker(marker.upTo(), segment.number, move[1], move[2]));
+                    } else {
+                        // Superseded while we were copying
+                        compacted.garbage += move[2];
+                    }
+                }
+            }
+            segments.set(segment.number, compacted);
+            segment.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Log.info("Compacted message log segment {} from {} to {} bytes", segment.number, before, size);
+    }
+
+    /** Indexes the valid records of a segment, cutting the last one off at a torn record. */
+    private void recover(Segment segment, boolean last) throws IOException {
+        int offset = 0;
+        while (offset + HEADER_BYTES <= segment.capacity) {
+            int length = segment.buffer.getInt(offset);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || length > segment.capacity - offset - HEADER_BYTES
+                    || !checksumMatches(segment.buffer, offset, length)) {
+                if (last) {
+                    Log.warn("Message log {} ends in a torn record at {}; truncating", segment.path, offset);
+                    segment.zero(offset, segment.capacity);
+                    segment.buffer.force();
+                } else {
+                    Log.error("Message log {} is corrupt at {}; skipping the rest of it", segment.path, offset);
+                }
+                break;
+            }
+            Entry entry = decode(segment.buffer, offset);
+            if (entry.type() == MESSAGE) {
+                if (entry.id() > lastId) {
+                    lastId = entry.id();
+                    index(entry.id(), position(segment.number, offset), entry.sender(), entry.recipient());
+                } else {
+                    Log.warn("Skipping message {} out of order in {}", entry.id(), segment.path);
+                }
+            } else {
+                mark(entry.recipient(), entry.sender(), entry.id(), segment.number, offset, HEADER_BYTES + length);
+            }
+            offset += HEADER_BYTES + length;
+        }
+        segment.end = offset;
+        segment.forced = offset;
+    }
+
+    /** Writes one record at the end of the log, sealing the active segment if it's full. */
+    private long write(byte[] record) throws IOException {
+        Segment segment = active();
+        if (record.length > segment.capacity - segment.end) {
+            if (record.length > segmentBytes) {
+                throw new IOException("Record of " + record.length + " bytes is larger than a segment");
+            }
+            segment.force();
+            segment = Segment.open(path(segments.size()), segments.size(), segmentBytes);
+            segments.add(segment);
+        }
+        int offset = segment.end;
+        segment.buffer.put(offset, record);
+        segment.end += record.length;
+        return position(segment.number, offset);
+    }
+
+    private void index(long id, long position, String sender, String recipient) {
+        if (id > positions.length) {
+            int length = positions.length;
+            positions = Arrays.copyOf(positions, (int) Math.max(id, 2L * length));
+            Arrays.fill(positions, length, positions.length, -1);
+        }
+        positions[(int) (id - 1)] = position;
+        conversations.computeIfAbsent(conversationKey(sender, recipient), k -> new Ids()).add(id);
+        byUser.computeIfAbsent(sender, u -> new Ids()).add(id);
+        if (!recipient.equals(sender)) {
+            byUser.computeIfAbsent(recipient, u -> new Ids()).add(id);
+        }
+    }
+
+    private void mark(String recipient, String sender, long upTo, int segment, int offset, int bytes) {
+        Marker previous = markers.put(markerKey(recipient, sender), new Marker(upTo, segment, offset, bytes));
+        if (previous != null) {
+            segments.get(previous.segment()).garbage += previous.bytes();
+        }
+    }
+
+    private void countUnread(Entry entry, Map<String, Map<String, Integer>> counts) {
+        if (!isRead(entry)) {
+            counts.computeIfAbsent(entry.recipient(), r -> new HashMap<>()).merge(entry.sender(), 1, Integer::sum);
+        }
+    }
+
+    private boolean isRead(Entry entry) {
+        Marker marker = markers.get(markerKey(entry.recipient(), entry.sender()));
+        return marker != null && entry.id() <= marker.upTo();
+    }
+
+    private Message toMessage(Entry entry) {
+        return new Message(entry.id(), entry.sender(), entry.recipient(), entry.content(),
+                new Timestamp(entry.millis()).toString(), isRead(entry));
+    }
+
+    private Entry read(long position) {
+        return decode(segments.get((int) (position >>> 32)).buffer, (int) position);
+    }
+
+    private long position(long id) {
+        return id >= 1 && id <= positions.length ? positions[(int) (id - 1)] : -1;
+    }
+
+    private Segment active() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private Path path(int number) {
+        return dir.resolve(number + SEGMENT_SUFFIX);
+    }
+
+    private static long position(int segment, int offset) {
+        return (long) segment << 32 | offset;
+    }
+
+    private static boolean isCurrent(Marker marker, int segment, int offset) {
+        return marker != null && marker.segment() == segment && marker.offset() == offset;
+    }
+
+    private static String conversationKey(String a, String b) {
+        return a.compareTo(b) <= 0 ? a + '\0' + b : b + '\0' + a;
+    }
+
+    private static String markerKey(String recipient, String sender) {
+        return recipient + '\0' + sender;
+    }
+
+    private static byte[] encode(byte type, long id, long millis, String sender, String recipient, String content) {
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] recipientBytes = recipient.getBytes(StandardCharsets.UTF_8);
+        byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + 8 + 4 + senderBytes.length + 4 + recipientBytes.length + 4 + contentBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + length);
+        record.putInt(length).putInt(0).put(type).putLong(id).putLong(millis)
+                .putInt(senderBytes.length).put(senderBytes)
+                .putInt(recipientBytes.length).put(recipientBytes)
+                .putInt(contentBytes.length).put(contentBytes);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), HEADER_BYTES, length);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    private static Entry decode(ByteBuffer buffer, int offset) {
+        int p = offset + HEADER_BYTES;
+        byte type = buffer.get(p);
+        long id = buffer.getLong(p + 1);
+        long millis = buffer.getLong(p + 9);
+        p += 17;
+        String sender = string(buffer, p);
+        p += 4 + buffer.getInt(p);
+        String recipient = string(buffer, p);
+        p += 4 + buffer.getInt(p);
+        return new Entry(type, id, millis, sender, recipient, string(buffer, p));
+    }
+
+    private static String string(ByteBuffer buffer, int offset) {
+        byte[] bytes = new byte[buffer.getInt(offset)];
+        buffer.get(offset + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static boolean checksumMatches(ByteBuffer buffer, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(offset + HEADER_BYTES, length));
+        return (int) crc.getValue() == buffer.getInt(offset + 4);
+    }
+
+    private static final class Segment {
+        final Path path;
+        final int number;
+        final int capacity;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // Guarded by the store's lock
+        int end;
+        int forced;
+        int garbage;
+
+        private Segment(Path path, int number, FileChannel channel, int capacity) throws IOException {
+            this.path = path;
+            this.number = number;
+            this.capacity = capacity;
+            this.channel = channel;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        /** Maps {@code capacity} bytes of the file, growing it if it's shorter. */
+        static Segment open(Path path, int number, int capacity) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                return new Segment(path, number, channel, capacity);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /** Writes what was appended since the last call to disk. */
+        void force() {
+            if (end > forced) {
+                buffer.force(forced, end - forced);
+                forced = end;
+            }
+        }
+
+        void zero(int from, int to) {
+            byte[] zeros = new byte[8192];
+            for (int offset = from; offset < to; offset += zeros.length) {
+                buffer.put(offset, zeros, 0, Math.min(zeros.length, to - offset));
+            }
+        }
+
+        void close() throws IOException {
+            // The mapping stays valid until it's collected
+            channel.close();
+        }
+    }
+
+    /** Ascending message ids, appended in order. */
+    private static final class Ids {
+        long[] values = new long[8];
+        int size;
+
+        void add(long id) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = id;
+        }
+
+        /** The index of the first id above {@code id}, or {@code size} if there is none. */
+        int firstAbove(long id) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] <= id) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where direct messages live. Everything that reads or writes {@code messages} goes
+ * through this, so the table can be swapped for another engine: chat.store picks
+ * {@code h2} (default, {@link JdbcMessageStore}) or {@code log}
+ * ({@link LogMessageStore}). Users, sync cursors, groups and group messages stay in
+ * the H2 database at chat.db.url either way: they are small next to direct messages,
+ * and the group tables are written and read by their own batches and queries.
+ *
+ * <p>Ids are assigned by the store in increasing order, and a message's read flag
+ * only ever goes from false to true, all messages from one sender to one recipient
+ * at a time. Writes come from the single {@link MessageWriter} thread; reads from
+ * any thread.
+ */
+interface MessageStore {
+
+    /** A message to be stored; the store assigns its id and timestamp. */
+    record Draft(String sender, String recipient, String content) {
+    }
+
+    /** A stored message; {@code timestamp} is in JDBC form, e.g. {@code 2024-05-01 14:03:27.5}. */
+    record Message(long id, String sender, String recipient, String content, String timestamp, boolean read) {
+    }
+
+    /** How many messages a mark-read changed, and the newest of them. */
+    record ReadResult(int count, long lastId) {
+    }
+
+    /** The store chosen by the chat.store.* system properties. */
+    static MessageStore fromSystemProperties() {
+        String engine = System.getProperty("chat.store", "h2");
+        if ("log".equalsIgnoreCase(engine)) {
+            return new LogMessageStore(
+                    Paths.get(System.getProperty("chat.store.dir", "./chatdb-log")),
+                    Integer.getInteger("chat.store.segmentBytes", 64 << 20),
+                    Long.getLong("chat.store.compactIntervalSeconds", 60));
+        }
+        return new JdbcMessageStore();
+    }
+
+    /** Recovers whatever was stored before and gets ready for reads and writes. */
+    void open() throws IOException;
+
+    /** Flushes and releases files; the store isn't used after this. */
+    void close();
+
+    /**
+     * Stores the messages durably, in order, and returns their ids. Either all are
+     * stored or, on an exception, none.
+     */
+    long[] append(List<Draft> drafts) throws IOException;
+
+    /** Every message {@code recipient} received, oldest first. */
+    List<Message> received(String recipient) throws IOException;
+
+    /**
+     * Up to {@code limit} messages between the two users with id below {@code beforeId},
+     * newest first.
+     */
+    List<Message> conversation(String user, String contact, long beforeId, int limit) throws IOException;
+
+    /** Up to {@code limit} messages {@code user} sent or received with id above {@code afterId}, oldest first. */
+    List<Message> since(String user, long afterId, int limit) throws IOException;
+
+    /** Up to {@code limit} messages of anyone with id above {@code afterId}, oldest first. */
+    List<Message> all(long afterId, int limit) throws IOException;
+
+    /** The messages with these ids, in no particular order; unknown ids are left out. */
+    List<Message> byIds(int[] ids) throws IOException;
+
+    /** The highest id stored, or 0 if there are none. */
+    long lastId() throws IOException;
+
+    /** Marks everything {@code sender} sent {@code recipient} as read. */
+    ReadResult markRead(String recipient, String sender) throws IOException;
+
+    /** Unread counts by sender for one recipient, or for every recipient if {@code recipient} is null. */
+    Map<String, Map<String, Integer>> unreadCounts(String recipient) throws IOException;
+}
@@ -0,0 +1,275 @@
+package com.chatapp.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind persistence for chat messages. Handlers enqueue messages and carry on
+ * with delivery; a single writer thread drains the queue and hands each batch's direct
+ * messages to the {@link MessageStore} in one append, and inserts its group messages
+ * with one {@code executeBatch}. Group messages always go to {@code group_messages} in
+ * H2, whichever store chat.store picks.
+ */
+class MessageWriter {
+
+    /** When a sender's connection may move on to its next command. */
+    enum Durability {
+        /** After the message's batch has committed. */
+        ACK_AFTER_COMMIT,
+        /** As soon as the message is on the queue; a crash can lose queued messages. */
+        ACK_AFTER_ENQUEUE
+    }
+
+    private static final String INSERT_GROUP_SQL = "INSERT INTO group_messages (sender_id, group_id, content, timestamp) " +
+            "VALUES ((SELECT id FROM users WHERE username = ?), (SELECT id FROM chat_groups WHERE name = ?), ?, " +
+            "CURRENT_TIMESTAMP())";
+    private static final LatencyHistogram INSERT_TIME = DatabaseConfig.queryTimer("insert_messages");
+
+    private final MessageStore store;
+    private final BlockingQueue<PendingWrite> queue;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final Durability durability;
+    private final Thread writerThread;
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong backpressureWaits = new AtomicLong();
+    private volatile boolean running = true;
+
+    MessageWriter(MessageStore store, int queueCapacity, int batchSize, long flushIntervalMillis,
+                  Durability durability) {
+        this.store = store;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.durability = durability;
+        this.writerThread = new Thread(this::writeLoop, "chat-message-writer");
+        this.writerThread.setDaemon(true);
+    }
+
+    /**
+     * Builds a writer from the chat.persist.* system properties. The flush interval
+     * defaults to 0: lingering only pays off with many concurrent senders, and in
+     * ack-after-commit mode it is added to every message of a single sender.
+     */
+    static MessageWriter fromSystemProperties(MessageStore store) {
+        String mode = System.getProperty("chat.persist.durability", "commit");
+        return new MessageWriter(store,
+                Integer.getInteger("chat.persist.queueCapacity", 10_000),
+                Integer.getInteger("chat.persist.batchSize", 100),
+                Long.getLong("chat.persist.flushIntervalMillis", 0),
+                "enqueue".equalsIgnoreCase(mode) ? Durability.ACK_AFTER_ENQUEUE : Durability.ACK_AFTER_COMMIT);
+    }
+
+    void start() {
+        writerThread.start();
+    }
+
+    Durability getDurability() {
+        return durability;
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    long getBackpressureWaits() {
+        return backpressureWaits.get();
+    }
+
+    /**
+     * Queues a message for insertion. When the queue is full this blocks the calling
+     * connection until the writer catches up, which pushes back on the sender's socket.
+     * The future completes with the generated message id once the batch commits.
+     */
+    CompletableFuture<Long> submit(String sender, String recipient, String content) {
+        PendingWrite write = new PendingWrite(sender, recipient, content, false);
+        enqueue(write);
+        return write.result;
+    }
+
+    /** Like {@link #submit}, for a group message: one row, whatever the group's size. */
+    CompletableFuture<Long> submitGroup(String sender, String group, String content) {
+        PendingWrite write = new PendingWrite(sender, group, content, true);
+        enqueue(write);
+        return write.result;
+    }
+
+    /**
+     * Returns once every message submitted before this call has been committed (or
+     * failed). Reads that must see delivered messages call this first; it is free when
+     * nothing is pending.
+     */
+    void awaitFlushed() {
+        if (outstanding.get() == 0) {
+            return;
+        }
+        PendingWrite barrier = new PendingWrite(null, null, null, false);
+        enqueue(barrier);
+        barrier.result.exceptionally(e -> null).join();
+    }
+
+    /** Stops accepting work and commits whatever is still queued. */
+    void shutdown() {
+        running = false;
+        writerThread.interrupt();
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(PendingWrite write) {
+        outstanding.incrementAndGet();
+        try {
+            if (!queue.offer(write)) {
+                backpressureWaits.incrementAndGet();
+                queue.put(write);
+            }
+        } catch (InterruptedException e) {
+            outstanding.decrementAndGet();
+            Thread.currentThread().interrupt();
+            write.result.completeExceptionally(e);
+        }
+    }
+
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // Whatever queued up during the previous commit forms the batch; a
+                // non-zero flush interval additionally lingers for stragglers
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    PendingWrite next = remaining > 0 && running ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // shutdown() interrupts; fall through and flush what we have
+                queue.drainTo(batch, batchSize - batch.size());
+            }
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingWrite> batch) {
+        List<PendingWrite> direct = new ArrayList<>(batch.size());
+        List<PendingWrite> group = new ArrayList<>();
+        for (PendingWrite write : batch) {
+            if (write.content != null) {
+                (write.group ? group : direct).add(write);
+            }
+        }
+
+        // The two go to different stores, so each can fail without the other
+        Throwable directFailure = null;
+        Throwable groupFailure = null;
+        if (!direct.isEmpty()) {
+            long start = System.nanoTime();
+            try {
+                List<MessageStore.Draft> drafts = new ArrayList<>(direct.size());
+                for (PendingWrite write : direct) {
+                    drafts.add(new MessageStore.Draft(write.sender, write.recipient, write.content));
+                }
+                long[] ids = store.append(drafts);
+                for (int i = 0; i < ids.length; i++) {
+                    direct.get(i).id = ids[i];
+                }
+            } catch (Exception e) {
+                directFailure = e;
+                Log.error("Error saving {} messages: {}", direct.size(), e.getMessage());
+            } finally {
+                INSERT_TIME.recordSince(start);
+            }
+        }
+        if (!group.isEmpty()) {
+            try {
+                insertGroup(group);
+            } catch (Exception e) {
+                groupFailure = e;
+                Log.error("Error saving {} group messages: {}", group.size(), e.getMessage());
+            }
+        }
+
+        for (PendingWrite write : batch) {
+            outstanding.decrementAndGet();
+            Throwable failure = write.group ? groupFailure : directFailure;
+            if (write.content == null) {
+                write.result.complete(0L);
+            } else if (failure != null) {
+                write.result.completeExceptionally(failure);
+            } else {
+                write.result.complete(write.id);
+            }
+        }
+    }
+
+    /** Inserts group messages with one batch in one transaction and records their generated ids. */
+    private static void insertGroup(List<PendingWrite> writes) throws SQLException {
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(INSERT_GROUP_SQL, Statement.RETURN_GENERATED_KEYS)) {
+                for (PendingWrite write : writes) {
+                    stmt.setString(1, write.sender);
+                    stmt.setString(2, write.recipient);
+                    stmt.setString(3, write.content);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                try (ResultSet keys = stmt.getGeneratedKeys()) {
+                    for (int i = 0; i < writes.size() && keys.next(); i++) {
+                        writes.get(i).id = keys.getLong(1);
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private static class PendingWrite {
+        final String sender;
+        /** The recipient's name, or the group's for a group message. */
+        final String recipient;
+        /** Null for a flush barrier. */
+        final String content;
+        final boolean group;
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+        // Set by the writer thread before it completes the result
+        long id;
+
+        PendingWrite(String sender, String recipient, String content, boolean group) {
+            this.sender = sender;
+            this.recipient = recipient;
+            this.content = content;
+            this.group = group;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.chatapp.server;
+
+import com.chatapp.protocol.Opcode;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * The server's metrics in one place: a latency histogram per client command,
+ * recorded around each dispatch, plus the query timers of {@link DatabaseConfig}
+ * and the counters the other components already keep. Nothing is computed until
+ * someone asks, either a Prometheus scrape of the local HTTP endpoint or a STATS
+ * command on the chat socket, so the message path pays two clock reads and an
+ * atomic increment per command.
+ */
+class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ChatServer server;
+    // Indexed by opcode ordinal; null except for commands sent after login
+    private final LatencyHistogram[] commandTimes = new LatencyHistogram[Opcode.values().length];
+
+    Metrics(ChatServer server) {
+        this.server = server;
+        for (Opcode opcode : Opcode.values()) {
+            if (opcode.code() > 0x10 && opcode.code() < 0x40) {
+                commandTimes[opcode.ordinal()] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /** Records one handled command that started at {@code startNanos}. */
+    void recordCommand(Opcode opcode, long startNanos) {
+        LatencyHistogram histogram = commandTimes[opcode.ordinal()];
+        if (histogram != null) {
+            histogram.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * Serves {@code GET /metrics} in Prometheus text format on chat.metrics.host
+     * (default 127.0.0.1) and chat.metrics.port (default 9464; -1 turns it off).
+     * A port that can't be bound is logged and the chat server runs without it.
+     */
+    void startHttpFromSystemProperties() {
+        int port = Integer.getInteger("chat.metrics.port", 9464);
+        if (port < 0) {
+            return;
+        }
+        String host = System.getProperty("chat.metrics.host", "127.0.0.1");
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(host, port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "chat-metrics");
+                t.setDaemon(true);
+                return t;
+            }));
+            http.start();
+            Log.info("Metrics on http://{}:{}/metrics", host, port);
+        } catch (IOException e) {
+            Log.warn("Metrics endpoint not started on port {}: {}", port, e.getMessage());
+        }
+    }
+
+    /** Everything in Prometheus text exposition format; durations in seconds. */
+    String prometheus() {
+        StringBuilder out = new StringBuilder(8192);
+        collect(new Sink() {
+            private String family;
+
+            @Override
+            public void value(String name, String type, String help, String label, String labelValue, double value) {
+                header(name, type, help);
+                out.append(name);
+                labels(label, labelValue, null);
+                out.append(' ').append(format(value)).append('\n');
+            }
+
+            @Override
+            public void timer(String name, String help, String label, String labelValue,
+                              LatencyHistogram.Snapshot snapshot) {
+                header(name, "summary", help);
+                for (double q : QUANTILES) {
+                    out.append(name);
+                    labels(label, labelValue, q);
+                    out.append(' ').append(format(snapshot.percentile(q) / 1e9)).append('\n');
+                }
+                out.append(name).append("_sum");
+                labels(label, labelValue, null);
+                out.append(' ').append(format(snapshot.sumNanos() / 1e9)).append('\n');
+                out.append(name).append("_count");
+                labels(label, labelValue, null);
+                out.append(' ').append(snapshot.count()).append('\n');
+            }
+
+            private void header(String name, String type, String help) {
+                if (!name.equals(family)) {
+                    family = name;
+                    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+                    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+                }
+            }
+
+            private void labels(String label, String labelValue, Double quantile) {
+                if (label == null && quantile == null) {
+                    return;
+                }
+                out.append('{');
+                if (label != null) {
+                    out.append(label).append("=\"").append(labelValue).append('"');
+                }
+                if (quantile != null) {
+                    out.append(label != null ? "," : "").append("quantile=\"").append(quantile).append('"');
+                }
+                out.append('}');
+            }
+        });
+        return out.toString();
+    }
+
+    /**
+     * The same metrics as flat name/value pairs for the STATS command, e.g.
+     * {@code command.MSG.p99_us}. Timers that never fired are left out.
+     */
+    Map<String, String> report() {
+        Map<String, String> values = new LinkedHashMap<>();
+        collect(new Sink() {
+            @Override
+            public void value(String name, String type, String help, String label, String labelValue, double value) {
+                values.put(key(name, labelValue), format(value));
+            }
+
+            @Override
+            public void timer(String name, String help, String label, String labelValue,
+                              LatencyHistogram.Snapshot snapshot) {
+                if (snapshot.count() == 0) {
+                    return;
+                }
+                String key = key(name.replace("_seconds", ""), labelValue);
+                values.put(key + ".count", String.valueOf(snapshot.count()));
+                values.put(key + ".p50_us", micros(snapshot.percentile(0.5)));
+                values.put(key + ".p99_us", micros(snapshot.percentile(0.99)));
+                values.put(key + ".max_us", micros(snapshot.maxNanos()));
+            }
+
+            private String key(String name, String labelValue) {
+                String key = name.substring("chat_".length());
+                return labelValue == null ? key : key + "." + labelValue;
+            }
+        });
+        return values;
+    }
+
+    private void collect(Sink sink) {
+        sink.value("chat_connected_clients", "gauge", "Logged-in connections.", null, null,
+                server.getConnectedCount());
+        for (Opcode opcode : Opcode.values()) {
+            LatencyHistogram histogram = commandTimes[opcode.ordinal()];
+            if (histogram != null) {
+                sink.timer("chat_command_seconds", "Time to handle one client command.", "command", opcode.name(),
+                        histogram.snapshot());
+            }
+        }
+        DatabaseConfig.getQueryTimes().forEach((query, histogram) ->
+                sink.timer("chat_db_query_seconds", "Time per query, from borrowing a connection to the last row.",
+                        "query", query, histogram.snapshot()));
+        sink.timer("chat_presence_fanout_seconds", "Time to send one presence flush to every subscriber.",
+                null, null, server.getPresenceFanOutTimes().snapshot());
+
+        ConnectionPool.Stats pool = DatabaseConfig.getPoolStats();
+        sink.value("chat_db_pool_active", "gauge", "Pooled connections lent out.", null, null, pool.active());
+        sink.value("chat_db_pool_idle", "gauge", "Pooled connections waiting to be borrowed.", null, null, pool.idle());
+        sink.value("chat_db_pool_acquires_total", "counter", "Connections borrowed.", null, null, pool.acquires());
+        sink.value("chat_db_pool_wait_max_seconds", "gauge", "Longest wait for a pooled connection.", null, null,
+                pool.maxWaitNanos() / 1e9);
+        sink.value("chat_db_statement_cache_hits_total", "counter", "Prepared statements reused.", null, null,
+                pool.statementCacheHits());
+        sink.value("chat_db_statement_cache_misses_total", "counter", "Prepared statements created.", null, null,
+                pool.statementCacheMisses());
+
+        MessageWriter writer = server.getMessageWriter();
+        sink.value("chat_message_writer_queue_depth", "gauge", "Messages waiting for the database.", null, null,
+                writer.getQueueDepth());
+        sink.value("chat_message_writer_backpressure_waits_total", "counter",
+                "Senders that waited for room in the write queue.", null, null, writer.getBackpressureWaits());
+
+        SlowConsumerPolicy.Stats outbound = server.getSlowConsumerPolicy().getStats();
+        sink.value("chat_outbound_queue_depth", "gauge", "Frames queued across all connections.", null, null,
+                server.getOutboundDepth());
+        sink.value("chat_outbound_frames_total", "counter", "Frames queued for clients.", null, null,
+                outbound.queued());
+        sink.value("chat_outbound_typing_dropped_total", "counter", "Typing frames dropped for slow clients.",
+                null, null, outbound.droppedTyping());
+        sink.value("chat_slow_consumer_disconnects_total", "counter", "Clients disconnected for a full queue.",
+                null, null, outbound.slowConsumerDisconnects());
+
+        PresenceService.Stats presence = server.getPresenceStats();
+        sink.value("chat_presence_changes_total", "counter", "Status changes recorded.", null, null,
+                presence.changes());
+        sink.value("chat_presence_frames_total", "counter", "Presence frames sent.", null, null,
+                presence.framesSent());
+        sink.value("chat_presence_deferred_total", "counter", "Presence updates held back for clients behind.",
+                null, null, presence.deferrals());
+        sink.value("chat_presence_subscribers", "gauge", "Connections with a presence subscription.", null, null,
+                presence.subscribers());
+
+        TypingThrottle.Stats typing = server.getTypingStats();
+        sink.value("chat_typing_received_total", "counter", "Typing events from clients.", null, null,
+                typing.received());
+        sink.value("chat_typing_forwarded_total", "counter", "Typing indicator changes sent.", null, null,
+                typing.forwarded());
+
+        ReceiptBatcher.Stats receipts = server.getReceiptStats();
+        sink.value("chat_receipts_total", "counter", "Send and read receipts queued.", null, null,
+                receipts.receipts());
+        sink.value("chat_receipt_frames_total", "counter", "RECEIPTS frames they were batched into.", null, null,
+                receipts.frames());
+
+        Cluster.Stats cluster = server.getClusterStats();
+        sink.value("chat_cluster_routes", "gauge", "Users connected to other nodes.", null, null, cluster.routes());
+        sink.value("chat_cluster_links_out", "gauge", "Links open to peer nodes.", null, null, cluster.linksOut());
+        sink.value("chat_cluster_links_in", "gauge", "Links peer nodes have open to this one.", null, null,
+                cluster.linksIn());
+        sink.value("chat_cluster_frames_sent_total", "counter", "Frames sent to peer nodes.", null, null,
+                cluster.framesSent());
+        sink.value("chat_cluster_frames_received_total", "counter", "Frames received from peer nodes.", null, null,
+                cluster.framesReceived());
+        sink.value("chat_cluster_frames_dropped_total", "counter", "Frames dropped for a peer too far behind.",
+                null, null, cluster.framesDropped());
+
+        SearchIndex.Stats search = server.getSearchStats();
+        sink.value("chat_search_indexed_messages", "gauge", "Messages in the search index.", null, null,
+                search.messages());
+        sink.value("chat_search_terms", "gauge", "Distinct terms in the search index.", null, null, search.terms());
+
+        sink.value("chat_log_dropped_total", "counter", "Log entries lost to a full buffer.", null, null,
+                Log.getDropped());
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15
+                ? String.valueOf((long) value)
+                : String.valueOf(value);
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e3);
+    }
+
+    /** Receives each metric once per collection, in a fixed order. */
+    private interface Sink {
+
+        void value(String name, String type, String help, String label, String labelValue, double value);
+
+        void timer(String name, String help, String label, String labelValue, LatencyHistogram.Snapshot snapshot);
+    }
+}
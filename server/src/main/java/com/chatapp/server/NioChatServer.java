@@ -0,0 +1,60 @@
+package com.chatapp.server;
+
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector-based front end for {@link ChatServer}. Sockets are spread round-robin
+ * over a fixed set of {@link NioEventLoop}s; parsed lines are handed to a small
+ * worker pool so blocking JDBC calls never stall a loop.
+ */
+class NioChatServer {
+
+    private final ChatServer server;
+    private final NioEventLoop[] loops;
+    private final ExecutorService workers;
+
+    NioChatServer(ChatServer server, int ioThreads) {
+        this.server = server;
+        this.loops = new NioEventLoop[Math.max(1, ioThreads)];
+        AtomicInteger workerIds = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(4, loops.length * 2), r -> {
+            Thread t = new Thread(r, "chat-worker-" + workerIds.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void start(int port) throws Exception {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(server, workers, "chat-io-" + i);
+            loops[i].start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            Log.info("Server started on port {} (nio, {} io loops)", port, loops.length);
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } finally {
+            for (NioEventLoop loop : loops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+            workers.shutdownNow();
+        }
+    }
+}
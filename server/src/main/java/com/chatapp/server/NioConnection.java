@@ -0,0 +1,290 @@
+package com.chatapp.server;
+
+import com.chatapp.protocol.BinaryCodec;
+import com.chatapp.protocol.Frame;
+import com.chatapp.protocol.Handshake;
+import com.chatapp.protocol.ProtocolException;
+import com.chatapp.protocol.TextCodec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client serviced by a {@link NioEventLoop}. Socket I/O happens on the loop thread;
+ * complete frames (text lines, or binary frames after a {@code HELLO:binary}
+ * handshake) are processed in arrival order on the worker pool, at most one
+ * worker per connection at a time.
+ */
+class NioConnection implements ClientConnection {
+
+    private static final int INITIAL_INBOUND_SIZE = 256;
+    private static final int MAX_FRAME_LENGTH = BinaryCodec.MAX_FRAME_LENGTH + 8;
+    private static final int MAX_FRAMES_PER_DRAIN = 64;
+    private static final int MAX_BUFFERS_PER_WRITE = 64;
+
+    private final ChatServer server;
+    private final NioEventLoop loop;
+    private final Executor workers;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+
+    // Unconsumed input, in read mode between calls; only touched by the loop thread
+    private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_INBOUND_SIZE).flip();
+    private int textScanned;
+    private boolean sawFirstFrame;
+    private volatile boolean binary;
+
+    private final Queue<Frame> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger outboxDepth = new AtomicInteger();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_BUFFERS_PER_WRITE];
+    private final SlowConsumerPolicy policy;
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean closeAfterFlush;
+    private volatile String username;
+
+    NioConnection(ChatServer server, NioEventLoop loop, Executor workers, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.loop = loop;
+        this.workers = workers;
+        this.channel = channel;
+        this.key = key;
+        this.policy = server.getSlowConsumerPolicy();
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public boolean send(Frame frame) {
+        if (closed.get()) {
+            return false;
+        }
+        switch (policy.admit(outboxDepth.get(), frame)) {
+            case QUEUE -> {
+                enqueue(frame.encoded(binary));
+                return true;
+            }
+            case DROP -> {
+                return false;
+            }
+            default -> {
+                ChatServer.SLOW_CONSUMERS.log("Disconnecting slow consumer {} ({} frames queued)", username, outboxDepth.get());
+                close();
+                return false;
+            }
+        }
+    }
+
+    public int getOutboundDepth() {
+        return outboxDepth.get();
+    }
+
+    private void enqueue(byte[] bytes) {
+        outboxDepth.incrementAndGet();
+        outbox.add(ByteBuffer.wrap(bytes));
+        if (writeRequested.compareAndSet(false, true)) {
+            loop.requestWrite(this);
+        }
+    }
+
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+        outbox.clear();
+        outboxDepth.set(0);
+        inbox.clear();
+        workers.execute(() -> server.handleDisconnect(this));
+    }
+
+    /** Loop thread: reads what is available and queues every complete frame. */
+    void onReadable(ByteBuffer readBuffer) {
+        readBuffer.clear();
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            Log.info("Client {} disconnected.", username);
+            close();
+            return;
+        }
+        if (read < 0) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        if (!append(readBuffer)) {
+            close();
+            return;
+        }
+
+        boolean queued = false;
+        try {
+            Frame frame;
+            while ((frame = nextFrame()) != null) {
+                if (!sawFirstFrame) {
+                    sawFirstFrame = true;
+                    if (Handshake.requestsBinary(frame)) {
+                        // Acknowledge in text, then parse everything after the hello as binary
+                        enqueue(Handshake.BINARY_HELLO.encoded(false));
+                        binary = true;
+                        continue;
+                    }
+                }
+                inbox.add(frame);
+                queued = true;
+            }
+        } catch (ProtocolException e) {
+            ChatServer.INVALID_COMMANDS.log("Protocol error from {}: {}", username, e.getMessage());
+            close();
+            return;
+        }
+        if (!inbound.hasRemaining() && inbound.capacity() > 64 * 1024) {
+            // Give back the memory of an unusually large frame once it is done
+            inbound = ByteBuffer.allocate(INITIAL_INBOUND_SIZE).flip();
+        }
+
+        if (queued && draining.compareAndSet(false, true)) {
+            workers.execute(this::drainInbox);
+        }
+    }
+
+    /** Adds newly read bytes to the unconsumed input. Returns false if a frame is too large. */
+    private boolean append(ByteBuffer bytes) {
+        inbound.compact();
+        if (inbound.remaining() < bytes.remaining()) {
+            int needed = inbound.position() + bytes.remaining();
+            if (needed > MAX_FRAME_LENGTH) {
+                return false;
+            }
+            int capacity = inbound.capacity();
+            while (capacity < needed) {
+                capacity *= 2;
+            }
+            inbound = ByteBuffer.allocate(capacity).put(inbound.flip());
+        }
+        inbound.put(bytes).flip();
+        return true;
+    }
+
+    /** The next complete frame in the input, or null if more bytes are needed. */
+    private Frame nextFrame() throws ProtocolException {
+        if (binary) {
+            return BinaryCodec.decode(inbound);
+        }
+        while (true) {
+            int start = inbound.position();
+            int newline = -1;
+            for (int i = start + textScanned; i < inbound.limit(); i++) {
+                if (inbound.get(i) == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline < 0) {
+                textScanned = inbound.remaining();
+                return null;
+            }
+            int end = newline > start && inbound.get(newline - 1) == '\r' ? newline - 1 : newline;
+            String line = new String(inbound.array(), start, end - start, StandardCharsets.UTF_8);
+            inbound.position(newline + 1);
+            textScanned = 0;
+            Frame frame = TextCodec.decode(line);
+            if (frame != null) {
+                return frame;
+            }
+        }
+    }
+
+    /** Loop thread: writes as much of the outbox as the socket accepts. */
+    void onWritable() {
+        writeRequested.set(false);
+        if (closed.get()) {
+            return;
+        }
+        try {
+            // Gather everything pending into as few write calls as the socket allows
+            while (!outbox.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buffer : outbox) {
+                    gather[count++] = buffer;
+                    if (count == gather.length) {
+                        break;
+                    }
+                }
+                channel.write(gather, 0, count);
+                int written = 0;
+                while (written < count && !gather[written].hasRemaining()) {
+                    outbox.poll();
+                    written++;
+                }
+                outboxDepth.addAndGet(-written);
+                Arrays.fill(gather, 0, count, null);
+                if (written < count) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeAfterFlush) {
+                close();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            close();
+        }
+    }
+
+    /** Worker thread: processes queued frames in order. */
+    private void drainInbox() {
+        int processed = 0;
+        Frame frame;
+        while (processed < MAX_FRAMES_PER_DRAIN && !closed.get() && (frame = inbox.poll()) != null) {
+            try {
+                handleFrame(frame);
+            } catch (Exception e) {
+                Log.error("Error handling message from {}: {}", username, e.getMessage());
+            }
+            processed++;
+        }
+        draining.set(false);
+        if (!inbox.isEmpty() && !closed.get() && draining.compareAndSet(false, true)) {
+            workers.execute(this::drainInbox);
+        }
+    }
+
+    private void handleFrame(Frame frame) {
+        if (closeAfterFlush) {
+            return;
+        }
+        if (username == null) {
+            if (!server.handleLogin(this, frame)) {
+                closeAfterFlush = true;
+                if (writeRequested.compareAndSet(false, true)) {
+                    loop.requestWrite(this);
+                }
+            }
+        } else {
+            server.handleCommand(this, frame);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * One selector thread. Owns the read buffer shared by all of its connections, so an
+ * idle connection only costs its channel and a few small objects.
+ */
+class NioEventLoop extends Thread {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final ChatServer server;
+    private final Executor workers;
+    private final Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    NioEventLoop(ChatServer server, Executor workers, String name) throws IOException {
+        super(name);
+        setDaemon(true);
+        this.server = server;
+        this.workers = workers;
+        this.selector = Selector.open();
+    }
+
+    void register(SocketChannel channel) {
+        pendingRegistrations.add(channel);
+        selector.wakeup();
+    }
+
+    /** Called from any thread when a connection has new outbound data. */
+    void requestWrite(NioConnection connection) {
+        pendingWrites.add(connection);
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                registerPending();
+                flushPending();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Closed from another thread, e.g. as a slow consumer
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Log.error("I/O loop {} stopped: {}", getName(), e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pendingRegistrations.poll()) != null) {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(server, this, workers, channel, key));
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private void flushPending() {
+        NioConnection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            connection.onWritable();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.chatapp.server;
+
+import com.chatapp.protocol.Commands.Presence;
+import com.chatapp.protocol.Commands.UserStatus;
+import com.chatapp.protocol.Frame;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Presence fan-out. Clients subscribe to the users they display; status changes are
+ * coalesced over a short window (only the latest status per user survives) and each
+ * subscriber then gets one PRESENCE frame covering all of its users that changed.
+ * Fan-out runs on this service's own thread, never on the connection that logged in.
+ * A subscriber whose queue is already deep gets nothing that window: its changes are
+ * held back, later ones overwriting earlier ones, and sent once it has caught up. A
+ * login burst therefore can't fill a slow client's queue with presence and get it
+ * disconnected.
+ *
+ * <p>A connection hears nothing until it subscribes. Older clients never do; with
+ * chat.presence.legacy=true they get every change as USER_STATUS until they
+ * subscribe, still batched and off the login thread. That is one frame per change
+ * for every such connection, so it is off by default: a login storm would cost
+ * a number of frames that grows with the square of the users. They are held back
+ * like a subscriber's, and never queued past the backlog depth in one window.
+ */
+class PresenceService {
+
+    private static final int MAX_SUBSCRIPTIONS = 10_000;
+
+    private final Predicate<String> isOnline;
+    private final long windowMillis;
+    private final int deferDepth;
+    private final boolean legacyFanOut;
+    private final ScheduledExecutorService scheduler;
+
+    // user -> connections that subscribed to that user
+    private final Map<String, Set<ClientConnection>> watchers = new ConcurrentHashMap<>();
+    // connection -> users it subscribed to
+    private final Map<ClientConnection, Set<String>> subscriptions = new ConcurrentHashMap<>();
+    private final Set<ClientConnection> unsubscribed = ConcurrentHashMap.newKeySet();
+    // connection -> changes held back while its queue was too deep, latest status per user
+    private final Map<ClientConnection, Map<String, Boolean>> deferred = new ConcurrentHashMap<>();
+    private final Map<ClientConnection, Map<String, Boolean>> deferredLegacy = new ConcurrentHashMap<>();
+
+    private final Map<String, Boolean> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong deferrals = new AtomicLong();
+    private final LatencyHistogram fanOutTimes = new LatencyHistogram();
+
+    /**
+     * @param deferDepth   queue depth from which a connection's changes are held back
+     * @param legacyFanOut whether connections that have not subscribed get every change
+     *                     as USER_STATUS
+     */
+    PresenceService(Predicate<String> isOnline, long windowMillis, int deferDepth, boolean legacyFanOut) {
+        this.isOnline = isOnline;
+        this.windowMillis = windowMillis;
+        this.deferDepth = deferDepth;
+        this.legacyFanOut = legacyFanOut;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-presence");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Presence window from chat.presence.windowMillis (default 50) and chat.presence.legacy
+     * (default false); changes are held back at the policy's backlog depth.
+     */
+    static PresenceService fromSystemProperties(Predicate<String> isOnline, SlowConsumerPolicy policy) {
+        return new PresenceService(isOnline, Long.getLong("chat.presence.windowMillis", 50),
+                policy.getBacklogDepth(), Boolean.getBoolean("chat.presence.legacy"));
+    }
+
+    /** A newly logged-in connection; with legacy fan-out on, it receives every change until it subscribes. */
+    void connected(ClientConnection client) {
+        if (legacyFanOut) {
+            unsubscribed.add(client);
+        }
+    }
+
+    void disconnected(ClientConnection client) {
+        unsubscribed.remove(client);
+        deferred.remove(client);
+        deferredLegacy.remove(client);
+        Set<String> users = subscriptions.remove(client);
+        if (users != null) {
+            for (String user : users) {
+                unwatch(user, client);
+            }
+        }
+    }
+
+    /**
+     * Replaces what {@code client} is subscribed to and sends it the current status
+     * of those users right away.
+     */
+    void subscribe(ClientConnection client, Collection<String> users) {
+        Set<String> wanted = new HashSet<>();
+        for (String user : users) {
+            if (wanted.size() == MAX_SUBSCRIPTIONS) {
+                break;
+            }
+            wanted.add(user);
+        }
+        unsubscribed.remove(client);
+        deferredLegacy.remove(client);
+        Set<String> previous = subscriptions.put(client, wanted);
+        if (previous != null) {
+            for (String user : previous) {
+                if (!wanted.contains(user)) {
+                    unwatch(user, client);
+                }
+            }
+        }
+        // Watch before taking the snapshot, so a change in between is sent rather than lost
+        for (String user : wanted) {
+            watchers.compute(user, (u, set) -> {
+                Set<ClientConnection> result = set != null ? set : ConcurrentHashMap.<ClientConnection>newKeySet();
+                result.add(client);
+                return result;
+            });
+        }
+        Map<String, Boolean> snapshot = new LinkedHashMap<>();
+        for (String user : wanted) {
+            snapshot.put(user, isOnline.test(user));
+        }
+        client.send(new Presence(snapshot));
+    }
+
+    /** Records a change; subscribers hear about it at the end of the current window. */
+    void statusChanged(String user, boolean online) {
+        changes.incrementAndGet();
+        pending.put(user, online);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Sends everything pending. Runs on the presence thread. */
+    void flush() {
+        // Reset first: a change recorded after this point schedules the next flush
+        flushScheduled.set(false);
+        Map<String, Boolean> batch = new LinkedHashMap<>();
+        for (Map.Entry<String, Boolean> entry : pending.entrySet()) {
+            // If it changed again meanwhile, leave the newer status for the next flush
+            if (pending.remove(entry.getKey(), entry.getValue())) {
+                batch.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (batch.isEmpty() && deferred.isEmpty() && deferredLegacy.isEmpty()) {
+            return;
+        }
+        flushes.incrementAndGet();
+        long start = System.nanoTime();
+
+        // What was held back goes first, so this batch's newer statuses overwrite it
+        Map<ClientConnection, Map<String, Boolean>> bySubscriber = new HashMap<>();
+        for (ClientConnection subscriber : deferred.keySet()) {
+            Map<String, Boolean> held = deferred.remove(subscriber);
+            if (held != null) {
+                bySubscriber.put(subscriber, held);
+            }
+        }
+        batch.forEach((user, online) -> {
+            for (ClientConnection subscriber : watchers.getOrDefault(user, Collections.emptySet())) {
+                bySubscriber.computeIfAbsent(subscriber, c -> new LinkedHashMap<>()).put(user, online);
+            }
+        });
+        bySubscriber.forEach((subscriber, changed) -> {
+            if (subscriber.getOutboundDepth() >= deferDepth) {
+                deferred.put(subscriber, changed);
+                deferrals.incrementAndGet();
+            } else {
+                subscriber.send(new Presence(changed));
+                framesSent.incrementAndGet();
+            }
+        });
+
+        if (!unsubscribed.isEmpty()) {
+            // Encoded once, shared by every legacy connection with room for all of them
+            List<Frame> frames = new ArrayList<>(batch.size());
+            batch.forEach((user, online) -> frames.add(new UserStatus(user, online).toFrame()));
+            for (ClientConnection client : unsubscribed) {
+                Map<String, Boolean> held = deferredLegacy.remove(client);
+                int room = deferDepth - client.getOutboundDepth();
+                if (held == null && frames.size() <= room) {
+                    for (Frame frame : frames) {
+                        client.send(frame);
+                    }
+                    framesSent.addAndGet(frames.size());
+                    continue;
+                }
+                // One frame per change, so send only what fits below the backlog depth and hold the rest
+                Map<String, Boolean> changed = held != null ? held : new LinkedHashMap<>();
+                changed.putAll(batch);
+                Iterator<Map.Entry<String, Boolean>> it = changed.entrySet().iterator();
+                for (int sent = 0; sent < room && it.hasNext(); sent++) {
+                    Map.Entry<String, Boolean> change = it.next();
+                    client.send(new UserStatus(change.getKey(), change.getValue()));
+                    framesSent.incrementAndGet();
+                    it.remove();
+                }
+                if (!changed.isEmpty()) {
+                    deferredLegacy.put(client, changed);
+                    deferrals.incrementAndGet();
+                }
+            }
+        }
+        fanOutTimes.recordSince(start);
+        if (!deferred.isEmpty() || !deferredLegacy.isEmpty()) {
+            // Try the held-back changes again next window
+            scheduleFlush();
+        }
+    }
+
+    Stats getStats() {
+        return new Stats(changes.get(), flushes.get(), framesSent.get(), deferrals.get(), subscriptions.size(),
+                unsubscribed.size());
+    }
+
+    /** Time each flush took to hand its frames to every subscriber. */
+    LatencyHistogram getFanOutTimes() {
+        return fanOutTimes;
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void unwatch(String user, ClientConnection client) {
+        watchers.computeIfPresent(user, (u, set) -> {
+            set.remove(client);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /** Point-in-time presence metrics; {@code deferrals} counts updates held back for a deep queue. */
+    record Stats(long changes, long flushes, long framesSent, long deferrals, int subscribers, int unsubscribed) {
+
+        @Override
+        public String toString() {
+            return String.format("changes=%d flushes=%d framesSent=%d deferrals=%d subscribers=%d unsubscribed=%d",
+                    changes, flushes, framesSent, deferrals, subscribers, unsubscribed);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.chatapp.server;
+
+import com.chatapp.protocol.Commands.Receipt;
+import com.chatapp.protocol.Commands.Receipts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Send acknowledgements and read receipts, collected per user over a short window
+ * and sent as one RECEIPTS frame, so an active sender gets a frame per window rather
+ * than two or three per message. Receipts are addressed by user name and looked up
+ * at flush time: a sender that reconnected within the window still gets them, and
+ * receipts for a user who is gone are dropped.
+ */
+class ReceiptBatcher {
+
+    private final Function<String, ClientConnection> connections;
+    private final long windowMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<String, List<Receipt>> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final AtomicLong receipts = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+
+    ReceiptBatcher(Function<String, ClientConnection> connections, long windowMillis) {
+        this.connections = connections;
+        this.windowMillis = windowMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-receipts");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Window from chat.receipts.windowMillis (default 20). */
+    static ReceiptBatcher fromSystemProperties(Function<String, ClientConnection> connections) {
+        return new ReceiptBatcher(connections, Long.getLong("chat.receipts.windowMillis", 20));
+    }
+
+    /** Queues a receipt for {@code user}; it goes out at the end of the current window. */
+    void add(String user, Receipt receipt) {
+        receipts.incrementAndGet();
+        pending.compute(user, (u, list) -> {
+            List<Receipt> result = list != null ? list : new ArrayList<>();
+            result.add(receipt);
+            return result;
+        });
+        if (flushScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Sends everything pending. Runs on the receipts thread. */
+    void flush() {
+        // Reset first: a receipt added after this point schedules the next flush
+        flushScheduled.set(false);
+        for (String user : pending.keySet()) {
+            List<Receipt> batch = pending.remove(user);
+            ClientConnection connection = batch == null ? null : connections.apply(user);
+            if (connection != null) {
+                connection.send(new Receipts(batch));
+                frames.incrementAndGet();
+            }
+        }
+    }
+
+    Stats getStats() {
+        return new Stats(receipts.get(), frames.get());
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /** Receipts queued, and RECEIPTS frames they went out in. */
+    record Stats(long receipts, long frames) {
+
+        @Override
+        public String toString() {
+            return String.format("receipts=%d frames=%d", receipts, frames);
+        }
+    }
+}
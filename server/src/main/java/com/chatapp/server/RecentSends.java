@@ -0,0 +1,54 @@
+package com.chatapp.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The last few SEND ids of each user and the message id each one was stored as, so a
+ * client retrying its pending sends after a reconnect gets the original id back
+ * instead of a second copy of the message. Only recent ids are kept, in memory: a
+ * retry of something older, or after a server restart, is stored again.
+ */
+class RecentSends {
+
+    private final int perUser;
+    private final Map<String, Map<String, CompletableFuture<Long>>> byUser = new ConcurrentHashMap<>();
+
+    RecentSends(int perUser) {
+        this.perUser = perUser;
+    }
+
+    /** Ids remembered per user from chat.dedupe.perUser (default 1000). */
+    static RecentSends fromSystemProperties() {
+        return new RecentSends(Integer.getInteger("chat.dedupe.perUser", 1000));
+    }
+
+    /**
+     * Claims {@code clientId} for a new message whose id will complete {@code id}.
+     * Returns null if the claim succeeded, or the future of the earlier send with the
+     * same id.
+     */
+    CompletableFuture<Long> claim(String user, String clientId, CompletableFuture<Long> id) {
+        Map<String, CompletableFuture<Long>> recent = byUser.computeIfAbsent(user, u -> new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<Long>> eldest) {
+                return size() > perUser;
+            }
+        });
+        synchronized (recent) {
+            return recent.putIfAbsent(clientId, id);
+        }
+    }
+
+    /** Forgets a send that failed, so a retry stores it. */
+    void release(String user, String clientId, CompletableFuture<Long> id) {
+        Map<String, CompletableFuture<Long>> recent = byUser.get(user);
+        if (recent != null) {
+            synchronized (recent) {
+                recent.remove(clientId, id);
+            }
+        }
+    }
+}
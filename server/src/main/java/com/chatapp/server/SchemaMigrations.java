@@ -0,0 +1,252 @@
+package com.chatapp.server;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Versioned schema changes, applied in order by {@link DatabaseConfig#initializeDatabase()}.
+ * The applied version is tracked in {@code schema_version}; never edit a migration
+ * once it has shipped, add a new one instead.
+ *
+ * <p>H2 commits every DDL statement as it runs, so a migration that fails partway
+ * can't be rolled back: the steps before the failure stay applied and the version is
+ * not recorded. Every step must therefore be safe to run again on the next start.
+ */
+class SchemaMigrations {
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "baseline users and messages tables",
+                    sql("CREATE TABLE IF NOT EXISTS users (" +
+                            "id INT AUTO_INCREMENT PRIMARY KEY, " +
+                            "username VARCHAR(50) UNIQUE, " +
+                            "password VARCHAR(256))"),
+                    sql("CREATE TABLE IF NOT EXISTS messages (" +
+                            "id INT AUTO_INCREMENT PRIMARY KEY, " +
+                            "sender_id INT, " +
+                            "sender_name VARCHAR(50), " +
+                            "recipient VARCHAR(50), " +
+                            "content TEXT, " +
+                            "timestamp TIMESTAMP, " +
+                            "read BOOLEAN DEFAULT FALSE, " +
+                            "FOREIGN KEY (sender_id) REFERENCES users(id))")),
+
+            // Messages reference both ends by user id; names are joined in from users.
+            // Copying into a new table is several times faster in H2 than a correlated
+            // UPDATE over every row followed by two DROP COLUMNs. Rows naming a user
+            // who has no users row can't get an id; they are set aside, as they were,
+            // in messages_unmatched rather than kept with a NULL end nobody can query.
+            // The copy is redone from scratch as long as the old table is there; once it
+            // has been dropped, messages_v2 holds the complete copy and only the rename is left.
+            new Migration(2, "integer recipient ids and indexes for the unread and history queries",
+                    ifColumnExists("MESSAGES", "RECIPIENT",
+                            sql("CREATE TABLE IF NOT EXISTS messages_unmatched AS SELECT m.* FROM messages m " +
+                                    "LEFT JOIN users s ON s.username = m.sender_name " +
+                                    "LEFT JOIN users r ON r.username = m.recipient " +
+                                    "WHERE COALESCE(m.sender_id, s.id) IS NULL OR r.id IS NULL"),
+                            sql("DROP TABLE IF EXISTS messages_v2"),
+                            sql("CREATE TABLE messages_v2 (" +
+                                    "id INT AUTO_INCREMENT PRIMARY KEY, " +
+                                    "sender_id INT, " +
+                                    "recipient_id INT, " +
+                                    "content TEXT, " +
+                                    "timestamp TIMESTAMP, " +
+                                    "read BOOLEAN DEFAULT FALSE)"),
+                            sql("INSERT INTO messages_v2 (id, sender_id, recipient_id, content, timestamp, read) " +
+                                    "SELECT m.id, COALESCE(m.sender_id, s.id), r.id, m.content, m.timestamp, m.read " +
+                                    "FROM messages m " +
+                                    "LEFT JOIN users s ON s.username = m.sender_name " +
+                                    "JOIN users r ON r.username = m.recipient " +
+                                    "WHERE COALESCE(m.sender_id, s.id) IS NOT NULL"),
+                            sql("DROP TABLE messages")),
+                    ifTableExists("MESSAGES_V2",
+                            sql("ALTER TABLE messages_v2 RENAME TO messages")),
+                    restartIdentity("messages", "id", "messages_unmatched"),
+                    ifTableExists("MESSAGES_UNMATCHED",
+                            reportSetAside("messages_unmatched", "{} messages name a sender or recipient with " +
+                                    "no users row; they were moved to messages_unmatched, restore the users and " +
+                                    "copy them back by hand")),
+                    sql("CREATE INDEX IF NOT EXISTS idx_messages_unread ON messages (recipient_id, read, sender_id)"),
+                    sql("CREATE INDEX IF NOT EXISTS idx_messages_recipient_time ON messages (recipient_id, timestamp)"),
+                    sql("ALTER TABLE messages ADD CONSTRAINT IF NOT EXISTS fk_messages_sender " +
+                            "FOREIGN KEY (sender_id) REFERENCES users(id)"),
+                    sql("ALTER TABLE messages ADD CONSTRAINT IF NOT EXISTS fk_messages_recipient " +
+                            "FOREIGN KEY (recipient_id) REFERENCES users(id)")),
+
+            // Keyset pagination of one conversation: each direction is a range scan on id
+            new Migration(3, "conversation index for paged history",
+                    sql("CREATE INDEX IF NOT EXISTS idx_messages_conversation ON messages (recipient_id, sender_id, id)")),
+
+            // Delta sync: a range scan on id per direction, from the cursor the user last saw
+            new Migration(4, "sync cursor and indexes for messages since a given id",
+                    sql("ALTER TABLE users ADD COLUMN IF NOT EXISTS sync_cursor BIGINT DEFAULT 0 NOT NULL"),
+                    sql("CREATE INDEX IF NOT EXISTS idx_messages_recipient_id ON messages (recipient_id, id)"),
+                    sql("CREATE INDEX IF NOT EXISTS idx_messages_sender_id ON messages (sender_id, id)")),
+
+            // A group message is one row however many members read it; each member's
+            // read state is the last id they have read
+            new Migration(5, "groups, members with their read position, and group messages",
+                    sql("CREATE TABLE IF NOT EXISTS chat_groups (" +
+                            "id INT AUTO_INCREMENT PRIMARY KEY, " +
+                            "name VARCHAR(50) UNIQUE NOT NULL, " +
+                            "created_at TIMESTAMP)"),
+                    sql("CREATE TABLE IF NOT EXISTS group_members (" +
+                            "group_id INT NOT NULL REFERENCES chat_groups(id), " +
+                            "user_id INT NOT NULL REFERENCES users(id), " +
+                            "last_read_id INT DEFAULT 0 NOT NULL, " +
+                            "PRIMARY KEY (group_id, user_id))"),
+                    sql("CREATE INDEX IF NOT EXISTS idx_group_members_user ON group_members (user_id)"),
+                    sql("CREATE TABLE IF NOT EXISTS group_messages (" +
+                            "id INT AUTO_INCREMENT PRIMARY KEY, " +
+                            "group_id INT NOT NULL REFERENCES chat_groups(id), " +
+                            "sender_id INT REFERENCES users(id), " +
+                            "content TEXT, " +
+                            "timestamp TIMESTAMP)"),
+                    sql("CREATE INDEX IF NOT EXISTS idx_group_messages_group ON group_messages (group_id, id)")),
+
+            // Messages to a name with no users row used to be stored with a NULL recipient,
+            // which nobody can read; they are set aside like migration 2's
+            new Migration(6, "messages always have a recipient",
+                    sql("CREATE TABLE IF NOT EXISTS messages_no_recipient AS " +
+                            "SELECT * FROM messages WHERE recipient_id IS NULL"),
+                    sql("DELETE FROM messages WHERE recipient_id IS NULL"),
+                    ifTableExists("MESSAGES_NO_RECIPIENT",
+                            reportSetAside("messages_no_recipient", "{} messages have no recipient; they were " +
+                                    "moved to messages_no_recipient")),
+                    sql("ALTER TABLE messages ALTER COLUMN recipient_id SET NOT NULL"))
+    );
+
+    private SchemaMigrations() {
+    }
+
+    /** Applies every migration newer than the database's recorded version. */
+    static void migrate(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (" +
+                    "version INT PRIMARY KEY, " +
+                    "description VARCHAR(200), " +
+                    "applied_at TIMESTAMP)");
+        }
+
+        int current = currentVersion(conn);
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version <= current) {
+                continue;
+            }
+            try (Statement stmt = conn.createStatement()) {
+                for (Step step : migration.steps) {
+                    step.apply(stmt);
+                }
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "INSERT INTO schema_version (version, description, applied_at) VALUES (?, ?, CURRENT_TIMESTAMP())")) {
+                stmt.setInt(1, migration.version);
+                stmt.setString(2, migration.description);
+                stmt.executeUpdate();
+            }
+            Log.info("Applied schema migration {}: {}", migration.version, migration.description);
+        }
+    }
+
+    static int currentVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static Step sql(String sql) {
+        return stmt -> stmt.execute(sql);
+    }
+
+    /** Runs {@code steps} only if the table exists; names as H2 stores them, in upper case. */
+    private static Step ifTableExists(String table, Step... steps) {
+        return stmt -> {
+            if (exists(stmt, table, null)) {
+                for (Step step : steps) {
+                    step.apply(stmt);
+                }
+            }
+        };
+    }
+
+    /** Runs {@code steps} only while the table still has the column, i.e. until they have replaced it. */
+    private static Step ifColumnExists(String table, String column, Step... steps) {
+        return stmt -> {
+            if (exists(stmt, table, column)) {
+                for (Step step : steps) {
+                    step.apply(stmt);
+                }
+            }
+        };
+    }
+
+    private static boolean exists(Statement stmt, String table, String column) throws SQLException {
+        DatabaseMetaData meta = stmt.getConnection().getMetaData();
+        try (ResultSet rs = column == null
+                ? meta.getTables(null, null, table, null)
+                : meta.getColumns(null, null, table, column)) {
+            return rs.next();
+        }
+    }
+
+    /** Logs {@code warning} with the number of rows a migration set aside in {@code table}, or drops it if empty. */
+    private static Step reportSetAside(String table, String warning) {
+        return stmt -> {
+            long rows;
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table)) {
+                rs.next();
+                rows = rs.getLong(1);
+            }
+            if (rows == 0) {
+                stmt.execute("DROP TABLE " + table);
+            } else {
+                Log.warn(warning, rows);
+            }
+        };
+    }
+
+    /**
+     * Rows copied with explicit ids don't advance H2's identity, so move it past them,
+     * and past any rows set aside in {@code others} that may be copied back later.
+     * Tables in {@code others} that don't exist (any more) are skipped.
+     */
+    private static Step restartIdentity(String table, String column, String... others) {
+        return stmt -> {
+            StringBuilder ids = new StringBuilder("SELECT " + column + " FROM " + table);
+            for (String other : others) {
+                if (!exists(stmt, other.toUpperCase(Locale.ROOT), null)) {
+                    continue;
+                }
+                ids.append(" UNION ALL SELECT ").append(column).append(" FROM ").append(other);
+            }
+            long next;
+            try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(" + column + "), 0) + 1 FROM (" + ids + ")")) {
+                rs.next();
+                next = rs.getLong(1);
+            }
+            stmt.execute("ALTER TABLE " + table + " ALTER COLUMN " + column + " RESTART WITH " + next);
+        };
+    }
+
+    private interface Step {
+        void apply(Statement stmt) throws SQLException;
+    }
+
+    private static class Migration {
+        final int version;
+        final String description;
+        final Step[] steps;
+
+        Migration(int version, String description, Step... steps) {
+            this.version = version;
+            this.description = description;
+            this.steps = steps;
+        }
+    }
+}
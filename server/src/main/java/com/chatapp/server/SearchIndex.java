@@ -0,0 +1,469 @@
+package com.chatapp.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over message content: for every term, the ascending ids of
+ * the messages containing it, and for every user the ids of the messages they sent
+ * or received. A search intersects the two, driving from the shorter list with
+ * binary searches into the longer, so its cost is bounded by the caller's own
+ * message count however common the words are.
+ *
+ * <p>The {@link MessageStore} stays the source of truth. The index is snapshotted to a
+ * file next to {@code chatdb} and, on startup, loaded from it and caught up with the
+ * messages stored since. New messages are added on the {@code chat-search} thread once
+ * their batch commits.
+ */
+class SearchIndex {
+
+    static final int MAX_QUERY_TERMS = 8;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final int CATCH_UP_BATCH = 10_000;
+    private static final int MAGIC = 0x43485358;
+    private static final int FORMAT_VERSION = 1;
+
+    /** Ranked message ids, best first; {@code hasMore} says whether more hits follow this page. */
+    record Page(int[] ids, boolean hasMore) {
+    }
+
+    record Stats(int messages, int terms, int lastIndexedId) {
+    }
+
+    private final Path file;
+    private final long snapshotIntervalSeconds;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final Map<String, Postings> byUser = new HashMap<>();
+    private int messages;
+    private int lastIndexedId;
+    private int lastSavedId;
+    private ScheduledExecutorService executor;
+
+    SearchIndex(Path file, long snapshotIntervalSeconds) {
+        this.file = file;
+        this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+    }
+
+    /** Builds an index from the chat.search.* system properties; the file defaults to {@code ./chatdb.search}. */
+    static SearchIndex fromSystemProperties() {
+        return new SearchIndex(
+                Paths.get(System.getProperty("chat.search.file", "./chatdb.search")),
+                Long.getLong("chat.search.snapshotIntervalSeconds", 300));
+    }
+
+    /**
+     * Loads the snapshot, indexes whatever the store has after it, and starts the
+     * thread that takes new messages and writes periodic snapshots.
+     */
+    void open(MessageStore store) throws IOException {
+        long start = System.nanoTime();
+        try {
+            load();
+        } catch (NoSuchFileException e) {
+            // First run; everything comes from the store
+        } catch (IOException e) {
+            Log.warn("Discarding search index {}: {}", file, e.getMessage());
+            clear();
+        }
+        int loaded = messages;
+        catchUp(store);
+        Log.info("Search index ready: {} messages ({} from the store) in {} ms", messages, messages - loaded,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-search");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::saveQuietly, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /** Writes a final snapshot. Messages submitted after this are picked up from the store next start. */
+    void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        saveQuietly();
+    }
+
+    /** Indexes a committed message on the index thread. Called in commit order. */
+    void submit(long id, String sender, String recipient, String content) {
+        executor.execute(() -> add((int) id, sender, recipient, content));
+    }
+
+    /** Indexes one message; ids at or below the last indexed one are already in. */
+    void add(int id, String sender, String recipient, String content) {
+        Set<String> terms = new LinkedHashSet<>();
+        tokenize(content, terms, Integer.MAX_VALUE);
+        lock.writeLock().lock();
+        try {
+            if (id <= lastIndexedId) {
+                return;
+            }
+            byUser.computeIfAbsent(sender, u -> new Postings()).add(id);
+            if (!recipient.equals(sender)) {
+                byUser.computeIfAbsent(recipient, u -> new Postings()).add(id);
+            }
+            for (String term : terms) {
+                postings.computeIfAbsent(term, t -> new Postings()).add(id);
+            }
+            messages++;
+            lastIndexedId = id;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Messages {@code user} sent or received that contain any of the query's terms,
+     * ranked by the summed idf of the terms they contain, newest first among equals.
+     * Returns hits {@code offset} to {@code offset + limit}.
+     */
+    Page search(String user, String query, int offset, int limit) {
+        Set<String> terms = new LinkedHashSet<>();
+        tokenize(query, terms, MAX_QUERY_TERMS);
+        int wanted = offset + limit + 1;
+
+        lock.readLock().lock();
+        try {
+            Postings scope = byUser.get(user);
+            List<int[]> matches = new ArrayList<>(terms.size());
+            List<Float> idf = new ArrayList<>(terms.size());
+            for (String term : terms) {
+                Postings list = postings.get(term);
+                if (scope != null && list != null) {
+                    matches.add(intersect(list, scope));
+                    idf.add((float) Math.log(1 + (double) messages / list.size));
+                }
+            }
+            int[] ranked = matches.size() == 1 ? newest(matches.get(0), wanted) : topScored(matches, idf, wanted);
+            int from = Math.min(offset, ranked.length);
+            int to = Math.min(offset + limit, ranked.length);
+            return new Page(Arrays.copyOfRange(ranked, from, to), ranked.length > offset + limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    Stats getStats() {
+        lock.readLock().lock();
+        try {
+            return new Stats(messages, postings.size(), lastIndexedId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Ids in both ascending lists, found by binary search from the shorter one. */
+    private static int[] intersect(Postings a, Postings b) {
+        Postings small = a.size <= b.size ? a : b;
+        Postings large = small == a ? b : a;
+        int[] result = new int[small.size];
+        int count = 0;
+        int from = 0;
+        for (int i = 0; i < small.size && from < large.size; i++) {
+            int found = Arrays.binarySearch(large.ids, from, large.size, small.ids[i]);
+            if (found >= 0) {
+                result[count++] = small.ids[i];
+                from = found + 1;
+            } else {
+                from = -found - 1;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /** One term: every hit scores the same, so the newest {@code wanted}, newest first. */
+    private static int[] newest(int[] ids, int wanted) {
+        int[] result = new int[Math.min(wanted, ids.length)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids[ids.length - 1 - i];
+        }
+        return result;
+    }
+
+    /**
+     * Several terms (or none): merge the sorted lists so each message is scored once,
+     * and keep the best {@code wanted} in a min-heap of (score, id) packed into longs.
+     */
+    private static int[] topScored(List<int[]> lists, List<Float> idf, int wanted) {
+        int k = lists.size();
+        int[] cursor = new int[k];
+        long[] heap = new long[wanted];
+        int heapSize = 0;
+        while (true) {
+            int id = Integer.MAX_VALUE;
+            for (int t = 0; t < k; t++) {
+                int[] list = lists.get(t);
+                if (cursor[t] < list.length && list[cursor[t]] < id) {
+                    id = list[cursor[t]];
+                }
+            }
+            if (id == Integer.MAX_VALUE) {
+                break;
+            }
+            float score = 0;
+            for (int t = 0; t < k; t++) {
+                int[] list = lists.get(t);
+                if (cursor[t] < list.length && list[cursor[t]] == id) {
+                    score += idf.get(t);
+                    cursor[t]++;
+                }
+            }
+            // Non-negative floats order like their bits, so this sorts by score, then id
+            long key = ((long) Float.floatToIntBits(score) << 32) | id;
+            if (heapSize < wanted) {
+                heap[heapSize] = key;
+                siftUp(heap, heapSize++);
+            } else if (key > heap[0]) {
+                heap[0] = key;
+                siftDown(heap, heapSize);
+            }
+        }
+
+        long[] best = Arrays.copyOf(heap, heapSize);
+        Arrays.sort(best);
+        int[] result = new int[heapSize];
+        for (int i = 0; i < heapSize; i++) {
+            result[i] = (int) best[heapSize - 1 - i];
+        }
+        return result;
+    }
+
+    private static void siftUp(long[] heap, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heap[parent] <= heap[i]) {
+                return;
+            }
+            long swap = heap[parent];
+            heap[parent] = heap[i];
+            heap[i] = swap;
+            i = parent;
+        }
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        int i = 0;
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && heap[left] < heap[smallest]) {
+                smallest = left;
+            }
+            if (right < size && heap[right] < heap[smallest]) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            long swap = heap[smallest];
+            heap[smallest] = heap[i];
+            heap[i] = swap;
+            i = smallest;
+        }
+    }
+
+    /** Lower-cased runs of letters and digits, {@value #MIN_TERM_LENGTH} to {@value #MAX_TERM_LENGTH} characters. */
+    static void tokenize(String text, Set<String> terms, int maxTerms) {
+        int length = text.length();
+        int i = 0;
+        while (i < length && terms.size() < maxTerms) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int termLength = i - start;
+            if (termLength >= MIN_TERM_LENGTH && termLength <= MAX_TERM_LENGTH) {
+                terms.add(text.substring(start, i).toLowerCase());
+            }
+        }
+    }
+
+    private void clear() {
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            byUser.clear();
+            messages = 0;
+            lastIndexedId = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes messages stored after the snapshot, a page at a time. Starts over if the
+     * snapshot is ahead of the store, i.e. the store was replaced.
+     */
+    private void catchUp(MessageStore store) throws IOException {
+        if (store.lastId() < lastIndexedId) {
+            Log.warn("Search index is ahead of the message store; rebuilding");
+            clear();
+        }
+        while (true) {
+            int before = lastIndexedId;
+            List<MessageStore.Message> page = store.all(before, CATCH_UP_BATCH);
+            for (MessageStore.Message message : page) {
+                add((int) message.id(), message.sender(), message.recipient(),
+                        message.content() == null ? "" : message.content());
+            }
+            if (page.size() < CATCH_UP_BATCH || lastIndexedId == before) {
+                return;
+            }
+        }
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException e) {
+            Log.error("Error saving search index: {}", e.getMessage());
+        }
+    }
+
+    /** Writes a snapshot to a temporary file and moves it over the previous one. */
+    void save() throws IOException {
+        lock.readLock().lock();
+        try {
+            if (lastIndexedId == lastSavedId) {
+                return;
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(lastIndexedId);
+                out.writeInt(messages);
+                writeLists(out, byUser);
+                writeLists(out, postings);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastSavedId = lastIndexedId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("not a search index, or an older format");
+            }
+            lock.writeLock().lock();
+            try {
+                lastIndexedId = in.readInt();
+                messages = in.readInt();
+                readLists(in, byUser);
+                readLists(in, postings);
+                lastSavedId = lastIndexedId;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /** Each key with its ids as varint gaps, which are mostly one or two bytes. */
+    private static void writeLists(DataOutputStream out, Map<String, Postings> lists) throws IOException {
+        out.writeInt(lists.size());
+        for (Map.Entry<String, Postings> entry : lists.entrySet()) {
+            Postings list = entry.getValue();
+            out.writeUTF(entry.getKey());
+            writeVarint(out, list.size);
+            int previous = 0;
+            for (int i = 0; i < list.size; i++) {
+                writeVarint(out, list.ids[i] - previous);
+                previous = list.ids[i];
+            }
+        }
+    }
+
+    private static void readLists(DataInputStream in, Map<String, Postings> lists) throws IOException {
+        int count = in.readInt();
+        for (int n = 0; n < count; n++) {
+            String key = in.readUTF();
+            int size = readVarint(in);
+            Postings list = new Postings(size);
+            int id = 0;
+            for (int i = 0; i < size; i++) {
+                id += readVarint(in);
+                list.ids[i] = id;
+            }
+            list.size = size;
+            lists.put(key, list);
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /** Ascending message ids for one term or user. */
+    private static final class Postings {
+        int[] ids;
+        int size;
+
+        Postings() {
+            this(2);
+        }
+
+        Postings(int capacity) {
+            ids = new int[Math.max(capacity, 1)];
+        }
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size + (size >> 1) + 1);
+            }
+            ids[size++] = id;
+        }
+    }
+}
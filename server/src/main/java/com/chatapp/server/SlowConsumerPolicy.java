@@ -0,0 +1,97 @@
+package com.chatapp.server;
+
+import com.chatapp.protocol.Frame;
+import com.chatapp.protocol.Opcode;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits what a connection may have queued for its client. Senders never wait on a
+ * recipient's socket; instead a recipient that falls behind first loses typing
+ * events (clients clear a stale indicator when the sender's next message arrives)
+ * and has its presence updates held back by {@link PresenceService} until it catches
+ * up, and one whose queue fills up is disconnected. Shared by all connections, so it also
+ * keeps the server-wide outbound counters.
+ */
+class SlowConsumerPolicy {
+
+    enum Action {
+        QUEUE,
+        DROP,
+        DISCONNECT
+    }
+
+    private final int capacity;
+    private final int typingDropDepth;
+    private final int backlogDepth;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong droppedTyping = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    /**
+     * @param capacity        frames a connection may have queued before it is disconnected
+     * @param typingDropDepth queue depth from which typing events are dropped; at or
+     *                        above {@code capacity} typing events are never dropped early
+     */
+    SlowConsumerPolicy(int capacity, int typingDropDepth) {
+        this.capacity = capacity;
+        this.typingDropDepth = typingDropDepth;
+        this.backlogDepth = Math.max(1, capacity / 4);
+    }
+
+    /**
+     * Builds a policy from chat.outbound.capacity (default 1024) and
+     * chat.outbound.policy: {@code drop-typing} (default) drops typing events once a
+     * quarter of the queue is used, {@code disconnect} only disconnects when it is full.
+     */
+    static SlowConsumerPolicy fromSystemProperties() {
+        int capacity = Integer.getInteger("chat.outbound.capacity", 1024);
+        boolean dropTyping = !"disconnect".equalsIgnoreCase(System.getProperty("chat.outbound.policy", "drop-typing"));
+        return new SlowConsumerPolicy(capacity, dropTyping ? Math.max(1, capacity / 4) : capacity);
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /** Queue depth from which a client counts as behind: a quarter of the capacity, whatever the policy. */
+    int getBacklogDepth() {
+        return backlogDepth;
+    }
+
+    /** Decides what to do with {@code frame} for a connection that already has {@code depth} frames queued. */
+    Action admit(int depth, Frame frame) {
+        if (depth >= capacity) {
+            disconnects.incrementAndGet();
+            return Action.DISCONNECT;
+        }
+        if (depth >= typingDropDepth && isTyping(frame)) {
+            droppedTyping.incrementAndGet();
+            return Action.DROP;
+        }
+        queued.incrementAndGet();
+        maxDepth.accumulateAndGet(depth + 1, Math::max);
+        return Action.QUEUE;
+    }
+
+    Stats getStats() {
+        return new Stats(queued.get(), droppedTyping.get(), disconnects.get(), maxDepth.get(), capacity);
+    }
+
+    private static boolean isTyping(Frame frame) {
+        return frame.opcode() == Opcode.TYPING_START || frame.opcode() == Opcode.TYPING_STOP;
+    }
+
+    /** Point-in-time outbound metrics; {@code maxDepth} is the deepest any queue has been. */
+    record Stats(long queued, long droppedTyping, long slowConsumerDisconnects, int maxDepth, int capacity) {
+
+        @Override
+        public String toString() {
+            return String.format("queued=%d droppedTyping=%d slowConsumerDisconnects=%d maxDepth=%d capacity=%d",
+                    queued, droppedTyping, slowConsumerDisconnects, maxDepth, capacity);
+        }
+    }
+}
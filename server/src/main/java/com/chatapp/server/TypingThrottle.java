@@ -0,0 +1,155 @@
+package com.chatapp.server;
+
+import com.chatapp.protocol.Commands.TypingStarted;
+import com.chatapp.protocol.Commands.TypingStopped;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Typing indicators, kept apart from messages: nothing here is stored or logged per
+ * event. For each sender and recipient it remembers what the recipient is being shown
+ * and forwards at most one change per interval; anything newer waits for the end of
+ * the interval, so a start/stop/start burst reaches the recipient as a single start,
+ * or as nothing if it ends where it began. Under backpressure these are also the
+ * first frames {@link SlowConsumerPolicy} drops.
+ */
+class TypingThrottle {
+
+    private final Function<String, ClientConnection> connections;
+    private final long intervalNanos;
+    private final ScheduledExecutorService scheduler;
+
+    // sender -> recipient -> indicator
+    private final Map<String, Map<String, Indicator>> bySender = new ConcurrentHashMap<>();
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong forwarded = new AtomicLong();
+
+    TypingThrottle(Function<String, ClientConnection> connections, long intervalMillis) {
+        this.connections = connections;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-typing");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Interval from chat.typing.intervalMillis (default 1000). */
+    static TypingThrottle fromSystemProperties(Function<String, ClientConnection> connections) {
+        return new TypingThrottle(connections, Long.getLong("chat.typing.intervalMillis", 1000));
+    }
+
+    /** {@code sender} started or stopped typing to {@code recipient}. */
+    void typing(String sender, String recipient, boolean typing) {
+        received.incrementAndGet();
+        if (connections.apply(recipient) == null) {
+            return;
+        }
+        Indicator indicator = bySender.computeIfAbsent(sender, s -> new ConcurrentHashMap<>())
+                .computeIfAbsent(recipient, r -> new Indicator(sender, recipient));
+        synchronized (indicator) {
+            indicator.wanted = typing;
+            if (indicator.flushScheduled) {
+                return;
+            }
+            long wait = indicator.lastChangeNanos + intervalNanos - System.nanoTime();
+            if (wait <= 0) {
+                forward(indicator);
+            } else {
+                indicator.flushScheduled = true;
+                scheduler.schedule(() -> flush(indicator), wait, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /** A delivered message ends its sender's typing; the stop is sent only if a start was. */
+    void messageSent(String sender, String recipient) {
+        Map<String, Indicator> recipients = bySender.get(sender);
+        Indicator indicator = recipients == null ? null : recipients.get(recipient);
+        if (indicator == null) {
+            return;
+        }
+        synchronized (indicator) {
+            indicator.wanted = false;
+            forward(indicator);
+        }
+    }
+
+    /**
+     * Clears the indicators a disconnected user left showing, and forgets what it was
+     * shown so its next session starts clean.
+     */
+    void disconnected(String user) {
+        Map<String, Indicator> recipients = bySender.remove(user);
+        if (recipients != null) {
+            for (Indicator indicator : recipients.values()) {
+                synchronized (indicator) {
+                    indicator.wanted = false;
+                    forward(indicator);
+                }
+            }
+        }
+        for (Map<String, Indicator> shownTo : bySender.values()) {
+            shownTo.remove(user);
+        }
+    }
+
+    Stats getStats() {
+        return new Stats(received.get(), forwarded.get());
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void flush(Indicator indicator) {
+        synchronized (indicator) {
+            indicator.flushScheduled = false;
+            forward(indicator);
+        }
+    }
+
+    /** Sends the wanted state if it differs from what the recipient shows. Caller holds the lock. */
+    private void forward(Indicator indicator) {
+        if (indicator.wanted == indicator.shown) {
+            return;
+        }
+        indicator.shown = indicator.wanted;
+        indicator.lastChangeNanos = System.nanoTime();
+        ClientConnection recipient = connections.apply(indicator.recipient);
+        if (recipient != null) {
+            recipient.send(indicator.shown ? new TypingStarted(indicator.sender) : new TypingStopped(indicator.sender));
+            forwarded.incrementAndGet();
+        }
+    }
+
+    private static final class Indicator {
+        final String sender;
+        final String recipient;
+        boolean wanted;
+        boolean shown;
+        boolean flushScheduled;
+        long lastChangeNanos = System.nanoTime() - Long.MAX_VALUE / 2;
+
+        Indicator(String sender, String recipient) {
+            this.sender = sender;
+            this.recipient = recipient;
+        }
+    }
+
+    /** Typing events from clients, and indicator changes sent on to recipients. */
+    record Stats(long received, long forwarded) {
+
+        @Override
+        public String toString() {
+            return String.format("received=%d forwarded=%d", received, forwarded);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unread message counts per recipient and sender, kept in memory so the unread
+ * commands don't aggregate over the {@link MessageStore}. Counts go up when a message is
+ * accepted (before its batch commits) and down by the number of rows a mark-read
+ * actually updated, so they agree with the store once pending writes land.
+ */
+class UnreadCounters {
+
+    private final MessageStore store;
+    private final Map<String, Map<String, AtomicInteger>> byRecipient = new ConcurrentHashMap<>();
+
+    UnreadCounters(MessageStore store) {
+        this.store = store;
+    }
+
+    /** Replaces all counts with the unread totals currently in the store. */
+    void rebuild() throws IOException {
+        byRecipient.clear();
+        store.unreadCounts(null).forEach((recipient, senders) ->
+                senders.forEach((sender, count) -> counter(recipient, sender).set(count)));
+    }
+
+    /**
+     * Replaces one recipient's counts with the store's. In a cluster, messages to a
+     * user are counted by whichever node they reached, so the node the user logs in to
+     * reloads them.
+     */
+    void reload(String recipient) throws IOException {
+        Map<String, AtomicInteger> senders = new ConcurrentHashMap<>();
+        store.unreadCounts(recipient).getOrDefault(recipient, Map.of())
+                .forEach((sender, count) -> senders.put(sender, new AtomicInteger(count)));
+        byRecipient.put(recipient, senders);
+    }
+
+    /** Returns the recipient's new unread count from this sender. */
+    int increment(String recipient, String sender) {
+        return counter(recipient, sender).incrementAndGet();
+    }
+
+    /** Takes back {@code count} messages (marked read, or never stored). Returns the new count. */
+    int subtract(String recipient, String sender, int count) {
+        Map<String, AtomicInteger> senders = byRecipient.get(recipient);
+        AtomicInteger counter = senders == null ? null : senders.get(sender);
+        if (counter == null) {
+            return 0;
+        }
+        return counter.updateAndGet(current -> Math.max(0, current - count));
+    }
+
+    int get(String recipient, String sender) {
+        Map<String, AtomicInteger> senders = byRecipient.get(recipient);
+        AtomicInteger counter = senders == null ? null : senders.get(sender);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /** All non-zero counts for a recipient, by sender. */
+    Map<String, Integer> snapshot(String recipient) {
+        Map<String, Integer> result = new HashMap<>();
+        Map<String, AtomicInteger> senders = byRecipient.get(recipient);
+        if (senders != null) {
+            senders.forEach((sender, counter) -> {
+                int count = counter.get();
+                if (count > 0) {
+                    result.put(sender, count);
+                }
+            });
+        }
+        return result;
+    }
+
+    private AtomicInteger counter(String recipient, String sender) {
+        return byRecipient.computeIfAbsent(recipient, r -> new ConcurrentHashMap<>())
+                .computeIfAbsent(sender, s -> new AtomicInteger());
+    }
+}
@@ -0,0 +1,89 @@
+package com.chatapp.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Every registered username, kept in memory as one sorted array so user lookups and
+ * prefix searches are binary searches instead of queries on {@code users}. Readers
+ * never lock; the rare additions copy the array.
+ */
+class UserDirectory {
+
+    private static final String[] NONE = new String[0];
+
+    private volatile String[] names = NONE;
+
+    /** Replaces the directory with the usernames currently in the database. */
+    void load() throws SQLException {
+        List<String> loaded = new ArrayList<>();
+        try (Connection conn = DatabaseConfig.getConnection()) {
+            String sql = "SELECT username FROM users";
+            try (PreparedStatement stmt = conn.prepareStatement(sql);
+                 ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    loaded.add(rs.getString("username"));
+                }
+            }
+        }
+        replace(loaded);
+    }
+
+    /** Replaces the directory with {@code usernames}, in any order. */
+    void replace(Collection<String> usernames) {
+        String[] sorted = usernames.toArray(NONE);
+        Arrays.sort(sorted);
+        synchronized (this) {
+            names = sorted;
+        }
+    }
+
+    /** Adds a user registered since the last {@link #load()}; a no-op if already known. */
+    synchronized void add(String username) {
+        String[] current = names;
+        int index = Arrays.binarySearch(current, username);
+        if (index >= 0) {
+            return;
+        }
+        int insertAt = -index - 1;
+        String[] next = new String[current.length + 1];
+        System.arraycopy(current, 0, next, 0, insertAt);
+        next[insertAt] = username;
+        System.arraycopy(current, insertAt, next, insertAt + 1, current.length - insertAt);
+        names = next;
+    }
+
+    boolean contains(String username) {
+        return Arrays.binarySearch(names, username) >= 0;
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    /**
+     * Up to {@code limit} usernames starting with {@code prefix}, in order, beginning
+     * after {@code after} (exclusive; empty for the first page).
+     */
+    List<String> search(String prefix, String after, int limit) {
+        String[] current = names;
+        String from = after.compareTo(prefix) > 0 ? after : prefix;
+        int index = Arrays.binarySearch(current, from);
+        int start = index < 0 ? -index - 1 : from.equals(after) ? index + 1 : index;
+
+        List<String> result = new ArrayList<>(Math.min(limit, 64));
+        for (int i = start; i < current.length && result.size() < limit; i++) {
+            if (!current[i].startsWith(prefix)) {
+                break;
+            }
+            result.add(current[i]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,304 @@
+package com.chatapp.server;
+
+import com.chatapp.protocol.Command;
+import com.chatapp.protocol.Commands;
+import com.chatapp.protocol.Commands.Login;
+import com.chatapp.protocol.Commands.LoginFailed;
+import com.chatapp.protocol.Commands.LoginSucceeded;
+import com.chatapp.protocol.Commands.NodeHello;
+import com.chatapp.protocol.Commands.Presence;
+import com.chatapp.protocol.Commands.Receipt;
+import com.chatapp.protocol.Commands.Receipts;
+import com.chatapp.protocol.Commands.Receive;
+import com.chatapp.protocol.Commands.Send;
+import com.chatapp.protocol.Commands.SendMessage;
+import com.chatapp.protocol.Commands.SubscribePresence;
+import com.chatapp.protocol.Commands.Typing;
+import com.chatapp.protocol.Commands.TypingStarted;
+import com.chatapp.protocol.Frame;
+import com.chatapp.protocol.ProtocolReader;
+import com.chatapp.protocol.ProtocolWriter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Two nodes, a and b, in one JVM on the shared in-memory database, with clients on
+ * each. Node c is in the peer list but never started; the tests speak for it over a
+ * raw link to check what a node accepts and how it forgets a peer's users.
+ */
+class ClusterTest {
+
+    private static final String SECRET = "cluster-test-secret";
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private static ChatServer a;
+    private static ChatServer b;
+    private static int aPort;
+    private static int bPort;
+    private static int aClusterPort;
+
+    private static int run;
+
+    private final List<AutoCloseable> open = new ArrayList<>();
+
+    @BeforeAll
+    static void startNodes() throws Exception {
+        aPort = freePort();
+        bPort = freePort();
+        aClusterPort = freePort();
+        String peers = "a@127.0.0.1:" + aClusterPort + ",b@127.0.0.1:" + freePort() + ",c@127.0.0.1:" + freePort();
+        System.setProperty("chat.cluster.secret", SECRET);
+        System.setProperty("chat.cluster.peers", peers);
+        try {
+            a = startNode("a", aPort);
+            b = startNode("b", bPort);
+        } finally {
+            // The properties are read when a ChatServer is created; other tests run without a cluster
+            System.clearProperty("chat.cluster.node");
+            System.clearProperty("chat.cluster.secret");
+            System.clearProperty("chat.cluster.peers");
+        }
+        await(() -> a.getClusterStats().linksIn() == 1 && b.getClusterStats().linksIn() == 1);
+    }
+
+    private static ChatServer startNode(String node, int port) throws Exception {
+        System.setProperty("chat.cluster.node", node);
+        ChatServer server = new ChatServer();
+        server.startCluster();
+        Thread listener = new Thread(() -> {
+            try {
+                server.start(port);
+            } catch (Exception e) {
+                Log.error("Node {} stopped: {}", node, e.getMessage());
+            }
+        }, "cluster-test-" + node);
+        listener.setDaemon(true);
+        listener.start();
+        return server;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for the cluster");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    @AfterEach
+    void closeClients() throws Exception {
+        for (AutoCloseable closeable : open) {
+            closeable.close();
+        }
+    }
+
+    /** Registers fresh users for one test, since every test shares the database and both nodes. */
+    private static List<String> users(String... names) throws SQLException {
+        int n = ++run;
+        List<String> users = new ArrayList<>();
+        try (Connection conn = DatabaseConfig.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "INSERT INTO users (username, password) VALUES (?, 'pass')")) {
+            for (String name : names) {
+                // Other tests register alice1, alice2, ... in the same database
+                String user = name + "_cluster" + n;
+                stmt.setString(1, user);
+                stmt.executeUpdate();
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    private TestClient login(String user, int port) throws Exception {
+        TestClient client = new TestClient(port);
+        open.add(client);
+        client.send(new Login(user, "pass"));
+        client.expect(LoginSucceeded.class, ok -> true);
+        return client;
+    }
+
+    @Test
+    void messagesReachAUserOnTheOtherNodeWithReceipts() throws Exception {
+        List<String> users = users("alice", "bob");
+        String alice = users.get(0);
+        String bob = users.get(1);
+        TestClient onA = login(alice, aPort);
+        TestClient onB = login(bob, bPort);
+        await(() -> a.isOnline(bob) && b.isOnline(alice));
+
+        onA.send(new Send(bob, "k1", "hello from a"));
+        onB.expect(Receive.class, receive -> receive.sender().equals(alice)
+                && receive.formatted().endsWith(alice + ": hello from a"));
+        Set<String> kinds = new HashSet<>();
+        while (kinds.size() < 2) {
+            Receipts receipts = onA.expect(Receipts.class, r -> true);
+            for (Receipt receipt : receipts.receipts()) {
+                assertEquals("k1", receipt.ref());
+                kinds.add(receipt.kind());
+            }
+        }
+        assertEquals(Set.of(Receipt.STORED, Receipt.DELIVERED), kinds);
+
+        onB.send(new SendMessage(alice, "plain MSG from b"));
+        onA.expect(Receive.class, receive -> receive.formatted().endsWith(bob + ": plain MSG from b"));
+    }
+
+    @Test
+    void messagesToAUserWhoDoesNotExistAreRefused() throws Exception {
+        String alice = users("alice").get(0);
+        TestClient onA = login(alice, aPort);
+        onA.send(new SendMessage("nobody" + run, "lost"));
+        onA.expect(LoginFailed.class, failed -> true);
+        onA.send(new Send("nobody" + run, "k1", "lost"));
+        onA.expect(LoginFailed.class, failed -> true);
+        onA.expect(Receipts.class, receipts -> receipts.receipts().equals(List.of(Receipt.failed("k1"))));
+
+        // Registered after the nodes loaded their directories
+        String eve = users("eve").get(0);
+        onA.send(new Send(eve, "k2", "kept"));
+        onA.expect(Receipts.class, receipts -> receipts.receipts().get(0).kind().equals(Receipt.STORED));
+        try (Connection conn = DatabaseConfig.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM messages WHERE content = 'lost'")) {
+            rs.next();
+            assertEquals(0, rs.getInt(1));
+        }
+    }
+
+    @Test
+    void presenceAndTypingCrossNodes() throws Exception {
+        List<String> users = users("alice", "bob");
+        String alice = users.get(0);
+        String bob = users.get(1);
+        TestClient onA = login(alice, aPort);
+        onA.send(new SubscribePresence(List.of(bob)));
+        onA.expect(Presence.class, presence -> Boolean.FALSE.equals(presence.online().get(bob)));
+
+        TestClient onB = login(bob, bPort);
+        onA.expect(Presence.class, presence -> Boolean.TRUE.equals(presence.online().get(bob)));
+
+        onB.send(new Typing(alice));
+        onA.expect(TypingStarted.class, typing -> typing.sender().equals(bob));
+
+        onB.close();
+        onA.expect(Presence.class, presence -> Boolean.FALSE.equals(presence.online().get(bob)));
+    }
+
+    @Test
+    void aLinkWithTheWrongSecretIsRefused() throws Exception {
+        String mallory = users("mallory").get(0);
+        try (Socket socket = new Socket("127.0.0.1", aClusterPort)) {
+            socket.setSoTimeout((int) TIMEOUT_MILLIS);
+            ProtocolWriter out = new ProtocolWriter(socket.getOutputStream());
+            out.setBinary(true);
+            out.write(new NodeHello("c", "not-the-secret", List.of(mallory)).toFrame());
+            // Closed by node a without a reply
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        assertFalse(a.isOnline(mallory));
+    }
+
+    @Test
+    void aPeersUsersGoOfflineWhenItsLinkCloses() throws Exception {
+        List<String> users = users("alice", "carol");
+        String alice = users.get(0);
+        String carol = users.get(1);
+        TestClient onA = login(alice, aPort);
+        onA.send(new SubscribePresence(List.of(carol)));
+        onA.expect(Presence.class, presence -> Boolean.FALSE.equals(presence.online().get(carol)));
+
+        try (Socket socket = new Socket("127.0.0.1", aClusterPort)) {
+            ProtocolWriter out = new ProtocolWriter(socket.getOutputStream());
+            out.setBinary(true);
+            out.write(new NodeHello("c", SECRET, List.of(carol)).toFrame());
+            onA.expect(Presence.class, presence -> Boolean.TRUE.equals(presence.online().get(carol)));
+            assertTrue(a.isOnline(carol));
+        }
+        onA.expect(Presence.class, presence -> Boolean.FALSE.equals(presence.online().get(carol)));
+        assertFalse(a.isOnline(carol));
+        assertEquals(1, a.getClusterStats().linksIn());
+    }
+
+    /** A text-protocol client whose frames are read on a thread of their own. */
+    private static final class TestClient implements AutoCloseable {
+        private final Socket socket;
+        private final ProtocolWriter out;
+        private final BlockingQueue<Command> received = new LinkedBlockingQueue<>();
+
+        TestClient(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            out = new ProtocolWriter(socket.getOutputStream());
+            ProtocolReader in = new ProtocolReader(socket.getInputStream());
+            Thread reader = new Thread(() -> {
+                try {
+                    Frame frame;
+                    while ((frame = in.readFrame()) != null) {
+                        received.add(Commands.decode(frame));
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }, "cluster-test-client");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(Command command) throws IOException {
+            out.write(command.toFrame());
+        }
+
+        /** The next {@code type} frame that matches, skipping everything before it. */
+        <T extends Command> T expect(Class<T> type, Predicate<T> matches) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            List<Command> skipped = new ArrayList<>();
+            while (true) {
+                Command command = received.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                if (command == null) {
+                    return fail("No matching " + type.getSimpleName() + "; got " + skipped);
+                }
+                if (type.isInstance(command) && matches.test(type.cast(command))) {
+                    return type.cast(command);
+                }
+                skipped.add(command);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
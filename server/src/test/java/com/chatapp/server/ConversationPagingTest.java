@@ -0,0 +1,149 @@
+package com.chatapp.server;
+
+import com.chatapp.server.MessageStore.Draft;
+import com.chatapp.server.MessageStore.Message;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Keyset paging of {@link MessageStore#conversation}, the same on both stores. */
+class ConversationPagingTest {
+
+    private static int run;
+
+    @TempDir
+    Path dir;
+
+    // Every test gets its own users, since the H2 store shares one in-memory database
+    private String alice;
+    private String bob;
+    private String carol;
+
+    private MessageStore open(String engine) throws IOException, SQLException {
+        int n = ++run;
+        alice = "alice" + n;
+        bob = "bob" + n;
+        carol = "carol" + n;
+        MessageStore store;
+        if ("log".equals(engine)) {
+            store = new LogMessageStore(dir, 4096, 3600);
+        } else {
+            DatabaseConfig.initializeDatabase();
+            try (Connection conn = DatabaseConfig.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(
+                         "INSERT INTO users (username, password) VALUES (?, 'pass')")) {
+                for (String user : new String[] {alice, bob, carol}) {
+                    stmt.setString(1, user);
+                    stmt.executeUpdate();
+                }
+            }
+            store = new JdbcMessageStore();
+        }
+        store.open();
+        return store;
+    }
+
+    /** Alternates between alice and bob, with a message to carol after every fourth. */
+    private List<Long> appendConversation(MessageStore store, int count) throws IOException {
+        List<Draft> drafts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            drafts.add(i % 2 == 0 ? new Draft(alice, bob, "a" + i) : new Draft(bob, alice, "b" + i));
+            if (i % 4 == 3) {
+                drafts.add(new Draft(alice, carol, "c" + i));
+            }
+        }
+        long[] ids = store.append(drafts);
+        List<Long> conversation = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (!drafts.get(i).recipient().equals(carol)) {
+                conversation.add(ids[i]);
+            }
+        }
+        return conversation;
+    }
+
+    private static List<Long> ids(List<Message> page) {
+        List<Long> ids = new ArrayList<>();
+        for (Message message : page) {
+            ids.add(message.id());
+        }
+        return ids;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "log"})
+    void pagesWalkTheWholeConversationNewestFirst(String engine) throws Exception {
+        MessageStore store = open(engine);
+        try {
+            List<Long> expected = appendConversation(store, 120);
+            List<Long> seen = new ArrayList<>();
+            List<Integer> sizes = new ArrayList<>();
+            long before = 0;
+            while (true) {
+                List<Message> page = store.conversation(alice, bob, before, 50);
+                if (page.isEmpty()) {
+                    break;
+                }
+                sizes.add(page.size());
+                for (Message message : page) {
+                    assertTrue(message.id() < before || before == 0);
+                    assertTrue(message.sender().equals(alice) && message.recipient().equals(bob)
+                            || message.sender().equals(bob) && message.recipient().equals(alice), message.toString());
+                    seen.add(message.id());
+                }
+                before = page.get(page.size() - 1).id();
+            }
+            assertEquals(List.of(50, 50, 20), sizes);
+            List<Long> newestFirst = new ArrayList<>(expected);
+            newestFirst.sort((a, b) -> Long.compare(b, a));
+            assertEquals(newestFirst, seen);
+        } finally {
+            store.close();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "log"})
+    void bothSidesSeeTheSamePage(String engine) throws Exception {
+        MessageStore store = open(engine);
+        try {
+            appendConversation(store, 30);
+            assertEquals(ids(store.conversation(alice, bob, 0, 10)), ids(store.conversation(bob, alice, 0, 10)));
+            assertEquals(List.of(), store.conversation(alice, "nobody", 0, 10));
+        } finally {
+            store.close();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "log"})
+    void beforeIdIsExclusiveAndStableAsNewMessagesArrive(String engine) throws Exception {
+        MessageStore store = open(engine);
+        try {
+            List<Long> expected = appendConversation(store, 40);
+            List<Message> first = store.conversation(alice, bob, 0, 10);
+            long cursor = first.get(first.size() - 1).id();
+            // Newer messages must not shift the next page
+            appendConversation(store, 10);
+            List<Long> second = ids(store.conversation(alice, bob, cursor, 10));
+            assertEquals(List.of(expected.get(29), expected.get(28), expected.get(27), expected.get(26),
+                    expected.get(25), expected.get(24), expected.get(23), expected.get(22), expected.get(21),
+                    expected.get(20)), second);
+            assertEquals(List.of(expected.get(0)), ids(store.conversation(alice, bob, expected.get(1), 10)));
+            assertEquals(List.of(), store.conversation(alice, bob, expected.get(0), 10));
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.chatapp.server;
+
+import com.chatapp.server.MessageStore.Draft;
+import com.chatapp.server.MessageStore.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogMessageStoreTest {
+
+    // Small enough that a few dozen messages fill several segments
+    private static final int SEGMENT_BYTES = 1024;
+
+    @TempDir
+    Path dir;
+
+    private LogMessageStore open() throws IOException {
+        // The compactor is run by hand
+        LogMessageStore store = new LogMessageStore(dir, SEGMENT_BYTES, 3600);
+        store.open();
+        return store;
+    }
+
+    private static long[] send(MessageStore store, int count, String sender, String recipient) throws IOException {
+        List<Draft> drafts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            drafts.add(new Draft(sender, recipient, "message " + i + " from " + sender));
+        }
+        return store.append(drafts);
+    }
+
+    private static List<Long> ids(List<Message> messages) {
+        List<Long> ids = new ArrayList<>();
+        for (Message message : messages) {
+            ids.add(message.id());
+        }
+        return ids;
+    }
+
+    /** The offset of every record in a segment file, in order. */
+    private static List<Integer> records(Path segment) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+        List<Integer> offsets = new ArrayList<>();
+        for (int offset = 0; offset + 8 <= buffer.limit() && buffer.getInt(offset) > 0; ) {
+            offsets.add(offset);
+            offset += 8 + buffer.getInt(offset);
+        }
+        return offsets;
+    }
+
+    /** Flips the last byte of the record at {@code offset}, so its checksum no longer matches. */
+    private static void corrupt(Path segment, int offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, offset);
+            int last = offset + 8 + header.getInt(0) - 1;
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, last);
+            b.put(0, (byte) (b.get(0) ^ 0x5A));
+            b.rewind();
+            channel.write(b, last);
+        }
+    }
+
+    @Test
+    void reopenRestoresMessagesAndReadMarkers() throws IOException {
+        LogMessageStore store = open();
+        long[] toAlice = send(store, 30, "bob", "alice");
+        send(store, 5, "alice", "bob");
+        store.markRead("alice", "bob");
+        List<Message> received = store.received("alice");
+        List<Message> page = store.conversation("alice", "bob", 0, 50);
+        store.close();
+
+        store = open();
+        try {
+            assertEquals(35, store.lastId());
+            assertTrue(dir.resolve("1.seg").toFile().exists());
+            assertEquals(received, store.received("alice"));
+            assertEquals(page, store.conversation("alice", "bob", 0, 50));
+            assertEquals(Map.of("bob", Map.of("alice", 5)), store.unreadCounts(null));
+            assertArrayEquals(new long[] {36}, send(store, 1, "bob", "alice"));
+            assertEquals(toAlice[0], store.received("alice").get(0).id());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void tornRecordAtTheEndIsCutOff() throws IOException {
+        LogMessageStore store = open();
+        send(store, 3, "bob", "alice");
+        store.close();
+        Path segment = dir.resolve("0.seg");
+        List<Integer> records = records(segment);
+        corrupt(segment, records.get(records.size() - 1));
+
+        store = open();
+        try {
+            assertEquals(List.of(1L, 2L), ids(store.received("alice")));
+            assertEquals(2, store.lastId());
+            // The torn message was never acknowledged, so its id is handed out again
+            assertArrayEquals(new long[] {3}, send(store, 1, "bob", "alice"));
+        } finally {
+            store.close();
+        }
+        assertEquals(3, records(segment).size());
+        store = open();
+        try {
+            assertEquals(List.of(1L, 2L, 3L), ids(store.received("alice")));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void corruptSealedSegmentLosesOnlyItsTail() throws IOException {
+        LogMessageStore store = open();
+        send(store, 30, "bob", "alice");
+        store.close();
+        Path first = dir.resolve("0.seg");
+        List<Integer> records = records(first);
+        assertTrue(Files.exists(dir.resolve("1.seg")));
+        int bad = records.size() / 2;
+        corrupt(first, records.get(bad));
+
+        store = open();
+        try {
+            List<Long> expected = new ArrayList<>();
+            for (long id = 1; id <= 30; id++) {
+                if (id <= bad || id > records.size()) {
+                    expected.add(id);
+                }
+            }
+            assertEquals(expected, ids(store.received("alice")));
+            assertEquals(30, store.lastId());
+            assertArrayEquals(new long[] {31}, send(store, 1, "bob", "alice"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void compactionDropsSupersededMarkersAndSurvivesReopen() throws IOException {
+        LogMessageStore store = open();
+        for (int i = 0; i < 40; i++) {
+            send(store, 1, "bob", "alice");
+            store.markRead("alice", "bob");
+        }
+        send(store, 2, "bob", "alice");
+        List<Message> before = store.received("alice");
+        assertEquals(SEGMENT_BYTES, Files.size(dir.resolve("0.seg")));
+
+        store.compact();
+        assertTrue(Files.size(dir.resolve("0.seg")) < SEGMENT_BYTES * 3 / 4);
+        assertEquals(before, store.received("alice"));
+        assertEquals(Map.of("alice", Map.of("bob", 2)), store.unreadCounts("alice"));
+        send(store, 1, "bob", "alice");
+        store.close();
+
+        store = open();
+        try {
+            List<Message> after = store.received("alice");
+            assertEquals(43, after.size());
+            assertEquals(before, after.subList(0, 42));
+            assertEquals(Map.of("alice", Map.of("bob", 3)), store.unreadCounts("alice"));
+            assertEquals(new MessageStore.ReadResult(3, 43), store.markRead("alice", "bob"));
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.chatapp.server;
+
+import com.chatapp.protocol.Commands;
+import com.chatapp.protocol.Commands.Presence;
+import com.chatapp.protocol.Commands.UserStatus;
+import com.chatapp.protocol.Frame;
+import com.chatapp.protocol.ProtocolException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/** Who hears about presence changes, and what a client that is behind gets. */
+class PresenceServiceTest {
+
+    private static final int DEFER_DEPTH = 4;
+
+    private PresenceService presence;
+
+    // Flushed by hand, never by the window
+    private PresenceService open(boolean legacyFanOut) {
+        presence = new PresenceService(user -> false, TimeUnit.HOURS.toMillis(1), DEFER_DEPTH, legacyFanOut);
+        return presence;
+    }
+
+    @AfterEach
+    void shutdown() {
+        presence.shutdown();
+    }
+
+    @Test
+    void connectionsHearNothingUntilTheySubscribe() throws ProtocolException {
+        PresenceService presence = open(false);
+        RecordingConnection client = new RecordingConnection("carol");
+        presence.connected(client);
+        presence.statusChanged("alice", true);
+        presence.flush();
+        assertEquals(List.of(), client.commands());
+
+        presence.subscribe(client, List.of("alice"));
+        presence.statusChanged("alice", false);
+        presence.flush();
+        assertEquals(List.of(new Presence(Map.of("alice", false)), new Presence(Map.of("alice", false))),
+                client.commands());
+    }
+
+    @Test
+    void aSubscriberThatIsBehindGetsTheLatestStatusesOnceItCatchesUp() throws ProtocolException {
+        PresenceService presence = open(false);
+        RecordingConnection client = new RecordingConnection("carol");
+        presence.connected(client);
+        presence.subscribe(client, List.of("alice", "bob"));
+        client.frames.clear();
+
+        client.depth = DEFER_DEPTH;
+        presence.statusChanged("alice", true);
+        presence.flush();
+        presence.statusChanged("bob", true);
+        presence.statusChanged("alice", false);
+        presence.flush();
+        assertEquals(List.of(), client.commands());
+        assertEquals(2, presence.getStats().deferrals());
+
+        client.depth = 0;
+        presence.flush();
+        assertEquals(List.of(new Presence(Map.of("alice", false, "bob", true))), client.commands());
+        presence.flush();
+        assertEquals(1, client.frames.size());
+    }
+
+    @Test
+    void legacyConnectionsGetEveryChangeAndAreHeldBackTheSameWay() throws ProtocolException {
+        PresenceService presence = open(true);
+        RecordingConnection client = new RecordingConnection("carol");
+        presence.connected(client);
+
+        client.depth = DEFER_DEPTH;
+        presence.statusChanged("alice", true);
+        presence.statusChanged("bob", true);
+        presence.flush();
+        assertEquals(List.of(), client.commands());
+
+        client.depth = 0;
+        presence.statusChanged("bob", false);
+        presence.flush();
+        assertEquals(2, client.frames.size());
+        assertEquals(Map.of("alice", true, "bob", false), client.statuses());
+    }
+
+    @Test
+    void legacyConnectionsAreNeverQueuedPastTheBacklogDepth() throws ProtocolException {
+        PresenceService presence = open(true);
+        RecordingConnection client = new RecordingConnection("carol");
+        presence.connected(client);
+
+        client.depth = DEFER_DEPTH - 2;
+        for (String user : List.of("alice", "bob", "dave")) {
+            presence.statusChanged(user, true);
+        }
+        presence.flush();
+        assertEquals(2, client.frames.size());
+
+        client.depth = 0;
+        presence.flush();
+        assertEquals(3, client.frames.size());
+        assertEquals(Map.of("alice", true, "bob", true, "dave", true), client.statuses());
+    }
+
+    private static final class RecordingConnection implements ClientConnection {
+        private final String username;
+        final List<Frame> frames = new ArrayList<>();
+        int depth;
+
+        RecordingConnection(String username) {
+            this.username = username;
+        }
+
+        List<Object> commands() throws ProtocolException {
+            List<Object> commands = new ArrayList<>();
+            for (Frame frame : frames) {
+                commands.add(Commands.decode(frame));
+            }
+            return commands;
+        }
+
+        /** The latest USER_STATUS per user; a batch is in no particular order. */
+        Map<String, Boolean> statuses() throws ProtocolException {
+            Map<String, Boolean> statuses = new HashMap<>();
+            for (Object command : commands()) {
+                UserStatus status = (UserStatus) command;
+                statuses.put(status.username(), status.online());
+            }
+            return statuses;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void setUsername(String username) {
+        }
+
+        @Override
+        public boolean send(Frame frame) {
+            frames.add(frame);
+            return true;
+        }
+
+        @Override
+        public int getOutboundDepth() {
+            return depth;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
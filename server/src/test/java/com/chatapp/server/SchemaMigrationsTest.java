@@ -0,0 +1,132 @@
+package com.chatapp.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SchemaMigrationsTest {
+
+    private Connection conn;
+
+    @BeforeEach
+    void open() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:h2:mem:migrations", "sa", "");
+    }
+
+    @AfterEach
+    void close() throws SQLException {
+        conn.close();
+    }
+
+    /** A database as version 1 left it: names on messages, a sender id only for some rows. */
+    private void createVersionOne() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE schema_version (version INT PRIMARY KEY, description VARCHAR(200), " +
+                    "applied_at TIMESTAMP)");
+            stmt.execute("INSERT INTO schema_version VALUES (1, 'baseline', CURRENT_TIMESTAMP())");
+            stmt.execute("CREATE TABLE users (id INT AUTO_INCREMENT PRIMARY KEY, username VARCHAR(50) UNIQUE, " +
+                    "password VARCHAR(256))");
+            stmt.execute("CREATE TABLE messages (id INT AUTO_INCREMENT PRIMARY KEY, sender_id INT, " +
+                    "sender_name VARCHAR(50), recipient VARCHAR(50), content TEXT, timestamp TIMESTAMP, " +
+                    "read BOOLEAN DEFAULT FALSE, FOREIGN KEY (sender_id) REFERENCES users(id))");
+            stmt.execute("INSERT INTO users (username, password) VALUES ('haritha', 'p'), ('aakash', 'p')");
+            stmt.execute("INSERT INTO messages (sender_id, sender_name, recipient, content) VALUES " +
+                    "(1, 'haritha', 'aakash', 'by id'), " +
+                    "(NULL, 'aakash', 'haritha', 'by name'), " +
+                    "(NULL, 'haritha', 'ghost', 'to a deleted user'), " +
+                    "(NULL, 'nobody', 'aakash', 'from a deleted user')");
+        }
+    }
+
+    private List<String> column(String query) throws SQLException {
+        List<String> values = new ArrayList<>();
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(query)) {
+            while (rs.next()) {
+                values.add(rs.getString(1));
+            }
+        }
+        return values;
+    }
+
+    @Test
+    void messagesWithoutUsersAreSetAside() throws SQLException {
+        createVersionOne();
+        SchemaMigrations.migrate(conn);
+
+        assertEquals(List.of("by id:1:2", "by name:2:1"), column(
+                "SELECT content || ':' || sender_id || ':' || recipient_id FROM messages ORDER BY id"));
+        assertEquals(List.of("to a deleted user", "from a deleted user"),
+                column("SELECT content FROM messages_unmatched ORDER BY id"));
+        // New messages get ids after the ones set aside too
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("INSERT INTO messages (sender_id, recipient_id, content) VALUES (1, 2, 'new')");
+        }
+        assertEquals(List.of("5"), column("SELECT id FROM messages WHERE content = 'new'"));
+    }
+
+    @Test
+    void aMigrationThatFailedPartwayCompletesWhenRunAgain() throws SQLException {
+        createVersionOne();
+        try (Statement stmt = conn.createStatement()) {
+            // A sender id with no users row fails migration 2 at its foreign key, long after the table swap
+            stmt.execute("SET REFERENTIAL_INTEGRITY FALSE");
+            stmt.execute("INSERT INTO messages (sender_id, sender_name, recipient, content) " +
+                    "VALUES (9, 'haritha', 'aakash', 'from a stale id')");
+            stmt.execute("SET REFERENTIAL_INTEGRITY TRUE");
+        }
+        assertThrows(SQLException.class, () -> SchemaMigrations.migrate(conn));
+        assertEquals(1, SchemaMigrations.currentVersion(conn));
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("UPDATE messages SET sender_id = 1 WHERE sender_id = 9");
+        }
+        SchemaMigrations.migrate(conn);
+
+        assertEquals(List.of("by id:1:2", "by name:2:1", "from a stale id:1:2"), column(
+                "SELECT content || ':' || sender_id || ':' || recipient_id FROM messages ORDER BY id"));
+        assertEquals(List.of("to a deleted user", "from a deleted user"),
+                column("SELECT content FROM messages_unmatched ORDER BY id"));
+        assertEquals(List.of("6"), column("SELECT MAX(version) FROM schema_version"));
+    }
+
+    @Test
+    void messagesWithoutARecipientAreSetAside() throws SQLException {
+        SchemaMigrations.migrate(conn);
+        try (Statement stmt = conn.createStatement()) {
+            // Back to version 5, which stored a message to an unknown name with a NULL recipient
+            stmt.execute("DELETE FROM schema_version WHERE version = 6");
+            stmt.execute("ALTER TABLE messages ALTER COLUMN recipient_id SET NULL");
+            stmt.execute("INSERT INTO users (username, password) VALUES ('haritha', 'p'), ('aakash', 'p')");
+            stmt.execute("INSERT INTO messages (sender_id, recipient_id, content) VALUES " +
+                    "(1, 2, 'to aakash'), (1, NULL, 'to a typo')");
+        }
+        SchemaMigrations.migrate(conn);
+
+        assertEquals(List.of("to aakash"), column("SELECT content FROM messages"));
+        assertEquals(List.of("to a typo"), column("SELECT content FROM messages_no_recipient"));
+        try (Statement stmt = conn.createStatement()) {
+            assertThrows(SQLException.class, () -> stmt.execute(
+                    "INSERT INTO messages (sender_id, recipient_id, content) VALUES (1, NULL, 'again')"));
+        }
+    }
+
+    @Test
+    void nothingIsSetAsideWhenEveryUserExists() throws SQLException {
+        SchemaMigrations.migrate(conn);
+
+        assertFalse(column("SELECT table_name FROM information_schema.tables").contains("MESSAGES_UNMATCHED"));
+        assertEquals(List.of("6"), column("SELECT MAX(version) FROM schema_version"));
+    }
+}
@@ -0,0 +1,81 @@
+package com.chatapp.server;
+
+import com.chatapp.protocol.Commands;
+import com.chatapp.protocol.Commands.Login;
+import com.chatapp.protocol.Commands.LoginSucceeded;
+import com.chatapp.protocol.ProtocolReader;
+import com.chatapp.protocol.ProtocolWriter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledForJreRange;
+import org.junit.jupiter.api.condition.JRE;
+
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.concurrent.ThreadFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Virtual thread mode: refused before JDK 21, a working server from 21 on. */
+class VirtualThreadModeTest {
+
+    @Test
+    @EnabledForJreRange(max = JRE.JAVA_20)
+    void needsAJdk21Runtime() {
+        IllegalStateException e = assertThrows(IllegalStateException.class, ChatServer::virtualThreadFactory);
+        assertTrue(e.getMessage().contains("JDK 21"), e.getMessage());
+    }
+
+    @Test
+    @EnabledForJreRange(min = JRE.JAVA_21)
+    void connectionsRunOnVirtualThreads() throws Exception {
+        ThreadFactory factory = ChatServer.virtualThreadFactory();
+        assertEquals(true, Thread.class.getMethod("isVirtual").invoke(factory.newThread(() -> { })));
+
+        try (Connection conn = DatabaseConfig.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                     "INSERT INTO users (username, password) VALUES ('virtual_user', 'pass')")) {
+            stmt.executeUpdate();
+        }
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        ChatServer server = new ChatServer();
+        Thread listener = new Thread(() -> {
+            try {
+                server.startVirtual(port);
+            } catch (Exception e) {
+                Log.error("Virtual mode server stopped: {}", e.getMessage());
+            }
+        }, "virtual-mode-test");
+        listener.setDaemon(true);
+        listener.start();
+
+        try (Socket socket = connect(port)) {
+            socket.setSoTimeout(10_000);
+            new ProtocolWriter(socket.getOutputStream()).write(new Login("virtual_user", "pass").toFrame());
+            ProtocolReader in = new ProtocolReader(socket.getInputStream());
+            assertInstanceOf(LoginSucceeded.class, Commands.decode(in.readFrame()));
+        }
+    }
+
+    /** Retries until the server thread has bound the port. */
+    private static Socket connect(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("127.0.0.1", port);
+            } catch (ConnectException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+}